@@ -0,0 +1,232 @@
+package de.hammacher.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import de.hammacher.util.MultiplexedFileReader.MultiplexInputStream;
+import de.hammacher.util.streams.MyDataInputStream;
+import de.hammacher.util.streams.OptimizedDataInputStream;
+
+/**
+ * Reads the records written by an {@link IndexedRecordOutput}.
+ *
+ * Records are read sequentially by {@link #nextRecord()}. Using the sparse index,
+ * {@link #seekToRecord(long)} and {@link #seekToKey(long)} position the reader
+ * in O(log n) steps plus skipping less than <code>indexInterval</code> record
+ * headers, without decoding the content of any record.
+ *
+ * @author Clemens Hammacher
+ * @see IndexedRecordOutput
+ */
+public class IndexedRecordInput {
+
+    private static final int INDEX_ENTRY_SIZE = 16; // bytes
+    private static final int INDEX_TRAILER_SIZE = 12; // bytes
+
+    private final MultiplexInputStream dataIn;
+    private final MultiplexInputStream indexIn;
+    private final MyDataInputStream indexDataIn;
+    private final int indexInterval;
+    private final long numRecords;
+    private final long numIndexEntries;
+
+    // the number of the record that will be returned by the next call to nextRecord()
+    private long nextRecordNr = 0;
+    private long lastKey = 0;
+
+    private long recordKey = 0;
+    private byte[] recordData = new byte[16];
+    private int recordLength = -1;
+
+    /**
+     * Creates a new {@link IndexedRecordInput} on the given streams of a {@link MultiplexedFileReader}.
+     *
+     * @param reader the reader containing the streams
+     * @param dataStreamId the id of the data stream (see {@link IndexedRecordOutput#getDataStreamId()})
+     * @param indexStreamId the id of the index stream (see {@link IndexedRecordOutput#getIndexStreamId()})
+     */
+    public IndexedRecordInput(final MultiplexedFileReader reader, final int dataStreamId, final int indexStreamId)
+            throws IOException {
+        this.dataIn = reader.getInputStream(dataStreamId);
+        if (this.dataIn == null)
+            throw new IOException("no stream with id " + dataStreamId);
+        this.indexIn = reader.getInputStream(indexStreamId);
+        if (this.indexIn == null)
+            throw new IOException("no stream with id " + indexStreamId);
+        this.indexDataIn = new MyDataInputStream(this.indexIn);
+
+        final long indexLength = this.indexIn.getDataLength();
+        if (indexLength < INDEX_TRAILER_SIZE || (indexLength - INDEX_TRAILER_SIZE) % INDEX_ENTRY_SIZE != 0)
+            throw new IOException("corrupted index stream");
+        this.numIndexEntries = (indexLength - INDEX_TRAILER_SIZE) / INDEX_ENTRY_SIZE;
+        this.indexIn.seek(indexLength - INDEX_TRAILER_SIZE);
+        this.indexInterval = this.indexDataIn.readInt();
+        this.numRecords = this.indexDataIn.readLong();
+        if (this.indexInterval <= 0 || this.numRecords < 0
+                || this.numIndexEntries != (this.numRecords + this.indexInterval - 1) / this.indexInterval)
+            throw new IOException("corrupted index stream");
+        if (this.numRecords > 0)
+            seekToIndexEntry(0);
+    }
+
+    /**
+     * Reads the next record. Its key and content are then available via
+     * {@link #getKey()} and {@link #getRecordInput()}.
+     *
+     * @return <code>false</code> if there are no more records
+     */
+    public boolean nextRecord() throws IOException {
+        if (this.nextRecordNr >= this.numRecords) {
+            this.recordLength = -1;
+            return false;
+        }
+        final int length = readRecordHeader();
+        if (this.recordData.length < length)
+            this.recordData = new byte[Math.max(length, 2*this.recordData.length)];
+        int pos = 0;
+        while (pos < length) {
+            final int read = this.dataIn.read(this.recordData, pos, length - pos);
+            if (read < 0)
+                throw new EOFException();
+            pos += read;
+        }
+        this.recordLength = length;
+        ++this.nextRecordNr;
+        return true;
+    }
+
+    /**
+     * Positions this reader such that the next call to {@link #nextRecord()}
+     * returns the record with the given number.
+     *
+     * @param recordNr the number of the record (starting at 0); may be equal to the
+     *                 number of records to position the reader at the end
+     */
+    public void seekToRecord(final long recordNr) throws IOException {
+        if (recordNr < 0 || recordNr > this.numRecords)
+            throw new IllegalArgumentException("recordNr must be in the range 0 .. numRecords");
+        if (recordNr == this.numRecords) {
+            this.dataIn.seek(this.dataIn.getDataLength());
+            this.nextRecordNr = recordNr;
+        } else {
+            seekToIndexEntry(recordNr / this.indexInterval);
+            while (this.nextRecordNr < recordNr)
+                skipRecord();
+        }
+        this.recordLength = -1;
+    }
+
+    /**
+     * Positions this reader such that the next call to {@link #nextRecord()}
+     * returns the first record whose key is greater or equal to the given key.
+     *
+     * @param key the key to search for
+     * @return <code>false</code> if all records have a smaller key (the reader is
+     *         then positioned at the end)
+     */
+    public boolean seekToKey(final long key) throws IOException {
+        this.recordLength = -1;
+        // binary search for the last index entry with a smaller key
+        long low = 0;
+        long high = this.numIndexEntries - 1;
+        long found = 0;
+        while (low <= high) {
+            final long mid = (low + high) >>> 1;
+            if (readIndexEntryKey(mid) < key) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (this.numRecords == 0)
+            return false;
+
+        // the record we are looking for is at most indexInterval records away
+        seekToIndexEntry(found);
+        while (this.nextRecordNr < this.numRecords) {
+            final long recordStart = this.dataIn.getPosition();
+            final long oldLastKey = this.lastKey;
+            final int length = readRecordHeader();
+            if (this.recordKey >= key) {
+                this.dataIn.seek(recordStart);
+                this.lastKey = oldLastKey;
+                return true;
+            }
+            this.dataIn.seek(this.dataIn.getPosition() + length);
+            ++this.nextRecordNr;
+        }
+        return false;
+    }
+
+    private void seekToIndexEntry(final long entryNr) throws IOException {
+        this.indexIn.seek(entryNr * INDEX_ENTRY_SIZE);
+        this.dataIn.seek(this.indexDataIn.readLong());
+        this.nextRecordNr = entryNr * this.indexInterval;
+    }
+
+    private long readIndexEntryKey(final long entryNr) throws IOException {
+        this.indexIn.seek(entryNr * INDEX_ENTRY_SIZE + 8);
+        return this.indexDataIn.readLong();
+    }
+
+    private int readRecordHeader() throws IOException {
+        final long storedKey = OptimizedDataInputStream.readLong0(this.dataIn);
+        // indexed records store their absolute key, all others the difference to the previous key
+        this.recordKey = this.nextRecordNr % this.indexInterval == 0 ? storedKey : this.lastKey + storedKey;
+        this.lastKey = this.recordKey;
+        final int length = OptimizedDataInputStream.readInt0(this.dataIn);
+        if (length < 0)
+            throw new IOException("corrupted data stream (negative record length)");
+        return length;
+    }
+
+    private void skipRecord() throws IOException {
+        final int length = readRecordHeader();
+        this.dataIn.seek(this.dataIn.getPosition() + length);
+        ++this.nextRecordNr;
+    }
+
+    /**
+     * Returns the key of the record read by the last call to {@link #nextRecord()}.
+     */
+    public long getKey() {
+        if (this.recordLength < 0)
+            throw new IllegalStateException("no current record");
+        return this.recordKey;
+    }
+
+    /**
+     * Returns the number of the record read by the last call to {@link #nextRecord()}.
+     */
+    public long getRecordNr() {
+        if (this.recordLength < 0)
+            throw new IllegalStateException("no current record");
+        return this.nextRecordNr - 1;
+    }
+
+    public int getRecordLength() {
+        if (this.recordLength < 0)
+            throw new IllegalStateException("no current record");
+        return this.recordLength;
+    }
+
+    /**
+     * Returns a stream for decoding the content of the record read by the last
+     * call to {@link #nextRecord()}.
+     */
+    public OptimizedDataInputStream getRecordInput() {
+        if (this.recordLength < 0)
+            throw new IllegalStateException("no current record");
+        return new OptimizedDataInputStream(this.recordData, 0, this.recordLength, false);
+    }
+
+    public long getNumRecords() {
+        return this.numRecords;
+    }
+
+    public int getIndexInterval() {
+        return this.indexInterval;
+    }
+
+}
@@ -0,0 +1,171 @@
+package de.hammacher.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import de.hammacher.util.MultiplexedFileWriter.MultiplexOutputStream;
+import de.hammacher.util.streams.MyDataOutputStream;
+import de.hammacher.util.streams.OptimizedDataOutputStream;
+
+/**
+ * Writes variable-length records into a {@link MultiplexOutputStream}, and maintains
+ * a sparse index over these records in a second stream.
+ *
+ * Each record carries a key (e.g. a timestamp); keys must be non-decreasing.
+ * In the data stream, each record is framed by the difference of its key to the
+ * key of the previous record (the absolute key for indexed records) and by its
+ * length (both encoded like in the {@link OptimizedDataOutputStream}), so that
+ * records can be skipped without decoding them.
+ * For every k-th record, the byte offset of the record and its key are written
+ * to the index stream as fixed-size entries (two big-endian longs), followed by
+ * the index interval and the total number of records when the streams are closed.
+ * This allows the {@link IndexedRecordInput} to find a record by its number or
+ * key using binary search on the index, and then skipping less than k records.
+ *
+ * @author Clemens Hammacher
+ * @see IndexedRecordInput
+ */
+public class IndexedRecordOutput {
+
+    public static final int DEFAULT_INDEX_INTERVAL = 64;
+
+    private final MultiplexOutputStream dataStream;
+    private final MultiplexOutputStream indexStream;
+    private final MyDataOutputStream indexOut;
+    private final int indexInterval;
+
+    private final ByteArrayOutputStream frameBuffer = new ByteArrayOutputStream(16);
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+    private final OptimizedDataOutputStream recordOut = new OptimizedDataOutputStream(this.recordBuffer);
+
+    private long numRecords = 0;
+    private long lastKey = Long.MIN_VALUE;
+    private long currentKey = 0;
+    private boolean inRecord = false;
+    private boolean closed = false;
+
+    /**
+     * Creates a new {@link IndexedRecordOutput} writing to two new streams of the
+     * given {@link MultiplexedFileWriter}.
+     *
+     * @param writer the {@link MultiplexedFileWriter} to create the data and index stream in
+     * @param indexInterval the number of records between two index entries
+     */
+    public IndexedRecordOutput(final MultiplexedFileWriter writer, final int indexInterval) {
+        this(writer.newOutputStream(), writer.newOutputStream(), indexInterval);
+    }
+
+    public IndexedRecordOutput(final MultiplexedFileWriter writer) {
+        this(writer, DEFAULT_INDEX_INTERVAL);
+    }
+
+    /**
+     * Creates a new {@link IndexedRecordOutput} on the given (empty) streams.
+     *
+     * @param dataStream the stream receiving the framed records
+     * @param indexStream the stream receiving the sparse index
+     * @param indexInterval the number of records between two index entries
+     */
+    public IndexedRecordOutput(final MultiplexOutputStream dataStream, final MultiplexOutputStream indexStream,
+            final int indexInterval) {
+        if (indexInterval <= 0)
+            throw new IllegalArgumentException("indexInterval must be positive");
+        if (dataStream.length() != 0 || indexStream.length() != 0)
+            throw new IllegalArgumentException("the streams must be empty");
+        this.dataStream = dataStream;
+        this.indexStream = indexStream;
+        this.indexOut = new MyDataOutputStream(indexStream);
+        this.indexInterval = indexInterval;
+    }
+
+    /**
+     * Starts a new record with the given key.
+     * The content of the record is written to the returned stream, and the record
+     * is finished by calling {@link #endRecord()}.
+     *
+     * @param key the key of the new record; must not be smaller than the key of the previous record
+     * @return the stream to write the content of the record to
+     */
+    public OptimizedDataOutputStream startRecord(final long key) {
+        if (this.closed)
+            throw new IllegalStateException("closed");
+        if (this.inRecord)
+            throw new IllegalStateException("the previous record has not been finished");
+        if (key < this.lastKey)
+            throw new IllegalArgumentException("keys must be non-decreasing (" + key + " < " + this.lastKey + ")");
+        this.currentKey = key;
+        this.inRecord = true;
+        return this.recordOut;
+    }
+
+    /**
+     * Finishes the record started by {@link #startRecord(long)}, and writes it
+     * to the data stream.
+     */
+    public void endRecord() throws IOException {
+        if (!this.inRecord)
+            throw new IllegalStateException("no record started");
+        this.inRecord = false;
+
+        this.frameBuffer.reset();
+        if (this.numRecords % this.indexInterval == 0) {
+            this.indexOut.writeLong(this.dataStream.length());
+            this.indexOut.writeLong(this.currentKey);
+            // indexed records store their absolute key, such that the reader can start there
+            OptimizedDataOutputStream.writeLong0(this.currentKey, this.frameBuffer);
+        } else {
+            OptimizedDataOutputStream.writeLong0(this.currentKey - this.lastKey, this.frameBuffer);
+        }
+        OptimizedDataOutputStream.writeInt0(this.recordBuffer.size(), this.frameBuffer);
+        this.frameBuffer.writeTo(this.dataStream);
+        this.recordBuffer.writeTo(this.dataStream);
+        this.recordBuffer.reset();
+
+        this.lastKey = this.currentKey;
+        ++this.numRecords;
+    }
+
+    /**
+     * Writes a complete record.
+     *
+     * @param key the key of the new record; must not be smaller than the key of the previous record
+     * @param data the content of the record
+     */
+    public void writeRecord(final long key, final byte[] data) throws IOException {
+        startRecord(key).write(data);
+        endRecord();
+    }
+
+    public long getNumRecords() {
+        return this.numRecords;
+    }
+
+    public int getIndexInterval() {
+        return this.indexInterval;
+    }
+
+    public int getDataStreamId() {
+        return this.dataStream.getId();
+    }
+
+    public int getIndexStreamId() {
+        return this.indexStream.getId();
+    }
+
+    /**
+     * Finishes a possibly started record, writes the trailer of the index stream
+     * and closes both streams.
+     */
+    public void close() throws IOException {
+        if (this.closed)
+            return;
+        if (this.inRecord)
+            endRecord();
+        this.closed = true;
+        this.indexOut.writeInt(this.indexInterval);
+        this.indexOut.writeLong(this.numRecords);
+        this.indexStream.close();
+        this.dataStream.close();
+    }
+
+}
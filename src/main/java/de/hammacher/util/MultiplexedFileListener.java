@@ -0,0 +1,65 @@
+package de.hammacher.util;
+
+/**
+ * Receives events from a {@link MultiplexedFileWriter} or {@link MultiplexedFileReader}
+ * for monitoring purposes.
+ *
+ * The methods are called from all threads using the file, so implementations
+ * must be thread-safe and should be cheap. If no listener is set, no events
+ * are generated and no time is measured.
+ *
+ * @author Clemens Hammacher
+ * @see MultiplexedFileStatistics
+ */
+public interface MultiplexedFileListener {
+
+    /**
+     * A block has been allocated.
+     *
+     * @param reused whether a previously freed block has been reused
+     */
+    void blockAllocated(boolean reused);
+
+    void blockFreed();
+
+    /**
+     * A block has been written (for asynchronous writes: queued).
+     */
+    void blockWritten(long nanos);
+
+    void blockRead(long nanos);
+
+    /**
+     * Some part of the file has been mapped into memory.
+     */
+    void fileMapped(long nanos);
+
+    void flushed(long nanos);
+
+    /**
+     * The file has been compacted on close.
+     *
+     * @param movedBlocks the number of blocks that have been moved to free blocks
+     */
+    void compacted(int movedBlocks, long nanos);
+
+    void streamOpened(int streamId);
+
+    /**
+     * A stream has been closed or removed.
+     */
+    void streamClosed(int streamId);
+
+    void streamDataWritten(int streamId, long bytes);
+
+    /**
+     * Data has been read from a stream. Bytes read one at a time are reported
+     * in batches, at the latest when the next block is read or the stream is closed.
+     */
+    void streamDataRead(int streamId, long bytes);
+
+    void readerOpened(int streamId);
+
+    void readerClosed(int streamId);
+
+}
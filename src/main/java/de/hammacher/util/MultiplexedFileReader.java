@@ -6,23 +6,26 @@ import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 
 import de.hammacher.util.maps.IntegerMap;
 import de.hammacher.util.streams.MyDataInputStream;
+import de.hammacher.util.streams.OptimizedDataInputStream;
 
 public class MultiplexedFileReader {
 
     private static class StreamDef {
 
-        public int startAddr;
+        public long startAddr;
         public long length;
 
-        public StreamDef(final int startAddr, final long length) {
+        public StreamDef(final long startAddr, final long length) {
             this.startAddr = startAddr;
             this.length = length;
         }
@@ -34,18 +37,25 @@ public class MultiplexedFileReader {
         private final int id;
         private final int depth;
         private final long dataLength;
-        private final int[][] pointerBlocks;
+        private final long[][] pointerBlocks;
         private final byte[] dataBlock;
         private final int[] pos;
         private int remainingInCurrentBlock;
+        // the listener at the time this stream was opened
+        private final MultiplexedFileListener streamListener;
+        // bytes read by read() which have not been reported to the listener yet
+        private int unreportedBytes = 0;
+        private boolean streamClosed = false;
 
-        protected MultiplexInputStream(final int id, final int beginningBlockAddr, final long length) throws IOException {
+        protected MultiplexInputStream(final int id, final long beginningBlockAddr, final long length) throws IOException {
             this.id = id;
+            // internal streams are not reported
+            this.streamListener = id < 0 ? null : MultiplexedFileReader.this.listener;
             this.dataLength = length;
             this.depth = compDepth(length);
 
             this.pos = new int[this.depth+1];
-            this.pointerBlocks = new int[this.depth][MultiplexedFileReader.this.blockSize/4];
+            this.pointerBlocks = new long[this.depth][MultiplexedFileReader.this.pointersPerBlock];
             this.dataBlock = new byte[MultiplexedFileReader.this.blockSize];
             this.remainingInCurrentBlock = (int) Math.min(this.dataLength, MultiplexedFileReader.this.blockSize);
 
@@ -65,7 +75,7 @@ public class MultiplexedFileReader {
             long max = MultiplexedFileReader.this.blockSize;
             while (max <= len) {
                 ++d;
-                max *= MultiplexedFileReader.this.blockSize/4;
+                max *= MultiplexedFileReader.this.pointersPerBlock;
                 if (max <= MultiplexedFileReader.this.blockSize)
                     throw new IOException("Illegal stream length: " + len);
             }
@@ -84,7 +94,7 @@ public class MultiplexedFileReader {
             boolean reRead = false;
             for (int i = 0; i < this.depth; ++i) {
                 if (reRead) {
-                    final int blockAddr = this.pointerBlocks[i-1][newPos[i-1]];
+                    final long blockAddr = this.pointerBlocks[i-1][newPos[i-1]];
                     readBlock(blockAddr, this.pointerBlocks[i]);
                 } else
                     reRead = reRead || this.pos[i] != newPos[i];
@@ -106,10 +116,10 @@ public class MultiplexedFileReader {
             newPos[this.depth] = (int) (position % MultiplexedFileReader.this.blockSize);
             long remaining = position / MultiplexedFileReader.this.blockSize;
             for (int d = this.depth-1; d > 0; --d) {
-                newPos[d] = (int) (remaining % (MultiplexedFileReader.this.blockSize/4));
-                remaining = remaining / (MultiplexedFileReader.this.blockSize/4);
+                newPos[d] = (int) (remaining % MultiplexedFileReader.this.pointersPerBlock);
+                remaining = remaining / MultiplexedFileReader.this.pointersPerBlock;
             }
-            assert remaining <= MultiplexedFileReader.this.blockSize/4;
+            assert remaining <= MultiplexedFileReader.this.pointersPerBlock;
             newPos[0] = (int) remaining;
             return newPos;
         }
@@ -117,11 +127,14 @@ public class MultiplexedFileReader {
         @Override
         public int read() throws IOException {
             if (this.remainingInCurrentBlock == 0) {
+                // report once per block
+                reportBytesRead(0);
                 moveToNextBlock();
                 if (this.remainingInCurrentBlock == 0)
                     return -1;
             }
             --this.remainingInCurrentBlock;
+            ++this.unreportedBytes;
             return this.dataBlock[this.pos[this.depth]++] & 0xff;
         }
 
@@ -139,8 +152,10 @@ public class MultiplexedFileReader {
             while (ptr < end) {
                 if (this.remainingInCurrentBlock == 0) {
                     moveToNextBlock();
-                    if (this.remainingInCurrentBlock == 0)
+                    if (this.remainingInCurrentBlock == 0) {
+                        reportBytesRead(ptr - off);
                         return ptr == off ? -1 : ptr-off;
+                    }
                 }
                 final int read = Math.min(end - ptr, this.remainingInCurrentBlock);
                 System.arraycopy(this.dataBlock, this.pos[this.depth], b, ptr, read);
@@ -148,9 +163,21 @@ public class MultiplexedFileReader {
                 this.remainingInCurrentBlock -= read;
                 this.pos[this.depth] += read;
             }
+            reportBytesRead(len);
             return len;
         }
 
+        /**
+         * Reports the given number of bytes, plus those read by {@link #read()}
+         * since the last report, to the listener.
+         */
+        private void reportBytesRead(final int bytes) {
+            final long total = (long) this.unreportedBytes + bytes;
+            this.unreportedBytes = 0;
+            if (this.streamListener != null && total != 0)
+                this.streamListener.streamDataRead(this.id, total);
+        }
+
         private void moveToNextBlock() throws IOException {
             final long read = getPosition();
             final long remaining = this.dataLength - read;
@@ -159,7 +186,7 @@ public class MultiplexedFileReader {
             this.remainingInCurrentBlock = (int) Math.min(remaining, MultiplexedFileReader.this.blockSize);
 
             for (int d = this.depth-1; d >= 0; --d) {
-                if (this.pos[d] + 1 < MultiplexedFileReader.this.blockSize/4) {
+                if (this.pos[d] + 1 < MultiplexedFileReader.this.pointersPerBlock) {
                     ++this.pos[d];
                     for (; d < this.depth-1; ++d) {
                         readBlock(this.pointerBlocks[d][this.pos[d]], this.pointerBlocks[d+1]);
@@ -179,7 +206,7 @@ public class MultiplexedFileReader {
 
             long read = this.pos[0];
             for (int i = 1; i < this.depth; ++i)
-                read = MultiplexedFileReader.this.blockSize/4*read + this.pos[i];
+                read = MultiplexedFileReader.this.pointersPerBlock*read + this.pos[i];
             read = MultiplexedFileReader.this.blockSize*read + this.pos[this.depth];
             return read;
         }
@@ -189,6 +216,15 @@ public class MultiplexedFileReader {
             return (int) Math.min(Integer.MAX_VALUE, this.dataLength - getPosition());
         }
 
+        /**
+         * Reads a string written by
+         * {@link MultiplexedFileWriter.MultiplexOutputStream#writeDictionaryString(String)},
+         * looking it up in the file-wide string dictionary.
+         */
+        public String readDictionaryString() throws IOException {
+            return getDictionaryString(OptimizedDataInputStream.readInt0(this));
+        }
+
         public int getId() {
             return this.id;
         }
@@ -199,7 +235,10 @@ public class MultiplexedFileReader {
 
         @Override
         public void close() {
-            // nothing to do
+            reportBytesRead(0);
+            if (this.streamListener != null && !this.streamClosed)
+                this.streamListener.readerClosed(this.id);
+            this.streamClosed = true;
         }
 
         public boolean isEOF() throws IOException {
@@ -214,10 +253,37 @@ public class MultiplexedFileReader {
 
     // this is just some random integer
     public static final int MAGIC_HEADER = 0xB7A332B2;
+    // identifies files of format version 2
+    public static final int MAGIC_HEADER_V2 = 0xB7A332B3;
 
-    private static final int headerSize = 21; // bytes
+    /**
+     * The original format: block addresses are 32-bit unsigned integers, limiting
+     * a file to 2^32 blocks.
+     */
+    public static final int FORMAT_VERSION_1 = 1;
+    /**
+     * Block addresses (in pointer blocks, in the stream directory and in the header)
+     * are 64-bit integers.
+     */
+    public static final int FORMAT_VERSION_2 = 2;
+
+    /**
+     * The id of the internal stream holding the {@link StreamMetadata} of all streams.
+     * This stream is not reported by {@link #getStreamIds()}.
+     */
+    public static final int METADATA_STREAM_ID = -2;
+
+    /**
+     * The id of the internal stream holding the file-wide string dictionary
+     * (see {@link MultiplexedFileWriter#getStringId(String)}).
+     * This stream is not reported by {@link #getStreamIds()}.
+     */
+    public static final int STRING_DICTIONARY_STREAM_ID = -3;
 
-    private static final long POS_INT_MASK = 0x8fffffffL;
+    static final int HEADER_SIZE_V1 = 21; // bytes
+    static final int HEADER_SIZE_V2 = 25; // bytes
+
+    private static final long POS_INT_MASK = 0xffffffffL;
 
     // each mapped slice has 1<<30 = 1GiBytes
     protected static final int MAPPING_SLICE_SIZE_BITS = 30;
@@ -228,15 +294,28 @@ public class MultiplexedFileReader {
 
     protected final int blockSize; // MUST be divisible by 4
 
+    private final int formatVersion;
+    /* package-visible */ final int headerSize;
+    // number of block addresses in one pointer block
+    private final int pointersPerBlock;
+
     private final ByteOrder byteOrder;
 
     private final boolean useMemoryMapping;
 
     protected final FileChannel fileChannel;
     private final MappedByteBuffer[] fileMappings;
-    private final int numBlocksInFile;
+    private final long numBlocksInFile;
 
     private final IntegerMap<StreamDef> streamDefs;
+    private final StreamDef metadataStreamDef;
+    private StreamMetadataIndex metadataIndex = null;
+    private final StreamDef stringDictionaryStreamDef;
+    // loaded on first use, shared by all streams
+    private volatile String[] stringDictionary = null;
+
+    // if set, receives events for monitoring
+    protected volatile MultiplexedFileListener listener = null;
 
     public MultiplexedFileReader(final RandomAccessFile file, final boolean useMemoryMapping)
             throws IOException {
@@ -245,20 +324,32 @@ public class MultiplexedFileReader {
         this.fileChannel.position(0);
 
         final long fileSize = this.fileChannel.size();
-        if (fileSize < headerSize)
+        if (fileSize < HEADER_SIZE_V1)
             throw new IOException("File contains no MultiplexedFile (too small)");
-        final ByteBuffer headerBuffer = ByteBuffer.allocate(headerSize);
+        final ByteBuffer magicBuffer = ByteBuffer.allocate(4);
+        while (magicBuffer.hasRemaining())
+            if (this.fileChannel.read(magicBuffer, magicBuffer.position()) < 0)
+                throw new IOException("Unexpected EOF");
+        final int magic = magicBuffer.getInt(0);
+        if (magic == MAGIC_HEADER)
+            this.formatVersion = FORMAT_VERSION_1;
+        else if (magic == MAGIC_HEADER_V2)
+            this.formatVersion = FORMAT_VERSION_2;
+        else
+            throw new IOException("File contains no MultiplexedFile (illegal header)");
+        this.headerSize = getHeaderSize(this.formatVersion);
+        if (fileSize < this.headerSize)
+            throw new IOException("File contains no MultiplexedFile (too small)");
+        final ByteBuffer headerBuffer = ByteBuffer.allocate(this.headerSize);
         while (headerBuffer.hasRemaining())
             this.fileChannel.read(headerBuffer, headerBuffer.position());
-        headerBuffer.rewind();
+        headerBuffer.position(4);
 
-        if (headerBuffer.getInt() != MAGIC_HEADER)
-            throw new IOException("File contains no MultiplexedFile (illegal header)");
         this.blockSize = headerBuffer.getInt();
-        if ((this.blockSize & 0x3) != 0)
-            throw new IOException("blocksize must be divisible by 4");
-        if (this.blockSize < 8)
-            throw new IOException("blockSize must be >= 8");
+        if ((this.blockSize & (getPointerSize(this.formatVersion)-1)) != 0)
+            throw new IOException("blocksize must be divisible by " + getPointerSize(this.formatVersion));
+        if (this.blockSize < 2*getPointerSize(this.formatVersion))
+            throw new IOException("blockSize must be >= " + 2*getPointerSize(this.formatVersion));
         if ((1 << MAPPING_SLICE_SIZE_BITS) % this.blockSize != 0)
             throw new IllegalArgumentException("1<<"+MAPPING_SLICE_SIZE_BITS+" must be divisible by the blockSize");
         final int byteOrderInt = headerBuffer.get();
@@ -269,14 +360,17 @@ public class MultiplexedFileReader {
         else
             throw new IOException("File contains no MultiplexedFile (illegal header)");
 
-        final int streamDefsStartingBlock = headerBuffer.getInt();
+        this.pointersPerBlock = this.blockSize / getPointerSize(this.formatVersion);
+
+        final long streamDefsStartingBlock = this.formatVersion == FORMAT_VERSION_1
+            ? headerBuffer.getInt() & POS_INT_MASK : headerBuffer.getLong();
         final long streamDefsLength = headerBuffer.getLong();
         assert !headerBuffer.hasRemaining();
 
-        final long numBlocksInFile0 = (fileSize - headerSize) / this.blockSize;
-        if (numBlocksInFile0 > (1l << 32) || fileSize != (headerSize+numBlocksInFile0*this.blockSize))
+        this.numBlocksInFile = (fileSize - this.headerSize) / this.blockSize;
+        if ((this.formatVersion == FORMAT_VERSION_1 && this.numBlocksInFile > (1l << 32))
+                || fileSize != (this.headerSize+this.numBlocksInFile*this.blockSize))
             throw new IOException("File contains no MultiplexedFile (illegal number of blocks in file)");
-        this.numBlocksInFile = (int) numBlocksInFile0;
 
         // if file mapping is enabled, map all pieces of the file
         if (this.useMemoryMapping) {
@@ -284,10 +378,10 @@ public class MultiplexedFileReader {
 			this.fileMappings = new MappedByteBuffer[numMappings];
 			for (int i = 0; i < numMappings; ++i) {
                 final long sliceSize = Math.min(1 << MAPPING_SLICE_SIZE_BITS,
-                        ((long)this.numBlocksInFile * this.blockSize) - ((long)i << MAPPING_SLICE_SIZE_BITS));
+                        this.numBlocksInFile * this.blockSize - ((long)i << MAPPING_SLICE_SIZE_BITS));
                 assert sliceSize > 0;
                 this.fileMappings[i] = this.fileChannel.map(MapMode.READ_ONLY,
-                		headerSize+((long)i << MAPPING_SLICE_SIZE_BITS), sliceSize);
+                		this.headerSize+((long)i << MAPPING_SLICE_SIZE_BITS), sliceSize);
 			}
         } else {
         	this.fileMappings = null;
@@ -296,18 +390,35 @@ public class MultiplexedFileReader {
         // read the stream defs
         final MultiplexInputStream streamDefStream = new MultiplexInputStream(-1, streamDefsStartingBlock, streamDefsLength);
         final MyDataInputStream str = new MyDataInputStream(streamDefStream);
-        final int numStreams = (int) (streamDefStream.getDataLength()/16);
-        if ((long)numStreams*16 != streamDefStream.getDataLength())
+        final int streamDefSize = getStreamDefSize(this.formatVersion);
+        final int numStreams = (int) (streamDefStream.getDataLength()/streamDefSize);
+        if ((long)numStreams*streamDefSize != streamDefStream.getDataLength())
             throw new IOException("corrupted data");
         this.streamDefs = new IntegerMap<StreamDef>();
+        StreamDef metadataDef = null;
+        StreamDef dictionaryDef = null;
         for (int i = 0; i < numStreams; ++i) {
             final int id = str.readInt();
-            final int start = str.readInt();
+            final long start = this.formatVersion == FORMAT_VERSION_1
+                ? str.readInt() & POS_INT_MASK : str.readLong();
             final long length = str.readLong();
-            if (length < 0 || this.streamDefs.put(id, new StreamDef(start, length)) != null)
+            if (length < 0)
+                throw new IOException("corrupted data");
+            if (id == METADATA_STREAM_ID) {
+                if (metadataDef != null)
+                    throw new IOException("corrupted data");
+                metadataDef = new StreamDef(start, length);
+            } else if (id == STRING_DICTIONARY_STREAM_ID) {
+                if (dictionaryDef != null)
+                    throw new IOException("corrupted data");
+                dictionaryDef = new StreamDef(start, length);
+            } else if (this.streamDefs.put(id, new StreamDef(start, length)) != null) {
                 throw new IOException("corrupted data");
+            }
         }
         str.close();
+        this.metadataStreamDef = metadataDef;
+        this.stringDictionaryStreamDef = dictionaryDef;
     }
 
     /**
@@ -319,7 +430,36 @@ public class MultiplexedFileReader {
         this(new RandomAccessFile(filename, "r"), is64bitVM);
     }
 
-    protected void readBlock(final int blockAddr, final byte[] buf) throws IOException {
+    /* package-visible */ static int getHeaderSize(final int formatVersion) {
+        return formatVersion == FORMAT_VERSION_1 ? HEADER_SIZE_V1 : HEADER_SIZE_V2;
+    }
+
+    /**
+     * @return the number of bytes of a block address in pointer blocks
+     */
+    /* package-visible */ static int getPointerSize(final int formatVersion) {
+        return formatVersion == FORMAT_VERSION_1 ? 4 : 8;
+    }
+
+    /**
+     * @return the number of bytes of an entry in the stream directory (id, start block, length)
+     */
+    /* package-visible */ static int getStreamDefSize(final int formatVersion) {
+        return 12 + getPointerSize(formatVersion);
+    }
+
+    protected void readBlock(final long blockAddr, final byte[] buf) throws IOException {
+        final MultiplexedFileListener listener0 = this.listener;
+        if (listener0 == null) {
+            readBlock0(blockAddr, buf);
+        } else {
+            final long startNanos = System.nanoTime();
+            readBlock0(blockAddr, buf);
+            listener0.blockRead(System.nanoTime() - startNanos);
+        }
+    }
+
+    private void readBlock0(final long blockAddr, final byte[] buf) throws IOException {
         assert buf.length == this.blockSize;
         if (this.useMemoryMapping) {
             final ByteBuffer mapping = getRawBlockMapping(blockAddr);
@@ -328,33 +468,53 @@ public class MultiplexedFileReader {
             final ByteBuffer bbuf = ByteBuffer.wrap(buf, 0, this.blockSize);
             while (bbuf.hasRemaining()) {
             	if (this.fileChannel.read(bbuf,
-                        headerSize + ((blockAddr&POS_INT_MASK)*this.blockSize) + bbuf.position())
+                        this.headerSize + blockAddr*this.blockSize + bbuf.position())
                 		< 0)
             	throw new IOException("Unexpected EOF");
             }
         }
     }
 
-    protected void readBlock(final int blockAddr, final int[] buf) throws IOException {
-        assert buf.length == this.blockSize/4;
+    protected void readBlock(final long blockAddr, final long[] buf) throws IOException {
+        final MultiplexedFileListener listener0 = this.listener;
+        if (listener0 == null) {
+            readBlock0(blockAddr, buf);
+        } else {
+            final long startNanos = System.nanoTime();
+            readBlock0(blockAddr, buf);
+            listener0.blockRead(System.nanoTime() - startNanos);
+        }
+    }
+
+    private void readBlock0(final long blockAddr, final long[] buf) throws IOException {
+        assert buf.length == this.pointersPerBlock;
         if (this.useMemoryMapping) {
-            final ByteBuffer mapping = getRawBlockMapping(blockAddr);
-            mapping.order(this.byteOrder).asIntBuffer().get(buf, 0, this.blockSize/4);
+            decodePointerBlock(getRawBlockMapping(blockAddr).order(this.byteOrder), buf);
         } else {
             final ByteBuffer bbuf = ByteBuffer.allocate(this.blockSize);
-            final IntBuffer intBuf = bbuf.order(this.byteOrder).asIntBuffer();
             while (bbuf.hasRemaining()) {
                 if (this.fileChannel.read(bbuf,
-                        headerSize + ((blockAddr&POS_INT_MASK)*this.blockSize) + bbuf.position())
+                        this.headerSize + blockAddr*this.blockSize + bbuf.position())
                         < 0)
                 	throw new IOException("Unexpected EOF");
             }
-            intBuf.get(buf, 0, this.blockSize/4);
+            bbuf.flip();
+            decodePointerBlock(bbuf.order(this.byteOrder), buf);
         }
     }
 
-    private ByteBuffer getRawBlockMapping(final int blockAddr) throws IOException {
-        final long position = (blockAddr&POS_INT_MASK)*this.blockSize;
+    private void decodePointerBlock(final ByteBuffer bbuf, final long[] buf) {
+        if (this.formatVersion == FORMAT_VERSION_1) {
+            for (int i = 0; i < this.pointersPerBlock; ++i)
+                buf[i] = bbuf.getInt() & POS_INT_MASK;
+        } else {
+            final LongBuffer longBuf = bbuf.asLongBuffer();
+            longBuf.get(buf, 0, this.pointersPerBlock);
+        }
+    }
+
+    private ByteBuffer getRawBlockMapping(final long blockAddr) throws IOException {
+        final long position = blockAddr*this.blockSize;
         final int mappingNr = (int) (position >>> MAPPING_SLICE_SIZE_BITS);
         final int posInMapping = ((int)position) & ((1<<MAPPING_SLICE_SIZE_BITS)-1);
         if (mappingNr < 0 || mappingNr >= this.fileMappings.length)
@@ -377,7 +537,132 @@ public class MultiplexedFileReader {
         final StreamDef def = this.streamDefs.get(index);
         if (def == null)
             return null;
-        return new MultiplexInputStream(index, def.startAddr, def.length);
+        final MultiplexInputStream in = new MultiplexInputStream(index, def.startAddr, def.length);
+        if (in.streamListener != null)
+            in.streamListener.readerOpened(index);
+        return in;
+    }
+
+    /**
+     * @return whether this file contains {@link StreamMetadata} for some of its streams
+     */
+    public boolean hasStreamMetadata() {
+        return this.metadataStreamDef != null;
+    }
+
+    /**
+     * Returns the metadata which was attached to the stream with the given id
+     * (see {@link MultiplexedFileWriter.MultiplexOutputStream#getMetadata()}).
+     *
+     * @return the metadata of the stream, or <code>null</code> if it has none
+     */
+    public StreamMetadata getStreamMetadata(final int streamId) throws IOException {
+        final StreamMetadataIndex index = getMetadataIndex();
+        return index == null ? null : index.get(streamId);
+    }
+
+    /**
+     * Looks up the streams with the given name in the hashed name index.
+     *
+     * @return the ids of all streams with this name, in ascending order
+     */
+    public List<Integer> getStreamIdsByName(final String name) throws IOException {
+        if (name == null)
+            throw new NullPointerException();
+        final StreamMetadataIndex index = getMetadataIndex();
+        return index == null ? Collections.<Integer>emptyList() : index.findByName(name);
+    }
+
+    /**
+     * Looks up the streams whose value for the given numeric attribute lies in
+     * the range <code>min .. max</code> (both inclusive). Streams without this
+     * attribute are never returned.
+     *
+     * @return the ids of the matching streams, ordered by the value of the attribute
+     */
+    public List<Integer> getStreamIdsByAttribute(final String key, final long min, final long max)
+            throws IOException {
+        final StreamMetadataIndex index = getMetadataIndex();
+        return index == null ? Collections.<Integer>emptyList() : index.findByAttribute(key, min, max);
+    }
+
+    /**
+     * @return the keys of all attributes used by some stream of this file
+     */
+    public Set<String> getStreamAttributeKeys() throws IOException {
+        final StreamMetadataIndex index = getMetadataIndex();
+        return index == null ? Collections.<String>emptySet() : index.getAttributeKeys();
+    }
+
+    /* package-visible */ synchronized StreamMetadataIndex getMetadataIndex() throws IOException {
+        if (this.metadataIndex == null && this.metadataStreamDef != null)
+            this.metadataIndex = new StreamMetadataIndex(new MultiplexInputStream(METADATA_STREAM_ID,
+                this.metadataStreamDef.startAddr, this.metadataStreamDef.length));
+        return this.metadataIndex;
+    }
+
+    /**
+     * @return whether this file contains a string dictionary
+     *         (see {@link MultiplexedFileWriter#getStringId(String)})
+     */
+    public boolean hasStringDictionary() {
+        return this.stringDictionaryStreamDef != null;
+    }
+
+    /**
+     * Returns the string with the given id in the file-wide string dictionary.
+     * The dictionary is read on the first call and then shared by all streams.
+     *
+     * @param id the id returned by {@link MultiplexedFileWriter#getStringId(String)},
+     *           or -1 for <code>null</code>
+     * @throws IOException if there is no string with this id
+     */
+    public String getDictionaryString(final int id) throws IOException {
+        if (id == -1)
+            return null;
+        final String[] strings = getStringDictionary();
+        if (id < 0 || id >= strings.length || strings[id] == null)
+            throw new IOException("unknown string id " + id);
+        return strings[id];
+    }
+
+    /**
+     * @return the string dictionary (indexed by id, containing <code>null</code> for unused
+     *         ids), or an empty array if this file has none
+     */
+    /* package-visible */ String[] getStringDictionary() throws IOException {
+        String[] strings = this.stringDictionary;
+        if (strings == null) {
+            synchronized (this) {
+                strings = this.stringDictionary;
+                if (strings == null) {
+                    if (this.stringDictionaryStreamDef == null) {
+                        strings = new String[0];
+                    } else {
+                        final MultiplexInputStream in = new MultiplexInputStream(STRING_DICTIONARY_STREAM_ID,
+                            this.stringDictionaryStreamDef.startAddr, this.stringDictionaryStreamDef.length);
+                        strings = StringDictionary.read(in);
+                        in.close();
+                    }
+                    this.stringDictionary = strings;
+                }
+            }
+        }
+        return strings;
+    }
+
+    /**
+     * Sets the listener which is informed about block reads and about the streams
+     * opened by {@link #getInputStream(int)} (see {@link MultiplexedFileStatistics}).
+     * Streams which are already open keep reporting to the previous listener.
+     *
+     * @param newListener the new listener, or <code>null</code>
+     * @return the previous listener
+     */
+    public MultiplexedFileListener setListener(final MultiplexedFileListener newListener) {
+        final MultiplexedFileListener oldListener = this.listener;
+        this.listener = newListener;
+        return oldListener;
     }
 
     public void close() throws IOException {
@@ -388,4 +673,37 @@ public class MultiplexedFileReader {
         return this.blockSize;
     }
 
+    public ByteOrder getByteOrder() {
+        return this.byteOrder;
+    }
+
+    /**
+     * @return the format version of the file ({@link #FORMAT_VERSION_1} or {@link #FORMAT_VERSION_2})
+     */
+    public int getFormatVersion() {
+        return this.formatVersion;
+    }
+
+    /* package-visible */ int getPointersPerBlock() {
+        return this.pointersPerBlock;
+    }
+
+    /* package-visible */ long getNumBlocksInFile() {
+        return this.numBlocksInFile;
+    }
+
+    /* package-visible */ long getStreamStartBlock(final int index) {
+        final StreamDef def = this.streamDefs.get(index);
+        if (def == null)
+            throw new IllegalArgumentException("no stream with id " + index);
+        return def.startAddr;
+    }
+
+    /* package-visible */ long getStreamLength(final int index) {
+        final StreamDef def = this.streamDefs.get(index);
+        if (def == null)
+            throw new IllegalArgumentException("no stream with id " + index);
+        return def.length;
+    }
+
 }
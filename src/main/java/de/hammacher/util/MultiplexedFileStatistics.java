@@ -0,0 +1,379 @@
+package de.hammacher.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A {@link MultiplexedFileListener} that collects statistics in striped counters
+ * and latency histograms, such that concurrent writers do not contend on the
+ * same memory locations.
+ *
+ * Bytes written and read are accounted per stream class; streams can be assigned
+ * to a class by {@link #setStreamClass(int, String)}, all others belong to the
+ * class {@link #DEFAULT_STREAM_CLASS}.
+ *
+ * The statistics can be exposed via JMX by {@link #registerMBean(String)}.
+ *
+ * @author Clemens Hammacher
+ */
+public class MultiplexedFileStatistics implements MultiplexedFileListener, MultiplexedFileStatisticsMBean {
+
+    /**
+     * A counter which distributes updates over several cache lines, depending on
+     * the updating thread.
+     */
+    public static class Counter {
+
+        private static final int NUM_STRIPES = 16; // must be a power of two
+        private static final int PADDING = 8; // one long per cache line
+
+        private final AtomicLongArray values = new AtomicLongArray(NUM_STRIPES * PADDING);
+
+        public void add(final long delta) {
+            final int stripe = (int) Thread.currentThread().getId() & (NUM_STRIPES - 1);
+            this.values.addAndGet(stripe * PADDING, delta);
+        }
+
+        public void increment() {
+            add(1);
+        }
+
+        public void decrement() {
+            add(-1);
+        }
+
+        public long get() {
+            long sum = 0;
+            for (int i = 0; i < NUM_STRIPES; ++i)
+                sum += this.values.get(i * PADDING);
+            return sum;
+        }
+
+        public void reset() {
+            for (int i = 0; i < NUM_STRIPES; ++i)
+                this.values.set(i * PADDING, 0);
+        }
+
+    }
+
+    /**
+     * A histogram of durations with one bucket per power of two (in nanoseconds).
+     */
+    public static class Histogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final Counter count = new Counter();
+        private final Counter totalNanos = new Counter();
+
+        public void record(final long nanos) {
+            final long value = Math.max(nanos, 0);
+            this.buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value) - (value == 0 ? 0 : 1));
+            this.count.increment();
+            this.totalNanos.add(value);
+        }
+
+        public long getCount() {
+            return this.count.get();
+        }
+
+        public long getTotalNanos() {
+            return this.totalNanos.get();
+        }
+
+        public double getMeanNanos() {
+            final long cnt = getCount();
+            return cnt == 0 ? 0 : (double) getTotalNanos() / cnt;
+        }
+
+        /**
+         * Returns an upper bound for the given percentile of the recorded durations.
+         *
+         * @param percentile the percentile, in the range 0 .. 100
+         */
+        public long getPercentileNanos(final double percentile) {
+            long total = 0;
+            for (int i = 0; i < 64; ++i)
+                total += this.buckets.get(i);
+            final long threshold = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < 64; ++i) {
+                seen += this.buckets.get(i);
+                if (seen >= threshold && seen > 0)
+                    return i == 63 ? Long.MAX_VALUE : (1L << (i+1)) - 1;
+            }
+            return 0;
+        }
+
+        public void reset() {
+            for (int i = 0; i < 64; ++i)
+                this.buckets.set(i, 0);
+            this.count.reset();
+            this.totalNanos.reset();
+        }
+
+    }
+
+    public static final String DEFAULT_STREAM_CLASS = "default";
+
+    private final Counter blocksAllocated = new Counter();
+    private final Counter blocksReused = new Counter();
+    private final Counter blocksFreed = new Counter();
+    private final Histogram blockWrites = new Histogram();
+    private final Histogram blockReads = new Histogram();
+    private final Histogram maps = new Histogram();
+    private final Histogram flushes = new Histogram();
+    private final Histogram compactions = new Histogram();
+    private final Counter compactionMovedBlocks = new Counter();
+    private final Counter openStreams = new Counter();
+    private final Counter openReaders = new Counter();
+
+    private final ConcurrentMap<Integer, String> streamClasses = new ConcurrentHashMap<Integer, String>();
+    private final ConcurrentMap<String, Counter> bytesWritten = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentMap<String, Counter> bytesRead = new ConcurrentHashMap<String, Counter>();
+
+    /**
+     * Assigns a stream to a stream class, for the accounting of written and read bytes.
+     */
+    public void setStreamClass(final int streamId, final String streamClass) {
+        if (streamClass == null)
+            this.streamClasses.remove(streamId);
+        else
+            this.streamClasses.put(streamId, streamClass);
+    }
+
+    private Counter getCounter(final ConcurrentMap<String, Counter> counters, final int streamId) {
+        String streamClass = this.streamClasses.get(streamId);
+        if (streamClass == null)
+            streamClass = DEFAULT_STREAM_CLASS;
+        Counter counter = counters.get(streamClass);
+        if (counter == null) {
+            final Counter newCounter = new Counter();
+            counter = counters.putIfAbsent(streamClass, newCounter);
+            if (counter == null)
+                counter = newCounter;
+        }
+        return counter;
+    }
+
+    private static Map<String, Long> getValues(final ConcurrentMap<String, Counter> counters) {
+        final Map<String, Long> values = new TreeMap<String, Long>();
+        for (final Map.Entry<String, Counter> e: counters.entrySet())
+            values.put(e.getKey(), e.getValue().get());
+        return Collections.unmodifiableMap(values);
+    }
+
+    private static long getSum(final ConcurrentMap<String, Counter> counters) {
+        long sum = 0;
+        for (final Counter counter: counters.values())
+            sum += counter.get();
+        return sum;
+    }
+
+    // the listener methods
+
+    public void blockAllocated(final boolean reused) {
+        this.blocksAllocated.increment();
+        if (reused)
+            this.blocksReused.increment();
+    }
+
+    public void blockFreed() {
+        this.blocksFreed.increment();
+    }
+
+    public void blockWritten(final long nanos) {
+        this.blockWrites.record(nanos);
+    }
+
+    public void blockRead(final long nanos) {
+        this.blockReads.record(nanos);
+    }
+
+    public void fileMapped(final long nanos) {
+        this.maps.record(nanos);
+    }
+
+    public void flushed(final long nanos) {
+        this.flushes.record(nanos);
+    }
+
+    public void compacted(final int movedBlocks, final long nanos) {
+        this.compactions.record(nanos);
+        this.compactionMovedBlocks.add(movedBlocks);
+    }
+
+    public void streamOpened(final int streamId) {
+        this.openStreams.increment();
+    }
+
+    public void streamClosed(final int streamId) {
+        this.openStreams.decrement();
+    }
+
+    public void streamDataWritten(final int streamId, final long bytes) {
+        getCounter(this.bytesWritten, streamId).add(bytes);
+    }
+
+    public void streamDataRead(final int streamId, final long bytes) {
+        getCounter(this.bytesRead, streamId).add(bytes);
+    }
+
+    public void readerOpened(final int streamId) {
+        this.openReaders.increment();
+    }
+
+    public void readerClosed(final int streamId) {
+        this.openReaders.decrement();
+    }
+
+    // the getters
+
+    public long getBlocksAllocated() {
+        return this.blocksAllocated.get();
+    }
+
+    public long getBlocksReused() {
+        return this.blocksReused.get();
+    }
+
+    public long getBlocksFreed() {
+        return this.blocksFreed.get();
+    }
+
+    public long getBytesWritten() {
+        return getSum(this.bytesWritten);
+    }
+
+    public long getBytesRead() {
+        return getSum(this.bytesRead);
+    }
+
+    /**
+     * Returns the number of written bytes per stream class.
+     */
+    public Map<String, Long> getBytesWrittenPerStreamClass() {
+        return getValues(this.bytesWritten);
+    }
+
+    /**
+     * Returns the number of read bytes per stream class.
+     */
+    public Map<String, Long> getBytesReadPerStreamClass() {
+        return getValues(this.bytesRead);
+    }
+
+    public long getBlockWriteCount() {
+        return this.blockWrites.getCount();
+    }
+
+    public double getBlockWriteMeanNanos() {
+        return this.blockWrites.getMeanNanos();
+    }
+
+    public long getBlockReadCount() {
+        return this.blockReads.getCount();
+    }
+
+    public double getBlockReadMeanNanos() {
+        return this.blockReads.getMeanNanos();
+    }
+
+    public long getMapCount() {
+        return this.maps.getCount();
+    }
+
+    public double getMapMeanNanos() {
+        return this.maps.getMeanNanos();
+    }
+
+    public long getFlushCount() {
+        return this.flushes.getCount();
+    }
+
+    public double getFlushMeanNanos() {
+        return this.flushes.getMeanNanos();
+    }
+
+    public long getCompactionCount() {
+        return this.compactions.getCount();
+    }
+
+    public long getCompactionMovedBlocks() {
+        return this.compactionMovedBlocks.get();
+    }
+
+    public long getOpenStreams() {
+        return this.openStreams.get();
+    }
+
+    public long getOpenReaders() {
+        return this.openReaders.get();
+    }
+
+    public Histogram getBlockWriteHistogram() {
+        return this.blockWrites;
+    }
+
+    public Histogram getBlockReadHistogram() {
+        return this.blockReads;
+    }
+
+    public Histogram getMapHistogram() {
+        return this.maps;
+    }
+
+    public Histogram getFlushHistogram() {
+        return this.flushes;
+    }
+
+    public Histogram getCompactionHistogram() {
+        return this.compactions;
+    }
+
+    /**
+     * Resets all counters and histograms, except the number of open streams and readers.
+     */
+    public void reset() {
+        this.blocksAllocated.reset();
+        this.blocksReused.reset();
+        this.blocksFreed.reset();
+        this.blockWrites.reset();
+        this.blockReads.reset();
+        this.maps.reset();
+        this.flushes.reset();
+        this.compactions.reset();
+        this.compactionMovedBlocks.reset();
+        this.bytesWritten.clear();
+        this.bytesRead.clear();
+    }
+
+    /**
+     * Registers this object at the platform MBean server.
+     *
+     * @param name the value of the <code>name</code> key of the object name
+     * @return the object name under which this object was registered
+     * @throws JMException if the registration fails
+     */
+    public ObjectName registerMBean(final String name) throws JMException {
+        final ObjectName objectName = new ObjectName("de.hammacher.util:type=MultiplexedFile,name="
+            + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    public static void unregisterMBean(final ObjectName objectName) throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName))
+            server.unregisterMBean(objectName);
+    }
+
+}
@@ -0,0 +1,46 @@
+package de.hammacher.util;
+
+/**
+ * The JMX management interface of {@link MultiplexedFileStatistics}.
+ *
+ * @author Clemens Hammacher
+ */
+public interface MultiplexedFileStatisticsMBean {
+
+    long getBlocksAllocated();
+
+    long getBlocksReused();
+
+    long getBlocksFreed();
+
+    long getBytesWritten();
+
+    long getBytesRead();
+
+    long getBlockWriteCount();
+
+    double getBlockWriteMeanNanos();
+
+    long getBlockReadCount();
+
+    double getBlockReadMeanNanos();
+
+    long getMapCount();
+
+    double getMapMeanNanos();
+
+    long getFlushCount();
+
+    double getFlushMeanNanos();
+
+    long getCompactionCount();
+
+    long getCompactionMovedBlocks();
+
+    long getOpenStreams();
+
+    long getOpenReaders();
+
+    void reset();
+
+}
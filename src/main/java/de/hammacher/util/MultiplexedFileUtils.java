@@ -0,0 +1,626 @@
+package de.hammacher.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.hammacher.util.maps.IntegerToIntegerMap;
+import de.hammacher.util.streams.MyDataOutputStream;
+
+/**
+ * Operations working on whole multiplexed files (as written by
+ * {@link MultiplexedFileWriter}).
+ *
+ * Merging and splitting work on the raw blocks of the files: data blocks are
+ * copied channel-to-channel, only pointer blocks and the stream directory are
+ * rewritten. Input files (for {@link #merge}) resp. output files (for
+ * {@link #split}) are processed in parallel.
+ *
+ * @author Clemens Hammacher
+ */
+public abstract class MultiplexedFileUtils {
+
+    private MultiplexedFileUtils() {
+        // prevent instantiation
+    }
+
+    /**
+     * Merges several multiplexed files into one new file.
+     *
+     * Stream ids are kept if possible. If a stream id has already been used by
+     * a stream of a previous input file, the stream gets a new id which is
+     * larger than all stream ids of all input files.
+     *
+     * All input files must have the same block size and format version. The output
+     * file uses the byte order of the first input file.
+     *
+     * The string dictionaries (see {@link MultiplexedFileWriter#getStringId(String)}) are
+     * combined by id. The string ids are stored inside the stream contents, which are copied
+     * without being parsed, so they cannot be renumbered: the dictionaries must not assign
+     * different strings to the same id. Dictionaries of files written independently only
+     * satisfy this if the strings were added in the same order (e.g. by registering a fixed
+     * set of strings first), or if all but one of the files do not use the dictionary.
+     *
+     * @param inputFiles the files to merge
+     * @param outputFile the file to write the merged streams to (is overwritten)
+     * @param numThreads the maximum number of input files to process in parallel
+     * @return for each input file, a map from the original stream ids to the stream
+     *         ids in the output file (-1 for ids not contained in the input file)
+     * @throws IOException if an input file is no valid multiplexed file, the block
+     *                     sizes or format versions or the string dictionaries do not match,
+     *                     or any other I/O error occurs
+     */
+    public static IntegerToIntegerMap[] merge(final List<File> inputFiles, final File outputFile,
+            final int numThreads) throws IOException {
+        if (inputFiles.isEmpty())
+            throw new IllegalArgumentException("need at least one input file");
+        final int numInputs = inputFiles.size();
+        final MultiplexedFileReader[] readers = new MultiplexedFileReader[numInputs];
+        RandomAccessFile outFile = null;
+        try {
+            for (int i = 0; i < numInputs; ++i)
+                readers[i] = new MultiplexedFileReader(new RandomAccessFile(inputFiles.get(i), "r"), false);
+
+            final int blockSize = readers[0].getBlockSize();
+            final ByteOrder byteOrder = readers[0].getByteOrder();
+            final int formatVersion = readers[0].getFormatVersion();
+            final int pointersPerBlock = readers[0].getPointersPerBlock();
+
+            // each input file gets a contiguous region in the output file
+            final long[] blockOffsets = new long[numInputs];
+            long numBlocks = 0;
+            int maxStreamId = -1;
+            for (int i = 0; i < numInputs; ++i) {
+                if (readers[i].getBlockSize() != blockSize)
+                    throw new IOException("Block sizes differ (" + blockSize + " in " + inputFiles.get(0) + ", "
+                        + readers[i].getBlockSize() + " in " + inputFiles.get(i) + ")");
+                if (readers[i].getFormatVersion() != formatVersion)
+                    throw new IOException("Format versions differ (" + formatVersion + " in " + inputFiles.get(0)
+                        + ", " + readers[i].getFormatVersion() + " in " + inputFiles.get(i) + ")");
+                blockOffsets[i] = numBlocks;
+                numBlocks += readers[i].getNumBlocksInFile();
+                for (final Integer id: readers[i].getStreamIds())
+                    maxStreamId = Math.max(maxStreamId, id);
+            }
+
+            // compute the new stream ids and the new stream directory
+            final IntegerToIntegerMap[] idMappings = new IntegerToIntegerMap[numInputs];
+            final Set<Integer> usedIds = new HashSet<Integer>();
+            int nextFreeId = maxStreamId + 1;
+            final ByteArrayOutputStream streamDefsBytes = new ByteArrayOutputStream();
+            final MyDataOutputStream streamDefsOut = new MyDataOutputStream(streamDefsBytes);
+            for (int i = 0; i < numInputs; ++i) {
+                idMappings[i] = new IntegerToIntegerMap(IntegerToIntegerMap.DEFAULT_INITIAL_CAPACITY,
+                    IntegerToIntegerMap.DEFAULT_LOAD_FACTOR, IntegerToIntegerMap.DEFAULT_SWITCH_TO_MAP_RATIO,
+                    IntegerToIntegerMap.DEFAULT_SWITCH_TO_LIST_RATIO, -1);
+                for (final int id: getSortedStreamIds(readers[i])) {
+                    int newId = id;
+                    if (!usedIds.add(id)) {
+                        if (nextFreeId < 0)
+                            throw new IOException("No more stream ids available");
+                        newId = nextFreeId++;
+                        usedIds.add(newId);
+                    }
+                    idMappings[i].put(id, newId);
+                    writeStreamDef(streamDefsOut, formatVersion, newId,
+                        readers[i].getStreamStartBlock(id) + blockOffsets[i], readers[i].getStreamLength(id));
+                }
+            }
+
+            // the stream metadata of all inputs is combined into one new metadata stream
+            final Map<Integer, StreamMetadata> metadata = new HashMap<Integer, StreamMetadata>();
+            for (int i = 0; i < numInputs; ++i) {
+                final StreamMetadataIndex index = readers[i].getMetadataIndex();
+                if (index != null)
+                    for (final Map.Entry<Integer, StreamMetadata> e: index.getAll().entrySet()) {
+                        final int newId = idMappings[i].getInt(e.getKey());
+                        if (newId != -1)
+                            metadata.put(newId, e.getValue());
+                    }
+            }
+            final byte[] metadataBytes = metadata.isEmpty() ? null : StreamMetadataIndex.write(metadata);
+            final long metadataStart = numBlocks;
+            if (metadataBytes != null) {
+                numBlocks += getNumBlocks(metadataBytes.length, blockSize, pointersPerBlock);
+                addInternalStreamDef(streamDefsOut, formatVersion, MultiplexedFileReader.METADATA_STREAM_ID,
+                    metadataBytes, metadataStart, blockSize, pointersPerBlock);
+            }
+
+            // the string dictionaries are combined by id
+            String[] dictionary = new String[0];
+            for (int i = 0; i < numInputs; ++i) {
+                final String[] strings = readers[i].getStringDictionary();
+                if (strings.length > dictionary.length)
+                    dictionary = Arrays.copyOf(dictionary, strings.length);
+                for (int id = 0; id < strings.length; ++id) {
+                    if (strings[id] == null)
+                        continue;
+                    if (dictionary[id] == null)
+                        dictionary[id] = strings[id];
+                    else if (!dictionary[id].equals(strings[id]))
+                        throw new IOException("String dictionaries differ (id " + id + " is \"" + dictionary[id]
+                            + "\" in " + inputFiles.get(0) + ", \"" + strings[id] + "\" in " + inputFiles.get(i) + ")");
+                }
+            }
+            final byte[] dictionaryBytes = dictionary.length == 0 ? null : StringDictionary.write(dictionary);
+            final long dictionaryStart = numBlocks;
+            if (dictionaryBytes != null) {
+                numBlocks += getNumBlocks(dictionaryBytes.length, blockSize, pointersPerBlock);
+                addInternalStreamDef(streamDefsOut, formatVersion, MultiplexedFileReader.STRING_DICTIONARY_STREAM_ID,
+                    dictionaryBytes, dictionaryStart, blockSize, pointersPerBlock);
+            }
+            final byte[] streamDefs = streamDefsBytes.toByteArray();
+
+            final long numBlocksWithStreamDefs = numBlocks + getNumBlocks(streamDefs.length, blockSize, pointersPerBlock);
+            checkNumBlocks(formatVersion, numBlocksWithStreamDefs);
+
+            outFile = new RandomAccessFile(outputFile, "rw");
+            // the file must have its final length before blocks are transfered into it
+            outFile.setLength(0);
+            outFile.setLength(MultiplexedFileReader.getHeaderSize(formatVersion) + numBlocksWithStreamDefs * blockSize);
+            final FileChannel outChannel = outFile.getChannel();
+
+            final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numInputs);
+            for (int i = 0; i < numInputs; ++i) {
+                final MultiplexedFileReader reader = readers[i];
+                final long blockOffset = blockOffsets[i];
+                tasks.add(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        mergeFile(reader, blockOffset, outChannel, byteOrder);
+                        return null;
+                    }
+                });
+            }
+            runInParallel(tasks, numThreads);
+
+            if (metadataBytes != null)
+                writeStream(outChannel, formatVersion, byteOrder, blockSize, metadataBytes, metadataStart);
+            if (dictionaryBytes != null)
+                writeStream(outChannel, formatVersion, byteOrder, blockSize, dictionaryBytes, dictionaryStart);
+            final long streamDefsStartBlock = writeStream(outChannel, formatVersion, byteOrder, blockSize,
+                streamDefs, numBlocks);
+            writeHeader(outChannel, formatVersion, blockSize, byteOrder, streamDefsStartBlock, streamDefs.length);
+
+            outFile.close();
+            outFile = null;
+            return idMappings;
+        } finally {
+            if (outFile != null)
+                outFile.close();
+            for (final MultiplexedFileReader reader: readers)
+                if (reader != null)
+                    reader.close();
+        }
+    }
+
+    /**
+     * Uses one thread per available processor.
+     *
+     * @see #merge(List, File, int)
+     */
+    public static IntegerToIntegerMap[] merge(final List<File> inputFiles, final File outputFile) throws IOException {
+        return merge(inputFiles, outputFile, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Splits one multiplexed file into several new files. Each output file gets
+     * the given subset of the streams of the input file (stream ids are
+     * retained). A stream may be copied to several output files, and streams
+     * which are not assigned to any output file are dropped.
+     *
+     * @param inputFile the file to split
+     * @param streamsPerFile maps each output file to the ids of the streams it should contain
+     * @param numThreads the maximum number of output files to write in parallel
+     * @throws IOException if the input file is no valid multiplexed file, does not contain
+     *                     one of the requested streams, or any other I/O error occurs
+     */
+    public static void split(final File inputFile, final Map<File, ? extends Collection<Integer>> streamsPerFile,
+            final int numThreads) throws IOException {
+        final MultiplexedFileReader reader = new MultiplexedFileReader(new RandomAccessFile(inputFile, "r"), false);
+        try {
+            final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(streamsPerFile.size());
+            for (final Map.Entry<File, ? extends Collection<Integer>> e: streamsPerFile.entrySet()) {
+                final List<Integer> streamIds = new ArrayList<Integer>(new HashSet<Integer>(e.getValue()));
+                Collections.sort(streamIds);
+                for (final Integer id: streamIds)
+                    if (!reader.hasStreamId(id))
+                        throw new IOException("Input file contains no stream with id " + id);
+                final File outputFile = e.getKey();
+                tasks.add(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        splitFile(reader, streamIds, outputFile);
+                        return null;
+                    }
+                });
+            }
+            runInParallel(tasks, numThreads);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Uses one thread per available processor.
+     *
+     * @see #split(File, Map, int)
+     */
+    public static void split(final File inputFile, final Map<File, ? extends Collection<Integer>> streamsPerFile)
+            throws IOException {
+        split(inputFile, streamsPerFile, Runtime.getRuntime().availableProcessors());
+    }
+
+    private static void mergeFile(final MultiplexedFileReader reader, final long blockOffset,
+            final FileChannel outChannel, final ByteOrder outByteOrder) throws IOException {
+        final int blockSize = reader.getBlockSize();
+        final int pointersPerBlock = reader.getPointersPerBlock();
+        final FileChannel inChannel = reader.fileChannel;
+
+        // first copy all blocks of the input file in one go
+        final long regionSize = reader.getNumBlocksInFile() * blockSize;
+        final long outStart = reader.headerSize + blockOffset * blockSize;
+        long transfered = 0;
+        while (transfered < regionSize) {
+            inChannel.position(reader.headerSize + transfered);
+            final long newTransfered = outChannel.transferFrom(inChannel, outStart + transfered,
+                regionSize - transfered);
+            if (newTransfered <= 0)
+                throw new IOException("Unexpected EOF");
+            transfered += newTransfered;
+        }
+
+        // then rewrite the pointer blocks (the block addresses are shifted by blockOffset)
+        if (blockOffset == 0 && outByteOrder == reader.getByteOrder())
+            return;
+        final ByteBuffer outBuf = ByteBuffer.allocate(blockSize).order(outByteOrder);
+        for (final int id: getSortedStreamIds(reader)) {
+            final long length = reader.getStreamLength(id);
+            final int depth = getDepth(length, blockSize, pointersPerBlock);
+            if (depth > 0)
+                rewritePointerBlocks(reader, outChannel, outBuf, new long[depth][pointersPerBlock],
+                    reader.getStreamStartBlock(id), 0, getNumDataBlocks(length, blockSize, pointersPerBlock),
+                    blockOffset);
+        }
+    }
+
+    private static void rewritePointerBlocks(final MultiplexedFileReader reader, final FileChannel outChannel,
+            final ByteBuffer outBuf, final long[][] pointerBlocks, final long blockAddr, final int level,
+            final long numDataBlocks, final long blockOffset) throws IOException {
+        final long[] pointerBlock = pointerBlocks[level];
+        final int depth = pointerBlocks.length;
+        reader.readBlock(blockAddr, pointerBlock);
+        final long dataBlocksPerEntry = getDataBlocksPerPointer(reader.getPointersPerBlock(), depth - level - 1);
+        final int numEntries = (int) divUp(numDataBlocks, dataBlocksPerEntry);
+        for (int i = 0; i < numEntries; ++i) {
+            if (level + 1 < depth)
+                rewritePointerBlocks(reader, outChannel, outBuf, pointerBlocks, pointerBlock[i], level + 1,
+                    Math.min(dataBlocksPerEntry, numDataBlocks - i * dataBlocksPerEntry), blockOffset);
+            pointerBlock[i] += blockOffset;
+        }
+        writePointerBlock(outChannel, reader.getFormatVersion(), outBuf, blockAddr + blockOffset, pointerBlock);
+    }
+
+    private static void splitFile(final MultiplexedFileReader reader, final List<Integer> streamIds,
+            final File outputFile) throws IOException {
+        final int blockSize = reader.getBlockSize();
+        final int pointersPerBlock = reader.getPointersPerBlock();
+        final int formatVersion = reader.getFormatVersion();
+        final RandomAccessFile outFile = new RandomAccessFile(outputFile, "rw");
+        try {
+            outFile.setLength(0);
+            final FileChannel outChannel = outFile.getChannel();
+            final ByteBuffer outBuf = ByteBuffer.allocate(blockSize).order(reader.getByteOrder());
+            final long[] nextBlockAddr = new long[] { 0 };
+
+            final ByteArrayOutputStream streamDefsBytes = new ByteArrayOutputStream();
+            final MyDataOutputStream streamDefsOut = new MyDataOutputStream(streamDefsBytes);
+            for (final int id: streamIds) {
+                final long length = reader.getStreamLength(id);
+                final int depth = getDepth(length, blockSize, pointersPerBlock);
+                final long startBlock = reader.getStreamStartBlock(id);
+                final long newStartBlock;
+                if (depth == 0) {
+                    newStartBlock = nextBlockAddr[0]++;
+                    transferBlocks(reader, outChannel, startBlock, newStartBlock, 1);
+                } else {
+                    newStartBlock = copyPointerBlocks(reader, outChannel, outBuf, new long[depth][pointersPerBlock],
+                        startBlock, 0, getNumDataBlocks(length, blockSize, pointersPerBlock), nextBlockAddr);
+                }
+                writeStreamDef(streamDefsOut, formatVersion, id, newStartBlock, length);
+            }
+
+            // copy the metadata of the selected streams
+            final StreamMetadataIndex index = reader.getMetadataIndex();
+            if (index != null) {
+                final Map<Integer, StreamMetadata> metadata = index.getAll();
+                metadata.keySet().retainAll(streamIds);
+                if (!metadata.isEmpty()) {
+                    final byte[] metadataBytes = StreamMetadataIndex.write(metadata);
+                    addInternalStreamDef(streamDefsOut, formatVersion, MultiplexedFileReader.METADATA_STREAM_ID,
+                        metadataBytes, nextBlockAddr[0], blockSize, pointersPerBlock);
+                    writeStream(outChannel, formatVersion, reader.getByteOrder(), blockSize, metadataBytes,
+                        nextBlockAddr[0]);
+                    nextBlockAddr[0] += getNumBlocks(metadataBytes.length, blockSize, pointersPerBlock);
+                }
+            }
+
+            // the streams store string ids, so each output file gets the whole string dictionary
+            if (reader.hasStringDictionary()) {
+                final byte[] dictionaryBytes = StringDictionary.write(reader.getStringDictionary());
+                addInternalStreamDef(streamDefsOut, formatVersion, MultiplexedFileReader.STRING_DICTIONARY_STREAM_ID,
+                    dictionaryBytes, nextBlockAddr[0], blockSize, pointersPerBlock);
+                writeStream(outChannel, formatVersion, reader.getByteOrder(), blockSize, dictionaryBytes,
+                    nextBlockAddr[0]);
+                nextBlockAddr[0] += getNumBlocks(dictionaryBytes.length, blockSize, pointersPerBlock);
+            }
+
+            final byte[] streamDefs = streamDefsBytes.toByteArray();
+            checkNumBlocks(formatVersion, nextBlockAddr[0] + getNumBlocks(streamDefs.length, blockSize, pointersPerBlock));
+            final long streamDefsStartBlock = writeStream(outChannel, formatVersion, reader.getByteOrder(), blockSize,
+                streamDefs, nextBlockAddr[0]);
+            writeHeader(outChannel, formatVersion, blockSize, reader.getByteOrder(), streamDefsStartBlock,
+                streamDefs.length);
+        } finally {
+            outFile.close();
+        }
+    }
+
+    private static long copyPointerBlocks(final MultiplexedFileReader reader, final FileChannel outChannel,
+            final ByteBuffer outBuf, final long[][] pointerBlocks, final long blockAddr, final int level,
+            final long numDataBlocks, final long[] nextBlockAddr) throws IOException {
+        final long[] pointerBlock = pointerBlocks[level];
+        final int depth = pointerBlocks.length;
+        final long newBlockAddr = nextBlockAddr[0]++;
+        reader.readBlock(blockAddr, pointerBlock);
+        final long dataBlocksPerEntry = getDataBlocksPerPointer(reader.getPointersPerBlock(), depth - level - 1);
+        final int numEntries = (int) divUp(numDataBlocks, dataBlocksPerEntry);
+        if (level + 1 < depth) {
+            for (int i = 0; i < numEntries; ++i)
+                pointerBlock[i] = copyPointerBlocks(reader, outChannel, outBuf, pointerBlocks,
+                    pointerBlock[i], level + 1, Math.min(dataBlocksPerEntry, numDataBlocks - i * dataBlocksPerEntry),
+                    nextBlockAddr);
+        } else {
+            // data blocks get consecutive addresses in the new file, so consecutive
+            // runs in the old file can be transfered at once
+            int runStart = 0;
+            for (int i = 1; i <= numEntries; ++i) {
+                if (i == numEntries || pointerBlock[i] != pointerBlock[i-1] + 1) {
+                    transferBlocks(reader, outChannel, pointerBlock[runStart], nextBlockAddr[0], i - runStart);
+                    for (int j = runStart; j < i; ++j)
+                        pointerBlock[j] = nextBlockAddr[0]++;
+                    runStart = i;
+                }
+            }
+        }
+        writePointerBlock(outChannel, reader.getFormatVersion(), outBuf, newBlockAddr, pointerBlock);
+        return newBlockAddr;
+    }
+
+    private static void transferBlocks(final MultiplexedFileReader reader, final FileChannel outChannel,
+            final long fromBlockAddr, final long toBlockAddr, final int numBlocks) throws IOException {
+        final int blockSize = reader.getBlockSize();
+        long fromPos = reader.headerSize + fromBlockAddr * blockSize;
+        long count = (long) numBlocks * blockSize;
+        outChannel.position(reader.headerSize + toBlockAddr * blockSize);
+        while (count > 0) {
+            final long newTransfered = reader.fileChannel.transferTo(fromPos, count, outChannel);
+            if (newTransfered <= 0)
+                throw new IOException("Unexpected EOF");
+            count -= newTransfered;
+            fromPos += newTransfered;
+        }
+    }
+
+    private static void writePointerBlock(final FileChannel outChannel, final int formatVersion,
+            final ByteBuffer outBuf, final long blockAddr, final long[] pointerBlock) throws IOException {
+        outBuf.clear();
+        if (formatVersion == MultiplexedFileReader.FORMAT_VERSION_1) {
+            for (final long addr: pointerBlock)
+                outBuf.putInt((int) addr);
+        } else {
+            outBuf.asLongBuffer().put(pointerBlock);
+        }
+        outBuf.clear();
+        writeFully(outChannel, outBuf, MultiplexedFileReader.getHeaderSize(formatVersion)
+            + blockAddr * outBuf.capacity());
+    }
+
+    /**
+     * Writes a complete stream (data blocks and pointer blocks), starting at block
+     * <code>firstBlockAddr</code>. Uses exactly {@link #getNumBlocks(long, int, int)} blocks.
+     *
+     * @return the start block of the written stream
+     */
+    private static long writeStream(final FileChannel outChannel, final int formatVersion, final ByteOrder byteOrder,
+            final int blockSize, final byte[] data, final long firstBlockAddr) throws IOException {
+        final int headerSize = MultiplexedFileReader.getHeaderSize(formatVersion);
+        final int pointersPerBlock = blockSize / MultiplexedFileReader.getPointerSize(formatVersion);
+        final int depth = getDepth(data.length, blockSize, pointersPerBlock);
+        long nextBlockAddr = firstBlockAddr;
+        long[] blockAddrs = new long[(int) getNumDataBlocks(data.length, blockSize, pointersPerBlock)];
+        final ByteBuffer buf = ByteBuffer.allocate(blockSize).order(byteOrder);
+        for (int i = 0; i < blockAddrs.length; ++i) {
+            buf.clear();
+            final int off = i * blockSize;
+            buf.put(data, off, Math.min(blockSize, data.length - off));
+            while (buf.hasRemaining())
+                buf.put((byte) 0);
+            buf.flip();
+            blockAddrs[i] = nextBlockAddr++;
+            writeFully(outChannel, buf, headerSize + blockAddrs[i] * blockSize);
+        }
+        final long[] pointerBlock = new long[pointersPerBlock];
+        for (int level = depth - 1; level >= 0; --level) {
+            final long[] upperBlockAddrs = new long[(int) divUp(blockAddrs.length, pointersPerBlock)];
+            for (int i = 0; i < upperBlockAddrs.length; ++i) {
+                int j = 0;
+                for (; j < pointersPerBlock && i * pointersPerBlock + j < blockAddrs.length; ++j)
+                    pointerBlock[j] = blockAddrs[i * pointersPerBlock + j];
+                for (; j < pointersPerBlock; ++j)
+                    pointerBlock[j] = 0;
+                upperBlockAddrs[i] = nextBlockAddr++;
+                writePointerBlock(outChannel, formatVersion, buf, upperBlockAddrs[i], pointerBlock);
+            }
+            blockAddrs = upperBlockAddrs;
+        }
+        assert blockAddrs.length == 1;
+        assert nextBlockAddr - firstBlockAddr == getNumBlocks(data.length, blockSize, pointersPerBlock);
+        return blockAddrs[0];
+    }
+
+    /**
+     * Adds the directory entry of an internal stream (metadata or string dictionary), which
+     * will be written by {@link #writeStream} starting at block <code>firstBlockAddr</code>.
+     */
+    private static void addInternalStreamDef(final MyDataOutputStream streamDefsOut, final int formatVersion,
+            final int streamId, final byte[] bytes, final long firstBlockAddr, final int blockSize,
+            final int pointersPerBlock) throws IOException {
+        // writeStream writes the root block last
+        final long startBlock = firstBlockAddr + getNumBlocks(bytes.length, blockSize, pointersPerBlock) - 1;
+        writeStreamDef(streamDefsOut, formatVersion, streamId, startBlock, bytes.length);
+    }
+
+    private static void writeStreamDef(final MyDataOutputStream streamDefsOut, final int formatVersion,
+            final int id, final long startBlock, final long length) throws IOException {
+        streamDefsOut.writeInt(id);
+        if (formatVersion == MultiplexedFileReader.FORMAT_VERSION_1)
+            streamDefsOut.writeInt((int) startBlock);
+        else
+            streamDefsOut.writeLong(startBlock);
+        streamDefsOut.writeLong(length);
+    }
+
+    private static void checkNumBlocks(final int formatVersion, final long numBlocks) throws IOException {
+        if (formatVersion == MultiplexedFileReader.FORMAT_VERSION_1 && numBlocks > (1l << 32))
+            throw new IOException("Maximum file size reached (" + numBlocks + " blocks)");
+    }
+
+    private static void writeHeader(final FileChannel outChannel, final int formatVersion, final int blockSize,
+            final ByteOrder byteOrder, final long streamDefsStartBlock, final long streamDefsLength) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(MultiplexedFileReader.getHeaderSize(formatVersion));
+        if (formatVersion == MultiplexedFileReader.FORMAT_VERSION_1) {
+            header.putInt(MultiplexedFileReader.MAGIC_HEADER);
+            header.putInt(blockSize);
+            header.put(byteOrder == ByteOrder.BIG_ENDIAN ? (byte)0 : (byte)1);
+            header.putInt((int) streamDefsStartBlock);
+        } else {
+            header.putInt(MultiplexedFileReader.MAGIC_HEADER_V2);
+            header.putInt(blockSize);
+            header.put(byteOrder == ByteOrder.BIG_ENDIAN ? (byte)0 : (byte)1);
+            header.putLong(streamDefsStartBlock);
+        }
+        header.putLong(streamDefsLength);
+        header.flip();
+        writeFully(outChannel, header, 0);
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buf, final long position)
+            throws IOException {
+        final long startPos = position - buf.position();
+        while (buf.hasRemaining())
+            channel.write(buf, startPos + buf.position());
+    }
+
+    private static void runInParallel(final List<Callable<Void>> tasks, final int numThreads) throws IOException {
+        if (tasks.isEmpty())
+            return;
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, tasks.size())));
+        try {
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks.size());
+            for (final Callable<Void> task: tasks)
+                futures.add(executor.submit(task));
+            for (final Future<Void> future: futures) {
+                try {
+                    future.get();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for worker threads");
+                } catch (final ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof IOException)
+                        throw (IOException) cause;
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+                    if (cause instanceof Error)
+                        throw (Error) cause;
+                    throw new RuntimeException(cause);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<Integer> getSortedStreamIds(final MultiplexedFileReader reader) {
+        final List<Integer> ids = new ArrayList<Integer>(reader.getStreamIds());
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Computes the depth of the pointer block tree of a stream with the given length
+     * (same computation as in {@link MultiplexedFileReader}).
+     */
+    private static int getDepth(final long length, final int blockSize, final int pointersPerBlock)
+            throws IOException {
+        int depth = 0;
+        long max = blockSize;
+        while (max <= length) {
+            ++depth;
+            max *= pointersPerBlock;
+            if (max <= blockSize)
+                throw new IOException("Illegal stream length: " + length);
+        }
+        return depth;
+    }
+
+    private static long getNumDataBlocks(final long length, final int blockSize, final int pointersPerBlock)
+            throws IOException {
+        // if there are pointer blocks, the last data block is always written (even if it is empty)
+        return getDepth(length, blockSize, pointersPerBlock) == 0 ? 1 : length / blockSize + 1;
+    }
+
+    private static long getDataBlocksPerPointer(final int pointersPerBlock, final int levelsBelow) {
+        long num = 1;
+        for (int i = 0; i < levelsBelow; ++i)
+            num *= pointersPerBlock;
+        return num;
+    }
+
+    /**
+     * Computes the overall number of blocks (data and pointer blocks) of a stream with the given length.
+     */
+    private static long getNumBlocks(final long length, final int blockSize, final int pointersPerBlock)
+            throws IOException {
+        final int depth = getDepth(length, blockSize, pointersPerBlock);
+        long levelBlocks = getNumDataBlocks(length, blockSize, pointersPerBlock);
+        long numBlocks = levelBlocks;
+        for (int i = 0; i < depth; ++i) {
+            levelBlocks = divUp(levelBlocks, pointersPerBlock);
+            numBlocks += levelBlocks;
+        }
+        return numBlocks;
+    }
+
+    private static long divUp(final long a, final long b) {
+        return (a + b - 1) / b;
+    }
+
+}
@@ -9,32 +9,42 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import de.hammacher.util.MultiplexedFileWriter.MultiplexOutputStream.InnerOutputStream;
 import de.hammacher.util.maps.ConcurrentReferenceHashMap;
 import de.hammacher.util.maps.ConcurrentReferenceHashMap.Option;
 import de.hammacher.util.maps.ConcurrentReferenceHashMap.ReferenceType;
 import de.hammacher.util.maps.ConcurrentReferenceHashMap.RemoveStaleListener;
-import de.hammacher.util.streams.MyByteArrayInputStream;
-import de.hammacher.util.streams.MyByteArrayOutputStream;
+import de.hammacher.util.maps.IntegerMap;
+import de.hammacher.util.maps.LongToIntMap;
+import de.hammacher.util.maps.LongToLongMap;
 import de.hammacher.util.streams.MyDataInputStream;
 import de.hammacher.util.streams.MyDataOutputStream;
+import de.hammacher.util.streams.OptimizedDataOutputStream;
 
 public class MultiplexedFileWriter {
 
@@ -86,24 +96,291 @@ public class MultiplexedFileWriter {
         }
     }
 
+    /**
+     * Writes blocks in a dedicated thread, such that the threads writing to the
+     * streams do not block on file I/O (only used if memory mapping is disabled).
+     * Queued blocks are sorted by their address, and adjacent blocks are written
+     * with a single call. The number of queued blocks is bounded; if the limit is
+     * reached, writers block until the queue has been processed.
+     */
+    private class AsyncWriteThread extends Thread {
+
+        private final Semaphore pendingBlocksBudget;
+        private final Object queueLock = new Object();
+        private TreeMap<Long, byte[]> queuedBlocks = new TreeMap<Long, byte[]>();
+        private TreeMap<Long, byte[]> inFlightBlocks = new TreeMap<Long, byte[]>();
+        private boolean shutdown = false;
+
+        public AsyncWriteThread(final int maxPendingBlocks) {
+            super("MultiplexedFile Writer");
+            setDaemon(true);
+            this.pendingBlocksBudget = new Semaphore(maxPendingBlocks);
+        }
+
+        public void enqueue(final long blockAddr, final byte[] data) {
+            this.pendingBlocksBudget.acquireUninterruptibly();
+            synchronized (this.queueLock) {
+                // if the block is already queued, it is just overwritten
+                if (this.queuedBlocks.put(blockAddr, data) != null)
+                    this.pendingBlocksBudget.release();
+                this.queueLock.notifyAll();
+            }
+        }
+
+        /**
+         * Returns the content of the given block if it has not been written yet,
+         * otherwise <code>null</code>.
+         */
+        public byte[] getPendingBlock(final long blockAddr) {
+            synchronized (this.queueLock) {
+                final byte[] data = this.queuedBlocks.get(blockAddr);
+                return data != null ? data : this.inFlightBlocks.get(blockAddr);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                TreeMap<Long, byte[]> blocks;
+                synchronized (this.queueLock) {
+                    while (this.queuedBlocks.isEmpty() && !this.shutdown) {
+                        try {
+                            this.queueLock.wait();
+                        } catch (final InterruptedException e) {
+                            // ignore, we only stop on shutdown
+                        }
+                    }
+                    if (this.queuedBlocks.isEmpty())
+                        return;
+                    blocks = this.inFlightBlocks = this.queuedBlocks;
+                    this.queuedBlocks = new TreeMap<Long, byte[]>();
+                }
+
+                try {
+                    writeCoalesced(blocks);
+                } catch (final IOException e) {
+                    // is reported on the next write or on close()
+                    setException(e);
+                } catch (final Throwable t) {
+                    // e.g. an OutOfMemoryError. keep this thread alive, otherwise all writers would block
+                    setException(new IOException("Asynchronous block write failed: " + t, t));
+                } finally {
+                    synchronized (this.queueLock) {
+                        this.inFlightBlocks = new TreeMap<Long, byte[]>();
+                        this.queueLock.notifyAll();
+                    }
+                    this.pendingBlocksBudget.release(blocks.size());
+                }
+            }
+        }
+
+        private void writeCoalesced(final TreeMap<Long, byte[]> blocks) throws IOException {
+            final int blockSize = MultiplexedFileWriter.this.blockSize;
+            final Iterator<Map.Entry<Long, byte[]>> it = blocks.entrySet().iterator();
+            Map.Entry<Long, byte[]> next = it.hasNext() ? it.next() : null;
+            while (next != null) {
+                // collect the run of adjacent blocks starting at next
+                final long firstAddr = next.getKey();
+                final List<byte[]> run = new ArrayList<byte[]>();
+                do {
+                    run.add(next.getValue());
+                    next = it.hasNext() ? it.next() : null;
+                } while (next != null && next.getKey() == firstAddr + run.size());
+
+                final ByteBuffer buf = ByteBuffer.allocate(run.size() * blockSize);
+                for (final byte[] data: run)
+                    buf.put(data);
+                buf.flip();
+                writeCoalescedBlocks(firstAddr, buf);
+            }
+        }
+
+        /**
+         * Waits until all queued blocks have been written.
+         */
+        public void drain() {
+            boolean interrupted = false;
+            synchronized (this.queueLock) {
+                while (!this.queuedBlocks.isEmpty() || !this.inFlightBlocks.isEmpty()) {
+                    try {
+                        this.queueLock.wait();
+                    } catch (final InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        /**
+         * Writes all queued blocks and stops this thread.
+         */
+        public void shutdown() {
+            synchronized (this.queueLock) {
+                this.shutdown = true;
+                this.queueLock.notifyAll();
+            }
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    join();
+                    break;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Keeps track of the content of all data blocks, such that identical blocks
+     * are only stored once. Shared blocks are reference counted.
+     */
+    private class BlockDeduplicator {
+
+        // guarded by the monitor of this object, which is never held during I/O.
+        // block address by content hash (-1 if there is none), and the other way round
+        private final LongToLongMap blocksByHash = new LongToLongMap(LongToLongMap.DEFAULT_INITIAL_CAPACITY,
+            LongToLongMap.DEFAULT_LOAD_FACTOR, -1);
+        private final LongToLongMap blockHashes = new LongToLongMap();
+        // reference counts of the blocks in blocksByHash, 0 for unshared blocks
+        private final LongToIntMap refCounts = new LongToIntMap();
+
+        private final ThreadLocal<byte[]> compareBuffer = new ThreadLocal<byte[]>() {
+            @Override
+            protected byte[] initialValue() {
+                return new byte[MultiplexedFileWriter.this.blockSize];
+            }
+        };
+
+        private long numHashedBlocks = 0;
+        private long numSharedBlocks = 0;
+        private long hashingNanos = 0;
+
+        public BlockDeduplicator() {
+            // nothing to do
+        }
+
+        public long writeDataBlock(final byte[] data) throws IOException {
+            final long startNanos = System.nanoTime();
+            final long hash = hashBlock(data);
+            final long existingBlock;
+            synchronized (this) {
+                existingBlock = this.blocksByHash.getLong(hash);
+                // pin the block, so that it is not freed and reused while it is compared
+                if (existingBlock != -1)
+                    this.refCounts.increment(existingBlock);
+            }
+            boolean equal = false;
+            if (existingBlock != -1) {
+                final byte[] buf = this.compareBuffer.get();
+                try {
+                    readBlock(existingBlock, buf);
+                    equal = Arrays.equals(data, buf);
+                } finally {
+                    // on a hash collision (or an error), the new block is just not shared
+                    if (!equal && release(existingBlock))
+                        addFreeBlock(existingBlock);
+                }
+            }
+            final long nanos = System.nanoTime() - startNanos;
+
+            if (equal) {
+                synchronized (this) {
+                    ++this.numHashedBlocks;
+                    ++this.numSharedBlocks;
+                    this.hashingNanos += nanos;
+                }
+                return existingBlock;
+            }
+
+            final long newBlockAddr = getNewBlockAddress();
+            writeBlock(newBlockAddr, data);
+            synchronized (this) {
+                ++this.numHashedBlocks;
+                this.hashingNanos += nanos;
+                // another thread might have stored a block with this hash in the meantime
+                if (existingBlock == -1 && !this.blocksByHash.containsKey(hash)) {
+                    this.blocksByHash.put(hash, newBlockAddr);
+                    this.blockHashes.put(newBlockAddr, hash);
+                    this.refCounts.put(newBlockAddr, 1);
+                }
+            }
+            return newBlockAddr;
+        }
+
+        /**
+         * Decrements the reference count of the given data block.
+         *
+         * @return <code>true</code> if the block is not referenced any more and can be reused
+         */
+        public synchronized boolean release(final long blockAddr) {
+            final int refCount = this.refCounts.getInt(blockAddr);
+            if (refCount == 0)
+                return true;
+            if (refCount > 1) {
+                this.refCounts.put(blockAddr, refCount - 1);
+                return false;
+            }
+            this.refCounts.remove(blockAddr);
+            this.blocksByHash.remove(this.blockHashes.remove(blockAddr));
+            return true;
+        }
+
+        private long hashBlock(final byte[] data) {
+            final ByteBuffer buf = ByteBuffer.wrap(data);
+            long hash = data.length;
+            while (buf.remaining() >= 8) {
+                hash = (hash ^ buf.getLong()) * 0x9E3779B97F4A7C15L;
+                hash ^= hash >>> 29;
+            }
+            if (buf.hasRemaining()) {
+                // the block size is divisible by 4
+                hash = (hash ^ buf.getInt()) * 0x9E3779B97F4A7C15L;
+                hash ^= hash >>> 29;
+            }
+            hash *= 0xBF58476D1CE4E5B9L;
+            return hash ^ (hash >>> 32);
+        }
+
+        public synchronized long getNumHashedBlocks() {
+            return this.numHashedBlocks;
+        }
+
+        public synchronized long getNumSharedBlocks() {
+            return this.numSharedBlocks;
+        }
+
+        public synchronized long getHashingNanos() {
+            return this.hashingNanos;
+        }
+
+    }
+
     public class MultiplexOutputStream extends OutputStream {
 
         protected class InnerOutputStream extends OutputStream {
 
             private final int id;
+            private final boolean singleWriter;
             protected long dataLength = 0;
             protected int depth = 0;
-            protected int startBlockAddr = 0; // is set on close()
-            protected int[][] pointerBlocks = null;
+            protected long startBlockAddr = 0; // is set on close()
+            protected long[][] pointerBlocks = null;
 
             /* 8 is the smallest possible block size. the buffer is increased as needed. */
             protected byte[] dataBlock = new byte[8];
 
             protected int[] full = new int[1];
+            private boolean removed = false;
             private final AtomicReference<Set<Reader>> readers = new AtomicReference<Set<Reader>>(null);
 
-            public InnerOutputStream(final int id) {
+            public InnerOutputStream(final int id, final boolean singleWriter) {
                 this.id = id;
+                this.singleWriter = singleWriter;
             }
 
             @Override
@@ -154,11 +431,13 @@ public class MultiplexedFileWriter {
             }
 
             private void moveToNextBlock() throws IOException {
+                if (this.singleWriter) {
+                    // there are no readers, and no other thread touches the pointer blocks
+                    writeBackFullDataBlock();
+                    return;
+                }
                 synchronized (MultiplexOutputStream.this) {
-                    assert(this.full[this.depth] == MultiplexedFileWriter.this.blockSize);
-                    this.dataLength += MultiplexedFileWriter.this.blockSize;
-
-                    writeBack(this.depth, true);
+                    writeBackFullDataBlock();
                     final Set<Reader> readers0 = this.readers.get();
                     if (readers0 != null) {
                         synchronized (readers0) {
@@ -169,12 +448,22 @@ public class MultiplexedFileWriter {
                 }
             }
 
+            private void writeBackFullDataBlock() throws IOException {
+                assert(this.full[this.depth] == MultiplexedFileWriter.this.blockSize);
+                this.dataLength += MultiplexedFileWriter.this.blockSize;
+
+                writeBack(this.depth, true);
+                final MultiplexedFileListener listener0 = MultiplexedFileWriter.this.listener;
+                if (listener0 != null && this.id >= 0)
+                    listener0.streamDataWritten(this.id, MultiplexedFileWriter.this.blockSize);
+            }
+
             private void increaseDepth() {
                 // the depth of all entries except the first one is increased
-                final int[][] newPointerBlocks = new int[this.depth+1][];
+                final long[][] newPointerBlocks = new long[this.depth+1][];
                 if (this.depth > 0)
                     System.arraycopy(this.pointerBlocks, 0, newPointerBlocks, 1, this.depth);
-                newPointerBlocks[0] = new int[MultiplexedFileWriter.this.blockSize/4];
+                newPointerBlocks[0] = new long[MultiplexedFileWriter.this.pointersPerBlock];
                 this.pointerBlocks = newPointerBlocks;
                 final int[] newFull = new int[this.depth+2];
                 System.arraycopy(this.full, 0, newFull, 1, this.depth+1);
@@ -191,17 +480,20 @@ public class MultiplexedFileWriter {
                 }
 
                 // now write back the data block
-                final int newBlockAddr = getNewBlockAddress();
-                if (level == this.depth)
-                    writeBlock(newBlockAddr, this.dataBlock);
-                else
+                final long newBlockAddr;
+                if (level == this.depth) {
+                    // internal streams are never deduplicated, their blocks are rewritten on compaction
+                    newBlockAddr = this.id < 0 ? writeNewBlock(this.dataBlock) : writeDataBlock(this.dataBlock);
+                } else {
+                    newBlockAddr = getNewBlockAddress();
                     writeBlock(newBlockAddr, this.pointerBlocks[level]);
+                }
 
                 this.pointerBlocks[level-1][this.full[level-1]++] = newBlockAddr;
                 this.full[level] = 0;
 
                 // if the next lower level is full too, we have to write back this level
-                if (writeBackLowerFullBlocks && this.full[level-1] == MultiplexedFileWriter.this.blockSize/4) {
+                if (writeBackLowerFullBlocks && this.full[level-1] == MultiplexedFileWriter.this.pointersPerBlock) {
                     writeBack(level-1, writeBackLowerFullBlocks);
                 }
             }
@@ -227,6 +519,11 @@ public class MultiplexedFileWriter {
                     }
 
                     this.dataLength += this.full[this.depth];
+                    final MultiplexedFileListener listener0 = MultiplexedFileWriter.this.listener;
+                    if (listener0 != null && this.id >= 0) {
+                        listener0.streamDataWritten(this.id, this.full[this.depth]);
+                        listener0.streamClosed(this.id);
+                    }
 
                     if (this.dataBlock.length < MultiplexedFileWriter.this.blockSize) {
                         final byte[] newDataBlock = new byte[MultiplexedFileWriter.this.blockSize];
@@ -243,7 +540,7 @@ public class MultiplexedFileWriter {
                         writeBack(d, false);
                         for (int i = d-1; i > 0; --i) {
                             // zero out the remaining part of the block
-                            Arrays.fill(this.pointerBlocks[i], this.full[i], MultiplexedFileWriter.this.blockSize/4, 0);
+                            Arrays.fill(this.pointerBlocks[i], this.full[i], MultiplexedFileWriter.this.pointersPerBlock, 0);
                             writeBack(i, false);
                         }
 
@@ -263,7 +560,10 @@ public class MultiplexedFileWriter {
                     if (this != MultiplexedFileWriter.this.streamDefs.innerOut) {
                         synchronized (MultiplexedFileWriter.this.streamDefsDataOut) {
                             MultiplexedFileWriter.this.streamDefsDataOut.writeInt(this.id);
-                            MultiplexedFileWriter.this.streamDefsDataOut.writeInt(this.startBlockAddr);
+                            if (MultiplexedFileWriter.this.formatVersion == FORMAT_VERSION_1)
+                                MultiplexedFileWriter.this.streamDefsDataOut.writeInt((int) this.startBlockAddr);
+                            else
+                                MultiplexedFileWriter.this.streamDefsDataOut.writeLong(this.startBlockAddr);
                             MultiplexedFileWriter.this.streamDefsDataOut.writeLong(this.dataLength);
                         }
                     }
@@ -281,6 +581,8 @@ public class MultiplexedFileWriter {
             public Reader getReader(final long pos) throws IOException {
             	if (isClosed())
             		throw new IOException("closed");
+                if (this.singleWriter)
+                    throw new IllegalStateException("single-writer streams do not support readers");
 
                 final Reader reader = new Reader(pos);
                 Set<Reader> readers0;
@@ -291,6 +593,9 @@ public class MultiplexedFileWriter {
                 synchronized (readers0) {
                     readers0.add(reader);
                 }
+                final MultiplexedFileListener listener0 = MultiplexedFileWriter.this.listener;
+                if (listener0 != null)
+                    listener0.readerOpened(this.id);
                 return reader;
             }
 
@@ -307,6 +612,12 @@ public class MultiplexedFileWriter {
                 if (isClosed())
                     throw new IOException("a closed stream cannot be removed");
 
+                final MultiplexedFileListener listener0 = MultiplexedFileWriter.this.listener;
+                if (listener0 != null) {
+                    listener0.streamDataWritten(this.id, this.full[this.depth]);
+                    listener0.streamClosed(this.id);
+                }
+
                 final Set<Reader> readers0 = this.readers.get();
                 if (readers0 != null) {
                     synchronized (readers0) {
@@ -317,10 +628,11 @@ public class MultiplexedFileWriter {
 
                 if (this.depth > 0) {
                     // TODO remove numBlocks computation (it's just for the assertion)
-                    int numBlocks = (int)divUp(length(), MultiplexedFileWriter.this.blockSize)-1;
-                    int tmp = numBlocks; // no data blocks
-                    while (tmp > 1) {
-                        tmp = divUp(tmp, MultiplexedFileWriter.this.blockSize/4) - 1;
+                    // all full data blocks and all full pointer blocks (except the root) have been written
+                    long numBlocks = this.dataLength / MultiplexedFileWriter.this.blockSize;
+                    long tmp = numBlocks;
+                    for (int i = this.depth-1; i > 0; --i) {
+                        tmp /= MultiplexedFileWriter.this.pointersPerBlock;
                         numBlocks += tmp;
                     }
 
@@ -328,16 +640,15 @@ public class MultiplexedFileWriter {
                         while (true) {
                             while (this.full[this.depth-1] > 0) {
                                 --numBlocks;
-                                MultiplexedFileWriter.this.freeBlocks.add(
-                                        this.pointerBlocks[this.depth-1][--this.full[this.depth-1]]);
+                                freeDataBlock(this.pointerBlocks[this.depth-1][--this.full[this.depth-1]]);
                             }
                             for (int i = this.depth-2; i >= 0; --i) {
                                 if (this.full[i] > 0) {
-                                    final int blockAddr = this.pointerBlocks[i][--this.full[i]];
+                                    final long blockAddr = this.pointerBlocks[i][--this.full[i]];
                                     readBlock(blockAddr, this.pointerBlocks[i+1]);
                                     --numBlocks;
-                                    MultiplexedFileWriter.this.freeBlocks.add(blockAddr);
-                                    this.full[i+1] = MultiplexedFileWriter.this.blockSize/4;
+                                    addFreeBlock(blockAddr);
+                                    this.full[i+1] = MultiplexedFileWriter.this.pointersPerBlock;
                                     continue releaseBlocks;
                                 }
                             }
@@ -348,6 +659,7 @@ public class MultiplexedFileWriter {
                 }
 
                 this.dataLength = 0;
+                this.removed = true;
 
                 // now we can release most buffers
                 this.pointerBlocks = null;
@@ -355,10 +667,44 @@ public class MultiplexedFileWriter {
                 this.full = null;
                 this.readers.set(null);
 
+                MultiplexedFileWriter.this.streamMetadata.remove(this.id);
                 if (MultiplexedFileWriter.this.reuseStreamIds)
                     MultiplexedFileWriter.this.streamIdsToReuse.add(this.id);
             }
 
+            /**
+             * Captures the current state of this stream. Only the parts that are
+             * not written to the file yet (the last data block and the partially
+             * filled pointer blocks) are copied.
+             *
+             * Open single-writer streams are not captured: their writer updates the
+             * pointer blocks without holding any lock, so they could only be copied in
+             * an inconsistent state. They become part of later snapshots once they are closed.
+             *
+             * @return the captured state, or <code>null</code> if the stream has been removed
+             *         or is an open single-writer stream
+             */
+            protected StreamSnapshot snapshot() {
+                synchronized (MultiplexOutputStream.this) {
+                    synchronized (this) {
+                        if (this.removed)
+                            return null;
+                        if (isClosed())
+                            return new StreamSnapshot(this.dataLength, this.startBlockAddr);
+                        // close() and remove() hold the locks we hold, so this check is reliable
+                        if (this.singleWriter)
+                            return null;
+                        final int[] fullCopy = this.full.clone();
+                        final long[][] pointerBlocksCopy = new long[this.depth][];
+                        for (int i = 0; i < this.depth; ++i)
+                            pointerBlocksCopy[i] = Arrays.copyOf(this.pointerBlocks[i], fullCopy[i]);
+                        final byte[] dataCopy = Arrays.copyOf(this.dataBlock, fullCopy[this.depth]);
+                        return new StreamSnapshot(this.dataLength + fullCopy[this.depth], fullCopy,
+                            pointerBlocksCopy, dataCopy);
+                    }
+                }
+            }
+
         }
 
         /**
@@ -369,11 +715,11 @@ public class MultiplexedFileWriter {
          */
         public class Reader extends InputStream {
 
-            private int[][] readPointerBlocks;
+            private long[][] readPointerBlocks;
             private byte[] readDataBlock;
             private int[] pos;
             private final byte[] dataBlockBuf = new byte[MultiplexedFileWriter.this.blockSize];
-            private int[][] pointerBlockBufs = null;
+            private long[][] pointerBlockBufs = null;
             private int remainingInCurrentBlock;
             private boolean readerClosed = false;
 
@@ -397,8 +743,8 @@ public class MultiplexedFileWriter {
                 final boolean reInitialize = this.pos == null || this.pos.length != newPos.length;
                 final int depth = MultiplexOutputStream.this.innerOut.depth;
                 if (reInitialize) {
-                    this.readPointerBlocks = new int[depth][];
-                    this.pointerBlockBufs = new int[depth][MultiplexedFileWriter.this.blockSize/4];
+                    this.readPointerBlocks = new long[depth][];
+                    this.pointerBlockBufs = new long[depth][MultiplexedFileWriter.this.pointersPerBlock];
                 }
                 if (depth == 0) {
                     if (reInitialize) {
@@ -414,7 +760,7 @@ public class MultiplexedFileWriter {
                                 this.readPointerBlocks[i] = MultiplexOutputStream.this.innerOut.pointerBlocks[i];
                             } else {
                                 this.readPointerBlocks[i] = this.pointerBlockBufs[i];
-                                final int blockAddr = this.readPointerBlocks[i-1][newPos[i-1]];
+                                final long blockAddr = this.readPointerBlocks[i-1][newPos[i-1]];
                                 readBlock(blockAddr, this.readPointerBlocks[i]);
                             }
                         }
@@ -453,10 +799,10 @@ public class MultiplexedFileWriter {
                     newPos[depth] = (int) (position % MultiplexedFileWriter.this.blockSize);
                     long remaining = position / MultiplexedFileWriter.this.blockSize;
                     for (int d = depth-1; d > 0; --d) {
-                        newPos[d] = (int) (remaining % (MultiplexedFileWriter.this.blockSize/4));
-                        remaining = remaining / (MultiplexedFileWriter.this.blockSize/4);
+                        newPos[d] = (int) (remaining % MultiplexedFileWriter.this.pointersPerBlock);
+                        remaining = remaining / MultiplexedFileWriter.this.pointersPerBlock;
                     }
-                    assert remaining <= (long)MultiplexedFileWriter.this.blockSize/4;
+                    assert remaining <= MultiplexedFileWriter.this.pointersPerBlock;
                     newPos[0] = (int) remaining;
                 }
                 return newPos;
@@ -519,7 +865,7 @@ public class MultiplexedFileWriter {
 
                     if (this.pos[depth] == MultiplexedFileWriter.this.blockSize) {
                         for (int d = depth-1; d >= 0; --d) {
-                            if (this.pos[d]+1 < MultiplexedFileWriter.this.blockSize/4) {
+                            if (this.pos[d]+1 < MultiplexedFileWriter.this.pointersPerBlock) {
                                 newPos[d] = this.pos[d]+1;
                                 if (d > 0)
                                     System.arraycopy(this.pos, 0, newPos, 0, d);
@@ -541,7 +887,7 @@ public class MultiplexedFileWriter {
 
                 long read = this.pos[0];
                 for (int i = 1; i < this.pos.length-1; ++i)
-                    read = MultiplexedFileWriter.this.blockSize/4*read + this.pos[i];
+                    read = MultiplexedFileWriter.this.pointersPerBlock*read + this.pos[i];
                 read = MultiplexedFileWriter.this.blockSize*read + this.pos[this.pos.length-1];
                 return read;
             }
@@ -565,6 +911,9 @@ public class MultiplexedFileWriter {
                     return;
                 this.readerClosed = true;
                 MultiplexOutputStream.this.innerOut.removeReader(this);
+                final MultiplexedFileListener listener0 = MultiplexedFileWriter.this.listener;
+                if (listener0 != null)
+                    listener0.readerClosed(getId());
             }
 
             @Override
@@ -574,10 +923,88 @@ public class MultiplexedFileWriter {
             }
         }
 
+        /**
+         * The inner stream of a single-writer stream. Within a data block,
+         * {@link #write(int)} only stores the byte after a single bounds check; the
+         * byte completing a block, and all other operations, take the checked path
+         * of {@link InnerOutputStream}.
+         */
+        protected class SingleWriterOutputStream extends InnerOutputStream {
+
+            // the next write position in dataBlock, and the position up to which write(int)
+            // stores bytes unchecked. while writeLimit is positive, writePos supersedes full[depth].
+            private int writePos = 0;
+            private int writeLimit = 0;
+
+            public SingleWriterOutputStream(final int id) {
+                super(id, true);
+            }
+
+            @Override
+            public void write(final int b) throws IOException {
+                final int pos = this.writePos;
+                if (pos < this.writeLimit) {
+                    this.dataBlock[pos] = (byte) b;
+                    this.writePos = pos + 1;
+                    return;
+                }
+                writeChecked(b);
+            }
+
+            // kept out of write(int), so that the unchecked path is small enough to be inlined
+            private void writeChecked(final int b) throws IOException {
+                syncWritePos();
+                super.write(b);
+                enableUncheckedWrites();
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                syncWritePos();
+                super.write(b, off, len);
+                enableUncheckedWrites();
+            }
+
+            /**
+             * Stores the position of the unchecked writes in full[depth], and disables them.
+             */
+            private void syncWritePos() {
+                if (this.writeLimit != 0) {
+                    this.full[this.depth] = this.writePos;
+                    this.writeLimit = 0;
+                }
+            }
+
+            private void enableUncheckedWrites() {
+                // the byte which fills the block is written by the checked path, which writes back the block
+                this.writePos = this.full[this.depth];
+                this.writeLimit = this.dataBlock.length - 1;
+            }
+
+            @Override
+            public long length() {
+                if (this.writeLimit != 0)
+                    return this.dataLength + this.writePos;
+                return super.length();
+            }
+
+            @Override
+            public void close() throws IOException {
+                syncWritePos();
+                super.close();
+            }
+
+            @Override
+            public void remove() throws IOException {
+                syncWritePos();
+                super.remove();
+            }
+        }
+
         protected final InnerOutputStream innerOut;
 
-        protected MultiplexOutputStream(final int id) {
-            this.innerOut = new InnerOutputStream(id);
+        protected MultiplexOutputStream(final int id, final boolean singleWriter) {
+            this.innerOut = singleWriter ? new SingleWriterOutputStream(id) : new InnerOutputStream(id, false);
         }
 
         @Override
@@ -620,17 +1047,332 @@ public class MultiplexedFileWriter {
             return MultiplexedFileWriter.this.blockSize;
         }
 
+        /**
+         * Returns the metadata of this stream, which can be modified until the
+         * {@link MultiplexedFileWriter} is closed (even after this stream has been
+         * closed). The metadata is stored together with an index for looking up
+         * streams by name or by attribute values (see {@link MultiplexedFileReader#getStreamIdsByName(String)}
+         * and {@link MultiplexedFileReader#getStreamIdsByAttribute(String, long, long)}).
+         *
+         * @return the (modifiable) metadata of this stream
+         */
+        public StreamMetadata getMetadata() {
+            final Integer id = getId();
+            StreamMetadata metadata = MultiplexedFileWriter.this.streamMetadata.get(id);
+            if (metadata == null) {
+                final StreamMetadata newMetadata = new StreamMetadata();
+                metadata = MultiplexedFileWriter.this.streamMetadata.putIfAbsent(id, newMetadata);
+                if (metadata == null)
+                    metadata = newMetadata;
+            }
+            return metadata;
+        }
+
+        /**
+         * Writes the id of the given string in the file-wide string dictionary
+         * (see {@link MultiplexedFileWriter#getStringId(String)}) to this stream.
+         * Read it by {@link MultiplexedFileReader.MultiplexInputStream#readDictionaryString()}.
+         *
+         * @param s the string to write, may be <code>null</code>
+         */
+        public void writeDictionaryString(final String s) throws IOException {
+            OptimizedDataOutputStream.writeInt0(s == null ? -1 : getStringId(s), this);
+        }
+
+        /**
+         * @see MultiplexedFileWriter#newOutputStream(boolean)
+         */
+        public boolean isSingleWriter() {
+            return this.innerOut.singleWriter;
+        }
+
+    }
+
+    /**
+     * The captured state of a single stream.
+     * For closed streams, everything is stored in the file; for open streams,
+     * the root pointer block, the partially filled pointer blocks on the path to
+     * the last data block and the last data block itself are kept in memory.
+     */
+    protected static class StreamSnapshot {
+
+        public final long length;
+        public final long startBlockAddr; // only for closed streams
+        public final int[] full; // null for closed streams
+        public final long[][] pointerBlocks;
+        public final byte[] dataBlock;
+
+        public StreamSnapshot(final long length, final long startBlockAddr) {
+            this.length = length;
+            this.startBlockAddr = startBlockAddr;
+            this.full = null;
+            this.pointerBlocks = null;
+            this.dataBlock = null;
+        }
+
+        public StreamSnapshot(final long length, final int[] full, final long[][] pointerBlocks, final byte[] dataBlock) {
+            this.length = length;
+            this.startBlockAddr = -1;
+            this.full = full;
+            this.pointerBlocks = pointerBlocks;
+            this.dataBlock = dataBlock;
+        }
+
+    }
+
+    /**
+     * A read-only view of all streams of a {@link MultiplexedFileWriter} at the
+     * time {@link MultiplexedFileWriter#snapshot()} was called.
+     *
+     * @author Clemens Hammacher
+     */
+    public class Snapshot {
+
+        private final IntegerMap<StreamSnapshot> streams;
+        private volatile boolean snapshotClosed = false;
+
+        protected Snapshot(final IntegerMap<StreamSnapshot> streams) {
+            this.streams = streams;
+        }
+
+        public Set<Integer> getStreamIds() {
+            // unmodifiable by definition
+            return this.streams.keySet();
+        }
+
+        public boolean hasStreamId(final int streamIndex) {
+            return this.streams.containsKey(streamIndex);
+        }
+
+        /**
+         * Returns the length of the given stream at the time of the snapshot.
+         */
+        public long getStreamLength(final int streamIndex) {
+            final StreamSnapshot stream = this.streams.get(streamIndex);
+            if (stream == null)
+                throw new IllegalArgumentException("no stream with id " + streamIndex);
+            return stream.length;
+        }
+
+        public SnapshotInputStream getInputStream(final int streamIndex) throws IOException {
+            checkValid();
+            final StreamSnapshot stream = this.streams.get(streamIndex);
+            if (stream == null)
+                return null;
+            return new SnapshotInputStream(this, streamIndex, stream);
+        }
+
+        protected void checkValid() throws IOException {
+            if (this.snapshotClosed)
+                throw new IOException("snapshot closed");
+            if (MultiplexedFileWriter.this.closed)
+                throw new IOException(MultiplexedFileWriter.class.getSimpleName() + " closed");
+        }
+
+        /**
+         * Closes this snapshot. Blocks that have been freed in the meantime may be reused afterwards.
+         */
+        public void close() {
+            if (this.snapshotClosed)
+                return;
+            this.snapshotClosed = true;
+            releaseSnapshot();
+        }
+
     }
 
-    public static final int DEFAULT_BLOCK_SIZE = 1024; // MUST be divisible by 4
+    /**
+     * An InputStream reading the content of a stream as captured by a {@link Snapshot}.
+     *
+     * @author Clemens Hammacher
+     */
+    public class SnapshotInputStream extends InputStream {
+
+        private final Snapshot snapshot;
+        private final int id;
+        private final StreamSnapshot stream;
+        private final int depth;
+
+        private long position = 0;
+        private long currentBlockNr = -1;
+        private byte[] currentBlock = null;
+        private int currentBlockLength = 0;
+
+        private final byte[] dataBlockBuf = new byte[MultiplexedFileWriter.this.blockSize];
+        private final long[][] pointerBlockBufs;
+        private final long[] pointerBlockAddrs;
+
+        protected SnapshotInputStream(final Snapshot snapshot, final int id, final StreamSnapshot stream)
+                throws IOException {
+            this.snapshot = snapshot;
+            this.id = id;
+            this.stream = stream;
+            if (stream.full != null) {
+                this.depth = stream.full.length - 1;
+            } else {
+                // same depth computation as in the MultiplexedFileReader
+                int d = 0;
+                long max = MultiplexedFileWriter.this.blockSize;
+                while (max <= stream.length) {
+                    ++d;
+                    max *= MultiplexedFileWriter.this.pointersPerBlock;
+                }
+                this.depth = d;
+            }
+            this.pointerBlockBufs = new long[this.depth][MultiplexedFileWriter.this.pointersPerBlock];
+            this.pointerBlockAddrs = new long[this.depth];
+            Arrays.fill(this.pointerBlockAddrs, -1);
+        }
+
+        private void loadBlock(final long blockNr) throws IOException {
+            if (this.snapshot != null)
+                this.snapshot.checkValid();
+            final int blockSize = MultiplexedFileWriter.this.blockSize;
+            final int entriesPerBlock = MultiplexedFileWriter.this.pointersPerBlock;
+            final int[] full = this.stream.full;
+            this.currentBlockNr = blockNr;
+            this.currentBlockLength = (int) Math.min(blockSize, this.stream.length - blockNr*blockSize);
+
+            if (this.depth == 0) {
+                if (full != null) {
+                    this.currentBlock = this.stream.dataBlock;
+                } else {
+                    readBlock(this.stream.startBlockAddr, this.dataBlockBuf);
+                    this.currentBlock = this.dataBlockBuf;
+                }
+                return;
+            }
+
+            final int[] entries = new int[this.depth];
+            long remaining = blockNr;
+            for (int d = this.depth-1; d > 0; --d) {
+                entries[d] = (int) (remaining % entriesPerBlock);
+                remaining /= entriesPerBlock;
+            }
+            entries[0] = (int) remaining;
+
+            // as long as we are on the path to the last data block of an open stream,
+            // the blocks are still in memory
+            boolean inMemory = full != null;
+            long[] pointerBlock = inMemory ? this.stream.pointerBlocks[0]
+                : readPointerBlock(0, this.stream.startBlockAddr);
+            for (int d = 0; d < this.depth; ++d) {
+                if (inMemory && entries[d] == full[d]) {
+                    if (d == this.depth-1)
+                        this.currentBlock = this.stream.dataBlock;
+                    else
+                        pointerBlock = this.stream.pointerBlocks[d+1];
+                } else {
+                    inMemory = false;
+                    final long blockAddr = pointerBlock[entries[d]];
+                    if (d == this.depth-1) {
+                        readBlock(blockAddr, this.dataBlockBuf);
+                        this.currentBlock = this.dataBlockBuf;
+                    } else {
+                        pointerBlock = readPointerBlock(d+1, blockAddr);
+                    }
+                }
+            }
+        }
+
+        private long[] readPointerBlock(final int level, final long blockAddr) throws IOException {
+            if (this.pointerBlockAddrs[level] != blockAddr) {
+                readBlock(blockAddr, this.pointerBlockBufs[level]);
+                this.pointerBlockAddrs[level] = blockAddr;
+            }
+            return this.pointerBlockBufs[level];
+        }
+
+        private int ensureData() throws IOException {
+            if (this.position >= this.stream.length)
+                return 0;
+            final long blockNr = this.position / MultiplexedFileWriter.this.blockSize;
+            if (blockNr != this.currentBlockNr)
+                loadBlock(blockNr);
+            return this.currentBlockLength - (int) (this.position % MultiplexedFileWriter.this.blockSize);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (ensureData() <= 0)
+                return -1;
+            return this.currentBlock[(int) (this.position++ % MultiplexedFileWriter.this.blockSize)] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (b == null)
+                throw new NullPointerException();
+            if (off < 0 || len < 0 || len + off > b.length)
+                throw new IndexOutOfBoundsException();
+            if (len == 0)
+                return 0;
+
+            int ptr = off;
+            final int end = off + len;
+            while (ptr < end) {
+                final int available = ensureData();
+                if (available <= 0)
+                    return ptr == off ? -1 : ptr - off;
+                final int read = Math.min(end - ptr, available);
+                System.arraycopy(this.currentBlock, (int) (this.position % MultiplexedFileWriter.this.blockSize),
+                    b, ptr, read);
+                ptr += read;
+                this.position += read;
+            }
+            return len;
+        }
+
+        public void seek(final long toPos) throws IOException {
+            if (toPos < 0 || toPos > this.stream.length)
+                throw new IOException("pos must be in the range 0 .. dataLength");
+            this.position = toPos;
+        }
+
+        public long getPosition() {
+            return this.position;
+        }
+
+        public long getDataLength() {
+            return this.stream.length;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, this.stream.length - this.position);
+        }
+
+        public int getId() {
+            return this.id;
+        }
+
+    }
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024; // MUST be divisible by 4 (by 8 for FORMAT_VERSION_2)
 
     // this is just some random integer
-    public static final int MAGIC_HEADER = 0xB7A332B2;
+    public static final int MAGIC_HEADER = MultiplexedFileReader.MAGIC_HEADER;
+    public static final int MAGIC_HEADER_V2 = MultiplexedFileReader.MAGIC_HEADER_V2;
 
-    private static final int headerSize = 21; // bytes
+    /**
+     * 32-bit block addresses (at most 2^32 blocks per file).
+     */
+    public static final int FORMAT_VERSION_1 = MultiplexedFileReader.FORMAT_VERSION_1;
+    /**
+     * 64-bit block addresses. Pointer blocks hold only half as many addresses,
+     * so compared to {@link #FORMAT_VERSION_1} a stream may need one more level
+     * of pointer blocks.
+     */
+    public static final int FORMAT_VERSION_2 = MultiplexedFileReader.FORMAT_VERSION_2;
 
     private static final long POS_INT_MASK = 0xffffffffL;
 
+    private final int formatVersion;
+    private final int headerSize; // bytes
+    // number of block addresses in one pointer block
+    protected final int pointersPerBlock;
+    private final long maxNumBlocks;
+
     private final ByteOrder byteOrder;
 
     // each mapped slice has 1<<26 = 64M Bytes
@@ -642,21 +1384,21 @@ public class MultiplexedFileWriter {
 
     private final RandomAccessFile file;
     protected final FileChannel fileChannel;
-    private int fileLengthBlocks;
+    private long fileLengthBlocks;
 
     private final boolean useMemoryMapping;
     private final boolean autoFlush;
     private final FlushThread autoFlushThread;
 
-    private final AtomicInteger nextBlockAddr = new AtomicInteger(0);
+    private final AtomicLong nextBlockAddr = new AtomicLong(0);
 
     private final AtomicInteger nextStreamNr = new AtomicInteger(0);
 
-    private final AtomicBoolean firstWrite = new AtomicBoolean(true);
-
     // may be set when an error occurs asynchronously. is thrown on the next
     // operation on this file.
-    protected IOException exception = null;
+    protected volatile IOException exception = null;
+    private static final AtomicReferenceFieldUpdater<MultiplexedFileWriter, IOException> EXCEPTION_UPDATER =
+        AtomicReferenceFieldUpdater.newUpdater(MultiplexedFileWriter.class, IOException.class, "exception");
 
     // holds all open streams. they still have to be written out on close()
     public final ConcurrentMap<MultiplexOutputStream, InnerOutputStream> openStreams;
@@ -670,33 +1412,67 @@ public class MultiplexedFileWriter {
 
     protected boolean reuseStreamIds = false;
     protected ConcurrentLinkedQueue<Integer> streamIdsToReuse = null;
-    protected final ConcurrentLinkedQueue<Integer> freeBlocks =
-        new ConcurrentLinkedQueue<Integer>();
+    protected final ConcurrentLinkedQueue<Long> freeBlocks =
+        new ConcurrentLinkedQueue<Long>();
+
+    protected boolean deduplicateBlocks = false;
+    // once created, it is kept to maintain the reference counts of shared blocks
+    private volatile BlockDeduplicator blockDeduplicator = null;
+    // used during compaction when blocks may be shared (maps old to new block address)
+    private LongToLongMap relocatedBlocks = null;
+
+    private volatile AsyncWriteThread asyncWriteThread = null;
+
+    // if set, receives events for monitoring
+    protected volatile MultiplexedFileListener listener = null;
+
+    // the metadata of all streams, written on close
+    protected final ConcurrentMap<Integer, StreamMetadata> streamMetadata =
+        new ConcurrentHashMap<Integer, StreamMetadata>();
+
+    // the file-wide string dictionary, written on close
+    protected final ConcurrentMap<String, Integer> stringDictionary =
+        new ConcurrentHashMap<String, Integer>();
+    // the next free string id; the sign bit is set once the dictionary is closed
+    private final AtomicInteger nextStringId = new AtomicInteger();
+    // the number of claimed ids whose thread has finished updating the dictionary
+    private final AtomicInteger settledStringIds = new AtomicInteger();
+
+    private final Object snapshotLock = new Object();
+    private int numOpenSnapshots = 0;
+    // blocks freed while snapshots are open
+    private final List<Long> deferredFreeBlocks = new ArrayList<Long>();
 
     /**
      * Constructs a new multiplexed file writer with all options available.
      *
-     * The whole file can have at most 2^32*blockSize (4 TB for blockSize 1024) bytes.
+     * With {@link #FORMAT_VERSION_1}, the whole file can have at most 2^32*blockSize
+     * (4 TB for blockSize 1024) bytes. {@link #FORMAT_VERSION_2} uses 64-bit block
+     * addresses and is only limited by the maximum file size.
      *
      * @param filename the name of the file to write the multiplexed streams to
      * @param blockSize the block size of the file (each stream will allocate
      *                  at least <code>blockSize</code> bytes).
-     *                  must be at least 8, divisible by 4, and 1<<26 must be divisible by the
-     *                  blockSize.
+     *                  must be at least 8 (16 for {@link #FORMAT_VERSION_2}), divisible by 4
+     *                  (by 8 for {@link #FORMAT_VERSION_2}), and 1<<26 must be divisible by the blockSize.
      * @param useMemoryMapping whether or not to use memory mapping (java.nio package)
      * @param byteOrder the byte order to use to write out block addresses (only used internally)
+     * @param formatVersion {@link #FORMAT_VERSION_1} or {@link #FORMAT_VERSION_2}
      *
      * @throws IOException if an I/O error occurs (e.g. FileNotFoundException)
      */
     public MultiplexedFileWriter(final File filename, final int blockSize,
-            final boolean useMemoryMapping, final ByteOrder byteOrder, final boolean autoFlush)
-            throws IOException {
+            final boolean useMemoryMapping, final ByteOrder byteOrder, final boolean autoFlush,
+            final int formatVersion) throws IOException {
         if (filename == null)
             throw new NullPointerException();
-        if ((blockSize & 0x3) != 0)
-            throw new IllegalArgumentException("blockSize must be dividable by 4");
-        if (blockSize < 8)
-            throw new IllegalArgumentException("blockSize must be >= 8");
+        if (formatVersion != FORMAT_VERSION_1 && formatVersion != FORMAT_VERSION_2)
+            throw new IllegalArgumentException("unknown format version: " + formatVersion);
+        final int pointerSize = MultiplexedFileReader.getPointerSize(formatVersion);
+        if ((blockSize & (pointerSize-1)) != 0)
+            throw new IllegalArgumentException("blockSize must be dividable by " + pointerSize);
+        if (blockSize < 2*pointerSize)
+            throw new IllegalArgumentException("blockSize must be >= " + 2*pointerSize);
         if ((1 << MAPPING_SLICE_SIZE_BITS) % blockSize != 0)
             throw new IllegalArgumentException("1<<"+MAPPING_SLICE_SIZE_BITS+" must be divisible by the blockSize");
 
@@ -710,6 +1486,11 @@ public class MultiplexedFileWriter {
         }
         this.byteOrder = byteOrder;
         this.blockSize = blockSize;
+        this.formatVersion = formatVersion;
+        this.headerSize = MultiplexedFileReader.getHeaderSize(formatVersion);
+        this.pointersPerBlock = blockSize / pointerSize;
+        this.maxNumBlocks = formatVersion == FORMAT_VERSION_1 ? 1l << 32
+            : (Long.MAX_VALUE - this.headerSize) / blockSize;
 
         RandomAccessFile file0 = null;
         FileChannel fileChannel0 = null;
@@ -720,9 +1501,9 @@ public class MultiplexedFileWriter {
             // first, reset the file channel
             this.fileChannel.position(0);
             this.fileLengthBlocks = useMemoryMapping ? 0 : Math.max(1000, 10*1024*1024/blockSize);
-            this.file.setLength(headerSize+(long)this.fileLengthBlocks*this.blockSize);
+            this.file.setLength(this.headerSize+this.fileLengthBlocks*this.blockSize);
             // zero out the magic header
-            this.fileChannel.write(ByteBuffer.allocate(headerSize), 0);
+            this.fileChannel.write(ByteBuffer.allocate(this.headerSize), 0);
 
             final ConcurrentReferenceHashMap<MultiplexOutputStream, InnerOutputStream> openStreamsTmp = new ConcurrentReferenceHashMap<MultiplexOutputStream, InnerOutputStream>(
                 65535, .75f, 16, ReferenceType.WEAK, ReferenceType.STRONG,
@@ -733,14 +1514,13 @@ public class MultiplexedFileWriter {
                     try {
                         removedValue.close();
                     } catch (final IOException e) {
-                        if (MultiplexedFileWriter.this.exception == null)
-                            MultiplexedFileWriter.this.exception = e;
+                        setException(e);
                     }
                 }
             });
 
             this.openStreams = openStreamsTmp;
-            this.streamDefs = new MultiplexOutputStream(-1);
+            this.streamDefs = new MultiplexOutputStream(-1, false);
             this.streamDefsDataOut = new MyDataOutputStream(this.streamDefs);
             // no error:
             file0 = null;
@@ -753,6 +1533,17 @@ public class MultiplexedFileWriter {
         }
     }
 
+    /**
+     * Uses {@link #FORMAT_VERSION_1}.
+     *
+     * @see #MultiplexedFileWriter(File, int, boolean, ByteOrder, boolean, int)
+     */
+    public MultiplexedFileWriter(final File filename, final int blockSize,
+            final boolean useMemoryMapping, final ByteOrder byteOrder, final boolean autoFlush)
+            throws IOException {
+        this(filename, blockSize, useMemoryMapping, byteOrder, autoFlush, FORMAT_VERSION_1);
+    }
+
     /**
      * Uses
      * <ul>
@@ -781,92 +1572,336 @@ public class MultiplexedFileWriter {
     }
 
     public MultiplexOutputStream newOutputStream() {
+        return newOutputStream(false);
+    }
+
+    /**
+     * Creates a new stream in this file.
+     *
+     * A single-writer stream must only be used by one thread at a time. Within a
+     * block, {@link MultiplexOutputStream#write(int)} just stores the byte after a
+     * single bounds check, and completing a block neither locks nor checks for
+     * readers, so writing to it is cheaper; in exchange, {@link MultiplexOutputStream#getReader(long)} is not
+     * supported, and {@link #snapshot() snapshots} do not contain the stream
+     * before it has been closed.
+     *
+     * @param singleWriter whether the stream is only written by one thread
+     *                     and never read while it is open
+     * @return the new stream
+     */
+    public MultiplexOutputStream newOutputStream(final boolean singleWriter) {
         if (this.closed)
             throw new IllegalStateException(getClass().getSimpleName() + " closed");
         final Integer reusedStreamId = this.reuseStreamIds ? this.streamIdsToReuse.poll() : null;
         final int streamNr = reusedStreamId == null ? this.nextStreamNr.getAndIncrement() : reusedStreamId;
-        final MultiplexOutputStream newStream = new MultiplexOutputStream(streamNr);
+        final MultiplexOutputStream newStream = new MultiplexOutputStream(streamNr, singleWriter);
         this.openStreams.put(newStream, newStream.innerOut);
+        final MultiplexedFileListener listener0 = this.listener;
+        if (listener0 != null)
+            listener0.streamOpened(streamNr);
         return newStream;
     }
 
-    protected int getNewBlockAddress() throws IOException {
-        final Integer freeBlock = this.freeBlocks.poll();
-        if (freeBlock != null)
+    /**
+     * Takes a snapshot of all streams of this file, i.e. captures the current length
+     * of every open and closed stream. The returned {@link Snapshot} can be read
+     * while other threads keep writing to the streams.
+     *
+     * Writers are only blocked while the unwritten tail of their stream (at most
+     * one data block and the partially filled pointer blocks) is copied.
+     * Blocks freed by {@link MultiplexOutputStream#remove()} are not reused until
+     * all snapshots are {@link Snapshot#close() closed}.
+     * A snapshot becomes invalid when this {@link MultiplexedFileWriter} is closed.
+     *
+     * Single-writer streams (see {@link #newOutputStream(boolean)}) which are still
+     * open are not contained in the snapshot; closed ones are.
+     *
+     * @return a read-only view of the current state of all streams
+     */
+    public Snapshot snapshot() throws IOException {
+        checkException();
+        synchronized (this.closingLock) {
+            if (this.closed)
+                throw new IllegalStateException(getClass().getSimpleName() + " closed");
+            synchronized (this.snapshotLock) {
+                ++this.numOpenSnapshots;
+            }
+            boolean success = false;
+            try {
+                final IntegerMap<StreamSnapshot> streams = new IntegerMap<StreamSnapshot>();
+                for (final InnerOutputStream stream: this.openStreams.values()) {
+                    final StreamSnapshot streamSnapshot = stream.snapshot();
+                    if (streamSnapshot != null)
+                        streams.put(stream.getId(), streamSnapshot);
+                }
+
+                // all other streams have been closed before, so they are in the stream definitions
+                final StreamSnapshot streamDefsSnapshot;
+                synchronized (this.streamDefsDataOut) {
+                    streamDefsSnapshot = this.streamDefs.innerOut.snapshot();
+                }
+                final MyDataInputStream streamDefsIn = new MyDataInputStream(
+                    new SnapshotInputStream(null, -1, streamDefsSnapshot));
+                final long numStreamDefs = streamDefsSnapshot.length / MultiplexedFileReader.getStreamDefSize(this.formatVersion);
+                for (long i = 0; i < numStreamDefs; ++i) {
+                    final int id = streamDefsIn.readInt();
+                    final long startBlockAddr = this.formatVersion == FORMAT_VERSION_1
+                        ? streamDefsIn.readInt() & POS_INT_MASK : streamDefsIn.readLong();
+                    final long length = streamDefsIn.readLong();
+                    if (!streams.containsKey(id))
+                        streams.put(id, new StreamSnapshot(length, startBlockAddr));
+                }
+
+                success = true;
+                return new Snapshot(streams);
+            } finally {
+                if (!success)
+                    releaseSnapshot();
+            }
+        }
+    }
+
+    protected void releaseSnapshot() {
+        synchronized (this.snapshotLock) {
+            if (this.numOpenSnapshots > 0 && --this.numOpenSnapshots == 0) {
+                this.freeBlocks.addAll(this.deferredFreeBlocks);
+                this.deferredFreeBlocks.clear();
+            }
+        }
+    }
+
+    protected long getNewBlockAddress() throws IOException {
+        final MultiplexedFileListener listener0 = this.listener;
+        final Long freeBlock = this.freeBlocks.poll();
+        if (freeBlock != null) {
+            if (listener0 != null)
+                listener0.blockAllocated(true);
             return freeBlock;
+        }
 
-        final int newBlockAddr = this.nextBlockAddr.getAndIncrement();
-        if (newBlockAddr == 0 && !this.firstWrite.compareAndSet(true, false))
+        final long newBlockAddr = this.nextBlockAddr.getAndIncrement();
+        if (newBlockAddr >= this.maxNumBlocks) {
+            this.nextBlockAddr.decrementAndGet();
             throw new IOException("Maximum file size reached (length: " +
-                    ((1l<<32)*this.blockSize+headerSize) + " bytes)");
+                    (this.maxNumBlocks*this.blockSize+this.headerSize) + " bytes)");
+        }
+        if (listener0 != null)
+            listener0.blockAllocated(false);
+        return newBlockAddr;
+    }
+
+    /**
+     * Writes a data block of a stream to a newly allocated block (or, if block
+     * deduplication is enabled, possibly to an existing block with the same content).
+     *
+     * @return the address of the block holding the data
+     */
+    protected long writeDataBlock(final byte[] data) throws IOException {
+        if (this.deduplicateBlocks)
+            return this.blockDeduplicator.writeDataBlock(data);
+        return writeNewBlock(data);
+    }
+
+    private long writeNewBlock(final byte[] data) throws IOException {
+        final long newBlockAddr = getNewBlockAddress();
+        writeBlock(newBlockAddr, data);
         return newBlockAddr;
     }
 
-    protected void writeBlock(final int blockAddr, final byte[] data) throws IOException {
+    protected void freeDataBlock(final long blockAddr) {
+        final BlockDeduplicator dedup = this.blockDeduplicator;
+        if (dedup == null || dedup.release(blockAddr))
+            addFreeBlock(blockAddr);
+    }
+
+    /**
+     * Marks a block as free. While snapshots are open, freed blocks are not
+     * reused, since a snapshot might still reference them.
+     */
+    protected void addFreeBlock(final long blockAddr) {
+        final MultiplexedFileListener listener0 = this.listener;
+        if (listener0 != null)
+            listener0.blockFreed();
+        synchronized (this.snapshotLock) {
+            if (this.numOpenSnapshots > 0) {
+                this.deferredFreeBlocks.add(blockAddr);
+                return;
+            }
+        }
+        this.freeBlocks.add(blockAddr);
+    }
+
+    protected void writeBlock(final long blockAddr, final byte[] data) throws IOException {
+        final MultiplexedFileListener listener0 = this.listener;
+        if (listener0 == null) {
+            writeBlock0(blockAddr, data);
+        } else {
+            final long startNanos = System.nanoTime();
+            writeBlock0(blockAddr, data);
+            listener0.blockWritten(System.nanoTime() - startNanos);
+        }
+    }
+
+    private void writeBlock0(final long blockAddr, final byte[] data) throws IOException {
         assert data.length == this.blockSize;
         if (this.useMemoryMapping) {
             final ByteBuffer duplicate = getRawBlockMapping(blockAddr);
             duplicate.put(data, 0, this.blockSize);
         } else {
             ensureFileLength(blockAddr);
+            final AsyncWriteThread asyncWriter = this.asyncWriteThread;
+            if (asyncWriter != null) {
+                if (this.exception != null)
+                    checkException();
+                // the caller may reuse the array
+                asyncWriter.enqueue(blockAddr, data.clone());
+                return;
+            }
             final ByteBuffer buf = ByteBuffer.wrap(data, 0, this.blockSize);
             while (buf.hasRemaining()) {
                 this.fileChannel.write(buf,
-                        headerSize + ((blockAddr&POS_INT_MASK)*this.blockSize) + buf.position());
+                        this.headerSize + blockAddr*this.blockSize + buf.position());
             }
         }
     }
 
-    protected void writeBlock(final int blockAddr, final int[] data) throws IOException {
-        assert data.length == this.blockSize/4;
+    /**
+     * Writes a run of adjacent blocks queued for asynchronous writing to the file.
+     * Package-private, so that tests can observe and intercept these writes.
+     *
+     * @param firstBlockAddr the address of the first block of the run
+     * @param buf the content of all blocks of the run
+     */
+    void writeCoalescedBlocks(final long firstBlockAddr, final ByteBuffer buf) throws IOException {
+        final long filePos = this.headerSize + firstBlockAddr*this.blockSize;
+        while (buf.hasRemaining())
+            this.fileChannel.write(buf, filePos + buf.position());
+    }
+
+    protected void writeBlock(final long blockAddr, final long[] data) throws IOException {
+        final MultiplexedFileListener listener0 = this.listener;
+        if (listener0 == null) {
+            writeBlock0(blockAddr, data);
+        } else {
+            final long startNanos = System.nanoTime();
+            writeBlock0(blockAddr, data);
+            listener0.blockWritten(System.nanoTime() - startNanos);
+        }
+    }
+
+    private void writeBlock0(final long blockAddr, final long[] data) throws IOException {
+        assert data.length == this.pointersPerBlock;
         if (this.useMemoryMapping) {
-            final ByteBuffer duplicate = getRawBlockMapping(blockAddr).order(this.byteOrder);
-            duplicate.asIntBuffer().put(data, 0, this.blockSize/4);
+            encodePointerBlock(data, getRawBlockMapping(blockAddr).order(this.byteOrder));
         } else {
             ensureFileLength(blockAddr);
             final ByteBuffer buf = ByteBuffer.allocate(this.blockSize);
-            buf.order(this.byteOrder).asIntBuffer().put(data, 0, this.blockSize/4);
+            encodePointerBlock(data, buf.order(this.byteOrder));
+            buf.clear();
+            final AsyncWriteThread asyncWriter = this.asyncWriteThread;
+            if (asyncWriter != null) {
+                if (this.exception != null)
+                    checkException();
+                asyncWriter.enqueue(blockAddr, buf.array());
+                return;
+            }
             while (buf.hasRemaining()) {
                 this.fileChannel.write(buf,
-                        headerSize + ((blockAddr&POS_INT_MASK)*this.blockSize) + buf.position());
+                        this.headerSize + blockAddr*this.blockSize + buf.position());
             }
         }
     }
 
-    protected void readBlock(final int blockAddr, final byte[] buf) throws IOException {
+    protected void readBlock(final long blockAddr, final byte[] buf) throws IOException {
+        final MultiplexedFileListener listener0 = this.listener;
+        if (listener0 == null) {
+            readBlock0(blockAddr, buf);
+        } else {
+            final long startNanos = System.nanoTime();
+            readBlock0(blockAddr, buf);
+            listener0.blockRead(System.nanoTime() - startNanos);
+        }
+    }
+
+    private void readBlock0(final long blockAddr, final byte[] buf) throws IOException {
         assert buf.length == this.blockSize;
         if (this.useMemoryMapping) {
             final ByteBuffer mapping = getRawBlockMapping(blockAddr);
             mapping.get(buf, 0, this.blockSize);
         } else {
+            final AsyncWriteThread asyncWriter = this.asyncWriteThread;
+            final byte[] pending = asyncWriter == null ? null : asyncWriter.getPendingBlock(blockAddr);
+            if (pending != null) {
+                System.arraycopy(pending, 0, buf, 0, this.blockSize);
+                return;
+            }
             final ByteBuffer bbuf = ByteBuffer.wrap(buf, 0, this.blockSize);
             while (bbuf.hasRemaining()) {
                 this.fileChannel.read(bbuf,
-                        headerSize + ((blockAddr&POS_INT_MASK)*this.blockSize) + bbuf.position());
+                        this.headerSize + blockAddr*this.blockSize + bbuf.position());
             }
         }
     }
 
-    protected void readBlock(final int blockAddr, final int[] buf) throws IOException {
-        assert buf.length == this.blockSize/4;
+    protected void readBlock(final long blockAddr, final long[] buf) throws IOException {
+        final MultiplexedFileListener listener0 = this.listener;
+        if (listener0 == null) {
+            readBlock0(blockAddr, buf);
+        } else {
+            final long startNanos = System.nanoTime();
+            readBlock0(blockAddr, buf);
+            listener0.blockRead(System.nanoTime() - startNanos);
+        }
+    }
+
+    private void readBlock0(final long blockAddr, final long[] buf) throws IOException {
+        assert buf.length == this.pointersPerBlock;
         if (this.useMemoryMapping) {
-            final ByteBuffer mapping = getRawBlockMapping(blockAddr);
-            mapping.order(this.byteOrder).asIntBuffer().get(buf, 0, this.blockSize/4);
+            decodePointerBlock(getRawBlockMapping(blockAddr).order(this.byteOrder), buf);
         } else {
+            final AsyncWriteThread asyncWriter = this.asyncWriteThread;
+            final byte[] pending = asyncWriter == null ? null : asyncWriter.getPendingBlock(blockAddr);
+            if (pending != null) {
+                decodePointerBlock(ByteBuffer.wrap(pending).order(this.byteOrder), buf);
+                return;
+            }
             final ByteBuffer bbuf = ByteBuffer.allocate(this.blockSize);
-            final IntBuffer intBuf = bbuf.order(this.byteOrder).asIntBuffer();
             while (bbuf.hasRemaining()) {
                 final int read = this.fileChannel.read(bbuf,
-                        headerSize + ((blockAddr&POS_INT_MASK)*this.blockSize) + bbuf.position());
+                        this.headerSize + blockAddr*this.blockSize + bbuf.position());
                 if (read == -1)
                 	throw new IOException("Read after file end");
             }
-            intBuf.get(buf, 0, this.blockSize/4);
+            bbuf.flip();
+            decodePointerBlock(bbuf.order(this.byteOrder), buf);
         }
     }
 
-    private ByteBuffer getRawBlockMapping(final int blockAddr) throws IOException {
-        final long position = (blockAddr&POS_INT_MASK)*this.blockSize;
+    /**
+     * Stores the block addresses of a pointer block at the current position of the buffer.
+     */
+    private void encodePointerBlock(final long[] data, final ByteBuffer buf) {
+        if (this.formatVersion == FORMAT_VERSION_1) {
+            for (int i = 0; i < this.pointersPerBlock; ++i)
+                buf.putInt((int) data[i]);
+        } else {
+            final LongBuffer longBuf = buf.asLongBuffer();
+            longBuf.put(data, 0, this.pointersPerBlock);
+        }
+    }
+
+    private void decodePointerBlock(final ByteBuffer buf, final long[] data) {
+        if (this.formatVersion == FORMAT_VERSION_1) {
+            for (int i = 0; i < this.pointersPerBlock; ++i)
+                data[i] = buf.getInt() & POS_INT_MASK;
+        } else {
+            final LongBuffer longBuf = buf.asLongBuffer();
+            longBuf.get(data, 0, this.pointersPerBlock);
+        }
+    }
+
+    private ByteBuffer getRawBlockMapping(final long blockAddr) throws IOException {
+        final long position = blockAddr*this.blockSize;
         final int mappingNr = (int) (position >>> MAPPING_SLICE_SIZE_BITS);
         final int posInMapping = ((int)position) & ((1<<MAPPING_SLICE_SIZE_BITS)-1);
         final ByteBuffer mapping = getMappedSlice(mappingNr);
@@ -887,14 +1922,18 @@ public class MultiplexedFileWriter {
                     this.fileMappings = newMappings;
                 }
                 if (this.fileMappings[mappingNr] == null) {
+                    final MultiplexedFileListener listener0 = this.listener;
+                    final long startNanos = listener0 == null ? 0 : System.nanoTime();
                     try {
                         this.fileMappings[mappingNr] = this.fileChannel.map(
-                                MapMode.READ_WRITE, headerSize+((long)mappingNr << MAPPING_SLICE_SIZE_BITS),
+                                MapMode.READ_WRITE, this.headerSize+((long)mappingNr << MAPPING_SLICE_SIZE_BITS),
                                 1 << MAPPING_SLICE_SIZE_BITS);
                     } catch (final IOException e) {
                         throw new IOException("Error mapping additional " + (1<<(MAPPING_SLICE_SIZE_BITS-20))
                                 + " MB of the trace file: " + e.getMessage());
                     }
+                    if (listener0 != null)
+                        listener0.fileMapped(System.nanoTime() - startNanos);
                     if (this.autoFlush)
                         this.autoFlushThread.doFlush(this.fileMappings[mappingNr]);
                 }
@@ -904,17 +1943,52 @@ public class MultiplexedFileWriter {
         return this.fileMappings[mappingNr];
     }
 
-    private void ensureFileLength(final int blockAddr) throws IOException {
-        if ((blockAddr & POS_INT_MASK) >= (this.fileLengthBlocks & POS_INT_MASK)) {
+    private void ensureFileLength(final long blockAddr) throws IOException {
+        if (blockAddr >= this.fileLengthBlocks) {
             synchronized (this.fileChannel) {
-                if ((blockAddr & POS_INT_MASK) >= (this.fileLengthBlocks & POS_INT_MASK)) {
-                    this.fileLengthBlocks = (int) Math.min(Integer.MAX_VALUE, Math.max((long)this.fileLengthBlocks*5/4, (long)this.fileLengthBlocks+10*1024*1024/this.blockSize));
-                    this.file.setLength(headerSize+(long)this.fileLengthBlocks*this.blockSize);
+                if (blockAddr >= this.fileLengthBlocks) {
+                    this.fileLengthBlocks = Math.min(this.maxNumBlocks, Math.max(blockAddr+1,
+                        Math.max(this.fileLengthBlocks*5/4, this.fileLengthBlocks+10*1024*1024/this.blockSize)));
+                    this.file.setLength(this.headerSize+this.fileLengthBlocks*this.blockSize);
                 }
             }
         }
     }
 
+    /**
+     * Returns the id of the given string in the file-wide string dictionary, adding it
+     * if necessary. Streams can store this id instead of the string itself (see
+     * {@link MultiplexOutputStream#writeDictionaryString(String)}); the dictionary is
+     * stored on {@link #close()}, and {@link MultiplexedFileReader#getDictionaryString(int)}
+     * maps the id back to the string.
+     *
+     * This method can be called concurrently from several threads and does not lock.
+     * If several threads add the same string at the same time, only one of their ids
+     * is used; the others remain as gaps in the dictionary.
+     *
+     * @return the id of the string (non-negative)
+     * @throws IllegalStateException if the string is new and the writer has been closed
+     */
+    public int getStringId(final String s) {
+        if (s == null)
+            throw new NullPointerException();
+        final Integer id = this.stringDictionary.get(s);
+        if (id != null)
+            return id;
+        int newId;
+        do {
+            newId = this.nextStringId.get();
+            if (newId < 0)
+                throw new IllegalStateException("writer has been closed");
+        } while (!this.nextStringId.compareAndSet(newId, newId + 1));
+        try {
+            final Integer oldId = this.stringDictionary.putIfAbsent(s, newId);
+            return oldId == null ? newId : oldId;
+        } finally {
+            this.settledStringIds.incrementAndGet();
+        }
+    }
+
     private final Object closingLock = new Object();
 
     @Override
@@ -934,8 +2008,48 @@ public class MultiplexedFileWriter {
                 str.close();
             this.openStreams.clear();
 
+            if (!this.streamMetadata.isEmpty()) {
+                final byte[] metadata = StreamMetadataIndex.write(this.streamMetadata);
+                final MultiplexOutputStream metadataStream =
+                    new MultiplexOutputStream(MultiplexedFileReader.METADATA_STREAM_ID, true);
+                metadataStream.write(metadata);
+                metadataStream.close();
+            }
+
+            // no ids can be claimed after this, and once all claimed ids are settled,
+            // the dictionary is complete
+            int numStringIds;
+            do {
+                numStringIds = this.nextStringId.get();
+            } while (!this.nextStringId.compareAndSet(numStringIds, numStringIds | Integer.MIN_VALUE));
+            while (this.settledStringIds.get() < numStringIds)
+                Thread.yield();
+            final String[] strings = new String[numStringIds];
+            for (final Map.Entry<String, Integer> e: this.stringDictionary.entrySet())
+                strings[e.getValue()] = e.getKey();
+            if (strings.length > 0) {
+                final MultiplexOutputStream dictionaryStream =
+                    new MultiplexOutputStream(MultiplexedFileReader.STRING_DICTIONARY_STREAM_ID, true);
+                dictionaryStream.write(StringDictionary.write(strings));
+                dictionaryStream.close();
+            }
+
             this.streamDefs.close();
-            int streamDefsStartBlock = this.streamDefs.innerOut.startBlockAddr;
+            long streamDefsStartBlock = this.streamDefs.innerOut.startBlockAddr;
+
+            // all remaining blocks have to be on disk before the file is compacted
+            final AsyncWriteThread asyncWriter = this.asyncWriteThread;
+            if (asyncWriter != null) {
+                this.asyncWriteThread = null;
+                asyncWriter.shutdown();
+            }
+
+            // open snapshots become invalid now
+            synchronized (this.snapshotLock) {
+                this.numOpenSnapshots = 0;
+                this.freeBlocks.addAll(this.deferredFreeBlocks);
+                this.deferredFreeBlocks.clear();
+            }
 
             if (this.autoFlush) {
                 this.autoFlushThread.interrupt();
@@ -952,55 +2066,52 @@ public class MultiplexedFileWriter {
                 	Thread.currentThread().interrupt();
             }
 
-            int newBlockCount = this.nextBlockAddr.get();
+            long newBlockCount = this.nextBlockAddr.get();
             final int numFreeBlocks = this.freeBlocks.size();
-            if (numFreeBlocks > 0 && (this.blockSize & 15) == 0) {
+            final long streamDefsLength = this.streamDefs.length();
+            if (numFreeBlocks > 0 && streamDefsLength <= Integer.MAX_VALUE) {
                 newBlockCount -= numFreeBlocks;
-                streamDefsStartBlock = compactStream(streamDefsStartBlock, this.streamDefs.length(), newBlockCount);
-                final long numStreams = this.streamDefs.length()/16;
-                final int depth = this.streamDefs.innerOut.depth;
-                final int[][] pointerBlocks = new int[depth][this.blockSize/4];
-                final byte[] dataBlock = new byte[this.blockSize];
-                final int[] pos = new int[depth+1];
-                boolean changed = false;
-                for (int d = 0; d < depth; ++d)
-                    readBlock(d == 0 ? streamDefsStartBlock : pointerBlocks[d-1][0], pointerBlocks[d]);
-                readBlock(depth == 0 ? streamDefsStartBlock : pointerBlocks[depth-1][0], dataBlock);
-                final MyByteArrayInputStream dataBlockIn = new MyByteArrayInputStream(dataBlock);
-                final MyDataInputStream dataBlockDataIn = new MyDataInputStream(dataBlockIn);
-                final MyByteArrayOutputStream dataBlockOut = new MyByteArrayOutputStream(dataBlock);
-                final MyDataOutputStream dataBlockDataOut = new MyDataOutputStream(dataBlockOut);
-                for (long l = 0; l < numStreams; ++l) {
-                    if (pos[depth] == this.blockSize) {
-                        if (changed) {
-                            writeBlock(pointerBlocks[depth-1][pos[depth-1]], dataBlock);
-                            changed = false;
-                        }
-                        for (int d = depth-1; d >= 0; --d) {
-                            if (pos[d] + 1 < this.blockSize/4) {
-                                ++pos[d];
-                                for (int du = d+1; du < depth; ++du) {
-                                    readBlock(pointerBlocks[du-1][pos[du-1]], pointerBlocks[du]);
-                                    pos[du] = 0;
-                                }
-                                readBlock(pointerBlocks[depth-1][pos[depth-1]], dataBlock);
-                                pos[depth] = 0;
-                                break;
-                            }
-                        }
-                    }
-                    assert pos[depth] < this.blockSize;
-                    dataBlockIn.seek(pos[depth]+4);
-                    final int startBlock = dataBlockDataIn.readInt();
-                    final long length = dataBlockDataIn.readLong();
-                    final int newStartBlock = compactStream(startBlock, length, newBlockCount);
+                // free blocks behind the new end of the file are just cut off, only the
+                // remaining ones are used as targets for the blocks that have to be moved
+                for (final Iterator<Long> it = this.freeBlocks.iterator(); it.hasNext(); )
+                    if (it.next() >= newBlockCount)
+                        it.remove();
+                final MultiplexedFileListener listener0 = this.listener;
+                final long startNanos = listener0 == null ? 0 : System.nanoTime();
+                final int numTargetBlocks = this.freeBlocks.size();
+                if (this.blockDeduplicator != null)
+                    this.relocatedBlocks = new LongToLongMap(LongToLongMap.DEFAULT_INITIAL_CAPACITY,
+                        LongToLongMap.DEFAULT_LOAD_FACTOR, -1);
+
+                // the stream directory is read completely, the start blocks of all moved
+                // streams are updated, and then it is written back to its (new) blocks
+                final byte[] streamDefsData = new byte[(int) streamDefsLength];
+                final SnapshotInputStream streamDefsIn = new SnapshotInputStream(null, -1,
+                    new StreamSnapshot(streamDefsLength, streamDefsStartBlock));
+                for (int read = 0; read < streamDefsData.length; ) {
+                    final int newRead = streamDefsIn.read(streamDefsData, read, streamDefsData.length - read);
+                    if (newRead < 0)
+                        throw new IOException("Unexpected EOF in stream definitions");
+                    read += newRead;
+                }
+                final ByteBuffer streamDefsBuf = ByteBuffer.wrap(streamDefsData);
+                final int streamDefSize = MultiplexedFileReader.getStreamDefSize(this.formatVersion);
+                for (int off = 0; off + streamDefSize <= streamDefsData.length; off += streamDefSize) {
+                    final long startBlock = this.formatVersion == FORMAT_VERSION_1
+                        ? streamDefsBuf.getInt(off+4) & POS_INT_MASK : streamDefsBuf.getLong(off+4);
+                    final long length = streamDefsBuf.getLong(off+streamDefSize-8);
+                    final long newStartBlock = compactStream(startBlock, length, newBlockCount, null);
                     if (newStartBlock != startBlock) {
-                        changed = true;
-                        dataBlockOut.seek(pos[depth]+4);
-                        dataBlockDataOut.writeInt(newStartBlock);
+                        if (this.formatVersion == FORMAT_VERSION_1)
+                            streamDefsBuf.putInt(off+4, (int) newStartBlock);
+                        else
+                            streamDefsBuf.putLong(off+4, newStartBlock);
                     }
-                    pos[depth] += 16;
                 }
+                streamDefsStartBlock = compactStream(streamDefsStartBlock, streamDefsLength, newBlockCount,
+                    streamDefsData);
+                if (listener0 != null)
+                    listener0.compacted(numTargetBlocks - this.freeBlocks.size(), System.nanoTime() - startNanos);
             }
 
             // erase references to mapped file regions
@@ -1032,7 +2143,7 @@ public class MultiplexedFileWriter {
             while (true) {
                 try {
                     System.gc();
-                    this.fileChannel.truncate(headerSize+(long)newBlockCount*this.blockSize);
+                    this.fileChannel.truncate(this.headerSize+newBlockCount*this.blockSize);
                     // if there was no exception, then break this loop
                     break;
                 } catch (final IOException e) {
@@ -1047,11 +2158,14 @@ public class MultiplexedFileWriter {
             memoryConsumingList = null;
 
             // write some meta information to the file to make it valid
-            final ByteBuffer header = ByteBuffer.allocate(headerSize);
-            header.putInt(MAGIC_HEADER);
+            final ByteBuffer header = ByteBuffer.allocate(this.headerSize);
+            header.putInt(this.formatVersion == FORMAT_VERSION_1 ? MAGIC_HEADER : MAGIC_HEADER_V2);
             header.putInt(this.blockSize);
             header.put(this.byteOrder == ByteOrder.BIG_ENDIAN ? (byte)0 : (byte)1);
-            header.putInt(streamDefsStartBlock);
+            if (this.formatVersion == FORMAT_VERSION_1)
+                header.putInt((int) streamDefsStartBlock);
+            else
+                header.putLong(streamDefsStartBlock);
             header.putLong(this.streamDefs.innerOut.dataLength);
             header.position(0);
             this.fileChannel.write(header, 0);
@@ -1062,18 +2176,27 @@ public class MultiplexedFileWriter {
         }
     }
 
-    private int compactStream(final int streamStartBlock, final long streamLength, final int newBlockCount) throws IOException {
-        final int numBlocks = (int)divUp(streamLength, this.blockSize);
-
+    /**
+     * Moves all blocks of the given stream which lie behind <code>newBlockCount</code>
+     * to free blocks. If <code>newContent</code> is given, all data blocks of the stream
+     * are overwritten with this content instead of being moved.
+     *
+     * @return the new start block of the stream
+     */
+    private long compactStream(final long streamStartBlock, final long streamLength, final long newBlockCount,
+            final byte[] newContent) throws IOException {
+        // same depth computation as in the MultiplexedFileReader
         int depth = 0;
         long max = this.blockSize;
-        while (max < streamLength) {
+        while (max <= streamLength) {
             ++depth;
-            max *= this.blockSize/4;
+            max *= this.pointersPerBlock;
         }
+        // if there are pointer blocks, the last data block is always written (even if empty)
+        final long numBlocks = depth == 0 ? 1 : streamLength / this.blockSize + 1;
 
-        int newStartBlock = streamStartBlock;
-        final int[][] pointerBlocks = new int[depth][this.blockSize/4];
+        long newStartBlock = streamStartBlock;
+        final long[][] pointerBlocks = new long[depth][this.pointersPerBlock];
         final int[] pos = new int[depth];
         final boolean[] changed = new boolean[depth];
         if (depth > 0) {
@@ -1083,25 +2206,25 @@ public class MultiplexedFileWriter {
                 changed[0] = true;
             }
             for (int d = 0; d < depth-1; ++d) {
-                final int blockAddr = pointerBlocks[d][0];
+                final long blockAddr = pointerBlocks[d][0];
                 readBlock(blockAddr, pointerBlocks[d+1]);
                 if (blockAddr >= newBlockCount) {
-                    final int newAddr = this.freeBlocks.poll();
+                    final long newAddr = this.freeBlocks.poll();
                     changed[d+1] = true;
                     pointerBlocks[d][0] = newAddr;
                     changed[d] = true;
                 }
             }
             for (long l = 0; l < numBlocks; ++l) {
-                if (pos[depth-1] == this.blockSize/4) {
+                if (pos[depth-1] == this.pointersPerBlock) {
                     for (int d = depth-1; d >= 0; --d) {
-                        if (pos[d] + 1 < this.blockSize/4) {
+                        if (pos[d] + 1 < this.pointersPerBlock) {
                             ++pos[d];
                             for (int du = d+1; du < depth; ++du) {
-                                final int blockAddr = pointerBlocks[du-1][pos[du-1]];
+                                final long blockAddr = pointerBlocks[du-1][pos[du-1]];
                                 readBlock(blockAddr, pointerBlocks[du]);
                                 if (blockAddr >= newBlockCount) {
-                                    final int newAddr = this.freeBlocks.poll();
+                                    final long newAddr = this.freeBlocks.poll();
                                     changed[du] = true;
                                     pointerBlocks[du-1][pos[du-1]] = newAddr;
                                     changed[du-1] = true;
@@ -1119,11 +2242,16 @@ public class MultiplexedFileWriter {
                         }
                     }
                 }
-                final int blockAddr = pointerBlocks[depth-1][pos[depth-1]];
-                if (blockAddr >= newBlockCount) {
-                    final int newAddr = this.freeBlocks.poll();
-                    transferBlock(blockAddr, newAddr);
-                    pointerBlocks[depth-1][pos[depth-1]] = newAddr;
+                final long blockAddr = pointerBlocks[depth-1][pos[depth-1]];
+                if (newContent != null) {
+                    final long newAddr = blockAddr >= newBlockCount ? this.freeBlocks.poll() : blockAddr;
+                    writeBlock(newAddr, getContentBlock(newContent, l));
+                    if (newAddr != blockAddr) {
+                        pointerBlocks[depth-1][pos[depth-1]] = newAddr;
+                        changed[depth-1] = true;
+                    }
+                } else if (blockAddr >= newBlockCount) {
+                    pointerBlocks[depth-1][pos[depth-1]] = relocateDataBlock(blockAddr);
                     changed[depth-1] = true;
                 }
                 ++pos[depth-1];
@@ -1133,15 +2261,40 @@ public class MultiplexedFileWriter {
                     writeBlock(i == 0 ? newStartBlock : pointerBlocks[i-1][pos[i-1]], pointerBlocks[i]);
                 }
             }
+        } else if (newContent != null) {
+            if (streamStartBlock >= newBlockCount)
+                newStartBlock = this.freeBlocks.poll();
+            writeBlock(newStartBlock, getContentBlock(newContent, 0));
         } else if (streamStartBlock >= newBlockCount) {
-            newStartBlock = this.freeBlocks.poll();
-            transferBlock(streamStartBlock, newStartBlock);
+            newStartBlock = relocateDataBlock(streamStartBlock);
         }
 
         return newStartBlock;
     }
 
-    private void transferBlock(final int oldAddr, final int newAddr) throws IOException {
+    private byte[] getContentBlock(final byte[] content, final long blockNr) {
+        final int off = (int) (blockNr * this.blockSize);
+        final byte[] block = new byte[this.blockSize];
+        if (off < content.length)
+            System.arraycopy(content, off, block, 0, Math.min(this.blockSize, content.length - off));
+        return block;
+    }
+
+    private long relocateDataBlock(final long blockAddr) throws IOException {
+        if (this.relocatedBlocks != null) {
+            // the block might be shared, and already been moved
+            final long relocated = this.relocatedBlocks.getLong(blockAddr);
+            if (relocated != -1)
+                return relocated;
+        }
+        final long newAddr = this.freeBlocks.poll();
+        transferBlock(blockAddr, newAddr);
+        if (this.relocatedBlocks != null)
+            this.relocatedBlocks.put(blockAddr, newAddr);
+        return newAddr;
+    }
+
+    private void transferBlock(final long oldAddr, final long newAddr) throws IOException {
         assert oldAddr < this.nextBlockAddr.get() && newAddr < this.nextBlockAddr.get();
         if (this.useMemoryMapping) {
             final ByteBuffer oldMapping = getRawBlockMapping(oldAddr);
@@ -1149,8 +2302,8 @@ public class MultiplexedFileWriter {
             final ByteBuffer newMapping = getRawBlockMapping(newAddr);
             newMapping.put(oldMapping);
         } else {
-            long oldPos = headerSize + (oldAddr&POS_INT_MASK)*this.blockSize;
-            final long newPos = headerSize + (newAddr&POS_INT_MASK)*this.blockSize;
+            long oldPos = this.headerSize + oldAddr*this.blockSize;
+            final long newPos = this.headerSize + newAddr*this.blockSize;
             int count = this.blockSize;
             this.fileChannel.position(newPos);
             while (count > 0) {
@@ -1162,11 +2315,17 @@ public class MultiplexedFileWriter {
     }
 
     private synchronized void checkException() throws IOException {
-        if (this.exception != null) {
-            final IOException e = this.exception;
-            this.exception = null;
+        final IOException e = EXCEPTION_UPDATER.getAndSet(this, null);
+        if (e != null)
             throw e;
-        }
+    }
+
+    /**
+     * Remembers an exception that occurred asynchronously, unless another one is
+     * already waiting to be reported.
+     */
+    private void setException(final IOException e) {
+        EXCEPTION_UPDATER.compareAndSet(this, null, e);
     }
 
     /**
@@ -1185,6 +2344,123 @@ public class MultiplexedFileWriter {
         return oldVal;
     }
 
+    /**
+     * Sets whether the {@link MultiplexedFileWriter} should store data blocks with
+     * identical content only once. Each data block is hashed before it is written;
+     * if a block with the same content already exists, the stream just references
+     * this block. Shared blocks are reference counted, so that they are only reused
+     * when all streams referencing them have been {@link MultiplexOutputStream#remove()}d.
+     *
+     * Note: This method should only be called before any data has been written!
+     *
+     * @return the previous value of deduplicateBlocks
+     */
+    public synchronized boolean setDeduplicateBlocks(final boolean val) {
+        final boolean oldVal = this.deduplicateBlocks;
+        if (val && this.blockDeduplicator == null)
+            this.blockDeduplicator = new BlockDeduplicator();
+        this.deduplicateBlocks = val;
+        return oldVal;
+    }
+
+    /**
+     * Sets whether blocks should be written asynchronously by a dedicated thread.
+     * Queued blocks with adjacent addresses are coalesced into a single write.
+     * If more than <code>maxPendingBlocks</code> blocks are queued, writers block
+     * until the queue has been processed. An I/O error in the writing thread is
+     * reported by the next block write or by {@link #close()}.
+     *
+     * This setting has no effect if memory mapping is used. It should not be
+     * changed while other threads are writing to the streams.
+     *
+     * @param val whether to write blocks asynchronously
+     * @param maxPendingBlocks the maximum number of blocks that are not written yet
+     * @return the previous value
+     */
+    public synchronized boolean setAsynchronousWrites(final boolean val, final int maxPendingBlocks) {
+        if (maxPendingBlocks <= 0)
+            throw new IllegalArgumentException("maxPendingBlocks must be positive");
+        final AsyncWriteThread oldThread = this.asyncWriteThread;
+        if (this.useMemoryMapping || this.closed || val == (oldThread != null))
+            return oldThread != null;
+        if (val) {
+            final AsyncWriteThread newThread = new AsyncWriteThread(maxPendingBlocks);
+            newThread.start();
+            this.asyncWriteThread = newThread;
+        } else {
+            oldThread.drain();
+            this.asyncWriteThread = null;
+            oldThread.shutdown();
+        }
+        return oldThread != null;
+    }
+
+    /**
+     * Uses a budget of 4 MB of pending blocks.
+     *
+     * @see #setAsynchronousWrites(boolean, int)
+     */
+    public boolean setAsynchronousWrites(final boolean val) {
+        return setAsynchronousWrites(val, Math.max(16, 4*1024*1024/this.blockSize));
+    }
+
+    /**
+     * Sets the listener which is informed about block allocations, I/O operations,
+     * streams and readers of this file (see {@link MultiplexedFileStatistics}).
+     * If no listener is set, no timing information is gathered.
+     *
+     * Bytes written to a stream are reported whenever a block of the stream
+     * is completed, and when the stream is closed or removed.
+     *
+     * @param newListener the new listener, or <code>null</code>
+     * @return the previous listener
+     */
+    public MultiplexedFileListener setListener(final MultiplexedFileListener newListener) {
+        final MultiplexedFileListener oldListener = this.listener;
+        this.listener = newListener;
+        return oldListener;
+    }
+
+    /**
+     * Returns the number of data blocks which have been hashed for deduplication.
+     */
+    public long getNumHashedBlocks() {
+        final BlockDeduplicator dedup = this.blockDeduplicator;
+        return dedup == null ? 0 : dedup.getNumHashedBlocks();
+    }
+
+    /**
+     * Returns the number of data blocks which have not been stored because a block
+     * with identical content already existed.
+     */
+    public long getNumDeduplicatedBlocks() {
+        final BlockDeduplicator dedup = this.blockDeduplicator;
+        return dedup == null ? 0 : dedup.getNumSharedBlocks();
+    }
+
+    /**
+     * Returns the deduplication ratio, i.e. the number of hashed data blocks
+     * divided by the number of data blocks which actually had to be stored.
+     * A value of 1 means that no block could be shared.
+     */
+    public double getDeduplicationRatio() {
+        final long hashed = getNumHashedBlocks();
+        final long stored = hashed - getNumDeduplicatedBlocks();
+        return stored == 0 ? 1 : (double) hashed / stored;
+    }
+
+    /**
+     * Returns the average time (in nanoseconds) spent per data block for hashing
+     * it and comparing it to the existing block with the same hash.
+     */
+    public double getHashingNanosPerBlock() {
+        final BlockDeduplicator dedup = this.blockDeduplicator;
+        if (dedup == null)
+            return 0;
+        final long hashed = dedup.getNumHashedBlocks();
+        return hashed == 0 ? 0 : (double) dedup.getHashingNanos() / hashed;
+    }
+
     protected static long divUp(final long a, final int b) {
         return (a+b-1)/b;
     }
@@ -1210,6 +2486,8 @@ public class MultiplexedFileWriter {
 
     /* package-visible */
     void flush0(final MappedByteBuffer omit) throws IOException {
+        final MultiplexedFileListener listener0 = this.listener;
+        final long startNanos = listener0 == null ? 0 : System.nanoTime();
         if (this.useMemoryMapping) {
             MappedByteBuffer[] buffers;
             synchronized (this.fileMappingsLock) {
@@ -1222,8 +2500,13 @@ public class MultiplexedFileWriter {
                 }
             }
         } else {
+            final AsyncWriteThread asyncWriter = this.asyncWriteThread;
+            if (asyncWriter != null)
+                asyncWriter.drain();
             this.fileChannel.force(false);
         }
+        if (listener0 != null)
+            listener0.flushed(System.nanoTime() - startNanos);
     }
 
     // try to unmap all memory mappings
@@ -0,0 +1,97 @@
+package de.hammacher.util;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Optional metadata of a stream in a multiplexed file: a name (which does not
+ * need to be unique) and a set of numeric attributes (e.g. a thread id or the
+ * start and end of a time range).
+ *
+ * On the writer side, the metadata is obtained by
+ * {@link MultiplexedFileWriter.MultiplexOutputStream#getMetadata()} and is stored
+ * when the file is closed. A {@link MultiplexedFileReader} can then look up
+ * streams by name or by attribute ranges.
+ *
+ * @author Clemens Hammacher
+ */
+public class StreamMetadata {
+
+    private String name;
+    private final Map<String, Long> attributes = new TreeMap<String, Long>();
+
+    public StreamMetadata() {
+        this(null, Collections.<String, Long>emptyMap());
+    }
+
+    public StreamMetadata(final String name, final Map<String, Long> attributes) {
+        this.name = name;
+        this.attributes.putAll(attributes);
+    }
+
+    public synchronized String getName() {
+        return this.name;
+    }
+
+    /**
+     * @param name the new name of the stream, or <code>null</code>
+     */
+    public synchronized void setName(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the value of the attribute, or <code>null</code> if it is not set
+     */
+    public synchronized Long getAttribute(final String key) {
+        return this.attributes.get(key);
+    }
+
+    public synchronized void setAttribute(final String key, final long value) {
+        if (key == null)
+            throw new NullPointerException();
+        this.attributes.put(key, value);
+    }
+
+    public synchronized Long removeAttribute(final String key) {
+        return this.attributes.remove(key);
+    }
+
+    /**
+     * Returns a copy of all attributes, sorted by their keys.
+     */
+    public synchronized Map<String, Long> getAttributes() {
+        return Collections.unmodifiableMap(new TreeMap<String, Long>(this.attributes));
+    }
+
+    public synchronized boolean isEmpty() {
+        return this.name == null && this.attributes.isEmpty();
+    }
+
+    @Override
+    public synchronized int hashCode() {
+        return (this.name == null ? 0 : this.name.hashCode()) * 31 + this.attributes.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+        final StreamMetadata other = (StreamMetadata) obj;
+        final String otherName = other.getName();
+        final Map<String, Long> otherAttributes = other.getAttributes();
+        synchronized (this) {
+            return (this.name == null ? otherName == null : this.name.equals(otherName))
+                && this.attributes.equals(otherAttributes);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "StreamMetadata[name=" + this.name + ", attributes=" + this.attributes + "]";
+    }
+
+}
@@ -0,0 +1,356 @@
+package de.hammacher.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import de.hammacher.util.MultiplexedFileReader.MultiplexInputStream;
+
+/**
+ * The stored form of the {@link StreamMetadata} of all streams in a multiplexed
+ * file. It is written as an internal stream (with id
+ * {@link MultiplexedFileReader#METADATA_STREAM_ID}) and read on demand, so that
+ * lookups only touch the blocks they need.
+ *
+ * Layout (all numbers big endian):
+ * <pre>
+ *   header:          magic, numEntries, numNamed, numBuckets, numKeys (ints),
+ *                    keysOffset, dataOffset (longs)
+ *   entry table:     per stream (sorted by id): id, nameHash (ints), dataOffset (long)
+ *   bucket table:    numBuckets+1 ints; bucket b holds the name table entries
+ *                    bucket[b] .. bucket[b+1]-1
+ *   name table:      per named stream: the index into the entry table
+ *   attribute index: per attribute key, (value (long), id (int)) pairs sorted by value
+ *   keys:            per attribute key: name (UTF), offset of its pairs (long), count (int)
+ *   data:            per stream: name (boolean + UTF), numAttributes (int),
+ *                    and (key index (int), value (long)) pairs
+ * </pre>
+ *
+ * @author Clemens Hammacher
+ */
+class StreamMetadataIndex {
+
+    private static final int MAGIC = 0x3A7D51C2;
+    private static final int HEADER_SIZE = 36; // bytes
+    private static final int ENTRY_SIZE = 16; // bytes
+    private static final int ATTRIBUTE_ENTRY_SIZE = 12; // bytes
+
+    private static class AttributeKey {
+
+        public final long offset;
+        public final int count;
+
+        public AttributeKey(final long offset, final int count) {
+            this.offset = offset;
+            this.count = count;
+        }
+
+    }
+
+    private final MultiplexInputStream in;
+    private final DataInputStream dataIn;
+    private final int numEntries;
+    private final int numBuckets;
+    private final long bucketTableOffset;
+    private final long nameTableOffset;
+    private final Map<String, AttributeKey> attributeKeys;
+    private final String[] attributeKeyNames;
+
+    public StreamMetadataIndex(final MultiplexInputStream in) throws IOException {
+        this.in = in;
+        this.dataIn = new DataInputStream(in);
+        if (this.dataIn.readInt() != MAGIC)
+            throw new IOException("corrupted stream metadata");
+        this.numEntries = this.dataIn.readInt();
+        final int numNamed = this.dataIn.readInt();
+        this.numBuckets = this.dataIn.readInt();
+        final int numKeys = this.dataIn.readInt();
+        final long keysOffset = this.dataIn.readLong();
+        this.dataIn.readLong(); // the data offset is not needed for reading
+        if (this.numEntries < 0 || numNamed < 0 || numNamed > this.numEntries || numKeys < 0
+                || this.numBuckets <= 0 || Integer.bitCount(this.numBuckets) != 1)
+            throw new IOException("corrupted stream metadata");
+        this.bucketTableOffset = HEADER_SIZE + (long) this.numEntries * ENTRY_SIZE;
+        this.nameTableOffset = this.bucketTableOffset + 4l * (this.numBuckets + 1);
+
+        this.attributeKeys = new HashMap<String, AttributeKey>();
+        this.attributeKeyNames = new String[numKeys];
+        this.in.seek(keysOffset);
+        for (int i = 0; i < numKeys; ++i) {
+            final String key = this.dataIn.readUTF();
+            final long offset = this.dataIn.readLong();
+            final int count = this.dataIn.readInt();
+            this.attributeKeys.put(key, new AttributeKey(offset, count));
+            this.attributeKeyNames[i] = key;
+        }
+    }
+
+    public Set<String> getAttributeKeys() {
+        return Collections.unmodifiableSet(this.attributeKeys.keySet());
+    }
+
+    /**
+     * @return the metadata of the given stream, or <code>null</code> if it has none
+     */
+    public synchronized StreamMetadata get(final int streamId) throws IOException {
+        int low = 0;
+        int high = this.numEntries - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            this.in.seek(HEADER_SIZE + (long) mid * ENTRY_SIZE);
+            final int id = this.dataIn.readInt();
+            if (id < streamId) {
+                low = mid + 1;
+            } else if (id > streamId) {
+                high = mid - 1;
+            } else {
+                this.dataIn.readInt();
+                return readData(this.dataIn.readLong());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the ids of all streams with the given name, in ascending order
+     */
+    public synchronized List<Integer> findByName(final String name) throws IOException {
+        final int hash = hash(name);
+        final int bucket = hash & (this.numBuckets - 1);
+        this.in.seek(this.bucketTableOffset + 4l * bucket);
+        final int start = this.dataIn.readInt();
+        final int end = this.dataIn.readInt();
+        final List<Integer> ids = new ArrayList<Integer>();
+        for (int i = start; i < end; ++i) {
+            this.in.seek(this.nameTableOffset + 4l * i);
+            final int entry = this.dataIn.readInt();
+            this.in.seek(HEADER_SIZE + (long) entry * ENTRY_SIZE);
+            final int id = this.dataIn.readInt();
+            if (this.dataIn.readInt() != hash)
+                continue;
+            final long dataOffset = this.dataIn.readLong();
+            this.in.seek(dataOffset);
+            if (this.dataIn.readBoolean() && name.equals(this.dataIn.readUTF()))
+                ids.add(id);
+        }
+        // all streams with this name are in the same bucket, which is sorted by id
+        return ids;
+    }
+
+    /**
+     * @return the ids of all streams whose value for the given attribute is in
+     *         the range <code>min .. max</code> (inclusive), ordered by that value
+     */
+    public synchronized List<Integer> findByAttribute(final String key, final long min, final long max)
+            throws IOException {
+        final AttributeKey attrKey = this.attributeKeys.get(key);
+        if (attrKey == null || min > max)
+            return Collections.emptyList();
+        // binary search for the first entry with a value >= min
+        int low = 0;
+        int high = attrKey.count;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            this.in.seek(attrKey.offset + (long) mid * ATTRIBUTE_ENTRY_SIZE);
+            if (this.dataIn.readLong() < min)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        final List<Integer> ids = new ArrayList<Integer>();
+        this.in.seek(attrKey.offset + (long) low * ATTRIBUTE_ENTRY_SIZE);
+        for (int i = low; i < attrKey.count; ++i) {
+            if (this.dataIn.readLong() > max)
+                break;
+            ids.add(this.dataIn.readInt());
+        }
+        return ids;
+    }
+
+    /**
+     * Reads the metadata of all streams (e.g. for copying it to another file).
+     */
+    public synchronized Map<Integer, StreamMetadata> getAll() throws IOException {
+        final int[] ids = new int[this.numEntries];
+        final long[] dataOffsets = new long[this.numEntries];
+        this.in.seek(HEADER_SIZE);
+        for (int i = 0; i < this.numEntries; ++i) {
+            ids[i] = this.dataIn.readInt();
+            this.dataIn.readInt();
+            dataOffsets[i] = this.dataIn.readLong();
+        }
+        final Map<Integer, StreamMetadata> all = new TreeMap<Integer, StreamMetadata>();
+        for (int i = 0; i < this.numEntries; ++i)
+            all.put(ids[i], readData(dataOffsets[i]));
+        return all;
+    }
+
+    private StreamMetadata readData(final long offset) throws IOException {
+        this.in.seek(offset);
+        final String name = this.dataIn.readBoolean() ? this.dataIn.readUTF() : null;
+        final int numAttributes = this.dataIn.readInt();
+        final Map<String, Long> attributes = new TreeMap<String, Long>();
+        for (int i = 0; i < numAttributes; ++i) {
+            final int keyIndex = this.dataIn.readInt();
+            if (keyIndex < 0 || keyIndex >= this.attributeKeyNames.length)
+                throw new IOException("corrupted stream metadata");
+            attributes.put(this.attributeKeyNames[keyIndex], this.dataIn.readLong());
+        }
+        return new StreamMetadata(name, attributes);
+    }
+
+    private static int hash(final String name) {
+        final int h = name.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Serializes the given metadata into the format described above. Empty
+     * metadata objects are skipped.
+     */
+    public static byte[] write(final Map<Integer, StreamMetadata> metadata) throws IOException {
+        // take a consistent copy of everything, sorted by stream id
+        final TreeMap<Integer, String> names = new TreeMap<Integer, String>();
+        final TreeMap<Integer, Map<String, Long>> attributes = new TreeMap<Integer, Map<String, Long>>();
+        for (final Map.Entry<Integer, StreamMetadata> e: metadata.entrySet()) {
+            final StreamMetadata data = e.getValue();
+            synchronized (data) {
+                if (data.isEmpty())
+                    continue;
+                names.put(e.getKey(), data.getName());
+                attributes.put(e.getKey(), data.getAttributes());
+            }
+        }
+        final int numEntries = names.size();
+        final int[] ids = new int[numEntries];
+        int pos = 0;
+        int numNamed = 0;
+        for (final Map.Entry<Integer, String> e: names.entrySet()) {
+            ids[pos++] = e.getKey();
+            if (e.getValue() != null)
+                ++numNamed;
+        }
+
+        // collect the attribute keys and values
+        final Map<String, Integer> keyIndexes = new TreeMap<String, Integer>();
+        for (final Map<String, Long> attrs: attributes.values())
+            for (final String key: attrs.keySet())
+                keyIndexes.put(key, 0);
+        final String[] keys = keyIndexes.keySet().toArray(new String[keyIndexes.size()]);
+        for (int i = 0; i < keys.length; ++i)
+            keyIndexes.put(keys[i], i);
+        final List<List<long[]>> attributeValues = new ArrayList<List<long[]>>(keys.length);
+        for (int i = 0; i < keys.length; ++i)
+            attributeValues.add(new ArrayList<long[]>());
+        for (final Map.Entry<Integer, Map<String, Long>> e: attributes.entrySet())
+            for (final Map.Entry<String, Long> attr: e.getValue().entrySet())
+                attributeValues.get(keyIndexes.get(attr.getKey())).add(new long[] { attr.getValue(), e.getKey() });
+
+        // the data section (offsets relative to its start)
+        final ByteArrayOutputStream dataBytes = new ByteArrayOutputStream();
+        final DataOutputStream dataOut = new DataOutputStream(dataBytes);
+        final long[] relDataOffsets = new long[numEntries];
+        final int[] nameHashes = new int[numEntries];
+        for (int i = 0; i < numEntries; ++i) {
+            relDataOffsets[i] = dataOut.size();
+            final String name = names.get(ids[i]);
+            dataOut.writeBoolean(name != null);
+            if (name != null) {
+                dataOut.writeUTF(name);
+                nameHashes[i] = hash(name);
+            }
+            final Map<String, Long> attrs = attributes.get(ids[i]);
+            dataOut.writeInt(attrs.size());
+            for (final Map.Entry<String, Long> attr: attrs.entrySet()) {
+                dataOut.writeInt(keyIndexes.get(attr.getKey()));
+                dataOut.writeLong(attr.getValue());
+            }
+        }
+        dataOut.close();
+
+        // the name table, grouped by bucket
+        int numBuckets = 1;
+        while (numBuckets < numNamed)
+            numBuckets <<= 1;
+        final int[] bucketStarts = new int[numBuckets + 1];
+        for (int i = 0; i < numEntries; ++i)
+            if (names.get(ids[i]) != null)
+                ++bucketStarts[(nameHashes[i] & (numBuckets - 1)) + 1];
+        for (int b = 0; b < numBuckets; ++b)
+            bucketStarts[b + 1] += bucketStarts[b];
+        final int[] nameTable = new int[numNamed];
+        final int[] bucketFill = Arrays.copyOf(bucketStarts, numBuckets);
+        for (int i = 0; i < numEntries; ++i)
+            if (names.get(ids[i]) != null)
+                nameTable[bucketFill[nameHashes[i] & (numBuckets - 1)]++] = i;
+
+        // compute the offsets of all sections
+        final long attributesOffset = HEADER_SIZE + (long) numEntries * ENTRY_SIZE
+            + 4l * (numBuckets + 1) + 4l * numNamed;
+        final long[] attributeOffsets = new long[keys.length];
+        long keysOffset = attributesOffset;
+        for (int i = 0; i < keys.length; ++i) {
+            attributeOffsets[i] = keysOffset;
+            keysOffset += (long) attributeValues.get(i).size() * ATTRIBUTE_ENTRY_SIZE;
+        }
+        final ByteArrayOutputStream keysBytes = new ByteArrayOutputStream();
+        final DataOutputStream keysOut = new DataOutputStream(keysBytes);
+        for (int i = 0; i < keys.length; ++i) {
+            keysOut.writeUTF(keys[i]);
+            keysOut.writeLong(attributeOffsets[i]);
+            keysOut.writeInt(attributeValues.get(i).size());
+        }
+        keysOut.close();
+        final long dataOffset = keysOffset + keysBytes.size();
+
+        // and write everything
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) dataOffset + dataBytes.size());
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(numEntries);
+        out.writeInt(numNamed);
+        out.writeInt(numBuckets);
+        out.writeInt(keys.length);
+        out.writeLong(keysOffset);
+        out.writeLong(dataOffset);
+        assert out.size() == HEADER_SIZE;
+        for (int i = 0; i < numEntries; ++i) {
+            out.writeInt(ids[i]);
+            out.writeInt(nameHashes[i]);
+            out.writeLong(dataOffset + relDataOffsets[i]);
+        }
+        for (final int bucketStart: bucketStarts)
+            out.writeInt(bucketStart);
+        for (final int entry: nameTable)
+            out.writeInt(entry);
+        for (final List<long[]> values: attributeValues) {
+            // the values of one key are sorted by value, then by id
+            Collections.sort(values, new Comparator<long[]>() {
+                public int compare(final long[] o1, final long[] o2) {
+                    return o1[0] != o2[0] ? (o1[0] < o2[0] ? -1 : 1)
+                        : (o1[1] == o2[1] ? 0 : (o1[1] < o2[1] ? -1 : 1));
+                }
+            });
+            for (final long[] value: values) {
+                out.writeLong(value[0]);
+                out.writeInt((int) value[1]);
+            }
+        }
+        assert out.size() == keysOffset;
+        keysBytes.writeTo(out);
+        dataBytes.writeTo(out);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+}
@@ -1,38 +1,430 @@
 package de.hammacher.util;
 
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
 import de.hammacher.util.streams.OptimizedDataInputStream;
+import de.hammacher.util.streams.Utf8Codec;
+import de.hammacher.util.streams.Utf8Slice;
 
 
+/**
+ * Reads strings written by a {@link StringCacheOutput}.
+ *
+ * For data written in the bounded mode, the cache has to be created with the same
+ * <code>maxSize</code> as the {@link StringCacheOutput}.
+ *
+ * Strings written by {@link StringCacheOutput#writeStringUtf8} can either be read as
+ * Strings ({@link #readStringUtf8}), or as views of their cached UTF-8 bytes
+ * ({@link #readStringSlice}), which does not create any String at all. If a
+ * {@link Utf8StringInterner} is given, new strings are looked up there by their bytes
+ * before decoding them. Cache hits return the String held by this cache and do not
+ * consult the interner again.
+ *
+ * For data written in the front coding mode, the cache has to be created in front
+ * coding mode, too. New strings are then rebuilt from the prefix of a cached string
+ * and the suffix read from the stream.
+ *
+ * @author Clemens Hammacher
+ */
 public class StringCacheInput {
 
+    // per slot, the String and/or its UTF-8 bytes (whatever has been needed so far)
     private final List<String> strings = new ArrayList<String>();
+    private List<byte[]> utf8 = null;
 
+    // only used in bounded mode
+    private final int maxSize;
+    private final boolean[] referenced;
+    private int clockHand = 1;
+
+    // whether new strings are front coded
+    private final boolean frontCoding;
+
+    private final Utf8StringInterner interner;
+    private byte[] readBuf = null;
+    private char[] charBuf = null;
+
+    private long numHits = 0;
+    private long numMisses = 0;
+    private long numEvictions = 0;
+    private int numCachedStrings = 0;
+    private long cachedChars = 0;
+    private int numCachedByteArrays = 0;
+    private long cachedBytes = 0;
+
+    /**
+     * Creates an unbounded cache.
+     */
     public StringCacheInput() {
-    	this.strings.add(null);
-	}
+        this((Utf8StringInterner) null);
+    }
+
+    /**
+     * Creates an unbounded cache which uses the given interner for new strings read by
+     * {@link #readStringUtf8}.
+     */
+    public StringCacheInput(final Utf8StringInterner interner) {
+        this(0, false, interner);
+    }
+
+    /**
+     * Creates a bounded cache, holding at most <code>maxSize</code> strings.
+     */
+    public StringCacheInput(final int maxSize) {
+        this(maxSize, null);
+    }
+
+    /**
+     * Creates a bounded cache, holding at most <code>maxSize</code> strings, which uses
+     * the given interner (may be <code>null</code>) for new strings read by {@link #readStringUtf8}.
+     */
+    public StringCacheInput(final int maxSize, final Utf8StringInterner interner) {
+        this(StringCacheOutput.checkMaxSize(maxSize), false, interner);
+    }
+
+    /**
+     * @param maxSize the maximum number of cached strings, or 0 for an unbounded cache
+     * @param frontCoding whether the strings have been written in front coding mode
+     * @param interner the interner for new strings read by {@link #readStringUtf8}, may be <code>null</code>
+     */
+    public StringCacheInput(final int maxSize, final boolean frontCoding, final Utf8StringInterner interner) {
+        if (maxSize < 0)
+            throw new IllegalArgumentException("maxSize must not be negative");
+        this.strings.add(null);
+        this.maxSize = maxSize;
+        this.referenced = maxSize == 0 ? null : new boolean[maxSize + 1];
+        this.frontCoding = frontCoding;
+        this.interner = interner;
+    }
 
     private int reverseId(final int id) {
         return id < 0 ? -2*id - 1 : 2*id;
     }
 
     public String readString(final DataInputStream in) throws IOException {
+        final int slot = readSlot(in);
+        if (slot >= 0)
+            return getString(slot);
+        final String newString;
+        if (this.frontCoding) {
+            final int prefixLength = OptimizedDataInputStream.readInt0(in);
+            if (prefixLength == 0) {
+                newString = in.readUTF();
+            } else {
+                final String prefixString = getString(readPrefixSlot(in));
+                if (prefixLength < 0 || prefixLength > prefixString.length())
+                    throw new IOException("Corrupted data (invalid prefix length)");
+                final String suffix = in.readUTF();
+                newString = new StringBuilder(prefixLength + suffix.length())
+                    .append(prefixString, 0, prefixLength).append(suffix).toString();
+            }
+        } else {
+            newString = in.readUTF();
+        }
+        addString(newString, null);
+        return newString;
+    }
+
+    /**
+     * Reads a string written by {@link StringCacheOutput#writeStringUtf8}.
+     */
+    public String readStringUtf8(final InputStream in) throws IOException {
+        final int slot = readSlot(in);
+        if (slot >= 0)
+            return getString(slot);
+        final int len = readUtf8(in);
+        final String newString;
+        try {
+            if (this.interner != null) {
+                newString = this.interner.intern(this.readBuf, 0, len);
+            } else {
+                if (this.charBuf == null || this.charBuf.length < len)
+                    this.charBuf = new char[Math.max(len, this.charBuf == null ? 64 : 2 * this.charBuf.length)];
+                newString = Utf8Codec.decodeString(this.readBuf, 0, len, this.charBuf);
+            }
+        } catch (final IllegalArgumentException e) {
+            throw new IOException("Corrupted data (" + e.getMessage() + ")");
+        }
+        addString(newString, null);
+        return newString;
+    }
+
+    /**
+     * Reads a string written by {@link StringCacheOutput#writeStringUtf8}, and sets
+     * <code>slice</code> to its UTF-8 bytes instead of creating a String. The bytes
+     * belong to the cache and must not be modified.
+     *
+     * @return <code>false</code> if the string is <code>null</code> (then the slice is unchanged)
+     */
+    public boolean readStringSlice(final InputStream in, final Utf8Slice slice) throws IOException {
+        final int slot = readSlot(in);
+        if (slot == 0)
+            return false;
+        final byte[] bytes;
+        if (slot > 0) {
+            bytes = getUtf8(slot);
+        } else {
+            final int len = readUtf8(in);
+            bytes = new byte[len];
+            System.arraycopy(this.readBuf, 0, bytes, 0, len);
+            addString(null, bytes);
+        }
+        slice.set(bytes, 0, bytes.length);
+        return true;
+    }
+
+    /**
+     * Reads the id of the next string.
+     *
+     * @return the slot of the string in the cache, or -1 if a new string follows
+     */
+    private int readSlot(final InputStream in) throws IOException {
         final int id = reverseId(OptimizedDataInputStream.readInt0(in));
         if (id < 0)
             throw new IOException("Corrupted data (negative integer)");
-        if (id >= this.strings.size()) {
-            if (id != this.strings.size())
+        final int size = this.strings.size();
+        if (id >= size) {
+            // the id one more than the highest slot announces a new string
+            if (id != size)
                 throw new IOException("Corrupted data (unexpected integer)");
-            final String newString = in.readUTF();
-            this.strings.add(newString);
-            return newString;
+            ++this.numMisses;
+            return -1;
+        }
+
+        ++this.numHits;
+        if (this.referenced != null)
+            this.referenced[id] = true;
+        return id;
+    }
+
+    /**
+     * Reads the raw UTF-8 bytes of a new string into {@link #readBuf}. In front coding
+     * mode, they are preceded by the prefix copied from the cached string.
+     *
+     * @return the number of bytes
+     */
+    private int readUtf8(final InputStream in) throws IOException {
+        int prefixBytes = 0;
+        if (this.frontCoding) {
+            final int prefixLength = OptimizedDataInputStream.readInt0(in);
+            if (prefixLength < 0)
+                throw new IOException("Corrupted data (invalid prefix length)");
+            if (prefixLength > 0)
+                prefixBytes = copyPrefix(readPrefixSlot(in), prefixLength);
+        }
+        final int len = OptimizedDataInputStream.readInt0(in);
+        if (len < 0 || prefixBytes + len < 0)
+            throw new IOException("Corrupted data (invalid string length)");
+        ensureReadBuf(prefixBytes + len, prefixBytes);
+        int pos = prefixBytes;
+        final int end = prefixBytes + len;
+        while (pos < end) {
+            final int read = in.read(this.readBuf, pos, end - pos);
+            if (read < 0)
+                throw new EOFException();
+            pos += read;
+        }
+        return end;
+    }
+
+    private int readPrefixSlot(final InputStream in) throws IOException {
+        final int slot = OptimizedDataInputStream.readInt0(in);
+        if (slot <= 0 || slot >= this.strings.size())
+            throw new IOException("Corrupted data (invalid prefix slot)");
+        return slot;
+    }
+
+    /**
+     * Writes the UTF-8 bytes of the first <code>prefixLength</code> chars of the string
+     * in the given slot to the beginning of {@link #readBuf}.
+     *
+     * @return the number of bytes written
+     */
+    private int copyPrefix(final int slot, final int prefixLength) throws IOException {
+        final String s = this.strings.get(slot);
+        if (s != null) {
+            if (prefixLength > s.length())
+                throw new IOException("Corrupted data (invalid prefix length)");
+            final int prefixBytes = Utf8Codec.getEncodedLength(s, 0, prefixLength);
+            ensureReadBuf(prefixBytes, 0);
+            return Utf8Codec.encode(s, 0, prefixLength, this.readBuf, 0);
+        }
+        final byte[] bytes = this.utf8.get(slot);
+        final int prefixBytes;
+        try {
+            prefixBytes = Utf8Codec.skipChars(bytes, 0, bytes.length, prefixLength);
+        } catch (final IllegalArgumentException e) {
+            throw new IOException("Corrupted data (" + e.getMessage() + ")");
+        }
+        ensureReadBuf(prefixBytes, 0);
+        System.arraycopy(bytes, 0, this.readBuf, 0, prefixBytes);
+        return prefixBytes;
+    }
+
+    /**
+     * Makes sure that {@link #readBuf} can hold <code>size</code> bytes, keeping the
+     * first <code>keep</code> bytes.
+     */
+    private void ensureReadBuf(final int size, final int keep) {
+        if (this.readBuf == null || this.readBuf.length < size) {
+            final byte[] newBuf = new byte[Math.max(size, this.readBuf == null ? 64 : 2 * this.readBuf.length)];
+            if (keep > 0)
+                System.arraycopy(this.readBuf, 0, newBuf, 0, keep);
+            this.readBuf = newBuf;
+        }
+    }
+
+    /**
+     * Adds a new string, given as String or as UTF-8 bytes, to the cache.
+     */
+    private void addString(final String s, final byte[] bytes) {
+        final int size = this.strings.size();
+        final int slot;
+        if (this.referenced != null && size > this.maxSize) {
+            // bounded cache is full: replace the string chosen by the CLOCK algorithm
+            slot = evict(this.referenced, this.clockHand);
+            this.clockHand = slot == this.maxSize ? 1 : slot + 1;
+            setString(slot, null);
+            setUtf8(slot, null);
+            ++this.numEvictions;
+        } else {
+            slot = size;
+            this.strings.add(null);
+            if (this.utf8 != null)
+                this.utf8.add(null);
+        }
+        setString(slot, s);
+        setUtf8(slot, bytes);
+    }
+
+    private String getString(final int slot) throws IOException {
+        String s = this.strings.get(slot);
+        if (s == null && slot != 0) {
+            final byte[] bytes = this.utf8.get(slot);
+            try {
+                s = Utf8Codec.decodeString(bytes, 0, bytes.length, this.charBuf);
+            } catch (final IllegalArgumentException e) {
+                throw new IOException("Corrupted data (" + e.getMessage() + ")");
+            }
+            setString(slot, s);
         }
+        return s;
+    }
+
+    private byte[] getUtf8(final int slot) {
+        byte[] bytes = this.utf8 == null ? null : this.utf8.get(slot);
+        if (bytes == null) {
+            final String s = this.strings.get(slot);
+            bytes = new byte[Utf8Codec.getEncodedLength(s)];
+            Utf8Codec.encode(s, bytes, 0);
+            setUtf8(slot, bytes);
+        }
+        return bytes;
+    }
+
+    private void setString(final int slot, final String s) {
+        final String old = this.strings.set(slot, s);
+        if (old != null) {
+            --this.numCachedStrings;
+            this.cachedChars -= old.length();
+        }
+        if (s != null) {
+            ++this.numCachedStrings;
+            this.cachedChars += s.length();
+        }
+    }
+
+    private void setUtf8(final int slot, final byte[] bytes) {
+        if (this.utf8 == null) {
+            if (bytes == null)
+                return;
+            this.utf8 = new ArrayList<byte[]>(this.strings.size());
+            for (int i = this.strings.size(); i > 0; --i)
+                this.utf8.add(null);
+        }
+        final byte[] old = this.utf8.set(slot, bytes);
+        if (old != null) {
+            --this.numCachedByteArrays;
+            this.cachedBytes -= old.length;
+        }
+        if (bytes != null) {
+            ++this.numCachedByteArrays;
+            this.cachedBytes += bytes.length;
+        }
+    }
+
+    /**
+     * Chooses the slot to evict using the CLOCK algorithm, starting at <code>clockHand</code>,
+     * and clears the reference bits of all slots passed.
+     * Shared with the {@link StringCacheOutput}, so that both sides evict the same slots.
+     */
+    static int evict(final boolean[] referenced, final int clockHand) {
+        int hand = clockHand;
+        while (referenced[hand]) {
+            referenced[hand] = false;
+            hand = hand == referenced.length - 1 ? 1 : hand + 1;
+        }
+        return hand;
+    }
+
+    static long estimateMemoryUsage(final int numStrings, final long numChars) {
+        // String object and char array headers, plus the reference to the string
+        return 56L * numStrings + 2 * numChars;
+    }
+
+    /**
+     * @return the maximum number of cached strings, or 0 if the cache is unbounded
+     */
+    public int getMaxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * @return the number of currently cached strings
+     */
+    public int getSize() {
+        return this.strings.size() - 1;
+    }
+
+    /**
+     * @return whether this cache reads data written in front coding mode
+     */
+    public boolean isFrontCoding() {
+        return this.frontCoding;
+    }
+
+    public long getNumHits() {
+        return this.numHits;
+    }
+
+    public long getNumMisses() {
+        return this.numMisses;
+    }
+
+    public long getNumEvictions() {
+        return this.numEvictions;
+    }
+
+    /**
+     * @return the fraction of read strings that were found in the cache
+     */
+    public double getHitRatio() {
+        final long total = this.numHits + this.numMisses;
+        return total == 0 ? 0 : (double) this.numHits / total;
+    }
 
-        return this.strings.get(id);
+    /**
+     * @return a rough estimation of the memory (in bytes) used by the cached strings
+     */
+    public long getEstimatedMemoryUsage() {
+        // byte arrays: header plus the reference to the array
+        return estimateMemoryUsage(this.numCachedStrings, this.cachedChars)
+            + 24L * this.numCachedByteArrays + this.cachedBytes;
     }
 
 }
@@ -2,34 +2,274 @@ package de.hammacher.util;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
+import de.hammacher.util.streams.OptimizedDataCodec;
 import de.hammacher.util.streams.OptimizedDataOutputStream;
+import de.hammacher.util.streams.Utf8Codec;
 
 
+/**
+ * Writes strings such that each distinct string is only written once; later occurrences
+ * are written as the id of the first one. Read them with a {@link StringCacheInput}.
+ *
+ * In the bounded mode, at most <code>maxSize</code> strings are cached. If a new string
+ * has to be cached when the cache is full, an old one is evicted using the CLOCK
+ * algorithm, and its id is reused. The {@link StringCacheInput} has to be created with
+ * the same <code>maxSize</code>; it applies exactly the same evictions, so no additional
+ * data is written.
+ *
+ * New strings are either written by {@link DataOutputStream#writeUTF(String)}
+ * ({@link #writeString}), or as raw UTF-8 bytes preceded by their length
+ * ({@link #writeStringUtf8}), which has no length limit and is read without
+ * intermediate copies by {@link StringCacheInput#readStringUtf8} and
+ * {@link StringCacheInput#readStringSlice}. Both methods can be mixed, as long as
+ * the reader uses the matching methods.
+ *
+ * In the front coding mode, a new string is written as the number of leading chars it
+ * shares with a cached string, the slot of that string, and the remaining suffix. The
+ * cached strings are kept sorted, so the string sharing the longest prefix is one of
+ * the two neighbours of the new string. This pays off for strings with long common
+ * prefixes, like fully qualified class and method names. The {@link StringCacheInput}
+ * has to be created in front coding mode as well.
+ *
+ * @author Clemens Hammacher
+ */
 public class StringCacheOutput {
 
     private final Map<String, Integer> cache = new HashMap<String, Integer>();
 
+    // only used in bounded mode
+    private final int maxSize;
+    private final String[] slots;
+    private final boolean[] referenced;
+    private int clockHand = 1;
+
+    private long numHits = 0;
+    private long numMisses = 0;
+    private long numEvictions = 0;
+    private long cachedChars = 0;
+    private long numPrefixChars = 0;
+
+    // only used in front coding mode: the cached strings and their slots, sorted
+    private final TreeMap<String, Integer> sorted;
+    // the prefix of the last new string, and the slot of the string sharing it
+    private int prefixLength = 0;
+    private int prefixSlot = 0;
+
+    private byte[] utf8Buf = null;
+
+    /**
+     * Creates an unbounded cache.
+     */
     public StringCacheOutput() {
-    	this.cache.put(null, 0);
+        this(0, false);
+    }
+
+    /**
+     * Creates a bounded cache, holding at most <code>maxSize</code> strings.
+     */
+    public StringCacheOutput(final int maxSize) {
+        this(checkMaxSize(maxSize), false);
+    }
+
+    /**
+     * @param maxSize the maximum number of cached strings, or 0 for an unbounded cache
+     * @param frontCoding whether to write new strings as prefix of a cached string plus suffix
+     */
+    public StringCacheOutput(final int maxSize, final boolean frontCoding) {
+        if (maxSize < 0)
+            throw new IllegalArgumentException("maxSize must not be negative");
+        this.cache.put(null, 0);
+        this.maxSize = maxSize;
+        this.slots = maxSize == 0 ? null : new String[maxSize + 1];
+        this.referenced = maxSize == 0 ? null : new boolean[maxSize + 1];
+        this.sorted = frontCoding ? new TreeMap<String, Integer>() : null;
+    }
+
+    static int checkMaxSize(final int maxSize) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("maxSize must be positive");
+        return maxSize;
     }
 
     public void writeString(final String s, final DataOutputStream out) throws IOException {
-        Integer id = this.cache.get(s);
-        if (id == null) {
-            id = getId(this.cache.size());
-            this.cache.put(s, id);
-            OptimizedDataOutputStream.writeInt0(id, out);
-            out.writeUTF(s);
-        } else {
-            OptimizedDataOutputStream.writeInt0(id, out);
+        if (writeId(s, out)) {
+            writePrefix(out);
+            out.writeUTF(this.prefixLength == 0 ? s : s.substring(this.prefixLength));
+        }
+    }
+
+    /**
+     * Like {@link #writeString}, but new strings are written as raw UTF-8 bytes
+     * (see {@link Utf8Codec}) preceded by their length. Read them by
+     * {@link StringCacheInput#readStringUtf8} or {@link StringCacheInput#readStringSlice}.
+     */
+    public void writeStringUtf8(final String s, final OutputStream out) throws IOException {
+        if (writeId(s, out)) {
+            writePrefix(out);
+            final int len = Utf8Codec.getEncodedLength(s, this.prefixLength, s.length());
+            if (this.utf8Buf == null || this.utf8Buf.length < len)
+                this.utf8Buf = new byte[Math.max(len, this.utf8Buf == null ? 64 : 2 * this.utf8Buf.length)];
+            Utf8Codec.encode(s, this.prefixLength, s.length(), this.utf8Buf, 0);
+            OptimizedDataOutputStream.writeInt0(len, out);
+            out.write(this.utf8Buf, 0, len);
+        }
+    }
+
+    private void writePrefix(final OutputStream out) throws IOException {
+        if (this.sorted == null)
+            return;
+        OptimizedDataOutputStream.writeInt0(this.prefixLength, out);
+        if (this.prefixLength > 0)
+            OptimizedDataOutputStream.writeInt0(this.prefixSlot, out);
+    }
+
+    /**
+     * Finds the cached string sharing the longest prefix with <code>s</code>, and stores
+     * the prefix length and its slot in {@link #prefixLength} and {@link #prefixSlot}.
+     */
+    private void findPrefix(final String s) {
+        this.prefixLength = 0;
+        this.prefixSlot = 0;
+        if (this.sorted == null)
+            return;
+        final Map.Entry<String, Integer> lower = this.sorted.lowerEntry(s);
+        if (lower != null)
+            checkPrefix(s, lower);
+        final Map.Entry<String, Integer> higher = this.sorted.higherEntry(s);
+        if (higher != null)
+            checkPrefix(s, higher);
+        // only worth it if the prefix is longer than the reference to it
+        if (this.prefixLength <= OptimizedDataCodec.getEncodedLength(this.prefixSlot)) {
+            this.prefixLength = 0;
+            this.prefixSlot = 0;
+        }
+    }
+
+    private void checkPrefix(final String s, final Map.Entry<String, Integer> candidate) {
+        final String other = candidate.getKey();
+        final int maxLen = Math.min(s.length(), other.length());
+        int len = 0;
+        while (len < maxLen && s.charAt(len) == other.charAt(len))
+            ++len;
+        // do not split surrogate pairs, so that the prefix is a sequence of whole UTF-8 characters
+        if (len > 0 && Character.isHighSurrogate(s.charAt(len - 1)))
+            --len;
+        if (len > this.prefixLength) {
+            this.prefixLength = len;
+            this.prefixSlot = candidate.getValue();
         }
     }
 
+    /**
+     * Writes the id of the given string, and caches it if it is new.
+     *
+     * @return <code>true</code> if the string was new and has to be written after the id
+     */
+    private boolean writeId(final String s, final OutputStream out) throws IOException {
+        Integer slot = this.cache.get(s);
+        if (slot == null) {
+            ++this.numMisses;
+            // the prefix string must be chosen before a string is evicted
+            findPrefix(s);
+            this.numPrefixChars += this.prefixLength;
+            // this id (one more than the highest slot) tells the reader that a new string follows
+            final int newId = this.cache.size();
+            if (this.slots == null) {
+                slot = newId;
+            } else if (newId <= this.maxSize) {
+                slot = newId;
+                this.slots[newId] = s;
+            } else {
+                slot = StringCacheInput.evict(this.referenced, this.clockHand);
+                this.clockHand = slot == this.maxSize ? 1 : slot + 1;
+                final String evicted = this.slots[slot];
+                this.cache.remove(evicted);
+                if (this.sorted != null)
+                    this.sorted.remove(evicted);
+                this.cachedChars -= evicted.length();
+                this.slots[slot] = s;
+                ++this.numEvictions;
+            }
+            this.cache.put(s, slot);
+            if (this.sorted != null)
+                this.sorted.put(s, slot);
+            this.cachedChars += s.length();
+            OptimizedDataOutputStream.writeInt0(getId(newId), out);
+            return true;
+        }
+        ++this.numHits;
+        if (this.referenced != null)
+            this.referenced[slot] = true;
+        OptimizedDataOutputStream.writeInt0(getId(slot), out);
+        return false;
+    }
+
     private int getId(final int id) {
         return (id & 1) == 0 ? (id+1)/2 : -(id+1)/2;
     }
 
+    /**
+     * @return the maximum number of cached strings, or 0 if the cache is unbounded
+     */
+    public int getMaxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * @return the number of currently cached strings
+     */
+    public int getSize() {
+        return this.cache.size() - 1;
+    }
+
+    public long getNumHits() {
+        return this.numHits;
+    }
+
+    public long getNumMisses() {
+        return this.numMisses;
+    }
+
+    public long getNumEvictions() {
+        return this.numEvictions;
+    }
+
+    /**
+     * @return whether this cache is in front coding mode
+     */
+    public boolean isFrontCoding() {
+        return this.sorted != null;
+    }
+
+    /**
+     * @return the number of chars of new strings which were written as prefix of a
+     *         cached string (only in front coding mode)
+     */
+    public long getNumPrefixChars() {
+        return this.numPrefixChars;
+    }
+
+    /**
+     * @return the fraction of written strings that were found in the cache
+     */
+    public double getHitRatio() {
+        final long total = this.numHits + this.numMisses;
+        return total == 0 ? 0 : (double) this.numHits / total;
+    }
+
+    /**
+     * @return a rough estimation of the memory (in bytes) used by the cached strings
+     *         and the cache structure
+     */
+    public long getEstimatedMemoryUsage() {
+        // hash map entries, plus tree map entries in front coding mode
+        return StringCacheInput.estimateMemoryUsage(getSize(), this.cachedChars)
+            + (this.sorted == null ? 32L : 72L) * getSize();
+    }
+
 }
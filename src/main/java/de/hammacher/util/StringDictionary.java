@@ -0,0 +1,85 @@
+package de.hammacher.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import de.hammacher.util.streams.OptimizedDataInputStream;
+import de.hammacher.util.streams.OptimizedDataOutputStream;
+import de.hammacher.util.streams.Utf8Codec;
+
+/**
+ * The stored form of the file-wide string dictionary of a multiplexed file
+ * (see {@link MultiplexedFileWriter#getStringId(String)}). It is written as an
+ * internal stream (with id {@link MultiplexedFileReader#STRING_DICTIONARY_STREAM_ID})
+ * and read on first use.
+ *
+ * Layout (numbers encoded like in the {@link OptimizedDataOutputStream}):
+ * <pre>
+ *   number of entries
+ *   per entry (ordered by id): length of the UTF-8 bytes + 1 (0 for unused ids), UTF-8 bytes
+ * </pre>
+ * The strings are encoded by the {@link Utf8Codec}, so unpaired surrogates survive.
+ *
+ * @author Clemens Hammacher
+ */
+final class StringDictionary {
+
+    private StringDictionary() {
+        // prevent instantiation
+    }
+
+    public static byte[] write(final String[] strings) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OptimizedDataOutputStream.writeInt0(strings.length, bytes);
+        byte[] utf8 = new byte[64];
+        for (final String s: strings) {
+            if (s == null) {
+                OptimizedDataOutputStream.writeInt0(0, bytes);
+            } else {
+                final int len = Utf8Codec.getEncodedLength(s);
+                if (len > utf8.length)
+                    utf8 = new byte[Math.max(len, 2 * utf8.length)];
+                Utf8Codec.encode(s, utf8, 0);
+                OptimizedDataOutputStream.writeInt0(len + 1, bytes);
+                bytes.write(utf8, 0, len);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    public static String[] read(final InputStream in) throws IOException {
+        final int numStrings = OptimizedDataInputStream.readInt0(in);
+        if (numStrings < 0)
+            throw new IOException("Corrupted data (negative number of strings)");
+        final String[] strings = new String[numStrings];
+        byte[] buf = new byte[64];
+        char[] charBuf = new char[64];
+        for (int i = 0; i < numStrings; ++i) {
+            final int len = OptimizedDataInputStream.readInt0(in) - 1;
+            if (len < -1)
+                throw new IOException("Corrupted data (negative string length)");
+            if (len == -1)
+                continue;
+            if (len > buf.length) {
+                buf = new byte[Math.max(len, 2 * buf.length)];
+                charBuf = new char[buf.length];
+            }
+            int pos = 0;
+            while (pos < len) {
+                final int read = in.read(buf, pos, len - pos);
+                if (read < 0)
+                    throw new EOFException();
+                pos += read;
+            }
+            try {
+                strings[i] = Utf8Codec.decodeString(buf, 0, len, charBuf);
+            } catch (final IllegalArgumentException e) {
+                throw new IOException("Corrupted data (" + e.getMessage() + ")");
+            }
+        }
+        return strings;
+    }
+
+}
@@ -0,0 +1,240 @@
+package de.hammacher.util;
+
+import java.util.Arrays;
+
+import de.hammacher.util.streams.Utf8Codec;
+
+
+/**
+ * Maps UTF-8 encoded byte sequences to Strings, so that decoding the same bytes
+ * again returns the same String without creating a new one.
+ *
+ * The lookup hashes and compares the bytes directly. One interner can be shared by
+ * several {@link StringCacheInput}s (e.g. one per stream of a multiplexed file), so
+ * that strings occurring in many streams are decoded only once.
+ *
+ * The interner holds at most <code>maxSize</code> strings. If it is full, a string is
+ * evicted using the CLOCK algorithm (like the bounded {@link StringCacheInput}), so
+ * that strings which are looked up repeatedly stay in the interner. Its memory usage is
+ * thus bounded, no matter how many caches share it. Caches sharing a bounded interner
+ * only share the String objects of strings which were still interned when the caches
+ * read them; an evicted string is decoded again by the next cache which misses it.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Clemens Hammacher
+ */
+public class Utf8StringInterner {
+
+    /** The maximum number of strings held by an interner created by the default constructor. */
+    public static final int DEFAULT_MAX_SIZE = 1 << 16;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int maxSize;
+
+    // open addressing with linear probing; table holds the entry index plus one, or 0 for a free slot
+    private int[] table;
+
+    // per entry
+    private int[] hashes;
+    private byte[][] keys;
+    private String[] strings;
+    private boolean[] referenced;
+    private int size = 0;
+
+    private int clockHand = 0;
+    private long numEvictions = 0;
+    private long cachedChars = 0;
+    private long cachedBytes = 0;
+
+    private char[] charBuf = new char[64];
+
+    /**
+     * Creates an interner holding at most {@link #DEFAULT_MAX_SIZE} strings.
+     */
+    public Utf8StringInterner() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Creates an interner holding at most <code>maxSize</code> strings.
+     */
+    public Utf8StringInterner(final int maxSize) {
+        if (maxSize <= 0 || maxSize > (1 << 29))
+            throw new IllegalArgumentException("Illegal maximum size: " + maxSize);
+        this.maxSize = maxSize;
+        final int numEntries = Math.min(maxSize, INITIAL_CAPACITY);
+        this.table = new int[getTableSize(numEntries)];
+        this.hashes = new int[numEntries];
+        this.keys = new byte[numEntries][];
+        this.strings = new String[numEntries];
+        this.referenced = new boolean[numEntries];
+    }
+
+    private static int getTableSize(final int numEntries) {
+        int tableSize = 4;
+        while (tableSize < 2 * numEntries)
+            tableSize <<= 1;
+        return tableSize;
+    }
+
+    /**
+     * Returns the String represented by <code>len</code> UTF-8 bytes starting at
+     * <code>buf[off]</code>. If these bytes have been interned before (and not been
+     * evicted since), the same String is returned, and nothing is allocated.
+     *
+     * @throws IllegalArgumentException if the bytes are no valid UTF-8
+     */
+    public String intern(final byte[] buf, final int off, final int len) {
+        final int hash = Utf8Codec.hash(buf, off, len);
+        int mask = this.table.length - 1;
+        int slot = mix(hash) & mask;
+        int entry;
+        while ((entry = this.table[slot]) != 0) {
+            if (this.hashes[entry - 1] == hash && equal(this.keys[entry - 1], buf, off, len)) {
+                this.referenced[entry - 1] = true;
+                return this.strings[entry - 1];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (len > this.charBuf.length)
+            this.charBuf = new char[Math.max(len, 2 * this.charBuf.length)];
+        final String s = Utf8Codec.decodeString(buf, off, len, this.charBuf);
+        final byte[] key = new byte[len];
+        System.arraycopy(buf, off, key, 0, len);
+
+        if (this.size == this.maxSize) {
+            entry = evict();
+        } else {
+            if (this.size == this.strings.length) {
+                grow();
+                mask = this.table.length - 1;
+            }
+            entry = this.size++;
+        }
+        // eviction and growing change the table, so search the free slot again
+        slot = mix(hash) & mask;
+        while (this.table[slot] != 0)
+            slot = (slot + 1) & mask;
+        this.table[slot] = entry + 1;
+        this.hashes[entry] = hash;
+        this.keys[entry] = key;
+        this.strings[entry] = s;
+        this.referenced[entry] = false;
+        this.cachedChars += s.length();
+        this.cachedBytes += len;
+        return s;
+    }
+
+    private static boolean equal(final byte[] key, final byte[] buf, final int off, final int len) {
+        if (key.length != len)
+            return false;
+        for (int i = 0; i < len; ++i)
+            if (key[i] != buf[off + i])
+                return false;
+        return true;
+    }
+
+    private static int mix(final int hash) {
+        // the string hash is weak in the lower bits
+        final int h = hash * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Chooses an entry using the CLOCK algorithm, and removes it from the table.
+     *
+     * @return the index of the now unused entry
+     */
+    private int evict() {
+        int hand = this.clockHand;
+        while (this.referenced[hand]) {
+            this.referenced[hand] = false;
+            hand = hand == this.maxSize - 1 ? 0 : hand + 1;
+        }
+        this.clockHand = hand == this.maxSize - 1 ? 0 : hand + 1;
+
+        final int mask = this.table.length - 1;
+        int slot = mix(this.hashes[hand]) & mask;
+        while (this.table[slot] != hand + 1)
+            slot = (slot + 1) & mask;
+        // shift back the following entries of the probe sequence, so that all of them stay reachable
+        int free = slot;
+        for (int next = (slot + 1) & mask; this.table[next] != 0; next = (next + 1) & mask) {
+            final int home = mix(this.hashes[this.table[next] - 1]) & mask;
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                this.table[free] = this.table[next];
+                free = next;
+            }
+        }
+        this.table[free] = 0;
+
+        this.cachedChars -= this.strings[hand].length();
+        this.cachedBytes -= this.keys[hand].length;
+        this.keys[hand] = null;
+        this.strings[hand] = null;
+        ++this.numEvictions;
+        return hand;
+    }
+
+    private void grow() {
+        final int numEntries = (int) Math.min(this.maxSize, 2L * this.strings.length);
+        this.hashes = Arrays.copyOf(this.hashes, numEntries);
+        this.keys = Arrays.copyOf(this.keys, numEntries);
+        this.strings = Arrays.copyOf(this.strings, numEntries);
+        this.referenced = Arrays.copyOf(this.referenced, numEntries);
+        final int[] newTable = new int[getTableSize(numEntries)];
+        final int mask = newTable.length - 1;
+        for (int entry = 0; entry < this.size; ++entry) {
+            int slot = mix(this.hashes[entry]) & mask;
+            while (newTable[slot] != 0)
+                slot = (slot + 1) & mask;
+            newTable[slot] = entry + 1;
+        }
+        this.table = newTable;
+    }
+
+    /**
+     * @return the number of interned strings
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the maximum number of interned strings
+     */
+    public int getMaxSize() {
+        return this.maxSize;
+    }
+
+    /**
+     * @return the number of strings evicted because the interner was full
+     */
+    public long getNumEvictions() {
+        return this.numEvictions;
+    }
+
+    /**
+     * @return a rough estimation of the memory (in bytes) used by the interned strings and their bytes
+     */
+    public long getEstimatedMemoryUsage() {
+        // byte arrays: header plus the reference to the array
+        return StringCacheInput.estimateMemoryUsage(this.size, this.cachedChars)
+            + 24L * this.size + this.cachedBytes;
+    }
+
+    public void clear() {
+        Arrays.fill(this.table, 0);
+        Arrays.fill(this.keys, null);
+        Arrays.fill(this.strings, null);
+        Arrays.fill(this.referenced, false);
+        this.size = 0;
+        this.clockHand = 0;
+        this.cachedChars = 0;
+        this.cachedBytes = 0;
+    }
+
+}
@@ -0,0 +1,446 @@
+package de.hammacher.util.maps;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A thread-safe map from primitive <code>int</code> keys to primitive <code>int</code> values.
+ * No operation takes a lock.
+ *
+ * The keys and values are stored in two arrays (open addressing with linear probing). A key
+ * slot is claimed once by a compare-and-set and then never changes; all updates are
+ * compare-and-sets on the value slot, which also encodes whether the mapping is present.
+ * Removing a mapping only marks its value as removed; the slot is reclaimed when the table
+ * is copied.
+ *
+ * When a table fills up, a new one is allocated, and all threads which access the old table
+ * help copying it in chunks. A value slot being copied is frozen first, so that no update
+ * gets lost. Only when all slots of the old table are copied, the new table replaces it.
+ *
+ * Lookups of absent keys return a default value that is given on construction.
+ *
+ * @author Clemens Hammacher
+ */
+public class ConcurrentIntegerToIntegerMap {
+
+    /**
+     * The default initial capacity - MUST be a power of two.
+     */
+    public static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+    /**
+     * The maximum capacity. MUST be a power of two <= 1<<30.
+     */
+    static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    /**
+     * The minimum capacity of the hash table. MUST be a power of two >= 2.
+     */
+    private static final int MINIMUM_CAPACITY = 4;
+
+    /**
+     * The key used to mark free slots. The mapping for this key is stored outside of the
+     * table, in {@link #freeKeyValue}.
+     */
+    private static final int FREE_KEY = 0;
+
+    // states of a value slot. The lower 32 bits hold the value itself.
+    // 0 means that no value has ever been written to the slot.
+    private static final long PRESENT = 1L << 32;
+    // the mapping has been removed
+    private static final long REMOVED = 1L << 33;
+    // set (together with PRESENT) while the value is copied to the next table
+    private static final long FROZEN = 1L << 34;
+    // the slot has been copied, the current value is in the next table
+    private static final long MOVED = 1L << 35;
+
+    private static final long VALUE_MASK = 0xffffffffL;
+
+    // the number of slots copied by a thread at once
+    private static final int COPY_CHUNK = 1024;
+
+    // modes of update()
+    private static final int PUT = 0;
+    private static final int PUT_IF_ABSENT = 1;
+    private static final int ADD = 2;
+    private static final int REMOVE = 3;
+    private static final int COPY = 4;
+
+    private static final class Table {
+
+        final AtomicIntegerArray keys;
+
+        final AtomicLongArray values;
+
+        // 32 - log2(capacity), for computing the home slot of a key
+        final int shift;
+
+        // resize when this many slots have been claimed
+        final int threshold;
+
+        final AtomicInteger usedSlots = new AtomicInteger();
+
+        // the table this one is copied to
+        final AtomicReference<Table> next = new AtomicReference<Table>();
+
+        // the first slot which has not been claimed for copying yet
+        final AtomicInteger copyIndex = new AtomicInteger();
+
+        // the number of slots which have been copied
+        final AtomicInteger copyDone = new AtomicInteger();
+
+        Table(final int capacity) {
+            this.keys = new AtomicIntegerArray(capacity);
+            this.values = new AtomicLongArray(capacity);
+            this.shift = 32 - Integer.numberOfTrailingZeros(capacity);
+            this.threshold = capacity / 4 * 3;
+        }
+
+        int capacity() {
+            return this.keys.length();
+        }
+
+        int slot(final int key) {
+            return (key * 0x9e3779b9) >>> this.shift;
+        }
+
+    }
+
+    private final AtomicReference<Table> table;
+
+    // the value state of FREE_KEY
+    private final AtomicLong freeKeyValue = new AtomicLong();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    protected final int defaultValue;
+
+    /**
+     * Constructs an empty map with the specified initial capacity and default value.
+     *
+     * @param initialCapacity
+     *            the initial capacity
+     * @param defaultValue
+     *            the value returned for keys which are not contained in the map
+     * @throws IllegalArgumentException
+     *             if the initial capacity is negative
+     */
+    public ConcurrentIntegerToIntegerMap(final int initialCapacity, final int defaultValue) {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException("Illegal initial capacity: " + initialCapacity);
+        final int initCapacity = initialCapacity > MAXIMUM_CAPACITY / 2 ? MAXIMUM_CAPACITY : 2 * initialCapacity;
+
+        // Find a power of 2 >= 2 * initialCapacity, so that the table is at most half full
+        int capacity = MINIMUM_CAPACITY;
+        while (capacity < initCapacity)
+            capacity <<= 1;
+
+        this.table = new AtomicReference<Table>(new Table(capacity));
+        this.defaultValue = defaultValue;
+    }
+
+    /**
+     * Constructs an empty map with the specified initial capacity and default value 0.
+     */
+    public ConcurrentIntegerToIntegerMap(final int initialCapacity) {
+        this(initialCapacity, 0);
+    }
+
+    /**
+     * Constructs an empty map with the default initial capacity (16) and default value 0.
+     */
+    public ConcurrentIntegerToIntegerMap() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     * @return the value returned for keys which are not contained in this map
+     */
+    public int getDefaultValue() {
+        return this.defaultValue;
+    }
+
+    /**
+     * Returns the number of key-value mappings in this map. If the map is modified
+     * concurrently, the result is only an estimate.
+     */
+    public int size() {
+        return this.size.get();
+    }
+
+    public boolean isEmpty() {
+        return this.size.get() == 0;
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped, or the default value if this
+     * map contains no mapping for the key.
+     */
+    public int get(final int key) {
+        final long state = key == FREE_KEY ? this.freeKeyValue.get() : getState(key);
+        return (state & PRESENT) != 0 ? (int) state : this.defaultValue;
+    }
+
+    public boolean containsKey(final int key) {
+        final long state = key == FREE_KEY ? this.freeKeyValue.get() : getState(key);
+        return (state & PRESENT) != 0;
+    }
+
+    /**
+     * Associates the specified value with the specified key in this map.
+     *
+     * @return the previous value associated with <tt>key</tt>, or <tt>defaultValue</tt> if there was no mapping for
+     *         <tt>key</tt>.
+     */
+    public int put(final int key, final int value) {
+        return toValue(update(key, value, PUT));
+    }
+
+    /**
+     * Associates the specified value with the specified key if there is no mapping for the key yet.
+     *
+     * @return the value associated with <tt>key</tt> before, or <tt>defaultValue</tt> if there was no mapping
+     *         for <tt>key</tt> (and <code>value</code> has been inserted).
+     */
+    public int putIfAbsent(final int key, final int value) {
+        return toValue(update(key, value, PUT_IF_ABSENT));
+    }
+
+    /**
+     * Atomically adds <code>addValue</code> to the value of the given key. If there is no
+     * mapping for the key, a new mapping to <code>defaultValue + addValue</code> is inserted.
+     *
+     * @return the new value associated with <tt>key</tt>
+     */
+    public int addAndGet(final int key, final int addValue) {
+        final long old = update(key, addValue, ADD);
+        return ((old & PRESENT) != 0 ? (int) old : this.defaultValue) + addValue;
+    }
+
+    /**
+     * Removes the mapping for the specified key from this map if present.
+     *
+     * @return the previous value associated with <tt>key</tt>, or <tt>defaultValue</tt> if there was no mapping for
+     *         <tt>key</tt>.
+     */
+    public int remove(final int key) {
+        return toValue(update(key, 0, REMOVE));
+    }
+
+    private int toValue(final long state) {
+        return (state & PRESENT) != 0 ? (int) state : this.defaultValue;
+    }
+
+    private long getState(final int key) {
+        Table t = this.table.get();
+        while (true) {
+            final int slot = findSlot(t, key, false);
+            if (slot != -1) {
+                final long state = t.values.get(slot);
+                // a frozen value is still the current one
+                if ((state & MOVED) == 0)
+                    return state;
+            }
+            // if the key is not contained in this table, it may have been added to the next one
+            t = t.next.get();
+            if (t == null)
+                return 0;
+        }
+    }
+
+    /**
+     * Returns the slot of the given key (which must not be {@link #FREE_KEY}) in the given table.
+     * If the key is not contained and <code>claim</code> is set, a free slot is claimed for it.
+     *
+     * @return the slot, or -1 if the key is not contained (and could not be inserted)
+     */
+    private int findSlot(final Table t, final int key, final boolean claim) {
+        final AtomicIntegerArray keys = t.keys;
+        final int mask = keys.length() - 1;
+        int slot = t.slot(key);
+        for (int probes = 0; probes <= mask; ++probes) {
+            int k = keys.get(slot);
+            if (k == FREE_KEY) {
+                if (!claim)
+                    return -1;
+                if (keys.compareAndSet(slot, FREE_KEY, key)) {
+                    if (t.usedSlots.incrementAndGet() >= t.threshold)
+                        startResize(t);
+                    return slot;
+                }
+                k = keys.get(slot);
+            }
+            if (k == key)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        // the table is full
+        if (claim)
+            startResize(t);
+        return -1;
+    }
+
+    /**
+     * Computes the new state of a value slot.
+     */
+    private long newState(final long state, final int value, final int mode) {
+        final boolean present = (state & PRESENT) != 0;
+        switch (mode) {
+        case PUT:
+            return PRESENT | (value & VALUE_MASK);
+        case PUT_IF_ABSENT:
+            return present ? state : PRESENT | (value & VALUE_MASK);
+        case ADD:
+            return PRESENT | (((present ? (int) state : this.defaultValue) + value) & VALUE_MASK);
+        case REMOVE:
+            return present ? REMOVED : state;
+        case COPY:
+            // never overwrite a value which has been written to the new table, even if it has been removed since
+            return state == 0 ? PRESENT | (value & VALUE_MASK) : state;
+        default:
+            throw new AssertionError("unknown mode " + mode);
+        }
+    }
+
+    /**
+     * Performs one of the update operations, and returns the previous state of the value.
+     */
+    private long update(final int key, final int value, final int mode) {
+        if (key == FREE_KEY) {
+            while (true) {
+                final long state = this.freeKeyValue.get();
+                final long newState = newState(state, value, mode);
+                if (newState == state)
+                    return state;
+                if (this.freeKeyValue.compareAndSet(state, newState)) {
+                    updateSize(state, newState);
+                    return state;
+                }
+            }
+        }
+        return update(this.table.get(), key, value, mode);
+    }
+
+    private long update(final Table table, final int key, final int value, final int mode) {
+        Table t = table;
+        while (true) {
+            final int slot = findSlot(t, key, mode != REMOVE);
+            Table next = t.next.get();
+            if (slot == -1) {
+                if (next == null) {
+                    if (mode == REMOVE)
+                        return 0;
+                    // the table is full, and startResize() failed
+                    throw new IllegalStateException("Maximum capacity reached");
+                }
+                helpCopy(t);
+                t = next;
+                continue;
+            }
+            if (next != null) {
+                // the slot has to be copied before the new value can be written to the next table
+                copySlot(t, slot, next);
+                helpCopy(t);
+                t = next;
+                continue;
+            }
+            final AtomicLongArray values = t.values;
+            while (true) {
+                final long state = values.get(slot);
+                if ((state & (FROZEN | MOVED)) != 0)
+                    break;
+                final long newState = newState(state, value, mode);
+                if (newState == state)
+                    return state;
+                if (values.compareAndSet(slot, state, newState)) {
+                    if (mode != COPY)
+                        updateSize(state, newState);
+                    return state;
+                }
+            }
+            // the table is being copied: finish copying this slot, and continue in the next table
+            next = t.next.get();
+            copySlot(t, slot, next);
+            t = next;
+        }
+    }
+
+    private void updateSize(final long oldState, final long newState) {
+        final boolean wasPresent = (oldState & PRESENT) != 0;
+        final boolean isPresent = (newState & PRESENT) != 0;
+        if (isPresent && !wasPresent)
+            this.size.incrementAndGet();
+        else if (wasPresent && !isPresent)
+            this.size.decrementAndGet();
+    }
+
+    /**
+     * Allocates the table which the given one is copied to, if this did not happen yet.
+     */
+    private void startResize(final Table t) {
+        if (t.next.get() != null)
+            return;
+        final int capacity = t.capacity();
+        // removed mappings are dropped during the copy, so the table only has to grow if it
+        // contains many mappings
+        int newCapacity = capacity;
+        if (this.size.get() >= capacity / 4) {
+            if (capacity == MAXIMUM_CAPACITY)
+                return;
+            newCapacity = 2 * capacity;
+        }
+        t.next.compareAndSet(null, new Table(newCapacity));
+    }
+
+    /**
+     * Copies the value in the given slot of <code>t</code> to the next table, if this
+     * did not happen yet.
+     */
+    private void copySlot(final Table t, final int slot, final Table next) {
+        final AtomicLongArray values = t.values;
+        long state = values.get(slot);
+        while ((state & MOVED) == 0) {
+            if ((state & FROZEN) == 0) {
+                // freeze the value, so that it cannot be changed any more
+                final long frozen = (state & PRESENT) != 0 ? state | FROZEN : MOVED;
+                if (!values.compareAndSet(slot, state, frozen)) {
+                    state = values.get(slot);
+                    continue;
+                }
+                if (frozen == MOVED)
+                    return;
+                state = frozen;
+            }
+            update(next, t.keys.get(slot), (int) state, COPY);
+            values.compareAndSet(slot, state, MOVED);
+            return;
+        }
+    }
+
+    /**
+     * Copies a chunk of the given table to its next table, and replaces the table of this
+     * map once all slots have been copied.
+     */
+    private void helpCopy(final Table t) {
+        final int capacity = t.capacity();
+        if (t.copyIndex.get() < capacity) {
+            final int start = t.copyIndex.getAndAdd(COPY_CHUNK);
+            if (start < capacity) {
+                final Table next = t.next.get();
+                final int end = Math.min(start + COPY_CHUNK, capacity);
+                for (int slot = start; slot < end; ++slot)
+                    copySlot(t, slot, next);
+                t.copyDone.addAndGet(end - start);
+            }
+        }
+        // promote all tables which are completely copied
+        Table head;
+        Table next;
+        while ((head = this.table.get()).copyDone.get() == head.capacity() && (next = head.next.get()) != null)
+            this.table.compareAndSet(head, next);
+    }
+
+}
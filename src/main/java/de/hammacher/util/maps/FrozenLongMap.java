@@ -0,0 +1,188 @@
+package de.hammacher.util.maps;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of an {@link LongMap}, created by {@link LongMap#freeze()}.
+ *
+ * The mappings are stored in two arrays, sorted by key, and are looked up by interpolation
+ * search. This needs about 12 bytes per mapping (plus the values themselves), and no
+ * synchronization: all fields are final, so the map can be shared freely between threads.
+ *
+ * All modifying operations throw an {@link UnsupportedOperationException}.
+ *
+ * @author Clemens Hammacher
+ */
+public final class FrozenLongMap<V> extends AbstractMap<Long, V> {
+
+    private final long[] keys;
+
+    private final Object[] values;
+
+    FrozenLongMap(final LongMap<? extends V> map) {
+        final int size = map.size();
+        final long[] k = new long[size];
+        final Object[] v = new Object[size];
+        final boolean[] sorted = { true };
+        map.forEachEntry(new LongObjectVisitor<V>() {
+            private int pos = 0;
+            public void visit(final long key, final V value) {
+                if (this.pos > 0 && key < k[this.pos - 1])
+                    sorted[0] = false;
+                k[this.pos] = key;
+                v[this.pos++] = value;
+            }
+        });
+        if (!sorted[0]) {
+            // hash table order: sort the keys, and look up the values again
+            Arrays.sort(k);
+            for (int i = 0; i < size; ++i)
+                v[i] = map.get(k[i]);
+        }
+        this.keys = k;
+        this.values = v;
+    }
+
+    /**
+     * Returns the position of the given key in the keys array, or -1 if it is not contained.
+     *
+     * Interpolation steps are alternated with bisection steps, so the search takes
+     * O(log log n) steps for uniformly distributed keys, and O(log n) in the worst case.
+     */
+    private int indexOf(final long key) {
+        final long[] k = this.keys;
+        int low = 0;
+        int high = k.length - 1;
+        boolean interpolate = true;
+        while (low <= high) {
+            final long lowKey = k[low];
+            final long highKey = k[high];
+            if (key < lowKey || key > highKey)
+                return -1;
+            int mid;
+            if (!interpolate || lowKey == highKey) {
+                mid = (low + high) >>> 1;
+            } else {
+                mid = low + (int) (((double) key - lowKey) / ((double) highKey - lowKey) * (high - low));
+                // guard against rounding errors
+                if (mid > high)
+                    mid = high;
+            }
+            interpolate = !interpolate;
+            final long midKey = k[mid];
+            if (midKey < key)
+                low = mid + 1;
+            else if (midKey > key)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(final long key) {
+        final int index = indexOf(key);
+        return index == -1 ? null : (V) this.values[index];
+    }
+
+    @Override
+    public V get(final Object key) {
+        return key instanceof Long ? get(((Long) key).longValue()) : null;
+    }
+
+    public boolean containsKey(final long key) {
+        return indexOf(key) != -1;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return key instanceof Long && containsKey(((Long) key).longValue());
+    }
+
+    @Override
+    public boolean containsValue(final Object value) {
+        for (final Object val : this.values)
+            if (value == null ? val == null : value.equals(val))
+                return true;
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return this.keys.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.keys.length == 0;
+    }
+
+    /**
+     * Passes all mappings of this map to the given visitor, in ascending key order.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEachEntry(final LongObjectVisitor<? super V> visitor) {
+        for (int i = 0; i < this.keys.length; ++i)
+            visitor.visit(this.keys[i], (V) this.values[i]);
+    }
+
+    /**
+     * Returns a new mutable {@link LongMap} containing all mappings of this map.
+     */
+    @SuppressWarnings("unchecked")
+    public LongMap<V> thaw() {
+        final LongMap<V> map = new LongMap<V>((int) (this.keys.length / LongMap.DEFAULT_LOAD_FACTOR) + 1);
+        for (int i = 0; i < this.keys.length; ++i)
+            map.put(this.keys[i], (V) this.values[i]);
+        return map;
+    }
+
+    @Override
+    public Set<Map.Entry<Long, V>> entrySet() {
+        return new AbstractSet<Map.Entry<Long, V>>() {
+
+            @Override
+            public Iterator<Map.Entry<Long, V>> iterator() {
+                return new Iterator<Map.Entry<Long, V>>() {
+
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return this.next < FrozenLongMap.this.keys.length;
+                    }
+
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public Map.Entry<Long, V> next() {
+                        if (!hasNext())
+                            throw new NoSuchElementException();
+                        final int index = this.next++;
+                        return new SimpleImmutableEntry<Long, V>(FrozenLongMap.this.keys[index],
+                            (V) FrozenLongMap.this.values[index]);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+
+                };
+            }
+
+            @Override
+            public int size() {
+                return FrozenLongMap.this.keys.length;
+            }
+
+        };
+    }
+
+}
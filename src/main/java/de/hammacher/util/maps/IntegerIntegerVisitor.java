@@ -0,0 +1,12 @@
+package de.hammacher.util.maps;
+
+/**
+ * Visits the mappings of an {@link IntegerToIntegerMap} without boxing keys or allocating entries.
+ *
+ * @author Clemens Hammacher
+ */
+public interface IntegerIntegerVisitor {
+
+    void visit(int key, int value);
+
+}
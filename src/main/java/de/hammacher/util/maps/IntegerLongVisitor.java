@@ -0,0 +1,12 @@
+package de.hammacher.util.maps;
+
+/**
+ * Visits the mappings of an {@link OffHeapIntegerToLongMap} without boxing keys or allocating entries.
+ *
+ * @author Clemens Hammacher
+ */
+public interface IntegerLongVisitor {
+
+    void visit(int key, long value);
+
+}
@@ -31,6 +31,27 @@ public class IntegerMap<V> implements Map<Integer, V>, Cloneable {
 
     static final float DEFAULT_SWITCH_TO_LIST_RATIO = 0.3f;
 
+    /**
+     * Will switch from map to paged mode when the ratio (size/paged_slots) is above this threshold, where paged_slots
+     * is the number of slots in all needed pages plus the length of the page directory. A hash table entry costs about
+     * as much memory as ten slots, so paged mode then needs less memory and avoids the hashing. Switches back to map
+     * mode if the ratio falls below switchToMapRatio.
+     */
+    static final float SWITCH_TO_PAGED_RATIO = 0.1f;
+
+    /**
+     * The number of keys per page in paged mode is 1 << PAGE_SHIFT.
+     */
+    static final int PAGE_SHIFT = 10;
+
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final int MIN_PAGE = Integer.MIN_VALUE >> PAGE_SHIFT;
+
+    private static final int MAX_PAGE = Integer.MAX_VALUE >> PAGE_SHIFT;
+
     /**
      * Will switch back (from list to map) when the ratio (size/highest_int) is below this threshold.
      */
@@ -54,6 +75,21 @@ public class IntegerMap<V> implements Map<Integer, V>, Cloneable {
 
     int listOffset;
 
+    /**
+     * The page directory in paged mode (used for clustered keys). Each page stores the values of PAGE_SIZE
+     * consecutive keys, like the list, and is only allocated when the first of these keys is inserted.
+     */
+    V[][] pages;
+
+    // the page number (key >> PAGE_SHIFT) of pages[0]
+    int pageOffset;
+
+    // the number of mappings in each page of the directory; a page is freed when it becomes empty
+    private int[] pageCounts;
+
+    // the number of allocated pages
+    private int numPages;
+
     // this value is stored in the list to represent "null"
     private static final Object NULL_VALUE = new Object();
 
@@ -178,6 +214,17 @@ public class IntegerMap<V> implements Map<Integer, V>, Cloneable {
                 return this.list[offset] == getNullValue() ? null : this.list[offset];
             return null;
         }
+        if (this.pages != null) {
+            final int dirIndex = (key >> PAGE_SHIFT) - this.pageOffset;
+            if (dirIndex >= 0 && dirIndex < this.pages.length) {
+                final V[] page = this.pages[dirIndex];
+                if (page != null) {
+                    final V value = page[key & PAGE_MASK];
+                    return value == getNullValue() ? null : value;
+                }
+            }
+            return null;
+        }
         final int index = key & (this.mapTable.length - 1);
         for (Entry<V> e = this.mapTable[index]; e != null; e = e.next)
             if (key == e.key)
@@ -209,6 +256,11 @@ public class IntegerMap<V> implements Map<Integer, V>, Cloneable {
         	int offset = key - this.listOffset;
             return offset >= 0 && offset < this.list.length && this.list[offset] != null;
         }
+        if (this.pages != null) {
+            final int dirIndex = (key >> PAGE_SHIFT) - this.pageOffset;
+            return dirIndex >= 0 && dirIndex < this.pages.length && this.pages[dirIndex] != null
+                && this.pages[dirIndex][key & PAGE_MASK] != null;
+        }
 
         final int index = key & (this.mapTable.length - 1);
         for (Entry<V> e = this.mapTable[index]; e != null; e = e.next)
@@ -288,6 +340,25 @@ public class IntegerMap<V> implements Map<Integer, V>, Cloneable {
             }
         }
 
+        if (this.pages != null) {
+            final V[] page = getOrAllocatePage(key);
+            if (page != null) {
+                final int slot = key & PAGE_MASK;
+                final V old = page[slot];
+                page[slot] = value == null ? getNullValue() : value;
+                if (old != null)
+                    return old == getNullValue() ? null : old;
+                ++this.pageCounts[(key >> PAGE_SHIFT) - this.pageOffset];
+                ++this.size;
+                this.minKey = Math.min(this.minKey, key);
+                this.maxKey = Math.max(this.maxKey, key);
+                if (this.size > 3 && this.size > this.switchToListRatio * ((float)this.maxKey - this.minKey + 1f))
+                    switchToList();
+                return null;
+            }
+            // switched to map mode; continue with the map code below...
+        }
+
         // code for hashtable-lookup:
         final int index = key & (this.mapTable.length - 1);
         for (Entry<V> e = this.mapTable[index]; e != null; e = e.next) {
@@ -304,7 +375,7 @@ public class IntegerMap<V> implements Map<Integer, V>, Cloneable {
 
 	private void switchToMap() {
         ++this.modCount;
-        final double minTableSize = 1.1 * this.list.length / this.loadFactor;
+        final double minTableSize = 1.1 * (this.list != null ? this.list.length : this.size) / this.loadFactor;
         int mapTableSize = 1;
         while (mapTableSize < minTableSize) {
             if (mapTableSize == MAXIMUM_CAPACITY)
@@ -313,19 +384,130 @@ public class IntegerMap<V> implements Map<Integer, V>, Cloneable {
         }
 
         this.mapTable = Entry.newArray(mapTableSize);
+        this.mapThreshold = (int) (mapTableSize * this.loadFactor);
     	this.minKey = Integer.MAX_VALUE;
         this.maxKey = Integer.MIN_VALUE;
-        for (int key = 0; key < this.list.length; ++key) {
-            final V value = this.list[key];
-            if (value == null)
-                continue;
-            int realKey = key + this.listOffset;
-            this.minKey = Math.min(this.minKey, realKey);
-            this.maxKey = realKey;
-            final int index = realKey & (mapTableSize - 1);
-            this.mapTable[index] = new Entry<V>(realKey, value == getNullValue() ? null : value, this.mapTable[index]);
+        if (this.list != null) {
+            for (int key = 0; key < this.list.length; ++key) {
+                final V value = this.list[key];
+                if (value == null)
+                    continue;
+                int realKey = key + this.listOffset;
+                this.minKey = Math.min(this.minKey, realKey);
+                this.maxKey = realKey;
+                final int index = realKey & (mapTableSize - 1);
+                this.mapTable[index] = new Entry<V>(realKey, value == getNullValue() ? null : value, this.mapTable[index]);
+            }
+        } else {
+            for (int dirIndex = 0; dirIndex < this.pages.length; ++dirIndex) {
+                final V[] page = this.pages[dirIndex];
+                if (page == null)
+                    continue;
+                for (int slot = 0; slot < PAGE_SIZE; ++slot) {
+                    final V value = page[slot];
+                    if (value == null)
+                        continue;
+                    final int realKey = ((dirIndex + this.pageOffset) << PAGE_SHIFT) + slot;
+                    this.minKey = Math.min(this.minKey, realKey);
+                    this.maxKey = realKey;
+                    final int index = realKey & (mapTableSize - 1);
+                    this.mapTable[index] = new Entry<V>(realKey, value == getNullValue() ? null : value, this.mapTable[index]);
+                }
+            }
         }
         this.list = null;
+        this.pages = null;
+        this.pageCounts = null;
+        ++this.modCount;
+    }
+
+    /**
+     * Returns the page for the given key in paged mode, allocating it (and growing the page directory) if
+     * necessary. If the map would get too sparse by the new page, it switches to map mode instead and returns
+     * <code>null</code>.
+     */
+    private V[] getOrAllocatePage(final int key) {
+        final int pageNr = key >> PAGE_SHIFT;
+        int dirIndex = pageNr - this.pageOffset;
+        if (dirIndex >= 0 && dirIndex < this.pages.length && this.pages[dirIndex] != null)
+            return this.pages[dirIndex];
+
+        // reserve some more directory entries in the direction of growth
+        int newOffset = this.pageOffset;
+        int newLength = this.pages.length;
+        if (dirIndex < 0) {
+            newOffset = Math.max(pageNr - newLength / 4, MIN_PAGE);
+            newLength += this.pageOffset - newOffset;
+        } else if (dirIndex >= newLength) {
+            newLength = Math.min(dirIndex + 1 + newLength / 4, MAX_PAGE - newOffset + 1);
+        }
+        if (this.size < this.switchToMapRatio * getPagedSlots(this.numPages + 1, newLength)) {
+            switchToMap();
+            return null;
+        }
+        if (newLength != this.pages.length) {
+            ++this.modCount;
+            final V[][] newPages = newPageDirectory(newLength);
+            System.arraycopy(this.pages, 0, newPages, this.pageOffset - newOffset, this.pages.length);
+            final int[] newPageCounts = new int[newLength];
+            System.arraycopy(this.pageCounts, 0, newPageCounts, this.pageOffset - newOffset, this.pages.length);
+            this.pages = newPages;
+            this.pageCounts = newPageCounts;
+            this.pageOffset = newOffset;
+            dirIndex = pageNr - newOffset;
+        }
+        ++this.numPages;
+        return this.pages[dirIndex] = newArray(PAGE_SIZE);
+    }
+
+    private static float getPagedSlots(final int numberOfPages, final int directoryLength) {
+        return (float) numberOfPages * PAGE_SIZE + directoryLength;
+    }
+
+    /**
+     * Checks whether the keys in the hash table are clustered densely enough to switch to paged mode.
+     */
+    private boolean shouldSwitchToPaged() {
+        final int firstPage = this.minKey >> PAGE_SHIFT;
+        final int directoryLength = (this.maxKey >> PAGE_SHIFT) - firstPage + 1;
+        // even if all pages were full, the directory would be too large
+        if (this.size <= SWITCH_TO_PAGED_RATIO * getPagedSlots((this.size + PAGE_MASK) >> PAGE_SHIFT, directoryLength))
+            return false;
+
+        // count the pages which would be needed
+        final long[] usedPages = new long[(directoryLength + 63) >>> 6];
+        int numUsedPages = 0;
+        for (int j = 0; j < this.mapTable.length; j++) {
+            for (Entry<V> e = this.mapTable[j]; e != null; e = e.next) {
+                final int dirIndex = (e.key >> PAGE_SHIFT) - firstPage;
+                if ((usedPages[dirIndex >>> 6] & (1L << dirIndex)) == 0) {
+                    usedPages[dirIndex >>> 6] |= 1L << dirIndex;
+                    ++numUsedPages;
+                }
+            }
+        }
+        return this.size > SWITCH_TO_PAGED_RATIO * getPagedSlots(numUsedPages, directoryLength);
+    }
+
+    private void switchToPaged() {
+        ++this.modCount;
+        this.pageOffset = this.minKey >> PAGE_SHIFT;
+        this.pages = newPageDirectory((this.maxKey >> PAGE_SHIFT) - this.pageOffset + 1);
+        this.pageCounts = new int[this.pages.length];
+        this.numPages = 0;
+        for (int j = 0; j < this.mapTable.length; j++) {
+            for (Entry<V> e = this.mapTable[j]; e != null; e = e.next) {
+                final int dirIndex = (e.key >> PAGE_SHIFT) - this.pageOffset;
+                V[] page = this.pages[dirIndex];
+                if (page == null) {
+                    page = this.pages[dirIndex] = newArray(PAGE_SIZE);
+                    ++this.numPages;
+                }
+                page[e.key & PAGE_MASK] = e.value == null ? getNullValue() : e.value;
+                ++this.pageCounts[dirIndex];
+            }
+        }
+        this.mapTable = null;
         ++this.modCount;
     }
 
@@ -411,6 +593,14 @@ public class IntegerMap<V> implements Map<Integer, V>, Cloneable {
     }
 
     public V remove(final int key) {
+        return remove(key, true);
+    }
+
+    /**
+     * Removes the mapping for the given key. In paged mode, pages which become empty are freed, and if
+     * <code>allowSwitch</code> is set, the map switches back to map mode when the remaining pages are too sparse.
+     */
+    private V remove(final int key, final boolean allowSwitch) {
         if (this.list != null) {
         	int offset = key - this.listOffset;
             if (offset < 0 || offset >= this.list.length)
@@ -423,6 +613,26 @@ public class IntegerMap<V> implements Map<Integer, V>, Cloneable {
             return old == getNullValue() ? null : old;
         }
 
+        if (this.pages != null) {
+            final int dirIndex = (key >> PAGE_SHIFT) - this.pageOffset;
+            if (dirIndex < 0 || dirIndex >= this.pages.length || this.pages[dirIndex] == null)
+                return null;
+            final V[] page = this.pages[dirIndex];
+            final V old = page[key & PAGE_MASK];
+            if (old == null)
+                return null;
+            page[key & PAGE_MASK] = null;
+            --this.size;
+            if (--this.pageCounts[dirIndex] == 0) {
+                // iterators have moved past an empty page already, so this is no structural modification
+                this.pages[dirIndex] = null;
+                --this.numPages;
+                if (allowSwitch && this.size < this.switchToMapRatio * getPagedSlots(this.numPages, this.pages.length))
+                    switchToMap();
+            }
+            return old == getNullValue() ? null : old;
+        }
+
         final int index = key & (this.mapTable.length - 1);
         Entry<V> prev = this.mapTable[index];
         Entry<V> e = prev;
@@ -454,6 +664,10 @@ public class IntegerMap<V> implements Map<Integer, V>, Cloneable {
         this.size = 0;
         if (this.list != null) {
             this.list = newArray(this.list.length);
+        } else if (this.pages != null) {
+            this.pages = newPageDirectory(this.pages.length);
+            this.pageCounts = new int[this.pages.length];
+            this.numPages = 0;
         } else {
             this.mapTable = Entry.newArray(this.mapTable.length);
         }
@@ -483,6 +697,16 @@ public class IntegerMap<V> implements Map<Integer, V>, Cloneable {
         	}
             return false;
         }
+        if (this.pages != null) {
+            for (final V[] page : this.pages) {
+                if (page == null)
+                    continue;
+                for (final V val : page)
+                    if (val != null && (value == null ? val == getNullValue() : val.equals(value)))
+                        return true;
+            }
+            return false;
+        }
 
         final Entry<V>[] tab = this.mapTable;
         for (int i = 0; i < tab.length; i++)
@@ -570,8 +794,12 @@ public class IntegerMap<V> implements Map<Integer, V>, Cloneable {
         this.maxKey = Math.max(this.maxKey, key);
         if (this.size > 3 && this.size > this.switchToListRatio * ((float)this.maxKey - this.minKey + 1f)) {
             switchToList();
-        } else if (this.size >= this.mapThreshold)
-            resizeMap(2 * this.mapTable.length);
+        } else if (this.size >= this.mapThreshold) {
+            if (shouldSwitchToPaged())
+                switchToPaged();
+            else
+                resizeMap(2 * this.mapTable.length);
+        }
     }
 
     private void switchToList() {
@@ -596,6 +824,25 @@ public class IntegerMap<V> implements Map<Integer, V>, Cloneable {
         this.list = newArray(realSize);
         this.minKey = Integer.MAX_VALUE;
         this.maxKey = Integer.MIN_VALUE;
+        if (this.pages != null) {
+            for (int dirIndex = 0; dirIndex < this.pages.length; ++dirIndex) {
+                final V[] page = this.pages[dirIndex];
+                if (page == null)
+                    continue;
+                for (int slot = 0; slot < PAGE_SIZE; ++slot) {
+                    if (page[slot] == null)
+                        continue;
+                    final int key = ((dirIndex + this.pageOffset) << PAGE_SHIFT) + slot;
+                    this.minKey = Math.min(this.minKey, key);
+                    this.maxKey = Math.max(this.maxKey, key);
+                    this.list[key - this.listOffset] = page[slot];
+                }
+            }
+            this.pages = null;
+            this.pageCounts = null;
+            ++this.modCount;
+            return;
+        }
         for (int j = 0; j < this.mapTable.length; j++) {
             Entry<V> e = this.mapTable[j];
             if (e != null) {
@@ -615,6 +862,243 @@ public class IntegerMap<V> implements Map<Integer, V>, Cloneable {
         ++this.modCount;
     }
 
+    /**
+     * Passes all mappings of this map to the given visitor. In contrast to iterating over
+     * {@link #entrySet()}, this does not box the keys and does not allocate any objects.
+     * The visitor must not structurally modify this map.
+     *
+     * @throws ConcurrentModificationException if the map was structurally modified during the visit
+     */
+    public void forEachEntry(final IntegerObjectVisitor<? super V> visitor) {
+        final int expectedModCount = this.modCount;
+        final V[] l = this.list;
+        if (l != null) {
+            final int offset = this.listOffset;
+            for (int i = 0; i < l.length; ++i) {
+                final V value = l[i];
+                if (value != null)
+                    visitor.visit(i + offset, value == getNullValue() ? null : value);
+            }
+        } else if (this.pages != null) {
+            final V[][] dir = this.pages;
+            for (int dirIndex = 0; dirIndex < dir.length; ++dirIndex) {
+                final V[] page = dir[dirIndex];
+                if (page == null)
+                    continue;
+                final int firstKey = (dirIndex + this.pageOffset) << PAGE_SHIFT;
+                for (int slot = 0; slot < PAGE_SIZE; ++slot) {
+                    final V value = page[slot];
+                    if (value != null)
+                        visitor.visit(firstKey + slot, value == getNullValue() ? null : value);
+                }
+            }
+        } else {
+            final Entry<V>[] tab = this.mapTable;
+            for (int i = 0; i < tab.length; ++i)
+                for (Entry<V> e = tab[i]; e != null; e = e.next)
+                    visitor.visit(e.key, e.value);
+        }
+        if (this.modCount != expectedModCount)
+            throw new ConcurrentModificationException();
+    }
+
+    /**
+     * Returns an immutable snapshot of this map, which is more compact than this map and can be read by
+     * several threads concurrently. Later modifications of this map are not reflected in the snapshot.
+     *
+     * @see FrozenIntegerMap
+     */
+    public FrozenIntegerMap<V> freeze() {
+        return new FrozenIntegerMap<V>(this);
+    }
+
+    /**
+     * Returns a new cursor positioned before the first mapping of this map.
+     *
+     * @see Cursor
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Iterates over the mappings of the map without allocating an object per step:
+     * <pre>
+     * for (IntegerMap&lt;V&gt;.Cursor c = map.cursor(); c.advance(); )
+     *     process(c.key(), c.value());
+     * </pre>
+     * The map must not be structurally modified during the iteration, except through
+     * {@link #setValue}.
+     */
+    public final class Cursor {
+
+        private final int expectedModCount = IntegerMap.this.modCount;
+
+        // the list index, page directory index or hash table bucket of the current mapping
+        private int index = -1;
+
+        // the index inside the current page in paged mode
+        private int slot = -1;
+
+        // the current entry in map mode
+        private Entry<V> entry = null;
+
+        Cursor() {
+            // created by cursor()
+        }
+
+        /**
+         * Moves to the next mapping.
+         *
+         * @return <code>false</code> if there are no more mappings
+         * @throws ConcurrentModificationException if the map was structurally modified
+         */
+        public boolean advance() {
+            if (IntegerMap.this.modCount != this.expectedModCount)
+                throw new ConcurrentModificationException();
+            final V[] l = IntegerMap.this.list;
+            if (l != null) {
+                while (++this.index < l.length)
+                    if (l[this.index] != null)
+                        return true;
+                this.index = l.length;
+                return false;
+            }
+            final V[][] dir = IntegerMap.this.pages;
+            if (dir != null) {
+                while (this.index < dir.length) {
+                    if (this.index >= 0 && dir[this.index] != null) {
+                        final V[] page = dir[this.index];
+                        while (++this.slot < PAGE_SIZE)
+                            if (page[this.slot] != null)
+                                return true;
+                    }
+                    ++this.index;
+                    this.slot = -1;
+                }
+                return false;
+            }
+            if (this.entry != null && (this.entry = this.entry.next) != null)
+                return true;
+            final Entry<V>[] tab = IntegerMap.this.mapTable;
+            while (++this.index < tab.length)
+                if ((this.entry = tab[this.index]) != null)
+                    return true;
+            this.index = tab.length;
+            return false;
+        }
+
+        /**
+         * @return the key of the current mapping
+         */
+        public int key() {
+            checkCurrent();
+            if (this.entry != null)
+                return this.entry.key;
+            if (IntegerMap.this.pages != null)
+                return ((this.index + IntegerMap.this.pageOffset) << PAGE_SHIFT) + this.slot;
+            return this.index + IntegerMap.this.listOffset;
+        }
+
+        /**
+         * @return the value of the current mapping
+         */
+        public V value() {
+            checkCurrent();
+            if (this.entry != null)
+                return this.entry.value;
+            final V value = currentArray()[currentIndex()];
+            return value == getNullValue() ? null : value;
+        }
+
+        /**
+         * Replaces the value of the current mapping.
+         *
+         * @return the previous value
+         */
+        public V setValue(final V value) {
+            checkCurrent();
+            if (this.entry != null)
+                return this.entry.setValue(value);
+            final V[] array = currentArray();
+            final V old = array[currentIndex()];
+            array[currentIndex()] = value == null ? getNullValue() : value;
+            return old == getNullValue() ? null : old;
+        }
+
+        // the list or page containing the current value (in list or paged mode)
+        private V[] currentArray() {
+            return IntegerMap.this.list != null ? IntegerMap.this.list : IntegerMap.this.pages[this.index];
+        }
+
+        private int currentIndex() {
+            return IntegerMap.this.list != null ? this.index : this.slot;
+        }
+
+        private void checkCurrent() {
+            if (IntegerMap.this.modCount != this.expectedModCount)
+                throw new ConcurrentModificationException();
+            if (this.entry != null)
+                return;
+            final int length = IntegerMap.this.list != null ? IntegerMap.this.list.length
+                : IntegerMap.this.pages != null ? IntegerMap.this.pages.length : 0;
+            if (this.index < 0 || this.index >= length)
+                throw new NoSuchElementException();
+        }
+
+    }
+
+    /**
+     * Iterates over the mappings in paged mode, returning a new entry object for each one (like in list mode).
+     */
+    private class PagedIterator implements Iterator<Map.Entry<Integer, V>> {
+
+        private final Cursor cursor = new Cursor();
+
+        private boolean hasNext = this.cursor.advance();
+
+        private boolean canRemove = false;
+
+        private int lastKey;
+
+        PagedIterator() {
+            // nothing to do
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.hasNext;
+        }
+
+        @Override
+        public Entry<V> next() {
+            if (!this.hasNext)
+                throw new NoSuchElementException();
+            final Entry<V> e = new Entry<V>(this.cursor.key(), this.cursor.value(), null);
+            this.lastKey = e.key;
+            this.canRemove = true;
+            this.hasNext = this.cursor.advance();
+            return e;
+        }
+
+        @Override
+        public void remove() {
+            if (!this.canRemove)
+                throw new IllegalStateException();
+            this.canRemove = false;
+            // switching the mode would invalidate the cursor
+            IntegerMap.this.remove(this.lastKey, false);
+        }
+
+    }
+
+    /**
+     * Returns an iterator over the mappings in map or paged mode.
+     */
+    Iterator<Map.Entry<Integer, V>> entryIterator() {
+        return this.pages != null ? new PagedIterator() : new MapIterator();
+    }
+
     private class MapIterator implements Iterator<Map.Entry<Integer, V>> {
         Entry<V> next; // next entry to return
 
@@ -729,7 +1213,7 @@ public class IntegerMap<V> implements Map<Integer, V>, Cloneable {
                 // else:
 
                 return new Iterator<Integer>() {
-                    private final Iterator<Map.Entry<Integer, V>> i = new MapIterator();
+                    private final Iterator<Map.Entry<Integer, V>> i = entryIterator();
 
                     @Override
                     public boolean hasNext() {
@@ -822,7 +1306,7 @@ public class IntegerMap<V> implements Map<Integer, V>, Cloneable {
                 // else:
 
                 return new Iterator<V>() {
-                    private final Iterator<Map.Entry<Integer, V>> i = new MapIterator();
+                    private final Iterator<Map.Entry<Integer, V>> i = entryIterator();
 
                     @Override
                     public boolean hasNext() {
@@ -920,7 +1404,7 @@ public class IntegerMap<V> implements Map<Integer, V>, Cloneable {
             }
             // else:
 
-            return new MapIterator();
+            return entryIterator();
         }
 
         @Override
@@ -1149,6 +1633,13 @@ public class IntegerMap<V> implements Map<Integer, V>, Cloneable {
             clone.list = newArray(this.list.length);
             System.arraycopy(this.list, 0, clone.list, 0, this.list.length);
         }
+        if (this.pages != null) {
+            clone.pages = newPageDirectory(this.pages.length);
+            for (int i = 0; i < this.pages.length; ++i)
+                if (this.pages[i] != null)
+                    clone.pages[i] = this.pages[i].clone();
+            clone.pageCounts = this.pageCounts.clone();
+        }
         if (this.mapTable != null) {
             final Entry<V>[] newTable = Entry.newArray(this.mapTable.length);
             for (int j = 0; j < this.mapTable.length; ++j) {
@@ -1168,6 +1659,11 @@ public class IntegerMap<V> implements Map<Integer, V>, Cloneable {
     	return (V[]) new Object[length];
     }
 
+    @SuppressWarnings("unchecked")
+    private V[][] newPageDirectory(int length) {
+        return (V[][]) new Object[length][];
+    }
+
     @SuppressWarnings("unchecked")
 	private V getNullValue() {
         // the cast of NULL_VALUE to V is removed during type erasure (ugly, but works...)
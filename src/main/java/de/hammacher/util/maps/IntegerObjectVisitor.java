@@ -0,0 +1,13 @@
+package de.hammacher.util.maps;
+
+/**
+ * Visits the mappings of an {@link IntegerMap} without boxing keys or allocating entries.
+ *
+ * @author Clemens Hammacher
+ * @param <V> the value type
+ */
+public interface IntegerObjectVisitor<V> {
+
+    void visit(int key, V value);
+
+}
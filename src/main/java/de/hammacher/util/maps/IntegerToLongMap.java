@@ -1,5 +1,6 @@
 package de.hammacher.util.maps;
 
+import java.io.IOException;
 import java.util.AbstractCollection;
 import java.util.AbstractSet;
 import java.util.Collection;
@@ -9,6 +10,9 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 
+import de.hammacher.util.streams.OptimizedDataInputStream;
+import de.hammacher.util.streams.OptimizedDataOutputStream;
+
 public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
 
     /**
@@ -22,6 +26,11 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
      */
     static final int MAXIMUM_CAPACITY = 1 << 30;
 
+    /**
+     * The minimum capacity of the hash table. MUST be a power of two >= 2.
+     */
+    private static final int MINIMUM_CAPACITY = 4;
+
     /**
      * The load factor used when none specified in constructor.
      */
@@ -42,9 +51,34 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
     private final float switchToListRatio;
 
     /**
-     * The table, resized as necessary. Length MUST Always be a power of two.
+     * The key used to mark free slots in {@link #mapKeys}. The mapping for this key
+     * is stored outside of the table, in {@link #freeKeyValue}.
      */
-    Entry[] mapTable;
+    private static final int FREE_KEY = 0;
+
+    /**
+     * The format version written by {@link #writeTo}.
+     */
+    private static final int SERIALIZATION_VERSION = 1;
+
+    /**
+     * The keys of the hash table (open addressing with linear probing, free slots contain
+     * {@link #FREE_KEY}), resized as necessary. Length MUST Always be a power of two.
+     * Is <code>null</code> in list mode.
+     */
+    int[] mapKeys;
+
+    /**
+     * The values belonging to the keys in {@link #mapKeys}.
+     */
+    long[] mapValues;
+
+    // 32 - log2(mapKeys.length), for computing the home slot of a key
+    private int mapShift;
+
+    private boolean hasFreeKey = false;
+
+    private long freeKeyValue;
 
     long[] list = null;
 
@@ -98,13 +132,12 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
             throw new IllegalArgumentException("Illegal load factor: " + loadFactor);
 
         // Find a power of 2 >= initialCapacity
-        int capacity = 1;
+        int capacity = MINIMUM_CAPACITY;
         while (capacity < initCapacity)
             capacity <<= 1;
 
         this.loadFactor = loadFactor;
-        this.mapThreshold = (int) (capacity * loadFactor);
-        this.mapTable = new Entry[capacity];
+        allocateMap(capacity);
         this.switchToMapRatio = switchToMapRatio;
         this.switchToListRatio = switchToListRatio;
         this.defaultValue = defaultValue;
@@ -168,13 +201,38 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
             }
             return this.defaultValue;
         }
-        final int index = key & (this.mapTable.length - 1);
-        for (Entry e = this.mapTable[index]; e != null; e = e.next)
-            if (key == e.key)
-                return e.value;
+        if (key == FREE_KEY)
+            return this.hasFreeKey ? this.freeKeyValue : this.defaultValue;
+        final int[] keys = this.mapKeys;
+        final int mask = keys.length - 1;
+        int k;
+        for (int slot = slot(key); (k = keys[slot]) != FREE_KEY; slot = (slot + 1) & mask)
+            if (k == key)
+                return this.mapValues[slot];
         return this.defaultValue;
     }
 
+    /**
+     * Returns the home slot of the given key in the hash table (Fibonacci hashing).
+     */
+    private int slot(final int key) {
+        return (key * 0x9e3779b9) >>> this.mapShift;
+    }
+
+    /**
+     * Returns the slot of the given key (which must not be {@link #FREE_KEY}) in the
+     * hash table, or -1 if it is not contained.
+     */
+    private int findSlot(final int key) {
+        final int[] keys = this.mapKeys;
+        final int mask = keys.length - 1;
+        int k;
+        for (int slot = slot(key); (k = keys[slot]) != FREE_KEY; slot = (slot + 1) & mask)
+            if (k == key)
+                return slot;
+        return -1;
+    }
+
     /**
      * Returns <tt>true</tt> if this map contains a mapping for the specified key.
      *
@@ -183,7 +241,18 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
      * @return <tt>true</tt> if this map contains a mapping for the specified key.
      */
     public boolean containsKey(final Object key) {
-        return getEntry(key) != null;
+        if (key instanceof Integer)
+            return containsKey(((Integer) key).intValue());
+        return false;
+    }
+
+    public boolean containsKey(final int key) {
+        if (this.list != null)
+            return key >= 0 && key < this.list.length && (this.list[key] != 0
+                || (this.listEntriesWithZeroValue != null && this.listEntriesWithZeroValue[key]));
+        if (key == FREE_KEY)
+            return this.hasFreeKey;
+        return findSlot(key) != -1;
     }
 
     /**
@@ -202,15 +271,14 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
                 final long val = this.list[key];
                 if (val == 0 && (this.listEntriesWithZeroValue == null || !this.listEntriesWithZeroValue[key]))
                     return null;
-                return new Entry(key, val, null);
+                return new Entry(key, val);
             }
             return null;
         }
-        final int index = key & (this.mapTable.length - 1);
-        for (Entry e = this.mapTable[index]; e != null; e = e.next)
-            if (e.key == key)
-                return e;
-        return null;
+        if (key == FREE_KEY)
+            return this.hasFreeKey ? new Entry(key, this.freeKeyValue) : null;
+        final int slot = findSlot(key);
+        return slot == -1 ? null : new Entry(key, this.mapValues[slot]);
     }
 
     /**
@@ -272,27 +340,43 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
                 return this.defaultValue;
             }
         }
-        final int index = key & (this.mapTable.length - 1);
-        for (Entry e = this.mapTable[index]; e != null; e = e.next) {
-            if (e.key == key) {
-                final long oldValue = e.value;
-                e.value = value;
+        if (key == FREE_KEY) {
+            if (this.hasFreeKey) {
+                final long oldValue = this.freeKeyValue;
+                this.freeKeyValue = value;
+                return oldValue;
+            }
+            this.modCount++;
+            this.hasFreeKey = true;
+            this.freeKeyValue = value;
+            addedEntry(key);
+            return this.defaultValue;
+        }
+        final int[] keys = this.mapKeys;
+        final int mask = keys.length - 1;
+        int slot = slot(key);
+        for (int k; (k = keys[slot]) != FREE_KEY; slot = (slot + 1) & mask) {
+            if (k == key) {
+                final long oldValue = this.mapValues[slot];
+                this.mapValues[slot] = value;
                 return oldValue;
             }
         }
         this.modCount++;
-        addEntry(key, value, index);
+        keys[slot] = key;
+        this.mapValues[slot] = value;
+        addedEntry(key);
         return this.defaultValue;
     }
 
     private void switchToMap() {
         this.modCount++;
-        final int minTableSize = (int) (1.1 * this.list.length / this.loadFactor);
+        final int minTableSize = (int) (1.1 * (this.size + 1) / this.loadFactor);
         int mapTableSize = 1;
         while (mapTableSize < minTableSize)
             mapTableSize <<= 1;
 
-        this.mapTable = new Entry[mapTableSize];
+        allocateMap(Math.max(mapTableSize, MINIMUM_CAPACITY));
         boolean minSet = false;
         for (int key = 0; key < this.list.length; ++key) {
             final long value = this.list[key];
@@ -305,8 +389,7 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
                 this.minIndex = key;
             }
             this.maxIndex = key;
-            final int index = key & (mapTableSize - 1);
-            this.mapTable[index] = new Entry(key, value, this.mapTable[index]);
+            insertNew(key, value);
         }
         this.list = null;
         this.listEntriesWithZeroValue = null;
@@ -314,49 +397,54 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
     }
 
     /**
-     * Rehashes the contents of this map into a new array with a larger capacity. This method is called automatically
-     * when the number of keys in this map reaches its threshold.
-     *
-     * If current capacity is MAXIMUM_CAPACITY, this method does not resize the map, but sets threshold to
-     * Integer.MAX_VALUE. This has the effect of preventing future calls.
-     *
-     * @param newCapacity
-     *            the new capacity, MUST be a power of two; must be greater than current capacity unless current
-     *            capacity is MAXIMUM_CAPACITY (in which case value is irrelevant).
+     * Allocates a new, empty hash table with the given capacity (a power of two).
      */
-    void resizeMap(final int newCapacity) {
-        final Entry[] oldTable = this.mapTable;
-        final int oldCapacity = oldTable.length;
-        if (oldCapacity == MAXIMUM_CAPACITY) {
-            this.mapThreshold = Integer.MAX_VALUE;
+    private void allocateMap(final int capacity) {
+        this.mapKeys = new int[capacity];
+        this.mapValues = new long[capacity];
+        this.mapShift = 32 - Integer.numberOfTrailingZeros(capacity);
+        // at least one slot must stay free to terminate the probe sequences
+        this.mapThreshold = Math.min((int) (capacity * this.loadFactor), capacity - 1);
+    }
+
+    /**
+     * Inserts a key (which must not be {@link #FREE_KEY}) that is not contained in the
+     * hash table yet, without any further bookkeeping.
+     */
+    private void insertNew(final int key, final long value) {
+        if (key == FREE_KEY) {
+            this.hasFreeKey = true;
+            this.freeKeyValue = value;
             return;
         }
-
-        final Entry[] newTable = new Entry[newCapacity];
-        transferMap(newTable);
-        this.mapTable = newTable;
-        this.mapThreshold = (int) (newCapacity * this.loadFactor);
+        final int[] keys = this.mapKeys;
+        final int mask = keys.length - 1;
+        int slot = slot(key);
+        while (keys[slot] != FREE_KEY)
+            slot = (slot + 1) & mask;
+        keys[slot] = key;
+        this.mapValues[slot] = value;
     }
 
     /**
-     * Transfers all entries from current table to newTable.
+     * Rehashes the contents of this map into a new array with a larger capacity. This method is called automatically
+     * when the number of keys in this map reaches its threshold.
+     *
+     * @param newCapacity
+     *            the new capacity, MUST be a power of two and greater than current capacity
+     * @throws IllegalStateException
+     *            if the current capacity is already MAXIMUM_CAPACITY
      */
-    private void transferMap(final Entry[] newTable) {
-        final Entry[] src = this.mapTable;
-        final int newCapacity = newTable.length;
-        for (int j = 0; j < src.length; j++) {
-            Entry e = src[j];
-            if (e != null) {
-                src[j] = null;
-                do {
-                    final Entry next = e.next;
-                    final int newIndex = e.key & (newCapacity - 1);
-                    e.next = newTable[newIndex];
-                    newTable[newIndex] = e;
-                    e = next;
-                } while (e != null);
-            }
-        }
+    void resizeMap(final int newCapacity) {
+        final int[] oldKeys = this.mapKeys;
+        final long[] oldValues = this.mapValues;
+        if (oldKeys.length == MAXIMUM_CAPACITY)
+            throw new IllegalStateException("Maximum capacity reached");
+
+        allocateMap(newCapacity);
+        for (int i = 0; i < oldKeys.length; ++i)
+            if (oldKeys[i] != FREE_KEY)
+                insertNew(oldKeys[i], oldValues[i]);
     }
 
     /**
@@ -401,42 +489,71 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
             return old;
         }
 
-        final int index = key & (this.mapTable.length - 1);
-        Entry prev = this.mapTable[index];
-        Entry e = prev;
+        final long oldValue;
+        if (key == FREE_KEY) {
+            if (!this.hasFreeKey)
+                return this.defaultValue;
+            this.hasFreeKey = false;
+            oldValue = this.freeKeyValue;
+        } else {
+            final int slot = findSlot(key);
+            if (slot == -1)
+                return this.defaultValue;
+            oldValue = this.mapValues[slot];
+            removeSlot(slot, null);
+        }
+        this.modCount++;
+        this.size--;
+        if (key == this.minIndex || key == this.maxIndex)
+            recomputeMinMaxIndexes();
+        return oldValue;
+    }
 
-        while (e != null) {
-            final Entry next = e.next;
-            if (e.key == key) {
-                this.modCount++;
-                this.size--;
-                if (prev == e)
-                    this.mapTable[index] = next;
-                else
-                    prev.next = next;
-                if (e.key == this.minIndex || e.key == this.maxIndex) {
-                    recomputeMinMaxIndexes();
-                }
-                return e.value;
+    /**
+     * Removes the mapping in the given slot of the hash table, and moves back the following
+     * entries of the probe sequence to close the gap (no tombstones are needed).
+     *
+     * @param iterator
+     *            if not <code>null</code>, the iterator which currently visits this slot;
+     *            it is informed about entries that would be skipped because they are moved
+     *            from the beginning of the table to its end
+     */
+    private void removeSlot(final int slot, final MapIterator iterator) {
+        final int[] keys = this.mapKeys;
+        final int mask = keys.length - 1;
+        int gap = slot;
+        int pos = slot;
+        while (true) {
+            pos = (pos + 1) & mask;
+            final int key = keys[pos];
+            if (key == FREE_KEY) {
+                keys[gap] = FREE_KEY;
+                return;
+            }
+            final int home = slot(key);
+            // the entry can be moved to the gap if its home slot is not in (gap, pos]
+            if (gap <= pos ? (home <= gap || home > pos) : (home <= gap && home > pos)) {
+                if (pos < gap && iterator != null)
+                    iterator.addWrapped(key, this.mapValues[pos]);
+                keys[gap] = key;
+                this.mapValues[gap] = this.mapValues[pos];
+                gap = pos;
             }
-            prev = e;
-            e = next;
         }
-
-        return this.defaultValue;
     }
 
     private void recomputeMinMaxIndexes() {
         this.minIndex = Integer.MAX_VALUE;
         this.maxIndex = Integer.MIN_VALUE;
-        for (Entry e : this.mapTable) {
-            while (e != null) {
-                if (e.key < this.minIndex)
-                    this.minIndex = e.key;
-                if (e.key > this.maxIndex)
-                    this.maxIndex = e.key;
-                e = e.next;
-            }
+        if (this.hasFreeKey)
+            this.minIndex = this.maxIndex = FREE_KEY;
+        for (final int key : this.mapKeys) {
+            if (key == FREE_KEY)
+                continue;
+            if (key < this.minIndex)
+                this.minIndex = key;
+            if (key > this.maxIndex)
+                this.maxIndex = key;
         }
     }
 
@@ -450,7 +567,8 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
             this.list = new long[this.list.length];
             this.listEntriesWithZeroValue = null;
         } else {
-            this.mapTable = new Entry[this.mapTable.length];
+            allocateMap(this.mapKeys.length);
+            this.hasFreeKey = false;
             this.minIndex = Integer.MAX_VALUE;
             this.maxIndex = Integer.MIN_VALUE;
         }
@@ -469,7 +587,7 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
         return false;
     }
 
-    public boolean containsValue(final int value) {
+    public boolean containsValue(final long value) {
 
         if (this.list != null) {
             if (value == 0) {
@@ -485,103 +603,112 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
             return false;
         }
 
-        final Entry[] tab = this.mapTable;
-        for (int i = 0; i < tab.length; i++)
-            for (Entry e = tab[i]; e != null; e = e.next)
-                if (value == e.value)
-                    return true;
+        if (this.hasFreeKey && this.freeKeyValue == value)
+            return true;
+        final int[] keys = this.mapKeys;
+        final long[] values = this.mapValues;
+        for (int i = 0; i < keys.length; i++)
+            if (keys[i] != FREE_KEY && values[i] == value)
+                return true;
         return false;
     }
 
-    public void increment(final int key) {
+    public long incrementAndGet(final int key, final long addValue) {
         if (this.list != null) {
             if (key >= 0 && key < this.list.length) {
-                long val = this.list[key];
+                final long val = this.list[key];
                 if (val == 0) {
                     if (this.listEntriesWithZeroValue != null && this.listEntriesWithZeroValue[key]) {
-                        this.listEntriesWithZeroValue[key] = false;
-                        this.list[key] = 1;
-                        return;
+                        this.listEntriesWithZeroValue[key] = addValue == 0;
+                        this.list[key] = addValue;
+                        return addValue;
                     }
                     // otherwise go to the put below
                 } else {
-                    ++val;
-                    if (val == 0) {
+                    final long newVal = val + addValue;
+                    if (newVal == 0) {
                         if (this.listEntriesWithZeroValue == null)
                             this.listEntriesWithZeroValue = new boolean[this.list.length];
                         this.listEntriesWithZeroValue[key] = true;
                     }
-                    this.list[key] = val;
-                    return;
+                    this.list[key] = newVal;
+                    return newVal;
                 }
             }
 
         } else {
 
-            final int index = key & (this.mapTable.length - 1);
-            for (Entry e = this.mapTable[index]; e != null; e = e.next) {
-                if (e.key == key) {
-                    e.value++;
-                    return;
-                }
+            if (key == FREE_KEY) {
+                if (this.hasFreeKey)
+                    return this.freeKeyValue += addValue;
+            } else {
+                final int slot = findSlot(key);
+                if (slot != -1)
+                    return this.mapValues[slot] += addValue;
             }
         }
-        put(key, this.defaultValue + 1);
+        final long newValue = this.defaultValue + addValue;
+        put(key, newValue);
+        return newValue;
     }
 
-    public long incrementAndGet(final int key, final long addValue) {
+    public void increment(final int key) {
         if (this.list != null) {
             if (key >= 0 && key < this.list.length) {
-                final long val = this.list[key];
+                long val = this.list[key];
                 if (val == 0) {
                     if (this.listEntriesWithZeroValue != null && this.listEntriesWithZeroValue[key]) {
                         this.listEntriesWithZeroValue[key] = false;
-                        this.list[key] = addValue;
-                        return addValue;
+                        this.list[key] = 1;
+                        return;
                     }
                     // otherwise go to the put below
                 } else {
-                    final long newVal = val + addValue;
-                    if (newVal == 0) {
+                    ++val;
+                    if (val == 0) {
                         if (this.listEntriesWithZeroValue == null)
                             this.listEntriesWithZeroValue = new boolean[this.list.length];
                         this.listEntriesWithZeroValue[key] = true;
                     }
-                    this.list[key] = newVal;
-                    return newVal;
+                    this.list[key] = val;
+                    return;
                 }
             }
 
         } else {
 
-            final int index = key & (this.mapTable.length - 1);
-            for (Entry e = this.mapTable[index]; e != null; e = e.next) {
-                if (e.key == key) {
-                    e.value += addValue;
-                    return e.value;
+            if (key == FREE_KEY) {
+                if (this.hasFreeKey) {
+                    ++this.freeKeyValue;
+                    return;
+                }
+            } else {
+                final int slot = findSlot(key);
+                if (slot != -1) {
+                    ++this.mapValues[slot];
+                    return;
                 }
             }
         }
-        final long newValue = this.defaultValue + addValue;
-        put(key, newValue);
-        return newValue;
+        put(key, this.defaultValue + 1);
     }
 
-    private static final class Entry implements Map.Entry<Integer, Long> {
+    /**
+     * A mapping returned by the {@link #entrySet()} view. Changing its value writes through
+     * to the map.
+     */
+    private final class Entry implements Map.Entry<Integer, Long> {
 
         final int key;
 
         long value;
 
-        Entry next;
-
         /**
          * Creates new entry.
          */
-        Entry(final int key, final long value, final Entry next) {
+        Entry(final int key, final long value) {
             this.key = key;
             this.value = value;
-            this.next = next;
         }
 
         public final Integer getKey() {
@@ -595,6 +722,7 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
         public final Long setValue(final Long newValue) {
             final long oldValue = this.value;
             this.value = newValue;
+            IntegerToLongMap.this.put(this.key, this.value);
             return oldValue;
         }
 
@@ -627,11 +755,10 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
     }
 
     /**
-     * Adds a new entry with the specified key, value and hash code to the specified bucket. It is the responsibility of
+     * Does the bookkeeping after a new key has been added to the hash table. It is the responsibility of
      * this method to resize the table if appropriate.
      */
-    private void addEntry(final int key, final long value, final int index) {
-        this.mapTable[index] = new Entry(key, value, this.mapTable[index]);
+    private void addedEntry(final int key) {
         this.size++;
         if (key < this.minIndex)
             this.minIndex = key;
@@ -640,7 +767,7 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
         if (checkSwitchToList())
             return;
         if (this.size >= this.mapThreshold)
-            resizeMap(2 * this.mapTable.length);
+            resizeMap(2 * this.mapKeys.length);
     }
 
     private boolean checkSwitchToList() {
@@ -659,62 +786,114 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
             listSize <<= 1;
 
         this.list = new long[listSize];
-        for (Entry e : this.mapTable) {
-            while (e != null) {
-                if (e.key < this.minIndex || e.key > this.maxIndex)
-                    throw new ConcurrentModificationException();
-                if (e.value == 0) {
-                    if (this.listEntriesWithZeroValue == null)
-                        this.listEntriesWithZeroValue = new boolean[listSize];
-                    this.listEntriesWithZeroValue[e.key] = true;
-                } else
-                    this.list[e.key] = e.value;
-                e = e.next;
-            }
+        if (this.hasFreeKey)
+            putListEntry(FREE_KEY, this.freeKeyValue);
+        final int[] keys = this.mapKeys;
+        for (int i = 0; i < keys.length; ++i) {
+            if (keys[i] == FREE_KEY)
+                continue;
+            if (keys[i] < this.minIndex || keys[i] > this.maxIndex)
+                throw new ConcurrentModificationException();
+            putListEntry(keys[i], this.mapValues[i]);
         }
-        this.mapTable = null;
+        this.mapKeys = null;
+        this.mapValues = null;
+        this.hasFreeKey = false;
         this.minIndex = Integer.MAX_VALUE;
         this.maxIndex = Integer.MIN_VALUE;
         this.modCount++;
     }
 
+    private void putListEntry(final int key, final long value) {
+        if (value == 0) {
+            if (this.listEntriesWithZeroValue == null)
+                this.listEntriesWithZeroValue = new boolean[this.list.length];
+            this.listEntriesWithZeroValue[key] = true;
+        } else
+            this.list[key] = value;
+    }
+
+    /**
+     * Iterates the hash table from the last slot to the first one, after returning the mapping
+     * of {@link #FREE_KEY}. Removing an entry can move entries from the beginning of the table
+     * to its end (see {@link IntegerToLongMap#removeSlot}); these are returned at the end.
+     */
     private class MapIterator implements Iterator<Map.Entry<Integer, Long>> {
-        Entry next; // next entry to return
 
         int expectedModCount; // For fast-fail
 
-        int index; // current slot
+        int slot; // the next slot to look at (descending)
+
+        int currentSlot = -1; // slot of the current entry, -1 for the free key or a wrapped entry
+
+        boolean freeKeyPending; // the free key has not been returned yet
+
+        // entries moved from not yet visited to already visited slots
+        int[] wrappedKeys = null;
+        long[] wrappedValues = null;
+        int numWrapped = 0;
 
         Entry current; // current entry
 
         protected MapIterator() {
             this.expectedModCount = IntegerToLongMap.this.modCount;
-            if (IntegerToLongMap.this.size > 0) { // advance to first entry
-                final Entry[] t = IntegerToLongMap.this.mapTable;
-                while (this.index < t.length && (this.next = t[this.index++]) == null) {
-                    continue;
-                }
+            this.freeKeyPending = IntegerToLongMap.this.hasFreeKey;
+            this.slot = IntegerToLongMap.this.mapKeys.length - 1;
+        }
+
+        // moves this.slot to the next occupied slot (or -1). This has to be done lazily,
+        // since removing an entry can move the entries in the slots not visited yet.
+        private void advance() {
+            final int[] keys = IntegerToLongMap.this.mapKeys;
+            while (this.slot >= 0 && keys[this.slot] == FREE_KEY)
+                --this.slot;
+        }
+
+        void addWrapped(final int key, final long value) {
+            if (this.wrappedKeys == null) {
+                this.wrappedKeys = new int[4];
+                this.wrappedValues = new long[4];
+            } else if (this.numWrapped == this.wrappedKeys.length) {
+                final int[] newKeys = new int[2 * this.numWrapped];
+                final long[] newValues = new long[2 * this.numWrapped];
+                System.arraycopy(this.wrappedKeys, 0, newKeys, 0, this.numWrapped);
+                System.arraycopy(this.wrappedValues, 0, newValues, 0, this.numWrapped);
+                this.wrappedKeys = newKeys;
+                this.wrappedValues = newValues;
             }
+            this.wrappedKeys[this.numWrapped] = key;
+            this.wrappedValues[this.numWrapped++] = value;
         }
 
         public Entry next() {
             if (IntegerToLongMap.this.modCount != this.expectedModCount)
                 throw new ConcurrentModificationException();
-            final Entry e = this.next;
-            if (e == null)
+            final Entry e;
+            advance();
+            if (this.freeKeyPending) {
+                this.freeKeyPending = false;
+                this.currentSlot = -1;
+                e = new Entry(FREE_KEY, IntegerToLongMap.this.freeKeyValue);
+            } else if (this.slot >= 0) {
+                this.currentSlot = this.slot;
+                e = new Entry(IntegerToLongMap.this.mapKeys[this.slot], IntegerToLongMap.this.mapValues[this.slot]);
+                --this.slot;
+            } else if (this.numWrapped > 0) {
+                this.currentSlot = -1;
+                --this.numWrapped;
+                e = new Entry(this.wrappedKeys[this.numWrapped], this.wrappedValues[this.numWrapped]);
+            } else {
                 throw new NoSuchElementException();
-
-            if ((this.next = e.next) == null) {
-                final Entry[] t = IntegerToLongMap.this.mapTable;
-                while (this.index < t.length && (this.next = t[this.index++]) == null)
-                    continue;
             }
             this.current = e;
             return e;
         }
 
         public final boolean hasNext() {
-            return this.next != null;
+            if (this.freeKeyPending)
+                return true;
+            advance();
+            return this.slot >= 0 || this.numWrapped > 0;
         }
 
         public void remove() {
@@ -724,7 +903,16 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
                 throw new ConcurrentModificationException();
             final int k = this.current.key;
             this.current = null;
-            IntegerToLongMap.this.remove(k);
+            if (this.currentSlot >= 0 && IntegerToLongMap.this.mapKeys[this.currentSlot] == k) {
+                // remove directly, so that we are informed about wrapped entries
+                removeSlot(this.currentSlot, this);
+                IntegerToLongMap.this.modCount++;
+                IntegerToLongMap.this.size--;
+                if (k == IntegerToLongMap.this.minIndex || k == IntegerToLongMap.this.maxIndex)
+                    recomputeMinMaxIndexes();
+            } else {
+                IntegerToLongMap.this.remove(k);
+            }
             this.expectedModCount = IntegerToLongMap.this.modCount;
         }
 
@@ -957,7 +1145,7 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
                             throw new NoSuchElementException();
                         this.lastKey = this.nextCursor;
                         this.nextCursor = getNextCursor(this.nextCursor + 1);
-                        return new Entry(this.lastKey, IntegerToLongMap.this.list[this.lastKey], null);
+                        return new Entry(this.lastKey, IntegerToLongMap.this.list[this.lastKey]);
                     }
 
                     public void remove() {
@@ -1152,7 +1340,7 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
 
         if (!(o instanceof Map))
             return false;
-        final Map<Integer, Integer> m = (Map<Integer, Integer>) o;
+        final Map<Integer, Long> m = (Map<Integer, Long>) o;
         if (m.size() != size())
             return false;
 
@@ -1174,6 +1362,121 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
         return true;
     }
 
+    /**
+     * Writes this map to the given stream, such that it can be restored by {@link #readFrom}.
+     *
+     * The current mode is kept: in list mode, the list is written as one block of values, followed by the
+     * ascending keys of the entries with value 0; in map mode, the key and value arrays of the hash table
+     * are written in slot order, so that reading them back is a plain array fill, without any rehashing.
+     * All numbers use the variable-length encoding of the {@link OptimizedDataOutputStream}; only the
+     * ascending keys of list mode profit from its delta encoding, the keys of map mode are not sorted.
+     */
+    public void writeTo(final OptimizedDataOutputStream out) throws IOException {
+        out.writeInt(SERIALIZATION_VERSION);
+        out.writeInt(this.list != null ? 0 : 1);
+        out.writeInt(Float.floatToIntBits(this.loadFactor));
+        out.writeInt(Float.floatToIntBits(this.switchToMapRatio));
+        out.writeInt(Float.floatToIntBits(this.switchToListRatio));
+        out.writeLong(this.defaultValue);
+        out.writeInt(this.size);
+        if (this.list != null) {
+            out.writeInt(this.list.length);
+            out.writeLongs(this.list, 0, this.list.length);
+            // the keys of entries with value 0, in ascending order
+            int numZeroEntries = 0;
+            final int[] zeroKeys = new int[this.listEntriesWithZeroValue == null ? 0 : this.size];
+            if (this.listEntriesWithZeroValue != null)
+                for (int key = 0; key < this.list.length; ++key)
+                    if (this.listEntriesWithZeroValue[key] && this.list[key] == 0)
+                        zeroKeys[numZeroEntries++] = key;
+            out.writeInt(numZeroEntries);
+            out.writeInts(zeroKeys, 0, numZeroEntries);
+        } else {
+            out.writeInt(this.mapKeys.length);
+            out.writeInt(this.minIndex);
+            out.writeInt(this.maxIndex);
+            out.writeInt(this.hasFreeKey ? 1 : 0);
+            out.writeLong(this.freeKeyValue);
+            out.writeInts(this.mapKeys, 0, this.mapKeys.length);
+            out.writeLongs(this.mapValues, 0, this.mapValues.length);
+        }
+    }
+
+    /**
+     * Reads a map written by {@link #writeTo}.
+     *
+     * @throws IOException if the stream ends prematurely, or does not contain a valid map
+     */
+    public static IntegerToLongMap readFrom(final OptimizedDataInputStream in) throws IOException {
+        final int version = in.readInt();
+        if (version != SERIALIZATION_VERSION)
+            throw new IOException("Unsupported serialization version: " + version);
+        final int mode = in.readInt();
+        if (mode != 0 && mode != 1)
+            throw new IOException("Illegal map mode: " + mode);
+        final float loadFactor = Float.intBitsToFloat(in.readInt());
+        final float switchToMapRatio = Float.intBitsToFloat(in.readInt());
+        final float switchToListRatio = Float.intBitsToFloat(in.readInt());
+        final long defaultValue = in.readLong();
+        final int size = in.readInt();
+        final int length = in.readInt();
+        if (size < 0 || length < 0 || length > MAXIMUM_CAPACITY || (mode == 1 && Integer.bitCount(length) != 1))
+            throw new IOException("Corrupt map: size " + size + ", length " + length);
+
+        final IntegerToLongMap map;
+        try {
+            map = new IntegerToLongMap(0, loadFactor, switchToMapRatio, switchToListRatio, defaultValue);
+        } catch (final IllegalArgumentException e) {
+            throw new IOException("Corrupt map: " + e.getMessage());
+        }
+        int numEntries = 0;
+        if (mode == 0) {
+            map.mapKeys = null;
+            map.mapValues = null;
+            map.list = new long[length];
+            in.readLongs(map.list, 0, length);
+            for (final long value : map.list)
+                if (value != 0)
+                    ++numEntries;
+            final int numZeroEntries = in.readInt();
+            if (numZeroEntries < 0 || numZeroEntries > length)
+                throw new IOException("Corrupt map: " + numZeroEntries + " entries with value 0");
+            if (numZeroEntries > 0) {
+                final int[] zeroKeys = new int[numZeroEntries];
+                in.readInts(zeroKeys, 0, numZeroEntries);
+                map.listEntriesWithZeroValue = new boolean[length];
+                for (final int key : zeroKeys) {
+                    if (key < 0 || key >= length || map.list[key] != 0 || map.listEntriesWithZeroValue[key])
+                        throw new IOException("Corrupt map: illegal key " + key);
+                    map.listEntriesWithZeroValue[key] = true;
+                }
+                numEntries += numZeroEntries;
+            }
+        } else {
+            map.allocateMap(Math.max(length, MINIMUM_CAPACITY));
+            if (map.mapKeys.length != length)
+                throw new IOException("Corrupt map: illegal capacity " + length);
+            map.minIndex = in.readInt();
+            map.maxIndex = in.readInt();
+            map.hasFreeKey = in.readInt() != 0;
+            map.freeKeyValue = in.readLong();
+            in.readInts(map.mapKeys, 0, length);
+            in.readLongs(map.mapValues, 0, length);
+            for (final int key : map.mapKeys)
+                if (key != FREE_KEY)
+                    ++numEntries;
+            // at least one slot has to be free to terminate the probe sequences
+            if (numEntries == length)
+                throw new IOException("Corrupt map: no free slot");
+            if (map.hasFreeKey)
+                ++numEntries;
+        }
+        if (numEntries != size)
+            throw new IOException("Corrupt map: " + numEntries + " entries instead of " + size);
+        map.size = size;
+        return map;
+    }
+
     @Override
     public IntegerToLongMap clone() {
         IntegerToLongMap clone;
@@ -1191,16 +1494,9 @@ public class IntegerToLongMap implements Map<Integer, Long>, Cloneable {
             clone.listEntriesWithZeroValue = new boolean[this.listEntriesWithZeroValue.length];
             System.arraycopy(this.listEntriesWithZeroValue, 0, clone.listEntriesWithZeroValue, 0, this.listEntriesWithZeroValue.length);
         }
-        if (this.mapTable != null) {
-            final Entry[] newTable = new Entry[this.mapTable.length];
-            for (int j = 0; j < this.mapTable.length; ++j) {
-                Entry e = this.mapTable[j];
-                while (e != null) {
-                    newTable[j] = new Entry(e.key, e.value, newTable[j]);
-                    e = e.next;
-                }
-            }
-            clone.mapTable = newTable;
+        if (this.mapKeys != null) {
+            clone.mapKeys = this.mapKeys.clone();
+            clone.mapValues = this.mapValues.clone();
         }
         return clone;
     }
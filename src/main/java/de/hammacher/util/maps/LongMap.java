@@ -164,7 +164,7 @@ public class LongMap<V> implements Map<Long, V>, Cloneable {
      */
     public V get(final Object key) {
         if (key instanceof Long)
-            return get(((Long) key).intValue());
+            return get(((Long) key).longValue());
         return null;
     }
 
@@ -192,7 +192,7 @@ public class LongMap<V> implements Map<Long, V>, Cloneable {
      * @return <tt>true</tt> if this map contains a mapping for the specified key.
      */
     public boolean containsKey(final Object key) {
-        return key instanceof Long ? containsKey(((Long)key).intValue()) : false;
+        return key instanceof Long ? containsKey(((Long)key).longValue()) : false;
     }
 
     /**
@@ -227,7 +227,7 @@ public class LongMap<V> implements Map<Long, V>, Cloneable {
      *         <tt>key</tt>.
      */
     public V put(final Long key, final V value) {
-        return put(key.intValue(), value);
+        return put(key.longValue(), value);
     }
 
     public V put(final long key, final V value) {
@@ -402,7 +402,7 @@ public class LongMap<V> implements Map<Long, V>, Cloneable {
      */
     public V remove(final Object key) {
         if (key instanceof Long)
-            return remove(((Long) key).intValue());
+            return remove(((Long) key).longValue());
         return null;
     }
 
@@ -607,6 +607,145 @@ public class LongMap<V> implements Map<Long, V>, Cloneable {
         ++this.modCount;
     }
 
+    /**
+     * Passes all mappings of this map to the given visitor. In contrast to iterating over
+     * {@link #entrySet()}, this does not box the keys and does not allocate any objects.
+     * The visitor must not structurally modify this map.
+     *
+     * @throws ConcurrentModificationException if the map was structurally modified during the visit
+     */
+    public void forEachEntry(final LongObjectVisitor<? super V> visitor) {
+        final int expectedModCount = this.modCount;
+        final V[] l = this.list;
+        if (l != null) {
+            final long offset = this.listOffset;
+            for (int i = 0; i < l.length; ++i) {
+                final V value = l[i];
+                if (value != null)
+                    visitor.visit(i + offset, value == getNullValue() ? null : value);
+            }
+        } else {
+            final Entry<V>[] tab = this.mapTable;
+            for (int i = 0; i < tab.length; ++i)
+                for (Entry<V> e = tab[i]; e != null; e = e.next)
+                    visitor.visit(e.key, e.value);
+        }
+        if (this.modCount != expectedModCount)
+            throw new ConcurrentModificationException();
+    }
+
+    /**
+     * Returns an immutable snapshot of this map, which is more compact than this map and can be read by
+     * several threads concurrently. Later modifications of this map are not reflected in the snapshot.
+     *
+     * @see FrozenLongMap
+     */
+    public FrozenLongMap<V> freeze() {
+        return new FrozenLongMap<V>(this);
+    }
+
+    /**
+     * Returns a new cursor positioned before the first mapping of this map.
+     *
+     * @see Cursor
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Iterates over the mappings of the map without allocating an object per step:
+     * <pre>
+     * for (LongMap&lt;V&gt;.Cursor c = map.cursor(); c.advance(); )
+     *     process(c.key(), c.value());
+     * </pre>
+     * The map must not be structurally modified during the iteration, except through
+     * {@link #setValue}.
+     */
+    public final class Cursor {
+
+        private final int expectedModCount = LongMap.this.modCount;
+
+        // the list index or hash table bucket of the current mapping
+        private int index = -1;
+
+        // the current entry in map mode
+        private Entry<V> entry = null;
+
+        Cursor() {
+            // created by cursor()
+        }
+
+        /**
+         * Moves to the next mapping.
+         *
+         * @return <code>false</code> if there are no more mappings
+         * @throws ConcurrentModificationException if the map was structurally modified
+         */
+        public boolean advance() {
+            if (LongMap.this.modCount != this.expectedModCount)
+                throw new ConcurrentModificationException();
+            final V[] l = LongMap.this.list;
+            if (l != null) {
+                while (++this.index < l.length)
+                    if (l[this.index] != null)
+                        return true;
+                this.index = l.length;
+                return false;
+            }
+            if (this.entry != null && (this.entry = this.entry.next) != null)
+                return true;
+            final Entry<V>[] tab = LongMap.this.mapTable;
+            while (++this.index < tab.length)
+                if ((this.entry = tab[this.index]) != null)
+                    return true;
+            this.index = tab.length;
+            return false;
+        }
+
+        /**
+         * @return the key of the current mapping
+         */
+        public long key() {
+            checkCurrent();
+            return this.entry != null ? this.entry.key : this.index + LongMap.this.listOffset;
+        }
+
+        /**
+         * @return the value of the current mapping
+         */
+        public V value() {
+            checkCurrent();
+            if (this.entry != null)
+                return this.entry.value;
+            final V value = LongMap.this.list[this.index];
+            return value == getNullValue() ? null : value;
+        }
+
+        /**
+         * Replaces the value of the current mapping.
+         *
+         * @return the previous value
+         */
+        public V setValue(final V value) {
+            checkCurrent();
+            if (this.entry != null)
+                return this.entry.setValue(value);
+            final V old = LongMap.this.list[this.index];
+            LongMap.this.list[this.index] = value == null ? getNullValue() : value;
+            return old == getNullValue() ? null : old;
+        }
+
+        private void checkCurrent() {
+            if (LongMap.this.modCount != this.expectedModCount)
+                throw new ConcurrentModificationException();
+            if (this.entry == null && (LongMap.this.list == null
+                    || this.index < 0 || this.index >= LongMap.this.list.length))
+                throw new NoSuchElementException();
+        }
+
+    }
+
     private class MapIterator implements Iterator<Map.Entry<Long, V>> {
         Entry<V> next; // next entry to return
 
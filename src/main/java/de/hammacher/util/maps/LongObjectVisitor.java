@@ -0,0 +1,13 @@
+package de.hammacher.util.maps;
+
+/**
+ * Visits the mappings of a {@link LongMap} without boxing keys or allocating entries.
+ *
+ * @author Clemens Hammacher
+ * @param <V> the value type
+ */
+public interface LongObjectVisitor<V> {
+
+    void visit(long key, V value);
+
+}
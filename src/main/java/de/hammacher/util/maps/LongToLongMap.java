@@ -0,0 +1,831 @@
+package de.hammacher.util.maps;
+
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A map from primitive <code>long</code> keys to primitive <code>long</code> values.
+ *
+ * The mappings are stored in two parallel arrays (open addressing with linear probing),
+ * so no object is allocated per mapping. Lookups of absent keys return a default value
+ * that is given on construction. The {@link Map} interface is implemented on top of
+ * this, boxing keys and values on demand.
+ *
+ * @author Clemens Hammacher
+ */
+public class LongToLongMap implements Map<Long, Long>, Cloneable {
+
+    /**
+     * The default initial capacity - MUST be a power of two.
+     */
+    public static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+    /**
+     * The maximum capacity, used if a higher value is implicitly specified by either of the constructors with
+     * arguments. MUST be a power of two <= 1<<30.
+     */
+    static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    /**
+     * The minimum capacity of the hash table. MUST be a power of two >= 2.
+     */
+    private static final int MINIMUM_CAPACITY = 4;
+
+    /**
+     * The load factor used when none specified in constructor.
+     */
+    public static final float DEFAULT_LOAD_FACTOR = 0.75f;
+
+    /**
+     * The key used to mark free slots in {@link #keys}. The mapping for this key
+     * is stored outside of the table, in {@link #freeKeyValue}.
+     */
+    private static final long FREE_KEY = 0;
+
+    /**
+     * The keys of the hash table (free slots contain {@link #FREE_KEY}), resized as
+     * necessary. Length MUST Always be a power of two.
+     */
+    long[] keys;
+
+    /**
+     * The values belonging to the keys in {@link #keys}.
+     */
+    long[] values;
+
+    // 64 - log2(keys.length), for computing the home slot of a key
+    private int shift;
+
+    private boolean hasFreeKey = false;
+
+    private long freeKeyValue;
+
+    /**
+     * The number of key-value mappings contained in this map.
+     */
+    int size;
+
+    /**
+     * The next size value at which to resize (capacity * load factor).
+     */
+    private int threshold;
+
+    /**
+     * The load factor for the hash table.
+     */
+    private final float loadFactor;
+
+    /**
+     * The number of times this map has been structurally modified. Used to make iterators
+     * on Collection-views of the map fail-fast. (See ConcurrentModificationException).
+     */
+    volatile int modCount;
+
+    protected final long defaultValue;
+
+    /**
+     * Constructs an empty map with the specified initial capacity, load factor and default value.
+     *
+     * @param initialCapacity
+     *            the initial capacity
+     * @param loadFactor
+     *            the load factor
+     * @param defaultValue
+     *            the value returned for keys which are not contained in the map
+     * @throws IllegalArgumentException
+     *             if the initial capacity is negative or the load factor is nonpositive
+     */
+    public LongToLongMap(final int initialCapacity, final float loadFactor, final long defaultValue) {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException("Illegal initial capacity: " + initialCapacity);
+        final int initCapacity = initialCapacity > MAXIMUM_CAPACITY ? MAXIMUM_CAPACITY : initialCapacity;
+        if (loadFactor <= 0 || Float.isNaN(loadFactor)) // check for negative value or NaN
+            throw new IllegalArgumentException("Illegal load factor: " + loadFactor);
+
+        // Find a power of 2 >= initialCapacity
+        int capacity = MINIMUM_CAPACITY;
+        while (capacity < initCapacity)
+            capacity <<= 1;
+
+        this.loadFactor = loadFactor;
+        this.defaultValue = defaultValue;
+        allocate(capacity);
+    }
+
+    /**
+     * Constructs an empty map with the specified initial capacity, the default load factor (0.75),
+     * and default value 0.
+     *
+     * @param initialCapacity
+     *            the initial capacity.
+     * @throws IllegalArgumentException
+     *             if the initial capacity is negative.
+     */
+    public LongToLongMap(final int initialCapacity) {
+        this(initialCapacity, DEFAULT_LOAD_FACTOR, 0);
+    }
+
+    /**
+     * Constructs an empty map with the default initial capacity (16), the default load factor (0.75),
+     * and default value 0.
+     */
+    public LongToLongMap() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    /**
+     * @return the value returned for keys which are not contained in this map
+     */
+    public long getDefaultValue() {
+        return this.defaultValue;
+    }
+
+    /**
+     * Returns the number of key-value mappings in this map.
+     *
+     * @return the number of key-value mappings in this map
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns <tt>true</tt> if this map contains no key-value mappings.
+     *
+     * @return <tt>true</tt> if this map contains no key-value mappings
+     */
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped, or the default value if this map contains no
+     * mapping for the key.
+     * Returns <code>null</code> if the key is not of type Long;
+     */
+    public Long get(final Object key) {
+        if (key instanceof Long)
+            return getLong(((Long) key).longValue());
+        return null;
+    }
+
+    public long getLong(final long key) {
+        if (key == FREE_KEY)
+            return this.hasFreeKey ? this.freeKeyValue : this.defaultValue;
+        final long[] keys = this.keys;
+        final int mask = keys.length - 1;
+        long k;
+        for (int slot = slot(key); (k = keys[slot]) != FREE_KEY; slot = (slot + 1) & mask)
+            if (k == key)
+                return this.values[slot];
+        return this.defaultValue;
+    }
+
+    /**
+     * Returns the home slot of the given key in the hash table (Fibonacci hashing).
+     */
+    private int slot(final long key) {
+        return (int) ((key * 0x9e3779b97f4a7c15L) >>> this.shift);
+    }
+
+    /**
+     * Returns the slot of the given key (which must not be {@link #FREE_KEY}) in the
+     * hash table, or -1 if it is not contained.
+     */
+    private int findSlot(final long key) {
+        final long[] keys = this.keys;
+        final int mask = keys.length - 1;
+        long k;
+        for (int slot = slot(key); (k = keys[slot]) != FREE_KEY; slot = (slot + 1) & mask)
+            if (k == key)
+                return slot;
+        return -1;
+    }
+
+    /**
+     * Returns <tt>true</tt> if this map contains a mapping for the specified key.
+     *
+     * @param key
+     *            The key whose presence in this map is to be tested
+     * @return <tt>true</tt> if this map contains a mapping for the specified key.
+     */
+    public boolean containsKey(final Object key) {
+        if (key instanceof Long)
+            return containsKey(((Long) key).longValue());
+        return false;
+    }
+
+    public boolean containsKey(final long key) {
+        if (key == FREE_KEY)
+            return this.hasFreeKey;
+        return findSlot(key) != -1;
+    }
+
+    /**
+     * Associates the specified value with the specified key in this map. If the map previously contained a mapping for
+     * the key, the old value is replaced.
+     *
+     * @param key
+     *            key with which the specified value is to be associated
+     * @param value
+     *            value to be associated with the specified key
+     * @return the previous value associated with <tt>key</tt>, or <tt>defaultValue</tt> if there was no mapping for
+     *         <tt>key</tt>.
+     */
+    public Long put(final Long key, final Long value) {
+        return put(key.longValue(), value.longValue());
+    }
+
+    public long put(final long key, final long value) {
+        if (key == FREE_KEY) {
+            if (this.hasFreeKey) {
+                final long oldValue = this.freeKeyValue;
+                this.freeKeyValue = value;
+                return oldValue;
+            }
+            this.modCount++;
+            this.hasFreeKey = true;
+            this.freeKeyValue = value;
+            this.size++;
+            return this.defaultValue;
+        }
+        final long[] keys = this.keys;
+        final int mask = keys.length - 1;
+        int slot = slot(key);
+        for (long k; (k = keys[slot]) != FREE_KEY; slot = (slot + 1) & mask) {
+            if (k == key) {
+                final long oldValue = this.values[slot];
+                this.values[slot] = value;
+                return oldValue;
+            }
+        }
+        this.modCount++;
+        keys[slot] = key;
+        this.values[slot] = value;
+        if (++this.size >= this.threshold)
+            resize(2 * keys.length);
+        return this.defaultValue;
+    }
+
+    /**
+     * Adds <code>addValue</code> to the value of the given key. If there is no mapping for
+     * the key, a new mapping to <code>defaultValue + addValue</code> is inserted.
+     *
+     * @return the previous value associated with <tt>key</tt>, or <tt>defaultValue</tt> if there was no mapping for
+     *         <tt>key</tt>.
+     */
+    public long addTo(final long key, final long addValue) {
+        final long oldValue;
+        if (key == FREE_KEY) {
+            oldValue = this.hasFreeKey ? this.freeKeyValue : this.defaultValue;
+        } else {
+            final int slot = findSlot(key);
+            if (slot != -1) {
+                oldValue = this.values[slot];
+                this.values[slot] += addValue;
+                return oldValue;
+            }
+            oldValue = this.defaultValue;
+        }
+        put(key, oldValue + addValue);
+        return oldValue;
+    }
+
+    /**
+     * Adds <code>addValue</code> to the value of the given key (see {@link #addTo(long, long)}).
+     *
+     * @return the new value associated with <tt>key</tt>
+     */
+    public long incrementAndGet(final long key, final long addValue) {
+        return addTo(key, addValue) + addValue;
+    }
+
+    public void increment(final long key) {
+        addTo(key, 1);
+    }
+
+    /**
+     * Allocates a new, empty hash table with the given capacity (a power of two).
+     */
+    private void allocate(final int capacity) {
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+        this.shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        // at least one slot must stay free to terminate the probe sequences
+        this.threshold = Math.min((int) (capacity * this.loadFactor), capacity - 1);
+    }
+
+    /**
+     * Rehashes the contents of this map into a new array with a larger capacity. This method is called automatically
+     * when the number of keys in this map reaches its threshold.
+     *
+     * @param newCapacity
+     *            the new capacity, MUST be a power of two and greater than current capacity
+     * @throws IllegalStateException
+     *            if the current capacity is already MAXIMUM_CAPACITY
+     */
+    void resize(final int newCapacity) {
+        final long[] oldKeys = this.keys;
+        final long[] oldValues = this.values;
+        if (oldKeys.length == MAXIMUM_CAPACITY)
+            throw new IllegalStateException("Maximum capacity reached");
+
+        allocate(newCapacity);
+        final long[] keys = this.keys;
+        final int mask = newCapacity - 1;
+        for (int i = 0; i < oldKeys.length; ++i) {
+            final long key = oldKeys[i];
+            if (key == FREE_KEY)
+                continue;
+            int slot = slot(key);
+            while (keys[slot] != FREE_KEY)
+                slot = (slot + 1) & mask;
+            keys[slot] = key;
+            this.values[slot] = oldValues[i];
+        }
+    }
+
+    /**
+     * Copies all of the mappings from the specified map to this map. These mappings will replace any mappings that this
+     * map had for any of the keys currently in the specified map.
+     *
+     * @param m
+     *            mappings to be stored in this map
+     * @throws NullPointerException
+     *             if the specified map is null
+     */
+    public void putAll(final Map<? extends Long, ? extends Long> m) {
+        for (final Map.Entry<? extends Long, ? extends Long> e : m.entrySet())
+            put(e.getKey(), e.getValue());
+    }
+
+    /**
+     * Removes the mapping for the specified key from this map if present.
+     *
+     * @param key
+     *            key whose mapping is to be removed from the map
+     * @return the previous value associated with <tt>key</tt>, or <tt>defaultValue</tt> if there was no mapping for
+     *         <tt>key</tt>. A <tt>null</tt> is returned if the key is not of type Long.
+     */
+    public Long remove(final Object key) {
+        if (key instanceof Long)
+            return remove(((Long) key).longValue());
+        return null;
+    }
+
+    public long remove(final long key) {
+        final long oldValue;
+        if (key == FREE_KEY) {
+            if (!this.hasFreeKey)
+                return this.defaultValue;
+            this.hasFreeKey = false;
+            oldValue = this.freeKeyValue;
+        } else {
+            final int slot = findSlot(key);
+            if (slot == -1)
+                return this.defaultValue;
+            oldValue = this.values[slot];
+            removeSlot(slot, null);
+        }
+        this.modCount++;
+        this.size--;
+        return oldValue;
+    }
+
+    /**
+     * Removes the mapping in the given slot of the hash table, and moves back the following
+     * entries of the probe sequence to close the gap (no tombstones are needed).
+     *
+     * @param iterator
+     *            if not <code>null</code>, the iterator which currently visits this slot;
+     *            it is informed about entries that would be skipped because they are moved
+     *            from the beginning of the table to its end
+     */
+    private void removeSlot(final int slot, final MapIterator iterator) {
+        final long[] keys = this.keys;
+        final int mask = keys.length - 1;
+        int gap = slot;
+        int pos = slot;
+        while (true) {
+            pos = (pos + 1) & mask;
+            final long key = keys[pos];
+            if (key == FREE_KEY) {
+                keys[gap] = FREE_KEY;
+                return;
+            }
+            final int home = slot(key);
+            // the entry can be moved to the gap if its home slot is not in (gap, pos]
+            if (gap <= pos ? (home <= gap || home > pos) : (home <= gap && home > pos)) {
+                if (pos < gap && iterator != null)
+                    iterator.addWrapped(key, this.values[pos]);
+                keys[gap] = key;
+                this.values[gap] = this.values[pos];
+                gap = pos;
+            }
+        }
+    }
+
+    /**
+     * Removes all of the mappings from this map. The map will be empty after this call returns.
+     */
+    public void clear() {
+        this.modCount++;
+        this.size = 0;
+        this.hasFreeKey = false;
+        allocate(this.keys.length);
+    }
+
+    /**
+     * Returns <tt>true</tt> if this map maps one or more keys to the specified value.
+     *
+     * @param value
+     *            value whose presence in this map is to be tested
+     * @return <tt>true</tt> if this map maps one or more keys to the specified value
+     */
+    public boolean containsValue(final Object value) {
+        if (value instanceof Long)
+            return containsValue(((Long) value).longValue());
+        return false;
+    }
+
+    public boolean containsValue(final long value) {
+        if (this.hasFreeKey && this.freeKeyValue == value)
+            return true;
+        final long[] keys = this.keys;
+        final long[] values = this.values;
+        for (int i = 0; i < keys.length; i++)
+            if (keys[i] != FREE_KEY && values[i] == value)
+                return true;
+        return false;
+    }
+
+    /**
+     * A mapping returned by the {@link #entrySet()} view. Changing its value writes through
+     * to the map.
+     */
+    private final class Entry implements Map.Entry<Long, Long> {
+
+        final long key;
+
+        long value;
+
+        Entry(final long key, final long value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public final Long getKey() {
+            return this.key;
+        }
+
+        public final Long getValue() {
+            return this.value;
+        }
+
+        public final Long setValue(final Long newValue) {
+            final long oldValue = this.value;
+            this.value = newValue;
+            LongToLongMap.this.put(this.key, this.value);
+            return oldValue;
+        }
+
+        @Override
+        public final boolean equals(final Object o) {
+            if (!(o instanceof Map.Entry<?, ?>))
+                return false;
+            final Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return getKey().equals(e.getKey()) && getValue().equals(e.getValue());
+        }
+
+        @Override
+        public final int hashCode() {
+            return (int) (this.key ^ (this.key >>> 32)) ^ (int) (this.value ^ (this.value >>> 32));
+        }
+
+        @Override
+        public final String toString() {
+            return this.key + "=" + this.value;
+        }
+
+    }
+
+    /**
+     * Iterates the hash table from the last slot to the first one, after returning the mapping
+     * of {@link #FREE_KEY}. Removing an entry can move entries from the beginning of the table
+     * to its end (see {@link LongToLongMap#removeSlot}); these are returned at the end.
+     */
+    private class MapIterator implements Iterator<Map.Entry<Long, Long>> {
+
+        int expectedModCount; // For fast-fail
+
+        int slot; // the next slot to look at (descending)
+
+        int currentSlot = -1; // slot of the current entry, -1 for the free key or a wrapped entry
+
+        boolean freeKeyPending; // the free key has not been returned yet
+
+        // entries moved from not yet visited to already visited slots
+        long[] wrappedKeys = null;
+        long[] wrappedValues = null;
+        int numWrapped = 0;
+
+        Entry current; // current entry
+
+        protected MapIterator() {
+            this.expectedModCount = LongToLongMap.this.modCount;
+            this.freeKeyPending = LongToLongMap.this.hasFreeKey;
+            this.slot = LongToLongMap.this.keys.length - 1;
+        }
+
+        // moves this.slot to the next occupied slot (or -1). This has to be done lazily,
+        // since removing an entry can move the entries in the slots not visited yet.
+        private void advance() {
+            final long[] keys = LongToLongMap.this.keys;
+            while (this.slot >= 0 && keys[this.slot] == FREE_KEY)
+                --this.slot;
+        }
+
+        void addWrapped(final long key, final long value) {
+            if (this.wrappedKeys == null) {
+                this.wrappedKeys = new long[4];
+                this.wrappedValues = new long[4];
+            } else if (this.numWrapped == this.wrappedKeys.length) {
+                final long[] newKeys = new long[2 * this.numWrapped];
+                final long[] newValues = new long[2 * this.numWrapped];
+                System.arraycopy(this.wrappedKeys, 0, newKeys, 0, this.numWrapped);
+                System.arraycopy(this.wrappedValues, 0, newValues, 0, this.numWrapped);
+                this.wrappedKeys = newKeys;
+                this.wrappedValues = newValues;
+            }
+            this.wrappedKeys[this.numWrapped] = key;
+            this.wrappedValues[this.numWrapped++] = value;
+        }
+
+        public Entry next() {
+            if (LongToLongMap.this.modCount != this.expectedModCount)
+                throw new ConcurrentModificationException();
+            final Entry e;
+            advance();
+            if (this.freeKeyPending) {
+                this.freeKeyPending = false;
+                this.currentSlot = -1;
+                e = new Entry(FREE_KEY, LongToLongMap.this.freeKeyValue);
+            } else if (this.slot >= 0) {
+                this.currentSlot = this.slot;
+                e = new Entry(LongToLongMap.this.keys[this.slot], LongToLongMap.this.values[this.slot]);
+                --this.slot;
+            } else if (this.numWrapped > 0) {
+                this.currentSlot = -1;
+                --this.numWrapped;
+                e = new Entry(this.wrappedKeys[this.numWrapped], this.wrappedValues[this.numWrapped]);
+            } else {
+                throw new NoSuchElementException();
+            }
+            this.current = e;
+            return e;
+        }
+
+        public final boolean hasNext() {
+            if (this.freeKeyPending)
+                return true;
+            advance();
+            return this.slot >= 0 || this.numWrapped > 0;
+        }
+
+        public void remove() {
+            if (this.current == null)
+                throw new IllegalStateException();
+            if (LongToLongMap.this.modCount != this.expectedModCount)
+                throw new ConcurrentModificationException();
+            final long k = this.current.key;
+            this.current = null;
+            if (this.currentSlot >= 0 && LongToLongMap.this.keys[this.currentSlot] == k) {
+                // remove directly, so that we are informed about wrapped entries
+                removeSlot(this.currentSlot, this);
+                LongToLongMap.this.modCount++;
+                LongToLongMap.this.size--;
+            } else {
+                LongToLongMap.this.remove(k);
+            }
+            this.expectedModCount = LongToLongMap.this.modCount;
+        }
+
+    }
+
+    /**
+     * Returns a {@link Set} view of the keys contained in this map. The set is backed by the map, so changes to the map
+     * are reflected in the set, and vice-versa. If the map is modified while an iteration over the set is in progress
+     * (except through the iterator's own <tt>remove</tt> operation), the results of the iteration are undefined. The
+     * set supports element removal, which removes the corresponding mapping from the map, via the
+     * <tt>Iterator.remove</tt>, <tt>Set.remove</tt>, <tt>removeAll</tt>, <tt>retainAll</tt>, and
+     * <tt>clear</tt> operations. It does not support the <tt>add</tt> or <tt>addAll</tt> operations.
+     */
+    public Set<Long> keySet() {
+        return new AbstractSet<Long>() {
+            @Override
+            public Iterator<Long> iterator() {
+                return new Iterator<Long>() {
+                    private final MapIterator i = new MapIterator();
+
+                    public boolean hasNext() {
+                        return this.i.hasNext();
+                    }
+
+                    public Long next() {
+                        return this.i.next().getKey();
+                    }
+
+                    public void remove() {
+                        this.i.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return LongToLongMap.this.size;
+            }
+
+            @Override
+            public boolean contains(final Object k) {
+                return LongToLongMap.this.containsKey(k);
+            }
+
+            @Override
+            public void clear() {
+                LongToLongMap.this.clear();
+            }
+        };
+    }
+
+    /**
+     * Returns a {@link Collection} view of the values contained in this map. The collection is backed by the map, so
+     * changes to the map are reflected in the collection, and vice-versa. If the map is modified while an iteration
+     * over the collection is in progress (except through the iterator's own <tt>remove</tt> operation), the results
+     * of the iteration are undefined. The collection supports element removal, which removes the corresponding mapping
+     * from the map, via the <tt>Iterator.remove</tt>, <tt>Collection.remove</tt>, <tt>removeAll</tt>,
+     * <tt>retainAll</tt> and <tt>clear</tt> operations. It does not support the <tt>add</tt> or <tt>addAll</tt>
+     * operations.
+     */
+    public Collection<Long> values() {
+        return new AbstractCollection<Long>() {
+            @Override
+            public Iterator<Long> iterator() {
+                return new Iterator<Long>() {
+                    private final MapIterator i = new MapIterator();
+
+                    public boolean hasNext() {
+                        return this.i.hasNext();
+                    }
+
+                    public Long next() {
+                        return this.i.next().getValue();
+                    }
+
+                    public void remove() {
+                        this.i.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return LongToLongMap.this.size;
+            }
+
+            @Override
+            public boolean contains(final Object v) {
+                return LongToLongMap.this.containsValue(v);
+            }
+
+            @Override
+            public void clear() {
+                LongToLongMap.this.clear();
+            }
+        };
+    }
+
+    /**
+     * Returns a {@link Set} view of the mappings contained in this map. The set is backed by the map, so changes to the
+     * map are reflected in the set, and vice-versa. If the map is modified while an iteration over the set is in
+     * progress (except through the iterator's own <tt>remove</tt> operation, or through the <tt>setValue</tt>
+     * operation on a map entry returned by the iterator) the results of the iteration are undefined. The set supports
+     * element removal, which removes the corresponding mapping from the map, via the <tt>Iterator.remove</tt>,
+     * <tt>Set.remove</tt>, <tt>removeAll</tt>, <tt>retainAll</tt> and <tt>clear</tt> operations. It does not
+     * support the <tt>add</tt> or <tt>addAll</tt> operations.
+     *
+     * @return a set view of the mappings contained in this map
+     */
+    public Set<Map.Entry<Long, Long>> entrySet() {
+        return new AbstractSet<Map.Entry<Long, Long>>() {
+            @Override
+            public Iterator<Map.Entry<Long, Long>> iterator() {
+                return new MapIterator();
+            }
+
+            @Override
+            public int size() {
+                return LongToLongMap.this.size;
+            }
+
+            @Override
+            public boolean contains(final Object o) {
+                if (!(o instanceof Map.Entry<?, ?>))
+                    return false;
+                final Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                if (!(e.getKey() instanceof Long) || !(e.getValue() instanceof Long))
+                    return false;
+                final long key = ((Long) e.getKey()).longValue();
+                return containsKey(key) && getLong(key) == ((Long) e.getValue()).longValue();
+            }
+
+            @Override
+            public boolean remove(final Object o) {
+                if (!contains(o))
+                    return false;
+                LongToLongMap.this.remove(((Map.Entry<?, ?>) o).getKey());
+                return true;
+            }
+
+            @Override
+            public void clear() {
+                LongToLongMap.this.clear();
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        final Iterator<Map.Entry<Long, Long>> i = entrySet().iterator();
+        if (!i.hasNext())
+            return "{}";
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        while (true) {
+            final Map.Entry<Long, Long> e = i.next();
+            sb.append(e.getKey()).append('=').append(e.getValue());
+            if (!i.hasNext())
+                return sb.append('}').toString();
+            sb.append(", ");
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 0;
+        final Iterator<Map.Entry<Long, Long>> i = entrySet().iterator();
+        while (i.hasNext())
+            h += i.next().hashCode();
+        return h;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean equals(final Object o) {
+        if (o == this)
+            return true;
+
+        if (!(o instanceof Map))
+            return false;
+        final Map<Long, Long> m = (Map<Long, Long>) o;
+        if (m.size() != size())
+            return false;
+
+        try {
+            final Iterator<Map.Entry<Long, Long>> i = entrySet().iterator();
+            while (i.hasNext()) {
+                final Map.Entry<Long, Long> e = i.next();
+                if (!e.getValue().equals(m.get(e.getKey())))
+                    return false;
+            }
+        } catch (final ClassCastException unused) {
+            return false;
+        } catch (final NullPointerException unused) {
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public LongToLongMap clone() {
+        LongToLongMap clone;
+        try {
+            clone = (LongToLongMap) super.clone();
+        } catch (final CloneNotSupportedException e) {
+            // this should never occur since we are cloneable!!
+            throw new RuntimeException(e);
+        }
+        clone.keys = this.keys.clone();
+        clone.values = this.values.clone();
+        return clone;
+    }
+
+}
@@ -0,0 +1,783 @@
+package de.hammacher.util.maps;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A map from primitive <code>int</code> keys to primitive <code>long</code> values which is stored
+ * outside of the Java heap, either in direct buffers or in a memory-mapped file.
+ *
+ * Like {@link IntegerToLongMap}, it switches between a list mode for dense non-negative keys
+ * (a value array indexed by the key, plus a bitmap of the contained keys) and a map mode
+ * (open addressing with linear probing). In map mode, keys and values are stored in two
+ * separate arrays, so a lookup touches the key array and, on a hit, one value.
+ * The number of slots is only limited by {@link #MAXIMUM_CAPACITY}, not by the maximum
+ * Java array size.
+ *
+ * A file-backed map is a persistent index: after {@link #close()}, it can be reopened by
+ * {@link #open(File)} without rebuilding it. When the table has to be resized or the mode
+ * changes, the map is rebuilt in a temporary file, which then replaces the old one.
+ *
+ * The memory used by the map can be limited on construction; if a rebuild would exceed the
+ * limit, an {@link IllegalStateException} is thrown instead. While the map is rebuilt, the old
+ * and the new storage exist at the same time, so both count towards the limit.
+ * The storage is released explicitly when it is not needed any more (after a rebuild and on
+ * {@link #close()}), instead of waiting for the garbage collector to free it.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Clemens Hammacher
+ */
+public class OffHeapIntegerToLongMap implements Closeable {
+
+    public static final long DEFAULT_INITIAL_CAPACITY = 16;
+
+    /**
+     * The maximum number of slots (in map mode) or list entries. MUST be a power of two.
+     */
+    public static final long MAXIMUM_CAPACITY = 1L << 33;
+
+    private static final long MINIMUM_CAPACITY = 4;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private static final float SWITCH_TO_MAP_RATIO = 0.15f;
+
+    private static final float SWITCH_TO_LIST_RATIO = 0.25f;
+
+    private static final int FREE_KEY = 0;
+
+    private static final int MAGIC = 0x49324c4d; // "I2LM"
+    private static final int VERSION = 1;
+
+    // header layout
+    private static final int HEADER_SIZE = 64;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_LIST_MODE = 8;
+    private static final int HEADER_CLEAN = 12;
+    private static final int HEADER_CAPACITY = 16;
+    private static final int HEADER_SIZE_FIELD = 24;
+    private static final int HEADER_DEFAULT_VALUE = 32;
+    private static final int HEADER_FREE_KEY_VALUE = 40;
+    private static final int HEADER_HAS_FREE_KEY = 48;
+    private static final int HEADER_MIN_KEY = 52;
+    private static final int HEADER_MAX_KEY = 56;
+
+    /**
+     * A range of off-heap memory, addressed by <code>long</code> offsets. It is split into
+     * segments of 1 GB, so <code>int</code>s and <code>long</code>s at aligned offsets never
+     * span two segments.
+     */
+    private static final class Region {
+
+        private static final int SEGMENT_SHIFT = 30;
+        private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+        private final ByteBuffer[] segments;
+
+        Region(final FileChannel channel, final long length) throws IOException {
+            final int numSegments = (int) ((length + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            this.segments = new ByteBuffer[numSegments];
+            for (int i = 0; i < numSegments; ++i) {
+                final long start = (long) i << SEGMENT_SHIFT;
+                final int segmentLength = (int) Math.min(length - start, 1L << SEGMENT_SHIFT);
+                this.segments[i] = channel == null ? ByteBuffer.allocateDirect(segmentLength)
+                    : channel.map(MapMode.READ_WRITE, start, segmentLength);
+            }
+        }
+
+        int getInt(final long pos) {
+            return this.segments[(int) (pos >>> SEGMENT_SHIFT)].getInt((int) (pos & SEGMENT_MASK));
+        }
+
+        void putInt(final long pos, final int value) {
+            this.segments[(int) (pos >>> SEGMENT_SHIFT)].putInt((int) (pos & SEGMENT_MASK), value);
+        }
+
+        long getLong(final long pos) {
+            return this.segments[(int) (pos >>> SEGMENT_SHIFT)].getLong((int) (pos & SEGMENT_MASK));
+        }
+
+        void putLong(final long pos, final long value) {
+            this.segments[(int) (pos >>> SEGMENT_SHIFT)].putLong((int) (pos & SEGMENT_MASK), value);
+        }
+
+        void force() {
+            for (final ByteBuffer segment : this.segments)
+                if (segment instanceof MappedByteBuffer)
+                    ((MappedByteBuffer) segment).force();
+        }
+
+        /**
+         * Frees the memory of all segments. The region must not be accessed afterwards.
+         */
+        void release() {
+            for (int i = 0; i < this.segments.length; ++i) {
+                final ByteBuffer segment = this.segments[i];
+                this.segments[i] = null;
+                if (segment != null)
+                    tryRelease(segment);
+            }
+        }
+
+        // need to dispose direct buffers explicitly, see bug
+        // http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4724038
+        private static void tryRelease(final ByteBuffer buf) {
+            try {
+                final Method cleanerMethod = buf.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(buf);
+                if (cleaner == null)
+                    return;
+                final Method cleanMethod = cleaner.getClass().getMethod("clean");
+                cleanMethod.setAccessible(true);
+                cleanMethod.invoke(cleaner);
+                return;
+            } catch (final NoSuchMethodException e) {
+                // try the next approach
+            } catch (final IllegalAccessException e) {
+                // try the next approach
+            } catch (final InvocationTargetException e) {
+                // try the next approach
+            } catch (final RuntimeException e) {
+                // e.g. SecurityException, or the cleaner is not accessible (newer VMs)
+            }
+            // newer VMs offer sun.misc.Unsafe.invokeCleaner instead
+            try {
+                final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                invokeCleaner.invoke(theUnsafe.get(null), buf);
+            } catch (final ClassNotFoundException e) {
+                // then the buffer is freed by the garbage collector
+            } catch (final NoSuchFieldException e) {
+                // then the buffer is freed by the garbage collector
+            } catch (final NoSuchMethodException e) {
+                // then the buffer is freed by the garbage collector
+            } catch (final IllegalAccessException e) {
+                // then the buffer is freed by the garbage collector
+            } catch (final InvocationTargetException e) {
+                // then the buffer is freed by the garbage collector
+            } catch (final RuntimeException e) {
+                // then the buffer is freed by the garbage collector
+            }
+        }
+
+    }
+
+    // null if the map is not file-backed
+    private final File file;
+
+    private RandomAccessFile raf;
+
+    private Region region;
+
+    private final long maxBytes;
+
+    private boolean listMode;
+
+    // the list length or the number of hash table slots
+    private long capacity;
+
+    // in list mode: offset of the bitmap; in map mode: offset of the keys
+    private long indexOffset;
+
+    private long valuesOffset;
+
+    // 64 - log2(capacity), for computing the home slot of a key in map mode
+    private int shift;
+
+    private long threshold;
+
+    private long size;
+
+    private final long defaultValue;
+
+    private boolean hasFreeKey;
+
+    private long freeKeyValue;
+
+    // bounds of the keys contained in map mode (not narrowed on removal)
+    private int minKey = Integer.MAX_VALUE;
+
+    private int maxKey = Integer.MIN_VALUE;
+
+    /**
+     * Creates a map in direct (off-heap) buffers.
+     *
+     * @param initialCapacity
+     *            the number of mappings to reserve space for
+     * @param defaultValue
+     *            the value returned for keys which are not contained in the map
+     * @param maxBytes
+     *            the maximum number of bytes the map may allocate (including the old storage
+     *            during a rebuild)
+     */
+    public OffHeapIntegerToLongMap(final long initialCapacity, final long defaultValue, final long maxBytes) {
+        this(null, initialCapacity, defaultValue, maxBytes);
+        try {
+            allocate(false, tableCapacity(initialCapacity));
+        } catch (final IOException e) {
+            // cannot happen without a file
+            throw new RuntimeException(e);
+        }
+    }
+
+    public OffHeapIntegerToLongMap(final long initialCapacity, final long defaultValue) {
+        this(initialCapacity, defaultValue, Long.MAX_VALUE);
+    }
+
+    public OffHeapIntegerToLongMap() {
+        this(DEFAULT_INITIAL_CAPACITY, 0);
+    }
+
+    private OffHeapIntegerToLongMap(final File file, final long initialCapacity, final long defaultValue,
+            final long maxBytes) {
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException("Illegal initial capacity: " + initialCapacity);
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("Illegal memory limit: " + maxBytes);
+        this.file = file;
+        this.defaultValue = defaultValue;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Creates a new, empty map in the given file. An existing file is overwritten.
+     *
+     * @param initialCapacity
+     *            the number of mappings to reserve space for
+     * @param defaultValue
+     *            the value returned for keys which are not contained in the map
+     * @param maxBytes
+     *            the maximum size of the file (including the old file during a rebuild)
+     */
+    public static OffHeapIntegerToLongMap create(final File file, final long initialCapacity,
+            final long defaultValue, final long maxBytes) throws IOException {
+        final OffHeapIntegerToLongMap map = new OffHeapIntegerToLongMap(file, initialCapacity, defaultValue,
+            maxBytes);
+        map.allocate(false, tableCapacity(initialCapacity));
+        return map;
+    }
+
+    public static OffHeapIntegerToLongMap create(final File file) throws IOException {
+        return create(file, DEFAULT_INITIAL_CAPACITY, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Opens a map which has been written to the given file and closed before.
+     *
+     * @param maxBytes
+     *            the maximum size of the file when the map grows (including the old file
+     *            during a rebuild)
+     * @throws IOException
+     *             if the file does not contain a map, or has not been closed properly
+     */
+    public static OffHeapIntegerToLongMap open(final File file, final long maxBytes) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        Region region = null;
+        boolean ok = false;
+        try {
+            final long fileLength = raf.length();
+            if (fileLength < HEADER_SIZE)
+                throw new IOException("File too short: " + file);
+            region = new Region(raf.getChannel(), fileLength);
+            if (region.getInt(HEADER_MAGIC) != MAGIC)
+                throw new IOException("Not a map file: " + file);
+            final int version = region.getInt(HEADER_VERSION);
+            if (version != VERSION)
+                throw new IOException("Unsupported version " + version + " of map file " + file);
+            if (region.getInt(HEADER_CLEAN) != 1)
+                throw new IOException("Map file has not been closed properly: " + file);
+
+            final OffHeapIntegerToLongMap map = new OffHeapIntegerToLongMap(file, 0,
+                region.getLong(HEADER_DEFAULT_VALUE), maxBytes);
+            map.raf = raf;
+            map.region = region;
+            final boolean list = region.getInt(HEADER_LIST_MODE) != 0;
+            final long capacity = region.getLong(HEADER_CAPACITY);
+            if (capacity < 0 || capacity > MAXIMUM_CAPACITY || (!list && Long.bitCount(capacity) != 1))
+                throw new IOException("Corrupted map file (illegal capacity " + capacity + "): " + file);
+            map.setLayout(list, capacity);
+            if (map.getByteSize() != fileLength)
+                throw new IOException("Corrupted map file (wrong length): " + file);
+            map.size = region.getLong(HEADER_SIZE_FIELD);
+            map.freeKeyValue = region.getLong(HEADER_FREE_KEY_VALUE);
+            map.hasFreeKey = region.getInt(HEADER_HAS_FREE_KEY) != 0;
+            map.minKey = region.getInt(HEADER_MIN_KEY);
+            map.maxKey = region.getInt(HEADER_MAX_KEY);
+            // mark the file as being modified
+            region.putInt(HEADER_CLEAN, 0);
+            ok = true;
+            return map;
+        } finally {
+            if (!ok) {
+                if (region != null)
+                    region.release();
+                raf.close();
+            }
+        }
+    }
+
+    public static OffHeapIntegerToLongMap open(final File file) throws IOException {
+        return open(file, Long.MAX_VALUE);
+    }
+
+    private static long tableCapacity(final long numMappings) {
+        final long minCapacity = Math.min((long) (numMappings / LOAD_FACTOR) + 1, MAXIMUM_CAPACITY);
+        long capacity = MINIMUM_CAPACITY;
+        while (capacity < minCapacity)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    private static long getByteSize(final boolean list, final long capacity) {
+        if (list)
+            return HEADER_SIZE + 8 * ((capacity + 63) >>> 6) + 8 * capacity;
+        return HEADER_SIZE + 12 * capacity;
+    }
+
+    /**
+     * @return the number of bytes used by this map (the size of the file, if it is file-backed)
+     */
+    public long getByteSize() {
+        return getByteSize(this.listMode, this.capacity);
+    }
+
+    private void setLayout(final boolean list, final long newCapacity) {
+        this.listMode = list;
+        this.capacity = newCapacity;
+        this.indexOffset = HEADER_SIZE;
+        if (list) {
+            this.valuesOffset = HEADER_SIZE + 8 * ((newCapacity + 63) >>> 6);
+        } else {
+            this.valuesOffset = HEADER_SIZE + 4 * newCapacity;
+            this.shift = 64 - Long.numberOfTrailingZeros(newCapacity);
+            // at least one slot must stay free to terminate the probe sequences
+            this.threshold = Math.min((long) (newCapacity * LOAD_FACTOR), newCapacity - 1);
+        }
+    }
+
+    /**
+     * Allocates new, empty storage (in a new file, if the map is file-backed), and sets the
+     * layout. The caller has to copy the mappings afterwards, and then call {@link #commit}.
+     * The old storage is not released.
+     *
+     * @return the file containing the new storage, or <code>null</code>
+     */
+    private File allocate(final boolean list, final long newCapacity) throws IOException {
+        final long byteSize = getByteSize(list, newCapacity);
+        // while rebuilding, the old storage is still needed
+        final long oldByteSize = this.region == null ? 0 : getByteSize();
+        if (byteSize > this.maxBytes - oldByteSize)
+            throw new IllegalStateException("Memory limit of " + this.maxBytes + " bytes exceeded");
+        File newFile = null;
+        if (this.file == null) {
+            this.region = new Region(null, byteSize);
+        } else {
+            newFile = this.raf == null ? this.file : new File(this.file.getPath() + ".tmp");
+            final RandomAccessFile newRaf = new RandomAccessFile(newFile, "rw");
+            boolean ok = false;
+            try {
+                newRaf.setLength(0);
+                newRaf.setLength(byteSize);
+                this.region = new Region(newRaf.getChannel(), byteSize);
+                ok = true;
+            } finally {
+                if (!ok)
+                    newRaf.close();
+            }
+            if (this.raf != null)
+                this.raf.close();
+            this.raf = newRaf;
+        }
+        setLayout(list, newCapacity);
+        this.region.putInt(HEADER_MAGIC, MAGIC);
+        this.region.putInt(HEADER_VERSION, VERSION);
+        this.region.putLong(HEADER_DEFAULT_VALUE, this.defaultValue);
+        return newFile;
+    }
+
+    /**
+     * Replaces the old file by the one returned by {@link #allocate}.
+     *
+     * There is always a complete file: on most platforms, the new file is renamed over
+     * the old one atomically. Where this is not possible, the old file is first moved to a
+     * backup file, which is only deleted after the new file is in place.
+     */
+    private void commit(final File newFile) throws IOException {
+        if (newFile == null || newFile.equals(this.file))
+            return;
+        // the new file stays mapped and open while it is renamed
+        if (newFile.renameTo(this.file))
+            return;
+        final File backupFile = new File(this.file.getPath() + ".bak");
+        if (backupFile.exists() && !backupFile.delete())
+            throw new IOException("Cannot delete old backup file " + backupFile);
+        if (!this.file.renameTo(backupFile))
+            throw new IOException("Cannot replace " + this.file + " by " + newFile);
+        if (!newFile.renameTo(this.file)) {
+            backupFile.renameTo(this.file);
+            throw new IOException("Cannot replace " + this.file + " by " + newFile);
+        }
+        backupFile.delete();
+    }
+
+    private void checkOpen() {
+        if (this.region == null)
+            throw new IllegalStateException("Map has been closed");
+    }
+
+    /**
+     * Returns the number of key-value mappings in this map.
+     */
+    public long size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public long getDefaultValue() {
+        return this.defaultValue;
+    }
+
+    private boolean isListBitSet(final long key) {
+        return (this.region.getLong(this.indexOffset + 8 * (key >>> 6)) & (1L << key)) != 0;
+    }
+
+    private void setListBit(final long key, final boolean set) {
+        final long pos = this.indexOffset + 8 * (key >>> 6);
+        final long word = this.region.getLong(pos);
+        this.region.putLong(pos, set ? word | (1L << key) : word & ~(1L << key));
+    }
+
+    private long homeSlot(final int key) {
+        return (key * 0x9e3779b97f4a7c15L) >>> this.shift;
+    }
+
+    /**
+     * Returns the slot of the given key (which must not be {@link #FREE_KEY}) in map mode,
+     * or -1 if it is not contained.
+     */
+    private long findSlot(final int key) {
+        final long mask = this.capacity - 1;
+        int k;
+        for (long slot = homeSlot(key); (k = this.region.getInt(this.indexOffset + 4 * slot)) != FREE_KEY;
+                slot = (slot + 1) & mask)
+            if (k == key)
+                return slot;
+        return -1;
+    }
+
+    /**
+     * Returns the value to which the specified key is mapped, or the default value if this
+     * map contains no mapping for the key.
+     */
+    public long getLong(final int key) {
+        checkOpen();
+        if (this.listMode) {
+            if (key < 0 || key >= this.capacity || !isListBitSet(key))
+                return this.defaultValue;
+            return this.region.getLong(this.valuesOffset + 8L * key);
+        }
+        if (key == FREE_KEY)
+            return this.hasFreeKey ? this.freeKeyValue : this.defaultValue;
+        final long slot = findSlot(key);
+        return slot == -1 ? this.defaultValue : this.region.getLong(this.valuesOffset + 8 * slot);
+    }
+
+    public boolean containsKey(final int key) {
+        checkOpen();
+        if (this.listMode)
+            return key >= 0 && key < this.capacity && isListBitSet(key);
+        if (key == FREE_KEY)
+            return this.hasFreeKey;
+        return findSlot(key) != -1;
+    }
+
+    /**
+     * Associates the specified value with the specified key in this map.
+     *
+     * @return the previous value associated with <tt>key</tt>, or <tt>defaultValue</tt> if there was no mapping for
+     *         <tt>key</tt>.
+     * @throws IOException
+     *             if the map has to be rebuilt, and writing the new file fails
+     */
+    public long put(final int key, final long value) throws IOException {
+        checkOpen();
+        if (this.listMode) {
+            if (key >= 0 && key < this.capacity) {
+                final long pos = this.valuesOffset + 8L * key;
+                if (isListBitSet(key)) {
+                    final long old = this.region.getLong(pos);
+                    this.region.putLong(pos, value);
+                    return old;
+                }
+                setListBit(key, true);
+                this.region.putLong(pos, value);
+                ++this.size;
+                return this.defaultValue;
+            }
+            if (key < 0 || this.size < SWITCH_TO_MAP_RATIO * (key + 1f))
+                rebuild(false, tableCapacity(this.size + 1));
+            else
+                rebuild(true, Math.min(3L * key / 2 + 1, MAXIMUM_CAPACITY));
+            return put(key, value);
+        }
+
+        if (key == FREE_KEY) {
+            if (this.hasFreeKey) {
+                final long old = this.freeKeyValue;
+                this.freeKeyValue = value;
+                return old;
+            }
+            this.hasFreeKey = true;
+            this.freeKeyValue = value;
+            addedEntry(key);
+            return this.defaultValue;
+        }
+        final long mask = this.capacity - 1;
+        long slot = homeSlot(key);
+        for (int k; (k = this.region.getInt(this.indexOffset + 4 * slot)) != FREE_KEY; slot = (slot + 1) & mask) {
+            if (k == key) {
+                final long pos = this.valuesOffset + 8 * slot;
+                final long old = this.region.getLong(pos);
+                this.region.putLong(pos, value);
+                return old;
+            }
+        }
+        this.region.putInt(this.indexOffset + 4 * slot, key);
+        this.region.putLong(this.valuesOffset + 8 * slot, value);
+        addedEntry(key);
+        return this.defaultValue;
+    }
+
+    /**
+     * Adds <code>addValue</code> to the value of the given key. If there is no mapping for
+     * the key, a new mapping to <code>defaultValue + addValue</code> is inserted.
+     *
+     * @return the new value associated with <tt>key</tt>
+     */
+    public long incrementAndGet(final int key, final long addValue) throws IOException {
+        final long newValue = getLong(key) + addValue;
+        put(key, newValue);
+        return newValue;
+    }
+
+    private void addedEntry(final int key) throws IOException {
+        ++this.size;
+        if (key < this.minKey)
+            this.minKey = key;
+        if (key > this.maxKey)
+            this.maxKey = key;
+        if (this.minKey >= 0 && this.size > 3 && this.size > SWITCH_TO_LIST_RATIO * (this.maxKey + 1f))
+            rebuild(true, this.maxKey + 1L + this.maxKey / 10);
+        else if (this.size >= this.threshold)
+            rebuild(false, 2 * this.capacity);
+    }
+
+    /**
+     * Removes the mapping for the specified key from this map if present.
+     *
+     * @return the previous value associated with <tt>key</tt>, or <tt>defaultValue</tt> if there was no mapping for
+     *         <tt>key</tt>.
+     */
+    public long remove(final int key) {
+        checkOpen();
+        if (this.listMode) {
+            if (key < 0 || key >= this.capacity || !isListBitSet(key))
+                return this.defaultValue;
+            setListBit(key, false);
+            --this.size;
+            return this.region.getLong(this.valuesOffset + 8L * key);
+        }
+        if (key == FREE_KEY) {
+            if (!this.hasFreeKey)
+                return this.defaultValue;
+            this.hasFreeKey = false;
+            --this.size;
+            return this.freeKeyValue;
+        }
+        final long slot = findSlot(key);
+        if (slot == -1)
+            return this.defaultValue;
+        final long old = this.region.getLong(this.valuesOffset + 8 * slot);
+        removeSlot(slot);
+        --this.size;
+        return old;
+    }
+
+    /**
+     * Removes the mapping in the given slot of the hash table, and moves back the following
+     * entries of the probe sequence to close the gap.
+     */
+    private void removeSlot(final long slot) {
+        final long mask = this.capacity - 1;
+        long gap = slot;
+        long pos = slot;
+        while (true) {
+            pos = (pos + 1) & mask;
+            final int key = this.region.getInt(this.indexOffset + 4 * pos);
+            if (key == FREE_KEY) {
+                this.region.putInt(this.indexOffset + 4 * gap, FREE_KEY);
+                return;
+            }
+            final long home = homeSlot(key);
+            // the entry can be moved to the gap if its home slot is not in (gap, pos]
+            if (gap <= pos ? (home <= gap || home > pos) : (home <= gap && home > pos)) {
+                this.region.putInt(this.indexOffset + 4 * gap, key);
+                this.region.putLong(this.valuesOffset + 8 * gap, this.region.getLong(this.valuesOffset + 8 * pos));
+                gap = pos;
+            }
+        }
+    }
+
+    /**
+     * Passes all mappings of this map to the given visitor, which must not modify the map.
+     */
+    public void forEachEntry(final IntegerLongVisitor visitor) {
+        checkOpen();
+        final Region r = this.region;
+        if (this.listMode) {
+            for (long word = 0, numWords = (this.capacity + 63) >>> 6; word < numWords; ++word) {
+                long bits = r.getLong(this.indexOffset + 8 * word);
+                while (bits != 0) {
+                    final int key = (int) (64 * word + Long.numberOfTrailingZeros(bits));
+                    visitor.visit(key, r.getLong(this.valuesOffset + 8L * key));
+                    bits &= bits - 1;
+                }
+            }
+        } else {
+            if (this.hasFreeKey)
+                visitor.visit(FREE_KEY, this.freeKeyValue);
+            for (long slot = 0; slot < this.capacity; ++slot) {
+                final int key = r.getInt(this.indexOffset + 4 * slot);
+                if (key != FREE_KEY)
+                    visitor.visit(key, r.getLong(this.valuesOffset + 8 * slot));
+            }
+        }
+    }
+
+    /**
+     * Copies all mappings into new storage with the given mode and capacity.
+     */
+    private void rebuild(final boolean list, final long newCapacity) throws IOException {
+        final Region oldRegion = this.region;
+        final boolean oldList = this.listMode;
+        final long oldCapacity = this.capacity;
+        final long oldIndexOffset = this.indexOffset;
+        final long oldValuesOffset = this.valuesOffset;
+        if (newCapacity > MAXIMUM_CAPACITY)
+            throw new IllegalStateException("Maximum capacity reached");
+
+        final File newFile = allocate(list, newCapacity);
+        this.minKey = Integer.MAX_VALUE;
+        this.maxKey = Integer.MIN_VALUE;
+        if (list && this.hasFreeKey) {
+            insertNew(FREE_KEY, this.freeKeyValue);
+            this.hasFreeKey = false;
+        }
+        if (oldList) {
+            for (long word = 0, numWords = (oldCapacity + 63) >>> 6; word < numWords; ++word) {
+                long bits = oldRegion.getLong(oldIndexOffset + 8 * word);
+                while (bits != 0) {
+                    final int key = (int) (64 * word + Long.numberOfTrailingZeros(bits));
+                    insertNew(key, oldRegion.getLong(oldValuesOffset + 8L * key));
+                    bits &= bits - 1;
+                }
+            }
+        } else {
+            for (long slot = 0; slot < oldCapacity; ++slot) {
+                final int key = oldRegion.getInt(oldIndexOffset + 4 * slot);
+                if (key != FREE_KEY)
+                    insertNew(key, oldRegion.getLong(oldValuesOffset + 8 * slot));
+            }
+        }
+        if (this.hasFreeKey) {
+            this.minKey = Math.min(this.minKey, FREE_KEY);
+            this.maxKey = Math.max(this.maxKey, FREE_KEY);
+        }
+        commit(newFile);
+        oldRegion.release();
+    }
+
+    /**
+     * Inserts a key which is not contained yet, without any further bookkeeping (except
+     * for the key bounds).
+     */
+    private void insertNew(final int key, final long value) {
+        if (this.listMode) {
+            setListBit(key, true);
+            this.region.putLong(this.valuesOffset + 8L * key, value);
+            return;
+        }
+        if (key == FREE_KEY) {
+            this.hasFreeKey = true;
+            this.freeKeyValue = value;
+            return;
+        }
+        if (key < this.minKey)
+            this.minKey = key;
+        if (key > this.maxKey)
+            this.maxKey = key;
+        final long mask = this.capacity - 1;
+        long slot = homeSlot(key);
+        while (this.region.getInt(this.indexOffset + 4 * slot) != FREE_KEY)
+            slot = (slot + 1) & mask;
+        this.region.putInt(this.indexOffset + 4 * slot, key);
+        this.region.putLong(this.valuesOffset + 8 * slot, value);
+    }
+
+    private void writeHeader(final boolean clean) {
+        final Region r = this.region;
+        r.putInt(HEADER_LIST_MODE, this.listMode ? 1 : 0);
+        r.putInt(HEADER_CLEAN, clean ? 1 : 0);
+        r.putLong(HEADER_CAPACITY, this.capacity);
+        r.putLong(HEADER_SIZE_FIELD, this.size);
+        r.putLong(HEADER_FREE_KEY_VALUE, this.freeKeyValue);
+        r.putInt(HEADER_HAS_FREE_KEY, this.hasFreeKey ? 1 : 0);
+        r.putInt(HEADER_MIN_KEY, this.minKey);
+        r.putInt(HEADER_MAX_KEY, this.maxKey);
+    }
+
+    /**
+     * Writes all changes of a file-backed map to the disk. The file still cannot be reopened
+     * before the map is closed.
+     */
+    public void flush() {
+        checkOpen();
+        writeHeader(false);
+        this.region.force();
+    }
+
+    /**
+     * Releases the storage of this map. A file-backed map is written to the disk, so that
+     * it can be reopened by {@link #open(File)}.
+     */
+    public void close() throws IOException {
+        if (this.region == null)
+            return;
+        writeHeader(true);
+        this.region.force();
+        this.region.release();
+        this.region = null;
+        if (this.raf != null) {
+            this.raf.close();
+            this.raf = null;
+        }
+    }
+
+}
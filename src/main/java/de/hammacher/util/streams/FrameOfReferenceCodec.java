@@ -0,0 +1,686 @@
+package de.hammacher.util.streams;
+
+import java.util.Arrays;
+
+/**
+ * Encodes sorted or nearly sorted sequences of ints and longs using frame-of-reference
+ * coding with bit-packing and exceptions ("patched frame of reference").
+ *
+ * The values are split into blocks of (at most) {@link #BLOCK_SIZE} values. A block
+ * stores its first value, and the differences between consecutive values relative to a
+ * reference value (usually the smallest difference). These are bit-packed using a width
+ * chosen per block; the higher bits of the few differences not fitting into this width
+ * are stored as exceptions at the end of the block.
+ * Block layout (numbers encoded like in the {@link OptimizedDataCodec}):
+ * <pre>
+ *   first value (long)
+ *   if more than one value:
+ *     reference difference (long), bit width (byte), number of exceptions (byte),
+ *     packed differences (little-endian bit order),
+ *     per exception: index (byte), higher bits (long)
+ * </pre>
+ *
+ * A complete sequence as produced by {@link #encode(long[], int, int)} starts with the
+ * number of values, followed by a table of 4-byte offsets of all blocks, so that each
+ * block can be decoded independently by {@link #decodeBlock(byte[], int, long[], int)}.
+ *
+ * Neither encoding nor decoding allocates memory per block, if the caller passes a
+ * {@link Workspace} for encoding. The int methods work on the ints directly, without
+ * converting them to longs; the encoded data is the same for ints and longs.
+ *
+ * @author Clemens Hammacher
+ */
+public abstract class FrameOfReferenceCodec {
+
+    /** The maximum number of values in one block. */
+    public static final int BLOCK_SIZE = 128;
+
+    /** The maximum number of bytes of an encoded block. */
+    public static final int MAX_BLOCK_LENGTH = 2 * OptimizedDataCodec.MAX_LONG_LENGTH + 2 + 8 * (BLOCK_SIZE - 1);
+
+    private FrameOfReferenceCodec() {
+        // prevent instantiation
+    }
+
+    /**
+     * Scratch space for encoding blocks. Encoding with a workspace does not allocate
+     * memory, so callers encoding many blocks should reuse one. A workspace must not be
+     * used by several threads at once.
+     */
+    public static final class Workspace {
+
+        // the differences between consecutive values of the current block
+        final long[] deltas = new long[BLOCK_SIZE - 1];
+
+        // number of differences with at least the given number of significant bits
+        final int[] numWithBits = new int[67];
+
+        // sums of every 8th entry of numWithBits, starting at the given index
+        final int[] sums = new int[73];
+
+        // the smallest differences, for computing the percentile
+        final long[] smallest = new long[(BLOCK_SIZE - 1) / 16 + 1];
+
+    }
+
+    private static void checkBlockArgs(final int arrayLength, final int off, final int num) {
+        if (off < 0 || num <= 0 || num > BLOCK_SIZE || off > arrayLength - num)
+            throw new IndexOutOfBoundsException();
+    }
+
+    /**
+     * Encodes a block of <code>num</code> longs (at most {@link #BLOCK_SIZE}) to
+     * <code>buf</code>, starting at <code>bufOff</code>. The array must have room for
+     * {@link #MAX_BLOCK_LENGTH} bytes.
+     *
+     * @return the offset behind the encoded block
+     */
+    public static int encodeBlock(final byte[] buf, final int bufOff, final long[] values, final int off,
+            final int num, final Workspace workspace) {
+        checkBlockArgs(values.length, off, num);
+        final int pos = OptimizedDataCodec.writeLong(buf, bufOff, values[off]);
+        if (num == 1)
+            return pos;
+        final long[] deltas = workspace.deltas;
+        for (int i = 0, numDeltas = num - 1; i < numDeltas; ++i)
+            deltas[i] = values[off + i + 1] - values[off + i];
+        return encodeDeltas(buf, pos, num - 1, workspace);
+    }
+
+    /**
+     * Encodes a block of <code>num</code> ints (at most {@link #BLOCK_SIZE}) to
+     * <code>buf</code>, starting at <code>bufOff</code>. The array must have room for
+     * {@link #MAX_BLOCK_LENGTH} bytes.
+     *
+     * @return the offset behind the encoded block
+     */
+    public static int encodeBlock(final byte[] buf, final int bufOff, final int[] values, final int off,
+            final int num, final Workspace workspace) {
+        checkBlockArgs(values.length, off, num);
+        final int pos = OptimizedDataCodec.writeLong(buf, bufOff, values[off]);
+        if (num == 1)
+            return pos;
+        final long[] deltas = workspace.deltas;
+        for (int i = 0, numDeltas = num - 1; i < numDeltas; ++i)
+            deltas[i] = (long) values[off + i + 1] - values[off + i];
+        return encodeDeltas(buf, pos, num - 1, workspace);
+    }
+
+    /**
+     * Uses a new {@link Workspace}.
+     *
+     * @see #encodeBlock(byte[], int, long[], int, int, Workspace)
+     */
+    public static int encodeBlock(final byte[] buf, final int bufOff, final long[] values, final int off,
+            final int num) {
+        return encodeBlock(buf, bufOff, values, off, num, new Workspace());
+    }
+
+    /**
+     * Uses a new {@link Workspace}.
+     *
+     * @see #encodeBlock(byte[], int, int[], int, int, Workspace)
+     */
+    public static int encodeBlock(final byte[] buf, final int bufOff, final int[] values, final int off,
+            final int num) {
+        return encodeBlock(buf, bufOff, values, off, num, new Workspace());
+    }
+
+    /**
+     * Encodes the differences stored in the workspace (everything of a block behind the first value).
+     */
+    private static int encodeDeltas(final byte[] buf, final int bufOff, final int numDeltas,
+            final Workspace workspace) {
+        final long[] deltas = workspace.deltas;
+        long minDelta = Long.MAX_VALUE;
+        for (int i = 0; i < numDeltas; ++i)
+            if (deltas[i] < minDelta)
+                minDelta = deltas[i];
+
+        // a few small outliers should not spoil the reference; so also try a low percentile
+        long reference = minDelta;
+        int costAndWidth = chooseBitWidth(deltas, numDeltas, reference, workspace);
+        if (numDeltas >= 16) {
+            // the histogram of the first try tells the number of significant bits of the percentile
+            final int k = numDeltas >> 4;
+            final int[] numWithBits = workspace.numWithBits;
+            int bits = 0;
+            while (numDeltas - numWithBits[bits + 1] <= k)
+                ++bits;
+            if (bits > 0 && getPercentileCostLowerBound(numDeltas, bits, numWithBits) < costAndWidth >>> 7) {
+                final long bound = minDelta + (1L << bits);
+                final long percentile = getSmallest(deltas, numDeltas, k,
+                    bits == 64 || bound < minDelta ? Long.MAX_VALUE : bound, workspace.smallest);
+                final int percentileCostAndWidth = chooseBitWidth(deltas, numDeltas, percentile, workspace);
+                if (percentileCostAndWidth >>> 7 < costAndWidth >>> 7) {
+                    reference = percentile;
+                    costAndWidth = percentileCostAndWidth;
+                }
+            }
+        }
+        final int width = costAndWidth & 0x7f;
+
+        int pos = OptimizedDataCodec.writeLong(buf, bufOff, reference);
+        buf[pos++] = (byte) width;
+        final int numExceptionsPos = pos++;
+        int numExceptions = 0;
+
+        // the bits are collected in an accumulator, and written 32 at a time
+        final long mask = width == 64 ? -1L : (1L << width) - 1;
+        long acc = 0;
+        int accBits = 0;
+        for (int i = 0; i < numDeltas; ++i) {
+            final long u = (deltas[i] - reference) & mask;
+            if (width <= 32) {
+                acc |= u << accBits;
+                accBits += width;
+            } else {
+                // split into two chunks to not overflow the accumulator
+                acc |= (u & 0xffffffffL) << accBits;
+                writeInt32(buf, pos, acc);
+                pos += 4;
+                acc >>>= 32;
+                acc |= (u >>> 32) << accBits;
+                accBits += width - 32;
+            }
+            if (accBits >= 32) {
+                writeInt32(buf, pos, acc);
+                pos += 4;
+                acc >>>= 32;
+                accBits -= 32;
+            }
+        }
+        for (; accBits > 0; accBits -= 8, acc >>>= 8)
+            buf[pos++] = (byte) acc;
+
+        if (width < 64) {
+            for (int i = 0; i < numDeltas; ++i) {
+                final long high = (deltas[i] - reference) >>> width;
+                if (high != 0) {
+                    buf[pos++] = (byte) i;
+                    pos = OptimizedDataCodec.writeLong(buf, pos, high);
+                    ++numExceptions;
+                }
+            }
+        }
+        buf[numExceptionsPos] = (byte) numExceptions;
+        return pos;
+    }
+
+    // writes the lower 32 bits of the value in little-endian order
+    private static void writeInt32(final byte[] buf, final int pos, final long value) {
+        buf[pos] = (byte) value;
+        buf[pos+1] = (byte) (value >>> 8);
+        buf[pos+2] = (byte) (value >>> 16);
+        buf[pos+3] = (byte) (value >>> 24);
+    }
+
+    // reads 32 bits in little-endian order
+    private static long readInt32(final byte[] buf, final int pos) {
+        return (buf[pos] & 0xffL) | (buf[pos+1] & 0xffL) << 8 | (buf[pos+2] & 0xffL) << 16
+            | (buf[pos+3] & 0xffL) << 24;
+    }
+
+    /**
+     * Returns the k-th smallest value (starting at 0) of the first <code>num</code> values, for small k.
+     * Only values smaller than <code>bound</code> are considered; there must be more than k of them
+     * (unless the bound is Long.MAX_VALUE).
+     */
+    private static long getSmallest(final long[] values, final int num, final int k, final long bound,
+            final long[] smallest) {
+        for (int i = 0; i <= k; ++i)
+            smallest[i] = bound;
+        for (int i = 0; i < num; ++i) {
+            final long v = values[i];
+            if (v >= smallest[k])
+                continue;
+            int j = k;
+            while (j > 0 && smallest[j-1] > v) {
+                smallest[j] = smallest[j-1];
+                --j;
+            }
+            smallest[j] = v;
+        }
+        return smallest[k];
+    }
+
+    /**
+     * Returns a lower bound for the cost computed by {@link #chooseBitWidth} for a reference which
+     * is larger than the smallest difference by less than <code>2^bits</code>, without looking at the
+     * differences again. <code>numWithBits</code> must hold the counts relative to the smallest difference.
+     *
+     * The differences with less than <code>bits</code> bits are smaller than such a reference, so they
+     * become exceptions of 64 bits. All others lose at most one significant bit, and only if they have
+     * at least <code>bits + 2</code> bits. No width larger than the largest one of the others can be
+     * better, since each bit of width costs more than it saves on these exceptions.
+     */
+    private static int getPercentileCostLowerBound(final int numDeltas, final int bits, final int[] numWithBits) {
+        final int numBelow = numDeltas - numWithBits[bits];
+        int maxBits = 64;
+        while (numWithBits[maxBits] == 0)
+            --maxBits;
+        int lowerBound = Integer.MAX_VALUE;
+        for (int width = Math.min(maxBits, 63); width >= 0; --width) {
+            int cost = 3 * (numBelow + getNumWithBitsAbove(numWithBits, bits, width));
+            if (cost >= lowerBound)
+                break;
+            cost += ((numDeltas * width + 7) >> 3) + numBelow * ((64 - width) >> 3);
+            for (int b = width + 7; b < 64; b += 8)
+                cost += getNumWithBitsAbove(numWithBits, bits, b);
+            if (cost < lowerBound)
+                lowerBound = cost;
+        }
+        return lowerBound;
+    }
+
+    // lower bound for the number of differences not below the reference which have more than width bits
+    private static int getNumWithBitsAbove(final int[] numWithBits, final int bits, final int width) {
+        return numWithBits[Math.max(width + 1, bits + 1) + 1];
+    }
+
+    /**
+     * Computes the bit width with the smallest (estimated) encoded size.
+     *
+     * @return the size, shifted left by 7 bits, combined with the width
+     */
+    private static int chooseBitWidth(final long[] deltas, final int numDeltas, final long reference,
+            final Workspace workspace) {
+        final int[] numWithBits = workspace.numWithBits;
+        final int[] sums = workspace.sums;
+        Arrays.fill(numWithBits, 0);
+        int maxBits = 0;
+        for (int i = 0; i < numDeltas; ++i) {
+            final int bits = 64 - Long.numberOfLeadingZeros(deltas[i] - reference);
+            ++numWithBits[bits];
+            if (bits > maxBits)
+                maxBits = bits;
+        }
+        // turn the histogram into suffix sums, so that the cost of each width is computed in constant time
+        for (int bits = maxBits + 1; bits <= maxBits + 8; ++bits)
+            sums[bits] = 0;
+        for (int bits = maxBits, num = 0; bits >= 0; --bits) {
+            num += numWithBits[bits];
+            numWithBits[bits] = num;
+            sums[bits] = num + sums[bits + 8];
+        }
+
+        // no larger width can be better than the one without exceptions.
+        // on equal cost, the smallest width wins, unless it is not better than the one without exceptions
+        final int costWithoutExceptions = (numDeltas * maxBits + 7) >> 3;
+        int bestWidth = maxBits;
+        int bestCost = costWithoutExceptions;
+        for (int width = maxBits - 1; width >= 0; --width) {
+            // each exception costs at least 3 bytes, and there are more for smaller widths
+            final int numAbove = numWithBits[width + 1];
+            if (3 * numAbove > bestCost)
+                break;
+            // upper bound for the size of the exceptions: an exception with b bits needs
+            // 3 + ((b - width) >> 3) bytes, which sums up to the entries width+8, width+16, ...
+            final int cost = ((numDeltas * width + 7) >> 3) + 3 * numAbove + sums[width + 8];
+            if (cost <= bestCost) {
+                bestCost = cost;
+                bestWidth = width;
+            }
+        }
+        if (bestCost == costWithoutExceptions)
+            bestWidth = maxBits;
+        return bestCost << 7 | bestWidth;
+    }
+
+    /**
+     * Decodes a block of <code>num</code> longs starting at <code>buf[pos[0]]</code> into
+     * <code>dst</code>, and advances <code>pos[0]</code> behind the block.
+     */
+    public static void decodeBlock(final byte[] buf, final int[] pos, final long[] dst, final int off,
+            final int num) {
+        checkBlockArgs(dst.length, off, num);
+        pos[0] = decodeLongBlock(buf, pos[0], dst, off, num);
+    }
+
+    /**
+     * Decodes a block of <code>num</code> ints starting at <code>buf[pos[0]]</code> into
+     * <code>dst</code>, and advances <code>pos[0]</code> behind the block.
+     */
+    public static void decodeBlock(final byte[] buf, final int[] pos, final int[] dst, final int off,
+            final int num) {
+        checkBlockArgs(dst.length, off, num);
+        pos[0] = decodeIntBlock(buf, pos[0], dst, off, num);
+    }
+
+    private static void checkWidth(final int width) {
+        if (width < 0 || width > 64)
+            throw new IllegalArgumentException("Invalid bit width: " + width);
+    }
+
+    /**
+     * @return the position behind the block
+     */
+    private static int decodeLongBlock(final byte[] buf, final int pos, final long[] dst, final int off,
+            final int num) {
+        int p = pos;
+        long last = OptimizedDataCodec.readLong(buf, p);
+        p += OptimizedDataCodec.getEncodedLongLength(buf[p]);
+        dst[off] = last;
+        if (num == 1)
+            return p;
+
+        final long reference = OptimizedDataCodec.readLong(buf, p);
+        p += OptimizedDataCodec.getEncodedLongLength(buf[p]);
+        final int width = buf[p++];
+        final int numExceptions = buf[p++] & 0xff;
+        checkWidth(width);
+
+        final int end = off + num;
+        if (width == 0) {
+            for (int i = off + 1; i < end; ++i)
+                dst[i] = 0;
+        } else if (width <= 32) {
+            // refill 32 bits at a time, but do not read behind the packed differences
+            final long mask = (1L << width) - 1;
+            final int packedEnd = p + (((num - 1) * width + 7) >> 3);
+            long acc = 0;
+            int accBits = 0;
+            for (int i = off + 1; i < end; ++i) {
+                if (accBits < width) {
+                    if (p + 4 <= packedEnd) {
+                        acc |= readInt32(buf, p) << accBits;
+                        p += 4;
+                        accBits += 32;
+                    } else {
+                        do {
+                            acc |= (buf[p++] & 0xffL) << accBits;
+                            accBits += 8;
+                        } while (accBits < width);
+                    }
+                }
+                dst[i] = acc & mask;
+                acc >>>= width;
+                accBits -= width;
+            }
+        } else if (width <= 56) {
+            final long mask = (1L << width) - 1;
+            long acc = 0;
+            int accBits = 0;
+            for (int i = off + 1; i < end; ++i) {
+                while (accBits < width) {
+                    acc |= (buf[p++] & 0xffL) << accBits;
+                    accBits += 8;
+                }
+                dst[i] = acc & mask;
+                acc >>>= width;
+                accBits -= width;
+            }
+        } else {
+            final long highMask = width == 64 ? 0xffffffffL : (1L << (width - 32)) - 1;
+            long acc = 0;
+            int accBits = 0;
+            for (int i = off + 1; i < end; ++i) {
+                while (accBits < 32) {
+                    acc |= (buf[p++] & 0xffL) << accBits;
+                    accBits += 8;
+                }
+                final long low = acc & 0xffffffffL;
+                acc >>>= 32;
+                accBits -= 32;
+                while (accBits < width - 32) {
+                    acc |= (buf[p++] & 0xffL) << accBits;
+                    accBits += 8;
+                }
+                dst[i] = low | (acc & highMask) << 32;
+                acc >>>= width - 32;
+                accBits -= width - 32;
+            }
+        }
+
+        for (int e = 0; e < numExceptions; ++e) {
+            final int index = buf[p++] & 0xff;
+            if (index >= num - 1)
+                throw new IllegalArgumentException("Invalid exception index: " + index);
+            dst[off + 1 + index] |= OptimizedDataCodec.readLong(buf, p) << width;
+            p += OptimizedDataCodec.getEncodedLongLength(buf[p]);
+        }
+
+        for (int i = off + 1; i < end; ++i)
+            dst[i] = last += reference + dst[i];
+        return p;
+    }
+
+    /**
+     * Like {@link #decodeLongBlock}, but only computes the lower 32 bits of all values.
+     *
+     * @return the position behind the block
+     */
+    private static int decodeIntBlock(final byte[] buf, final int pos, final int[] dst, final int off,
+            final int num) {
+        int p = pos;
+        int last = (int) OptimizedDataCodec.readLong(buf, p);
+        p += OptimizedDataCodec.getEncodedLongLength(buf[p]);
+        dst[off] = last;
+        if (num == 1)
+            return p;
+
+        final int reference = (int) OptimizedDataCodec.readLong(buf, p);
+        p += OptimizedDataCodec.getEncodedLongLength(buf[p]);
+        final int width = buf[p++];
+        final int numExceptions = buf[p++] & 0xff;
+        checkWidth(width);
+
+        final int end = off + num;
+        if (width == 0) {
+            for (int i = off + 1; i < end; ++i)
+                dst[i] = 0;
+        } else if (width <= 32) {
+            // refill 32 bits at a time, but do not read behind the packed differences
+            final long mask = (1L << width) - 1;
+            final int packedEnd = p + (((num - 1) * width + 7) >> 3);
+            long acc = 0;
+            int accBits = 0;
+            for (int i = off + 1; i < end; ++i) {
+                if (accBits < width) {
+                    if (p + 4 <= packedEnd) {
+                        acc |= readInt32(buf, p) << accBits;
+                        p += 4;
+                        accBits += 32;
+                    } else {
+                        do {
+                            acc |= (buf[p++] & 0xffL) << accBits;
+                            accBits += 8;
+                        } while (accBits < width);
+                    }
+                }
+                dst[i] = (int) (acc & mask);
+                acc >>>= width;
+                accBits -= width;
+            }
+        } else if (width <= 56) {
+            final long mask = (1L << width) - 1;
+            long acc = 0;
+            int accBits = 0;
+            for (int i = off + 1; i < end; ++i) {
+                while (accBits < width) {
+                    acc |= (buf[p++] & 0xffL) << accBits;
+                    accBits += 8;
+                }
+                dst[i] = (int) (acc & mask);
+                acc >>>= width;
+                accBits -= width;
+            }
+        } else {
+            // the higher bits are skipped
+            long acc = 0;
+            int accBits = 0;
+            for (int i = off + 1; i < end; ++i) {
+                while (accBits < 32) {
+                    acc |= (buf[p++] & 0xffL) << accBits;
+                    accBits += 8;
+                }
+                dst[i] = (int) acc;
+                acc >>>= 32;
+                accBits -= 32;
+                while (accBits < width - 32) {
+                    acc |= (buf[p++] & 0xffL) << accBits;
+                    accBits += 8;
+                }
+                acc >>>= width - 32;
+                accBits -= width - 32;
+            }
+        }
+
+        for (int e = 0; e < numExceptions; ++e) {
+            final int index = buf[p++] & 0xff;
+            if (index >= num - 1)
+                throw new IllegalArgumentException("Invalid exception index: " + index);
+            dst[off + 1 + index] |= (int) (OptimizedDataCodec.readLong(buf, p) << width);
+            p += OptimizedDataCodec.getEncodedLongLength(buf[p]);
+        }
+
+        for (int i = off + 1; i < end; ++i)
+            dst[i] = last += reference + dst[i];
+        return p;
+    }
+
+    private static int getHeaderLength(final int numValues) {
+        return OptimizedDataCodec.getEncodedLength(numValues) + 4 * ((numValues + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    private static byte[] newEncodeBuffer(final int numValues) {
+        final int numBlocks = (numValues + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        final byte[] buf = new byte[getHeaderLength(numValues) + Math.min(numBlocks, 16) * MAX_BLOCK_LENGTH];
+        OptimizedDataCodec.writeInt(buf, 0, numValues);
+        return buf;
+    }
+
+    /**
+     * Makes room for one more block, and stores its offset in the offset table.
+     */
+    private static byte[] startBlock(final byte[] buf, final int numValues, final int block, final int pos) {
+        final byte[] newBuf = buf.length - pos < MAX_BLOCK_LENGTH
+            ? Arrays.copyOf(buf, Math.max(2 * buf.length, pos + MAX_BLOCK_LENGTH)) : buf;
+        final int headerLength = getHeaderLength(numValues);
+        final int blockOffset = pos - headerLength;
+        final int t = OptimizedDataCodec.getEncodedLength(numValues) + 4 * block;
+        newBuf[t] = (byte) (blockOffset >>> 24);
+        newBuf[t+1] = (byte) (blockOffset >>> 16);
+        newBuf[t+2] = (byte) (blockOffset >>> 8);
+        newBuf[t+3] = (byte) blockOffset;
+        return newBuf;
+    }
+
+    /**
+     * Encodes the given longs as a sequence of blocks with an offset table, which allows
+     * to decode each block independently.
+     */
+    public static byte[] encode(final long[] values, final int off, final int len) {
+        if (off < 0 || len < 0 || off > values.length - len)
+            throw new IndexOutOfBoundsException();
+        final Workspace workspace = new Workspace();
+        byte[] buf = newEncodeBuffer(len);
+        int pos = getHeaderLength(len);
+        for (int b = 0, blockStart = off; blockStart < off + len; ++b, blockStart += BLOCK_SIZE) {
+            buf = startBlock(buf, len, b, pos);
+            pos = encodeBlock(buf, pos, values, blockStart, Math.min(BLOCK_SIZE, off + len - blockStart), workspace);
+        }
+        return pos == buf.length ? buf : Arrays.copyOf(buf, pos);
+    }
+
+    /**
+     * Encodes the given ints as a sequence of blocks with an offset table, which allows
+     * to decode each block independently.
+     */
+    public static byte[] encode(final int[] values, final int off, final int len) {
+        if (off < 0 || len < 0 || off > values.length - len)
+            throw new IndexOutOfBoundsException();
+        final Workspace workspace = new Workspace();
+        byte[] buf = newEncodeBuffer(len);
+        int pos = getHeaderLength(len);
+        for (int b = 0, blockStart = off; blockStart < off + len; ++b, blockStart += BLOCK_SIZE) {
+            buf = startBlock(buf, len, b, pos);
+            pos = encodeBlock(buf, pos, values, blockStart, Math.min(BLOCK_SIZE, off + len - blockStart), workspace);
+        }
+        return pos == buf.length ? buf : Arrays.copyOf(buf, pos);
+    }
+
+    /**
+     * @return the number of values in the encoded sequence
+     */
+    public static int getNumValues(final byte[] data) {
+        return OptimizedDataCodec.readInt(data, 0);
+    }
+
+    /**
+     * @return the number of blocks in the encoded sequence
+     */
+    public static int getNumBlocks(final byte[] data) {
+        return (getNumValues(data) + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    private static int getBlockPosition(final byte[] data, final int numValues, final int block) {
+        final int numBlocks = (numValues + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (block < 0 || block >= numBlocks)
+            throw new IndexOutOfBoundsException("block " + block + " of " + numBlocks);
+        final int tablePos = OptimizedDataCodec.getEncodedLength(numValues);
+        final int t = tablePos + 4 * block;
+        final int blockOffset = (data[t] << 24) | ((data[t+1] & 0xff) << 16)
+            | ((data[t+2] & 0xff) << 8) | (data[t+3] & 0xff);
+        return tablePos + 4 * numBlocks + blockOffset;
+    }
+
+    /**
+     * Decodes one block of an encoded sequence.
+     *
+     * @param block the index of the block (values <code>block * BLOCK_SIZE</code> and following)
+     * @return the number of decoded values (only less than {@link #BLOCK_SIZE} for the last block)
+     */
+    public static int decodeBlock(final byte[] data, final int block, final long[] dst, final int off) {
+        final int numValues = getNumValues(data);
+        final int pos = getBlockPosition(data, numValues, block);
+        final int num = Math.min(BLOCK_SIZE, numValues - block * BLOCK_SIZE);
+        checkBlockArgs(dst.length, off, num);
+        decodeLongBlock(data, pos, dst, off, num);
+        return num;
+    }
+
+    /**
+     * Decodes one block of an encoded sequence of ints.
+     *
+     * @param block the index of the block (values <code>block * BLOCK_SIZE</code> and following)
+     * @return the number of decoded values (only less than {@link #BLOCK_SIZE} for the last block)
+     */
+    public static int decodeBlock(final byte[] data, final int block, final int[] dst, final int off) {
+        final int numValues = getNumValues(data);
+        final int pos = getBlockPosition(data, numValues, block);
+        final int num = Math.min(BLOCK_SIZE, numValues - block * BLOCK_SIZE);
+        checkBlockArgs(dst.length, off, num);
+        decodeIntBlock(data, pos, dst, off, num);
+        return num;
+    }
+
+    /**
+     * Decodes a complete sequence of longs.
+     */
+    public static long[] decodeLongs(final byte[] data) {
+        final int numValues = getNumValues(data);
+        final long[] values = new long[numValues];
+        if (numValues > 0) {
+            int pos = getBlockPosition(data, numValues, 0);
+            for (int off = 0; off < numValues; off += BLOCK_SIZE)
+                pos = decodeLongBlock(data, pos, values, off, Math.min(BLOCK_SIZE, numValues - off));
+        }
+        return values;
+    }
+
+    /**
+     * Decodes a complete sequence of ints.
+     */
+    public static int[] decodeInts(final byte[] data) {
+        final int numValues = getNumValues(data);
+        final int[] values = new int[numValues];
+        if (numValues > 0) {
+            int pos = getBlockPosition(data, numValues, 0);
+            for (int off = 0; off < numValues; off += BLOCK_SIZE)
+                pos = decodeIntBlock(data, pos, values, off, Math.min(BLOCK_SIZE, numValues - off));
+        }
+        return values;
+    }
+
+}
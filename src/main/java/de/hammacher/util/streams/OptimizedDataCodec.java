@@ -0,0 +1,690 @@
+package de.hammacher.util.streams;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes integers in the variable-length format of the
+ * {@link OptimizedDataOutputStream}, working directly on byte arrays and on
+ * {@link ByteBuffer}s.
+ *
+ * Values which fit into one (signed) byte are written as this byte, unless the
+ * byte could be mistaken for a magic byte; then, and for all longer values, a
+ * magic byte announcing the number of following bytes precedes the value, which
+ * is stored big-endian using the minimal number of bytes.
+ * The only difference between ints and longs is that the magic bytes for 5 to 8
+ * bytes (124 .. 127) are only reserved for longs.
+ *
+ * Decoding from byte arrays reads at and advances <code>pos[0]</code>; decoding
+ * from {@link ByteBuffer}s advances the position of the buffer. Both read at most
+ * {@link #MAX_INT_LENGTH} resp. {@link #MAX_LONG_LENGTH} bytes.
+ *
+ * For sequences of values, there is a block format encoding up to
+ * {@link #BULK_BLOCK_SIZE} values at once. Each block starts with a mode byte
+ * and the length of the payload (encoded like an int), followed by the payload:
+ * <ul>
+ * <li>{@link #BULK_MODE_GROUP_VARINT}: the values, interpreted as unsigned, in
+ *     group varint format: a selector byte holding the byte lengths of the next
+ *     four ints (2 bits each) or two longs (4 bits each), followed by their
+ *     little-endian bytes.</li>
+ * <li>{@link #BULK_MODE_ZIGZAG_DELTA}: the zig-zag encoded differences between
+ *     consecutive values (the first one relative to 0), in group varint format.</li>
+ * <li>{@link #BULK_MODE_FRAME_OF_REFERENCE}: a block of the {@link FrameOfReferenceCodec},
+ *     for sorted or nearly sorted values.</li>
+ * </ul>
+ * The number of values in a block is not stored; the reader has to know it.
+ *
+ * @author Clemens Hammacher
+ */
+public abstract class OptimizedDataCodec {
+
+    static final byte MAGIC_1BYTE      = (byte) -128;
+    static final byte MAGIC_2BYTES     = (byte) -127;
+    static final byte MAGIC_3BYTES     = (byte) -126;
+    static final byte MAGIC_4BYTES     = (byte) -125;
+    static final byte MAGIC_5BYTES     = (byte) 127;
+    static final byte MAGIC_6BYTES     = (byte) 126;
+    static final byte MAGIC_7BYTES     = (byte) 125;
+    static final byte MAGIC_8BYTES     = (byte) 124;
+
+    /** The maximum number of bytes of an encoded int. */
+    public static final int MAX_INT_LENGTH = 5;
+    /** The maximum number of bytes of an encoded long. */
+    public static final int MAX_LONG_LENGTH = 9;
+
+    /** The maximum number of values encoded in one block. */
+    public static final int BULK_BLOCK_SIZE = 128;
+
+    /** Chooses the smaller of the block encodings for each block (only used for encoding). */
+    public static final int BULK_MODE_AUTO = 0;
+    /** Group varint encoding of the plain values. */
+    public static final int BULK_MODE_GROUP_VARINT = 1;
+    /** Group varint encoding of the zig-zag encoded differences between consecutive values. */
+    public static final int BULK_MODE_ZIGZAG_DELTA = 2;
+    /** Bit-packed frame-of-reference encoding, see {@link FrameOfReferenceCodec}. */
+    public static final int BULK_MODE_FRAME_OF_REFERENCE = 3;
+
+    /** The maximum number of bytes of an encoded block of ints. */
+    public static final int MAX_INT_BLOCK_LENGTH = 1 + MAX_INT_LENGTH + BULK_BLOCK_SIZE / 4 + 4 * BULK_BLOCK_SIZE;
+    /** The maximum number of bytes of an encoded block of longs. */
+    public static final int MAX_LONG_BLOCK_LENGTH = 1 + MAX_INT_LENGTH + BULK_BLOCK_SIZE / 2 + 8 * BULK_BLOCK_SIZE;
+
+    // magic byte announcing n following bytes (index n)
+    private static final byte[] MAGIC_BYTES = { 0, MAGIC_1BYTE, MAGIC_2BYTES, MAGIC_3BYTES,
+        MAGIC_4BYTES, MAGIC_5BYTES, MAGIC_6BYTES, MAGIC_7BYTES, MAGIC_8BYTES };
+
+    // number of bytes following the first byte (index: first byte & 0xff)
+    private static final byte[] INT_FOLLOWING_BYTES = new byte[256];
+    private static final byte[] LONG_FOLLOWING_BYTES = new byte[256];
+    static {
+        for (int n = 1; n <= 8; ++n) {
+            if (n <= 4)
+                INT_FOLLOWING_BYTES[MAGIC_BYTES[n] & 0xff] = (byte) n;
+            LONG_FOLLOWING_BYTES[MAGIC_BYTES[n] & 0xff] = (byte) n;
+        }
+    }
+
+    private OptimizedDataCodec() {
+        // prevent instantiation
+    }
+
+    /**
+     * Returns the number of bytes needed to store the value in two's complement
+     * (without redundant sign bytes).
+     */
+    private static int getNumValueBytes(final int value) {
+        return ((32 - Integer.numberOfLeadingZeros(value ^ (value >> 31))) >> 3) + 1;
+    }
+
+    private static int getNumValueBytes(final long value) {
+        return ((64 - Long.numberOfLeadingZeros(value ^ (value >> 63))) >> 3) + 1;
+    }
+
+    /**
+     * @return the number of bytes the encoded value occupies
+     */
+    public static int getEncodedLength(final int value) {
+        final int numBytes = getNumValueBytes(value);
+        return numBytes > 1 || value < -124 ? numBytes + 1 : 1;
+    }
+
+    /**
+     * @return the number of bytes the encoded value occupies
+     */
+    public static int getEncodedLength(final long value) {
+        final int numBytes = getNumValueBytes(value);
+        return numBytes > 1 || value < -124 || value > 123 ? numBytes + 1 : 1;
+    }
+
+    /**
+     * @param numValueBytes the number of value bytes following the magic byte (1 to 8)
+     * @return the magic byte announcing them
+     */
+    static byte getMagicByte(final int numValueBytes) {
+        return MAGIC_BYTES[numValueBytes];
+    }
+
+    /**
+     * @param firstByte the first byte of an encoded int
+     * @return the overall number of bytes of the encoded int
+     */
+    public static int getEncodedIntLength(final byte firstByte) {
+        return INT_FOLLOWING_BYTES[firstByte & 0xff] + 1;
+    }
+
+    /**
+     * @param firstByte the first byte of an encoded long
+     * @return the overall number of bytes of the encoded long
+     */
+    public static int getEncodedLongLength(final byte firstByte) {
+        return LONG_FOLLOWING_BYTES[firstByte & 0xff] + 1;
+    }
+
+    /**
+     * Writes the encoded value to <code>buf</code>, starting at <code>off</code>.
+     * The array must have room for {@link #getEncodedLength(int)} bytes.
+     *
+     * @return the offset behind the encoded value
+     */
+    @SuppressWarnings("fallthrough")
+    public static int writeInt(final byte[] buf, final int off, final int value) {
+        final int numBytes = getNumValueBytes(value);
+        int pos = off;
+        if (numBytes > 1 || value < -124)
+            buf[pos++] = MAGIC_BYTES[numBytes];
+        switch (numBytes) {
+        case 4:
+            buf[pos++] = (byte) (value >>> 24);
+            //$FALL-THROUGH$
+        case 3:
+            buf[pos++] = (byte) (value >>> 16);
+            //$FALL-THROUGH$
+        case 2:
+            buf[pos++] = (byte) (value >>> 8);
+            //$FALL-THROUGH$
+        default:
+            buf[pos++] = (byte) value;
+        }
+        return pos;
+    }
+
+    /**
+     * Writes the encoded value to <code>buf</code>, starting at <code>off</code>.
+     * The array must have room for {@link #getEncodedLength(long)} bytes.
+     *
+     * @return the offset behind the encoded value
+     */
+    @SuppressWarnings("fallthrough")
+    public static int writeLong(final byte[] buf, final int off, final long value) {
+        final int numBytes = getNumValueBytes(value);
+        int pos = off;
+        if (numBytes > 1 || value < -124 || value > 123)
+            buf[pos++] = MAGIC_BYTES[numBytes];
+        switch (numBytes) {
+        case 8:
+            buf[pos++] = (byte) (value >>> 56);
+            //$FALL-THROUGH$
+        case 7:
+            buf[pos++] = (byte) (value >>> 48);
+            //$FALL-THROUGH$
+        case 6:
+            buf[pos++] = (byte) (value >>> 40);
+            //$FALL-THROUGH$
+        case 5:
+            buf[pos++] = (byte) (value >>> 32);
+            //$FALL-THROUGH$
+        case 4:
+            buf[pos++] = (byte) (value >>> 24);
+            //$FALL-THROUGH$
+        case 3:
+            buf[pos++] = (byte) (value >>> 16);
+            //$FALL-THROUGH$
+        case 2:
+            buf[pos++] = (byte) (value >>> 8);
+            //$FALL-THROUGH$
+        default:
+            buf[pos++] = (byte) value;
+        }
+        return pos;
+    }
+
+    /**
+     * Writes the encoded value at the current position of the buffer.
+     *
+     * @throws BufferOverflowException if the buffer has not enough space left
+     */
+    public static void writeInt(final ByteBuffer buf, final int value) {
+        if (buf.hasArray()) {
+            final int pos = buf.position();
+            if (buf.limit() - pos < getEncodedLength(value))
+                throw new BufferOverflowException();
+            final int off = buf.arrayOffset() + pos;
+            buf.position(pos + writeInt(buf.array(), off, value) - off);
+            return;
+        }
+        final int numBytes = getNumValueBytes(value);
+        if (numBytes > 1 || value < -124)
+            buf.put(MAGIC_BYTES[numBytes]);
+        for (int shift = 8 * (numBytes - 1); shift >= 0; shift -= 8)
+            buf.put((byte) (value >>> shift));
+    }
+
+    /**
+     * Writes the encoded value at the current position of the buffer.
+     *
+     * @throws BufferOverflowException if the buffer has not enough space left
+     */
+    public static void writeLong(final ByteBuffer buf, final long value) {
+        if (buf.hasArray()) {
+            final int pos = buf.position();
+            if (buf.limit() - pos < getEncodedLength(value))
+                throw new BufferOverflowException();
+            final int off = buf.arrayOffset() + pos;
+            buf.position(pos + writeLong(buf.array(), off, value) - off);
+            return;
+        }
+        final int numBytes = getNumValueBytes(value);
+        if (numBytes > 1 || value < -124 || value > 123)
+            buf.put(MAGIC_BYTES[numBytes]);
+        for (int shift = 8 * (numBytes - 1); shift >= 0; shift -= 8)
+            buf.put((byte) (value >>> shift));
+    }
+
+    /**
+     * Decodes the int starting at <code>buf[pos[0]]</code>, and advances <code>pos[0]</code>
+     * behind it.
+     *
+     * @throws ArrayIndexOutOfBoundsException if the encoded value exceeds the array
+     */
+    public static int readInt(final byte[] buf, final int[] pos) {
+        final int p = pos[0];
+        final int value = readInt(buf, p);
+        pos[0] = p + INT_FOLLOWING_BYTES[buf[p] & 0xff] + 1;
+        return value;
+    }
+
+    /**
+     * Decodes the int starting at <code>buf[off]</code>. It is
+     * {@link #getEncodedIntLength(byte) getEncodedIntLength(buf[off])} bytes long.
+     *
+     * @throws ArrayIndexOutOfBoundsException if the encoded value exceeds the array
+     */
+    public static int readInt(final byte[] buf, final int off) {
+        final byte first = buf[off];
+        switch (INT_FOLLOWING_BYTES[first & 0xff]) {
+        case 1:
+            return buf[off+1];
+        case 2:
+            return (buf[off+1] << 8) | (buf[off+2] & 0xff);
+        case 3:
+            return (buf[off+1] << 16) | ((buf[off+2] & 0xff) << 8) | (buf[off+3] & 0xff);
+        case 4:
+            return (buf[off+1] << 24) | ((buf[off+2] & 0xff) << 16) | ((buf[off+3] & 0xff) << 8) | (buf[off+4] & 0xff);
+        default:
+            return first;
+        }
+    }
+
+    /**
+     * Decodes the long starting at <code>buf[pos[0]]</code>, and advances <code>pos[0]</code>
+     * behind it.
+     *
+     * @throws ArrayIndexOutOfBoundsException if the encoded value exceeds the array
+     */
+    public static long readLong(final byte[] buf, final int[] pos) {
+        final int p = pos[0];
+        final long value = readLong(buf, p);
+        pos[0] = p + LONG_FOLLOWING_BYTES[buf[p] & 0xff] + 1;
+        return value;
+    }
+
+    /**
+     * Decodes the long starting at <code>buf[off]</code>. It is
+     * {@link #getEncodedLongLength(byte) getEncodedLongLength(buf[off])} bytes long.
+     *
+     * @throws ArrayIndexOutOfBoundsException if the encoded value exceeds the array
+     */
+    public static long readLong(final byte[] buf, final int off) {
+        final byte first = buf[off];
+        final int numBytes = LONG_FOLLOWING_BYTES[first & 0xff];
+        switch (numBytes) {
+        case 0:
+            return first;
+        case 1:
+            return buf[off+1];
+        case 2:
+            return (buf[off+1] << 8) | (buf[off+2] & 0xff);
+        case 3:
+            return (buf[off+1] << 16) | ((buf[off+2] & 0xff) << 8) | (buf[off+3] & 0xff);
+        case 4:
+            return (buf[off+1] << 24) | ((buf[off+2] & 0xff) << 16) | ((buf[off+3] & 0xff) << 8) | (buf[off+4] & 0xff);
+        default:
+            // 5 to 8 bytes: the first one carries the sign
+            long value = buf[off+1];
+            for (int i = 2; i <= numBytes; ++i)
+                value = (value << 8) | (buf[off+i] & 0xff);
+            return value;
+        }
+    }
+
+    /**
+     * Decodes the int at the current position of the buffer, and advances the position.
+     *
+     * @throws BufferUnderflowException if the buffer ends within the encoded value
+     */
+    public static int readInt(final ByteBuffer buf) {
+        final byte first = buf.get();
+        final int numBytes = INT_FOLLOWING_BYTES[first & 0xff];
+        if (numBytes == 0)
+            return first;
+        if (buf.remaining() < numBytes)
+            throw new BufferUnderflowException();
+        int value = buf.get();
+        for (int i = 1; i < numBytes; ++i)
+            value = (value << 8) | (buf.get() & 0xff);
+        return value;
+    }
+
+    /**
+     * Decodes the long at the current position of the buffer, and advances the position.
+     *
+     * @throws BufferUnderflowException if the buffer ends within the encoded value
+     */
+    public static long readLong(final ByteBuffer buf) {
+        final byte first = buf.get();
+        final int numBytes = LONG_FOLLOWING_BYTES[first & 0xff];
+        if (numBytes == 0)
+            return first;
+        if (buf.remaining() < numBytes)
+            throw new BufferUnderflowException();
+        long value = buf.get();
+        for (int i = 1; i < numBytes; ++i)
+            value = (value << 8) | (buf.get() & 0xff);
+        return value;
+    }
+
+    /**
+     * Returns the overall length of the block starting at <code>buf[pos]</code>, or -1
+     * if less than <code>avail</code> bytes are not enough to determine it.
+     *
+     * @throws IllegalArgumentException if the block header is invalid
+     */
+    public static int getEncodedBlockLength(final byte[] buf, final int pos, final int avail) {
+        if (avail < 2)
+            return -1;
+        final int lenLen = getEncodedIntLength(buf[pos+1]);
+        if (avail < 1 + lenLen)
+            return -1;
+        final int payloadLength = readInt(buf, pos + 1);
+        if (payloadLength < 0 || payloadLength > MAX_LONG_BLOCK_LENGTH)
+            throw new IllegalArgumentException("Invalid block length: " + payloadLength);
+        return 1 + lenLen + payloadLength;
+    }
+
+    private static int getByteLength(final int value) {
+        return ((31 - Integer.numberOfLeadingZeros(value | 1)) >> 3) + 1;
+    }
+
+    private static int getByteLength(final long value) {
+        return ((63 - Long.numberOfLeadingZeros(value | 1)) >> 3) + 1;
+    }
+
+    private static void checkBlockArgs(final int arrayLength, final int off, final int num) {
+        if (off < 0 || num <= 0 || num > BULK_BLOCK_SIZE || off > arrayLength - num)
+            throw new IndexOutOfBoundsException();
+    }
+
+    private static int getGroupVarintLength(final int[] values, final int off, final int num, final boolean delta) {
+        int len = (num + 3) >> 2;
+        int last = 0;
+        for (int i = off, end = off + num; i < end; ++i) {
+            final int v = values[i];
+            if (delta) {
+                final int d = v - last;
+                len += getByteLength((d << 1) ^ (d >> 31));
+                last = v;
+            } else
+                len += getByteLength(v);
+        }
+        return len;
+    }
+
+    private static int getGroupVarintLength(final long[] values, final int off, final int num, final boolean delta) {
+        int len = (num + 1) >> 1;
+        long last = 0;
+        for (int i = off, end = off + num; i < end; ++i) {
+            final long v = values[i];
+            if (delta) {
+                final long d = v - last;
+                len += getByteLength((d << 1) ^ (d >> 63));
+                last = v;
+            } else
+                len += getByteLength(v);
+        }
+        return len;
+    }
+
+    /**
+     * Encodes a block of <code>num</code> ints (at most {@link #BULK_BLOCK_SIZE}) to
+     * <code>buf</code>, starting at <code>bufOff</code>. The array must have room for
+     * {@link #MAX_INT_BLOCK_LENGTH} bytes.
+     *
+     * @param mode one of the <code>BULK_MODE_*</code> constants
+     * @return the offset behind the encoded block
+     */
+    public static int writeIntBlock(final byte[] buf, final int bufOff, final int[] values, final int off,
+            final int num, final int mode) {
+        return writeIntBlock(buf, bufOff, values, off, num, mode, null);
+    }
+
+    /**
+     * Like {@link #writeIntBlock(byte[], int, int[], int, int, int)}, but reuses the given
+     * workspace for frame-of-reference blocks (a new one is allocated if it is <code>null</code>).
+     */
+    public static int writeIntBlock(final byte[] buf, final int bufOff, final int[] values, final int off,
+            final int num, final int mode, final FrameOfReferenceCodec.Workspace workspace) {
+        checkBlockArgs(values.length, off, num);
+        if (mode == BULK_MODE_FRAME_OF_REFERENCE)
+            return writeFrameOfReferenceBlock(buf, bufOff, values, off, num, workspace);
+        if (mode != BULK_MODE_AUTO && mode != BULK_MODE_GROUP_VARINT && mode != BULK_MODE_ZIGZAG_DELTA)
+            throw new IllegalArgumentException("Unknown block mode: " + mode);
+        final int plainLength = mode == BULK_MODE_ZIGZAG_DELTA ? Integer.MAX_VALUE
+            : getGroupVarintLength(values, off, num, false);
+        final int deltaLength = mode == BULK_MODE_GROUP_VARINT ? Integer.MAX_VALUE
+            : getGroupVarintLength(values, off, num, true);
+        final boolean delta = deltaLength < plainLength;
+
+        buf[bufOff] = (byte) (delta ? BULK_MODE_ZIGZAG_DELTA : BULK_MODE_GROUP_VARINT);
+        int pos = writeInt(buf, bufOff + 1, delta ? deltaLength : plainLength);
+        int last = 0;
+        for (int i = off, end = off + num; i < end; ) {
+            final int selectorPos = pos++;
+            int selector = 0;
+            for (int j = 0; j < 8 && i < end; j += 2, ++i) {
+                int v = values[i];
+                if (delta) {
+                    final int d = v - last;
+                    last = v;
+                    v = (d << 1) ^ (d >> 31);
+                }
+                final int len = getByteLength(v);
+                selector |= (len - 1) << j;
+                for (int k = 0; k < len; ++k, v >>>= 8)
+                    buf[pos++] = (byte) v;
+            }
+            buf[selectorPos] = (byte) selector;
+        }
+        return pos;
+    }
+
+    /**
+     * Encodes a block of <code>num</code> longs (at most {@link #BULK_BLOCK_SIZE}) to
+     * <code>buf</code>, starting at <code>bufOff</code>. The array must have room for
+     * {@link #MAX_LONG_BLOCK_LENGTH} bytes.
+     *
+     * @param mode one of the <code>BULK_MODE_*</code> constants
+     * @return the offset behind the encoded block
+     */
+    public static int writeLongBlock(final byte[] buf, final int bufOff, final long[] values, final int off,
+            final int num, final int mode) {
+        return writeLongBlock(buf, bufOff, values, off, num, mode, null);
+    }
+
+    /**
+     * Like {@link #writeLongBlock(byte[], int, long[], int, int, int)}, but reuses the given
+     * workspace for frame-of-reference blocks (a new one is allocated if it is <code>null</code>).
+     */
+    public static int writeLongBlock(final byte[] buf, final int bufOff, final long[] values, final int off,
+            final int num, final int mode, final FrameOfReferenceCodec.Workspace workspace) {
+        checkBlockArgs(values.length, off, num);
+        if (mode == BULK_MODE_FRAME_OF_REFERENCE)
+            return writeFrameOfReferenceBlock(buf, bufOff, values, off, num, workspace);
+        if (mode != BULK_MODE_AUTO && mode != BULK_MODE_GROUP_VARINT && mode != BULK_MODE_ZIGZAG_DELTA)
+            throw new IllegalArgumentException("Unknown block mode: " + mode);
+        final int plainLength = mode == BULK_MODE_ZIGZAG_DELTA ? Integer.MAX_VALUE
+            : getGroupVarintLength(values, off, num, false);
+        final int deltaLength = mode == BULK_MODE_GROUP_VARINT ? Integer.MAX_VALUE
+            : getGroupVarintLength(values, off, num, true);
+        final boolean delta = deltaLength < plainLength;
+
+        buf[bufOff] = (byte) (delta ? BULK_MODE_ZIGZAG_DELTA : BULK_MODE_GROUP_VARINT);
+        int pos = writeInt(buf, bufOff + 1, delta ? deltaLength : plainLength);
+        long last = 0;
+        for (int i = off, end = off + num; i < end; ) {
+            final int selectorPos = pos++;
+            int selector = 0;
+            for (int j = 0; j < 8 && i < end; j += 4, ++i) {
+                long v = values[i];
+                if (delta) {
+                    final long d = v - last;
+                    last = v;
+                    v = (d << 1) ^ (d >> 63);
+                }
+                final int len = getByteLength(v);
+                selector |= (len - 1) << j;
+                for (int k = 0; k < len; ++k, v >>>= 8)
+                    buf[pos++] = (byte) v;
+            }
+            buf[selectorPos] = (byte) selector;
+        }
+        return pos;
+    }
+
+    /**
+     * Decodes a block of <code>num</code> ints starting at <code>buf[pos[0]]</code> into
+     * <code>dst</code>, and advances <code>pos[0]</code> behind the block.
+     *
+     * @throws IllegalArgumentException if the block is corrupt
+     */
+    public static void readIntBlock(final byte[] buf, final int[] pos, final int[] dst, final int off,
+            final int num) {
+        checkBlockArgs(dst.length, off, num);
+        final int mode = buf[pos[0]];
+        if (mode != BULK_MODE_GROUP_VARINT && mode != BULK_MODE_ZIGZAG_DELTA && mode != BULK_MODE_FRAME_OF_REFERENCE)
+            throw new IllegalArgumentException("Unknown block mode: " + mode);
+        ++pos[0];
+        final int payloadLength = readInt(buf, pos);
+        int p = pos[0];
+        final int payloadEnd = p + payloadLength;
+        if (mode == BULK_MODE_FRAME_OF_REFERENCE) {
+            FrameOfReferenceCodec.decodeBlock(buf, pos, dst, off, num);
+            checkPayloadEnd(pos[0], payloadEnd, payloadLength);
+            return;
+        }
+        for (int i = off, end = off + num; i < end; ) {
+            int selector = buf[p++];
+            for (int j = 0; j < 4 && i < end; ++j, ++i, selector >>= 2) {
+                switch (selector & 3) {
+                case 0:
+                    dst[i] = buf[p] & 0xff;
+                    p += 1;
+                    break;
+                case 1:
+                    dst[i] = (buf[p] & 0xff) | (buf[p+1] & 0xff) << 8;
+                    p += 2;
+                    break;
+                case 2:
+                    dst[i] = (buf[p] & 0xff) | (buf[p+1] & 0xff) << 8 | (buf[p+2] & 0xff) << 16;
+                    p += 3;
+                    break;
+                default:
+                    dst[i] = (buf[p] & 0xff) | (buf[p+1] & 0xff) << 8 | (buf[p+2] & 0xff) << 16 | buf[p+3] << 24;
+                    p += 4;
+                    break;
+                }
+            }
+        }
+        checkPayloadEnd(p, payloadEnd, payloadLength);
+        pos[0] = p;
+        if (mode == BULK_MODE_ZIGZAG_DELTA) {
+            int last = 0;
+            for (int i = off, end = off + num; i < end; ++i) {
+                final int z = dst[i];
+                last += (z >>> 1) ^ -(z & 1);
+                dst[i] = last;
+            }
+        }
+    }
+
+    /**
+     * Decodes a block of <code>num</code> longs starting at <code>buf[pos[0]]</code> into
+     * <code>dst</code>, and advances <code>pos[0]</code> behind the block.
+     *
+     * @throws IllegalArgumentException if the block is corrupt
+     */
+    @SuppressWarnings("fallthrough")
+    public static void readLongBlock(final byte[] buf, final int[] pos, final long[] dst, final int off,
+            final int num) {
+        checkBlockArgs(dst.length, off, num);
+        final int mode = buf[pos[0]];
+        if (mode != BULK_MODE_GROUP_VARINT && mode != BULK_MODE_ZIGZAG_DELTA && mode != BULK_MODE_FRAME_OF_REFERENCE)
+            throw new IllegalArgumentException("Unknown block mode: " + mode);
+        ++pos[0];
+        final int payloadLength = readInt(buf, pos);
+        int p = pos[0];
+        final int payloadEnd = p + payloadLength;
+        if (mode == BULK_MODE_FRAME_OF_REFERENCE) {
+            FrameOfReferenceCodec.decodeBlock(buf, pos, dst, off, num);
+            checkPayloadEnd(pos[0], payloadEnd, payloadLength);
+            return;
+        }
+        for (int i = off, end = off + num; i < end; ) {
+            int selector = buf[p++];
+            for (int j = 0; j < 2 && i < end; ++j, ++i, selector >>= 4) {
+                final int len = (selector & 7) + 1;
+                long v = 0;
+                switch (len) {
+                case 8:
+                    v = (long) buf[p+7] << 56;
+                    //$FALL-THROUGH$
+                case 7:
+                    v |= (buf[p+6] & 0xffL) << 48;
+                    //$FALL-THROUGH$
+                case 6:
+                    v |= (buf[p+5] & 0xffL) << 40;
+                    //$FALL-THROUGH$
+                case 5:
+                    v |= (buf[p+4] & 0xffL) << 32;
+                    //$FALL-THROUGH$
+                case 4:
+                    v |= (buf[p+3] & 0xffL) << 24;
+                    //$FALL-THROUGH$
+                case 3:
+                    v |= (buf[p+2] & 0xff) << 16;
+                    //$FALL-THROUGH$
+                case 2:
+                    v |= (buf[p+1] & 0xff) << 8;
+                    //$FALL-THROUGH$
+                default:
+                    v |= buf[p] & 0xff;
+                }
+                dst[i] = v;
+                p += len;
+            }
+        }
+        checkPayloadEnd(p, payloadEnd, payloadLength);
+        pos[0] = p;
+        if (mode == BULK_MODE_ZIGZAG_DELTA) {
+            long last = 0;
+            for (int i = off, end = off + num; i < end; ++i) {
+                final long z = dst[i];
+                last += (z >>> 1) ^ -(z & 1);
+                dst[i] = last;
+            }
+        }
+    }
+
+    private static void checkPayloadEnd(final int pos, final int payloadEnd, final int payloadLength) {
+        if (pos != payloadEnd)
+            throw new IllegalArgumentException("Block length mismatch: expected " + payloadLength
+                + " bytes, decoded " + (pos - payloadEnd + payloadLength));
+    }
+
+    // the payload is encoded behind the longest possible length field, and moved afterwards
+    private static final int FOR_PAYLOAD_START = 1 + getEncodedLength(FrameOfReferenceCodec.MAX_BLOCK_LENGTH);
+
+    private static int writeFrameOfReferenceBlock(final byte[] buf, final int bufOff, final int[] values,
+            final int off, final int num, final FrameOfReferenceCodec.Workspace workspace) {
+        final int end = FrameOfReferenceCodec.encodeBlock(buf, bufOff + FOR_PAYLOAD_START, values, off, num,
+            workspace == null ? new FrameOfReferenceCodec.Workspace() : workspace);
+        return finishFrameOfReferenceBlock(buf, bufOff, end);
+    }
+
+    private static int writeFrameOfReferenceBlock(final byte[] buf, final int bufOff, final long[] values,
+            final int off, final int num, final FrameOfReferenceCodec.Workspace workspace) {
+        final int end = FrameOfReferenceCodec.encodeBlock(buf, bufOff + FOR_PAYLOAD_START, values, off, num,
+            workspace == null ? new FrameOfReferenceCodec.Workspace() : workspace);
+        return finishFrameOfReferenceBlock(buf, bufOff, end);
+    }
+
+    private static int finishFrameOfReferenceBlock(final byte[] buf, final int bufOff, final int payloadEnd) {
+        final int payloadLength = payloadEnd - bufOff - FOR_PAYLOAD_START;
+        buf[bufOff] = (byte) BULK_MODE_FRAME_OF_REFERENCE;
+        final int payloadStart = writeInt(buf, bufOff + 1, payloadLength);
+        if (payloadStart != bufOff + FOR_PAYLOAD_START)
+            System.arraycopy(buf, bufOff + FOR_PAYLOAD_START, buf, payloadStart, payloadLength);
+        return payloadStart + payloadLength;
+    }
+
+}
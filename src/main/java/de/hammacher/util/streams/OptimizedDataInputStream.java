@@ -1,16 +1,44 @@
 package de.hammacher.util.streams;
 
+import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
+/**
+ * Reads ints and longs written by an {@link OptimizedDataOutputStream}.
+ *
+ * By default, the stream consumes exactly the bytes of each value from the
+ * underlying stream. If a buffer size is given, it instead reads ahead into an
+ * internal buffer and decodes the values from there using the
+ * {@link OptimizedDataCodec}; in that case, the underlying stream must not be
+ * read or repositioned directly any more once data has been read through this stream.
+ *
+ * @author Clemens Hammacher
+ */
 public class OptimizedDataInputStream extends FilterInputStream {
 
+    /**
+     * The minimum size of the read-ahead buffer, such that every bulk block fits into it.
+     */
+    public static final int MIN_BUFFER_SIZE = 1 + OptimizedDataCodec.MAX_INT_LENGTH
+        + OptimizedDataCodec.MAX_LONG_BLOCK_LENGTH;
+
     private int lastInt = 0;
     private long lastLong = 0;
     private final boolean diff;
 
+    // null if the stream is unbuffered
+    private final byte[] buf;
+    private int bufPos = 0;
+    private int bufLimit = 0;
+    // true if buf is the complete input, passed to the constructor
+    private final boolean fixedBuffer;
+    private final int[] decodePos = new int[1];
+    // holds one bulk block in unbuffered mode; allocated lazily
+    private byte[] blockBuf = null;
+
     public OptimizedDataInputStream(final InputStream in) {
         this(in, false);
     }
@@ -18,6 +46,8 @@ public class OptimizedDataInputStream extends FilterInputStream {
     public OptimizedDataInputStream(final InputStream in, final boolean diff) {
         super(in);
         this.diff = diff;
+        this.buf = null;
+        this.fixedBuffer = false;
     }
 
     public OptimizedDataInputStream(final InputStream in, final int lastIntValue, final long lastLongValue) {
@@ -26,6 +56,32 @@ public class OptimizedDataInputStream extends FilterInputStream {
         this.lastLong = lastLongValue;
     }
 
+    /**
+     * Creates a stream which reads ahead from <code>in</code> into a buffer of
+     * <code>bufferSize</code> bytes (but at least {@link #MIN_BUFFER_SIZE}).
+     */
+    public OptimizedDataInputStream(final InputStream in, final boolean diff, final int bufferSize) {
+        super(in);
+        this.diff = diff;
+        this.buf = new byte[Math.max(bufferSize, MIN_BUFFER_SIZE)];
+        this.fixedBuffer = false;
+    }
+
+    /**
+     * Creates a stream which decodes directly from the given range of
+     * <code>data</code>, without copying it.
+     */
+    public OptimizedDataInputStream(final byte[] data, final int off, final int len, final boolean diff) {
+        super(new ByteArrayInputStream(data, off + len, 0));
+        if (off < 0 || len < 0 || off > data.length - len)
+            throw new IndexOutOfBoundsException();
+        this.diff = diff;
+        this.buf = data;
+        this.bufPos = off;
+        this.bufLimit = off + len;
+        this.fixedBuffer = true;
+    }
+
     public static int readInt0(final InputStream in) throws IOException {
         int b0, b1, b2;
         int b3 = in.read();
@@ -64,7 +120,17 @@ public class OptimizedDataInputStream extends FilterInputStream {
     }
 
     public int readInt() throws IOException {
-        final int readValue = readInt0(this.in);
+        if (this.buf == null) {
+            final int readValue = readInt0(this.in);
+            return this.diff ? this.lastInt += readValue  : readValue;
+        }
+        if (this.bufLimit - this.bufPos < OptimizedDataCodec.MAX_INT_LENGTH) {
+            if (!fill(1) || !fill(OptimizedDataCodec.getEncodedIntLength(this.buf[this.bufPos])))
+                throw new EOFException();
+        }
+        this.decodePos[0] = this.bufPos;
+        final int readValue = OptimizedDataCodec.readInt(this.buf, this.decodePos);
+        this.bufPos = this.decodePos[0];
         return this.diff ? this.lastInt += readValue  : readValue;
     }
 
@@ -151,8 +217,213 @@ public class OptimizedDataInputStream extends FilterInputStream {
     }
 
     public long readLong() throws IOException {
-        final long readValue = readLong0(this.in);
+        if (this.buf == null) {
+            final long readValue = readLong0(this.in);
+            return this.diff ? this.lastLong += readValue  : readValue;
+        }
+        if (this.bufLimit - this.bufPos < OptimizedDataCodec.MAX_LONG_LENGTH) {
+            if (!fill(1) || !fill(OptimizedDataCodec.getEncodedLongLength(this.buf[this.bufPos])))
+                throw new EOFException();
+        }
+        this.decodePos[0] = this.bufPos;
+        final long readValue = OptimizedDataCodec.readLong(this.buf, this.decodePos);
+        this.bufPos = this.decodePos[0];
         return this.diff ? this.lastLong += readValue  : readValue;
     }
 
+    /**
+     * Reads <code>len</code> ints written by
+     * {@link OptimizedDataOutputStream#writeInts(int[], int, int, int)}.
+     * This neither uses nor updates the last value of the diff mode.
+     */
+    public void readInts(final int[] dst, final int off, final int len) throws IOException {
+        if (off < 0 || len < 0 || off > dst.length - len)
+            throw new IndexOutOfBoundsException();
+        for (int i = off, end = off + len; i < end; i += OptimizedDataCodec.BULK_BLOCK_SIZE) {
+            final byte[] block = fillBlock();
+            try {
+                OptimizedDataCodec.readIntBlock(block, this.decodePos, dst, i,
+                    Math.min(OptimizedDataCodec.BULK_BLOCK_SIZE, end - i));
+            } catch (final IllegalArgumentException e) {
+                throw new IOException("Corrupt block: " + e.getMessage());
+            }
+            if (block == this.buf)
+                this.bufPos = this.decodePos[0];
+        }
+    }
+
+    /**
+     * Reads <code>len</code> longs written by
+     * {@link OptimizedDataOutputStream#writeLongs(long[], int, int, int)}.
+     * This neither uses nor updates the last value of the diff mode.
+     */
+    public void readLongs(final long[] dst, final int off, final int len) throws IOException {
+        if (off < 0 || len < 0 || off > dst.length - len)
+            throw new IndexOutOfBoundsException();
+        for (int i = off, end = off + len; i < end; i += OptimizedDataCodec.BULK_BLOCK_SIZE) {
+            final byte[] block = fillBlock();
+            try {
+                OptimizedDataCodec.readLongBlock(block, this.decodePos, dst, i,
+                    Math.min(OptimizedDataCodec.BULK_BLOCK_SIZE, end - i));
+            } catch (final IllegalArgumentException e) {
+                throw new IOException("Corrupt block: " + e.getMessage());
+            }
+            if (block == this.buf)
+                this.bufPos = this.decodePos[0];
+        }
+    }
+
+    /**
+     * Makes sure that the next block is completely contained in a buffer, and sets
+     * <code>decodePos[0]</code> to its start.
+     *
+     * @return the buffer containing the block
+     */
+    private byte[] fillBlock() throws IOException {
+        if (this.buf == null)
+            return readBlockUnbuffered();
+        int blockLength;
+        try {
+            while ((blockLength = OptimizedDataCodec.getEncodedBlockLength(this.buf, this.bufPos,
+                    this.bufLimit - this.bufPos)) < 0) {
+                if (!fill(this.bufLimit - this.bufPos + 1))
+                    throw new EOFException();
+            }
+        } catch (final IllegalArgumentException e) {
+            throw new IOException("Corrupt block: " + e.getMessage());
+        }
+        if (!fill(blockLength))
+            throw new EOFException();
+        this.decodePos[0] = this.bufPos;
+        return this.buf;
+    }
+
+    /**
+     * Reads exactly the bytes of the next block from the underlying stream.
+     */
+    private byte[] readBlockUnbuffered() throws IOException {
+        if (this.blockBuf == null)
+            this.blockBuf = new byte[MIN_BUFFER_SIZE];
+        final byte[] block = this.blockBuf;
+        int read = 0;
+        int blockLength;
+        try {
+            while ((blockLength = OptimizedDataCodec.getEncodedBlockLength(block, 0, read)) < 0) {
+                final int b = this.in.read();
+                if (b < 0)
+                    throw new EOFException();
+                block[read++] = (byte) b;
+            }
+        } catch (final IllegalArgumentException e) {
+            throw new IOException("Corrupt block: " + e.getMessage());
+        }
+        while (read < blockLength) {
+            final int n = this.in.read(block, read, blockLength - read);
+            if (n < 0)
+                throw new EOFException();
+            read += n;
+        }
+        this.decodePos[0] = 0;
+        return block;
+    }
+
+    /**
+     * Makes sure that at least <code>minBytes</code> bytes are available in the buffer.
+     *
+     * @return <code>false</code> if the underlying stream ended before
+     */
+    private boolean fill(final int minBytes) throws IOException {
+        int remaining = this.bufLimit - this.bufPos;
+        if (remaining >= minBytes)
+            return true;
+        if (this.fixedBuffer)
+            return false;
+        if (this.bufPos > 0) {
+            System.arraycopy(this.buf, this.bufPos, this.buf, 0, remaining);
+            this.bufPos = 0;
+            this.bufLimit = remaining;
+        }
+        while (remaining < minBytes) {
+            final int read = this.in.read(this.buf, this.bufLimit, this.buf.length - this.bufLimit);
+            if (read < 0)
+                return false;
+            this.bufLimit += read;
+            remaining += read;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (this.buf == null)
+            return this.in.read();
+        if (this.bufPos == this.bufLimit && !fill(1))
+            return -1;
+        return this.buf[this.bufPos++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (this.buf == null)
+            return this.in.read(b, off, len);
+        if (len == 0)
+            return 0;
+        final int buffered = this.bufLimit - this.bufPos;
+        if (buffered == 0) {
+            // large reads bypass the buffer
+            if (len >= this.buf.length)
+                return this.in.read(b, off, len);
+            if (!fill(1))
+                return -1;
+            return read(b, off, len);
+        }
+        final int toCopy = Math.min(len, buffered);
+        System.arraycopy(this.buf, this.bufPos, b, off, toCopy);
+        this.bufPos += toCopy;
+        return toCopy;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        if (this.buf == null)
+            return this.in.skip(n);
+        if (n <= 0)
+            return 0;
+        final int buffered = this.bufLimit - this.bufPos;
+        if (buffered == 0)
+            return this.in.skip(n);
+        final int skipped = (int) Math.min(n, buffered);
+        this.bufPos += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (this.buf == null)
+            return this.in.available();
+        final int buffered = this.bufLimit - this.bufPos;
+        final int avail = this.in.available();
+        return buffered > Integer.MAX_VALUE - avail ? Integer.MAX_VALUE : buffered + avail;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return this.buf == null && this.in.markSupported();
+    }
+
+    @Override
+    public synchronized void mark(final int readlimit) {
+        if (this.buf == null)
+            this.in.mark(readlimit);
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        if (this.buf == null) {
+            this.in.reset();
+            return;
+        }
+        throw new IOException("mark/reset not supported");
+    }
+
 }
@@ -4,27 +4,38 @@ import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
+/**
+ * Writes ints and longs in the variable-length format of the {@link OptimizedDataCodec},
+ * optionally storing only the difference to the last written value.
+ *
+ * Each value is encoded into an internal scratch buffer and handed to the underlying
+ * stream with a single write call (the static <code>write*0</code> methods, which have
+ * no scratch buffer, write it byte by byte). No data is held back, so the underlying stream
+ * always reflects everything written so far, even without flushing.
+ *
+ * Arrays of values can be written in the block format of the {@link OptimizedDataCodec}
+ * using {@link #writeInts(int[], int, int, int)} and {@link #writeLongs(long[], int, int, int)}.
+ * These do neither use nor update the last values of the diff mode.
+ *
+ * @author Clemens Hammacher
+ */
 public class OptimizedDataOutputStream extends FilterOutputStream {
 
-    protected static final byte MAGIC_1BYTE      = (byte) -128;
-    protected static final byte MAGIC_2BYTES     = (byte) -127;
-    protected static final byte MAGIC_3BYTES     = (byte) -126;
-    protected static final byte MAGIC_4BYTES     = (byte) -125;
-    protected static final byte MAGIC_5BYTES     = (byte) 127;
-    protected static final byte MAGIC_6BYTES     = (byte) 126;
-    protected static final byte MAGIC_7BYTES     = (byte) 125;
-    protected static final byte MAGIC_8BYTES     = (byte) 124;
-    private static final int  LOWER_7_BITS  = 0x7f;
-    private static final int  LOWER_15_BITS = 0x7fff;
-    private static final int  LOWER_23_BITS = 0x7fffff;
-    private static final int  LOWER_31_BITS = 0x7fffffff;
-    private static final long LOWER_39_BITS = 0x7fffffffffL;
-    private static final long LOWER_47_BITS = 0x7fffffffffffL;
-    private static final long LOWER_55_BITS = 0x7fffffffffffffL;
+    protected static final byte MAGIC_1BYTE      = OptimizedDataCodec.MAGIC_1BYTE;
+    protected static final byte MAGIC_2BYTES     = OptimizedDataCodec.MAGIC_2BYTES;
+    protected static final byte MAGIC_3BYTES     = OptimizedDataCodec.MAGIC_3BYTES;
+    protected static final byte MAGIC_4BYTES     = OptimizedDataCodec.MAGIC_4BYTES;
+    protected static final byte MAGIC_5BYTES     = OptimizedDataCodec.MAGIC_5BYTES;
+    protected static final byte MAGIC_6BYTES     = OptimizedDataCodec.MAGIC_6BYTES;
+    protected static final byte MAGIC_7BYTES     = OptimizedDataCodec.MAGIC_7BYTES;
+    protected static final byte MAGIC_8BYTES     = OptimizedDataCodec.MAGIC_8BYTES;
 
     private int lastInt = 0;
     private long lastLong = 0;
     private final boolean diff;
+    private final byte[] scratch = new byte[OptimizedDataCodec.MAX_LONG_LENGTH];
+    private byte[] blockBuffer = null;
+    private FrameOfReferenceCodec.Workspace frameOfReferenceWorkspace = null;
 
     public OptimizedDataOutputStream(final OutputStream out) {
         this(out, false);
@@ -42,99 +53,129 @@ public class OptimizedDataOutputStream extends FilterOutputStream {
     }
 
     public void writeInt(final int value) throws IOException {
+        final int len;
         if (this.diff) {
-            writeInt0(value - this.lastInt, this.out);
+            len = OptimizedDataCodec.writeInt(this.scratch, 0, value - this.lastInt);
             this.lastInt = value;
         } else
-            writeInt0(value, this.out);
+            len = OptimizedDataCodec.writeInt(this.scratch, 0, value);
+        this.out.write(this.scratch, 0, len);
     }
 
     public static void writeInt0(final int value, final OutputStream out) throws IOException {
-        if ((value | ~LOWER_7_BITS) == value || (value & LOWER_7_BITS) == value) {
-            if (value < -124)
-                out.write(MAGIC_1BYTE);
-            out.write(value);
-        } else if ((value | ~LOWER_15_BITS) == value || (value & LOWER_15_BITS) == value) {
-            out.write(MAGIC_2BYTES);
-            out.write(value >>> 8);
-            out.write(value);
-        } else if ((value | ~LOWER_23_BITS) == value || (value & LOWER_23_BITS) == value) {
-            out.write(MAGIC_3BYTES);
-            out.write(value >>> 16);
-            out.write(value >>> 8);
-            out.write(value);
-        } else {
-            out.write(MAGIC_4BYTES);
-            out.write(value >>> 24);
-            out.write(value >>> 16);
-            out.write(value >>> 8);
-            out.write(value);
-        }
+        // byte-wise, so that no buffer has to be allocated
+        final int len = OptimizedDataCodec.getEncodedLength(value);
+        final int numValueBytes = len == 1 ? 1 : len - 1;
+        if (len > 1)
+            out.write(OptimizedDataCodec.getMagicByte(numValueBytes));
+        for (int shift = 8 * (numValueBytes - 1); shift >= 0; shift -= 8)
+            out.write(value >>> shift);
     }
 
     public void writeLong(final long value) throws IOException {
+        final int len;
         if (this.diff) {
-            writeLong0(value - this.lastLong, this.out);
+            len = OptimizedDataCodec.writeLong(this.scratch, 0, value - this.lastLong);
             this.lastLong = value;
         } else
-            writeLong0(value, this.out);
+            len = OptimizedDataCodec.writeLong(this.scratch, 0, value);
+        this.out.write(this.scratch, 0, len);
     }
 
     public static void writeLong0(final long value, final OutputStream out) throws IOException {
-        if ((value | ~LOWER_7_BITS) == value || (value & LOWER_7_BITS) == value) {
-            if (value < -124 || value > 123)
-                out.write(MAGIC_1BYTE);
-            out.write((int) value);
-        } else if ((value | ~LOWER_15_BITS) == value || (value & LOWER_15_BITS) == value) {
-            out.write(MAGIC_2BYTES);
-            out.write((int)(value >>> 8));
-            out.write((int)value);
-        } else if ((value | ~LOWER_23_BITS) == value || (value & LOWER_23_BITS) == value) {
-            out.write(MAGIC_3BYTES);
-            out.write((int)(value >>> 16));
-            out.write((int)(value >>> 8));
-            out.write((int)value);
-        } else if ((value | ~LOWER_31_BITS) == value || (value & LOWER_31_BITS) == value) {
-            out.write(MAGIC_4BYTES);
-            out.write((int)(value >>> 24));
-            out.write((int)(value >>> 16));
-            out.write((int)(value >>> 8));
-            out.write((int)value);
-        } else if ((value | ~LOWER_39_BITS) == value || (value & LOWER_39_BITS) == value) {
-            out.write(MAGIC_5BYTES);
-            out.write((int)(value >>> 32));
-            out.write((int)(value >>> 24));
-            out.write((int)(value >>> 16));
-            out.write((int)(value >>> 8));
-            out.write((int)value);
-        } else if ((value | ~LOWER_47_BITS) == value || (value & LOWER_47_BITS) == value) {
-            out.write(MAGIC_6BYTES);
-            out.write((int)(value >>> 40));
-            out.write((int)(value >>> 32));
-            out.write((int)(value >>> 24));
-            out.write((int)(value >>> 16));
-            out.write((int)(value >>> 8));
-            out.write((int)value);
-        } else if ((value | ~LOWER_55_BITS) == value || (value & LOWER_55_BITS) == value) {
-            out.write(MAGIC_7BYTES);
-            out.write((int)(value >>> 48));
-            out.write((int)(value >>> 40));
-            out.write((int)(value >>> 32));
-            out.write((int)(value >>> 24));
-            out.write((int)(value >>> 16));
-            out.write((int)(value >>> 8));
-            out.write((int)value);
-        } else {
-            out.write(MAGIC_8BYTES);
-            out.write((int)(value >>> 56));
-            out.write((int)(value >>> 48));
-            out.write((int)(value >>> 40));
-            out.write((int)(value >>> 32));
-            out.write((int)(value >>> 24));
-            out.write((int)(value >>> 16));
-            out.write((int)(value >>> 8));
-            out.write((int)value);
+        // byte-wise, so that no buffer has to be allocated
+        final int len = OptimizedDataCodec.getEncodedLength(value);
+        final int numValueBytes = len == 1 ? 1 : len - 1;
+        if (len > 1)
+            out.write(OptimizedDataCodec.getMagicByte(numValueBytes));
+        for (int shift = 8 * (numValueBytes - 1); shift >= 0; shift -= 8)
+            out.write((int) (value >>> shift));
+    }
+
+    /**
+     * Writes the given ints in blocks, choosing the encoding of each block automatically.
+     * They have to be read by {@link OptimizedDataInputStream#readInts(int[], int, int)}
+     * with the same <code>len</code>.
+     */
+    public void writeInts(final int[] values, final int off, final int len) throws IOException {
+        writeInts(values, off, len, OptimizedDataCodec.BULK_MODE_AUTO);
+    }
+
+    /**
+     * Writes the given ints in blocks of the given encoding.
+     * They have to be read by {@link OptimizedDataInputStream#readInts(int[], int, int)}
+     * with the same <code>len</code>.
+     *
+     * @param mode one of the <code>BULK_MODE_*</code> constants of {@link OptimizedDataCodec}
+     */
+    public void writeInts(final int[] values, final int off, final int len, final int mode) throws IOException {
+        if (off < 0 || len < 0 || off > values.length - len)
+            throw new IndexOutOfBoundsException();
+        final byte[] buf = getBlockBuffer();
+        int bufPos = 0;
+        for (int i = off, end = off + len; i < end; i += OptimizedDataCodec.BULK_BLOCK_SIZE) {
+            if (bufPos > buf.length - OptimizedDataCodec.MAX_INT_BLOCK_LENGTH) {
+                this.out.write(buf, 0, bufPos);
+                bufPos = 0;
+            }
+            bufPos = OptimizedDataCodec.writeIntBlock(buf, bufPos, values, i,
+                Math.min(OptimizedDataCodec.BULK_BLOCK_SIZE, end - i), mode, getWorkspace(mode));
+        }
+        if (bufPos > 0)
+            this.out.write(buf, 0, bufPos);
+    }
+
+    /**
+     * Writes the given longs in blocks, choosing the encoding of each block automatically.
+     * They have to be read by {@link OptimizedDataInputStream#readLongs(long[], int, int)}
+     * with the same <code>len</code>.
+     */
+    public void writeLongs(final long[] values, final int off, final int len) throws IOException {
+        writeLongs(values, off, len, OptimizedDataCodec.BULK_MODE_AUTO);
+    }
+
+    /**
+     * Writes the given longs in blocks of the given encoding.
+     * They have to be read by {@link OptimizedDataInputStream#readLongs(long[], int, int)}
+     * with the same <code>len</code>.
+     *
+     * @param mode one of the <code>BULK_MODE_*</code> constants of {@link OptimizedDataCodec}
+     */
+    public void writeLongs(final long[] values, final int off, final int len, final int mode) throws IOException {
+        if (off < 0 || len < 0 || off > values.length - len)
+            throw new IndexOutOfBoundsException();
+        final byte[] buf = getBlockBuffer();
+        int bufPos = 0;
+        for (int i = off, end = off + len; i < end; i += OptimizedDataCodec.BULK_BLOCK_SIZE) {
+            if (bufPos > buf.length - OptimizedDataCodec.MAX_LONG_BLOCK_LENGTH) {
+                this.out.write(buf, 0, bufPos);
+                bufPos = 0;
+            }
+            bufPos = OptimizedDataCodec.writeLongBlock(buf, bufPos, values, i,
+                Math.min(OptimizedDataCodec.BULK_BLOCK_SIZE, end - i), mode, getWorkspace(mode));
         }
+        if (bufPos > 0)
+            this.out.write(buf, 0, bufPos);
+    }
+
+    private FrameOfReferenceCodec.Workspace getWorkspace(final int mode) {
+        if (mode != OptimizedDataCodec.BULK_MODE_FRAME_OF_REFERENCE)
+            return null;
+        if (this.frameOfReferenceWorkspace == null)
+            this.frameOfReferenceWorkspace = new FrameOfReferenceCodec.Workspace();
+        return this.frameOfReferenceWorkspace;
+    }
+
+    private byte[] getBlockBuffer() {
+        if (this.blockBuffer == null)
+            this.blockBuffer = new byte[8 * OptimizedDataCodec.MAX_LONG_BLOCK_LENGTH];
+        return this.blockBuffer;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        // FilterOutputStream would write byte by byte
+        this.out.write(b, off, len);
     }
 
     public int getLastIntValue() {
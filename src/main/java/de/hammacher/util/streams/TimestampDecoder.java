@@ -0,0 +1,109 @@
+package de.hammacher.util.streams;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads timestamps written by a {@link TimestampEncoder}.
+ *
+ * The decoder reads ahead from the underlying stream, so the underlying stream must not
+ * be read directly after reading timestamps.
+ *
+ * @author Clemens Hammacher
+ */
+public class TimestampDecoder implements Closeable {
+
+    // number of value bits for the prefixes with 1 to 6 leading one bits
+    private static final int[] VALUE_BITS = { 0, 7, 9, 12, 20, 32, 64 };
+
+    private final InputStream in;
+
+    private long lastTimestamp = 0;
+    private long lastDelta = 0;
+
+    // available bits, in the lowest numBits bits of bitBuffer
+    private long bitBuffer = 0;
+    private int numBits = 0;
+
+    private final byte[] buf = new byte[8192];
+    private int bufPos = 0;
+    private int bufLimit = 0;
+
+    public TimestampDecoder(final InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Creates a decoder which continues after the given timestamp and delta, i.e. the
+     * state of the encoder when it started writing the data read by this decoder.
+     */
+    public TimestampDecoder(final InputStream in, final long lastTimestamp, final long lastDelta) {
+        this(in);
+        this.lastTimestamp = lastTimestamp;
+        this.lastDelta = lastDelta;
+    }
+
+    /**
+     * @throws EOFException if the end of the stream is reached
+     */
+    public long readTimestamp() throws IOException {
+        int ones;
+        while (true) {
+            ones = 0;
+            while (ones < TimestampEncoder.ALIGN_PREFIX_BITS && readBits(1) != 0)
+                ++ones;
+            if (ones < TimestampEncoder.ALIGN_PREFIX_BITS)
+                break;
+            // alignment: skip the rest of the current byte
+            this.numBits &= ~7;
+        }
+
+        final long deltaOfDelta;
+        if (ones == 0) {
+            deltaOfDelta = 0;
+        } else if (ones < 6) {
+            final int bits = VALUE_BITS[ones];
+            deltaOfDelta = (readBits(bits) << (64 - bits)) >> (64 - bits);
+        } else {
+            deltaOfDelta = (readBits(32) << 32) | readBits(32);
+        }
+
+        this.lastDelta += deltaOfDelta;
+        return this.lastTimestamp += this.lastDelta;
+    }
+
+    /**
+     * Reads the next <code>bits</code> (at most 32) bits.
+     */
+    private long readBits(final int bits) throws IOException {
+        while (this.numBits < bits) {
+            if (this.bufPos == this.bufLimit) {
+                final int read = this.in.read(this.buf, 0, this.buf.length);
+                if (read < 0)
+                    throw new EOFException();
+                this.bufPos = 0;
+                this.bufLimit = read;
+                continue;
+            }
+            this.bitBuffer = (this.bitBuffer << 8) | (this.buf[this.bufPos++] & 0xff);
+            this.numBits += 8;
+        }
+        this.numBits -= bits;
+        return (this.bitBuffer >>> this.numBits) & ((1L << bits) - 1);
+    }
+
+    public long getLastTimestamp() {
+        return this.lastTimestamp;
+    }
+
+    public long getLastDelta() {
+        return this.lastDelta;
+    }
+
+    public void close() throws IOException {
+        this.in.close();
+    }
+
+}
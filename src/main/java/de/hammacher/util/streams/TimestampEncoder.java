@@ -0,0 +1,153 @@
+package de.hammacher.util.streams;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a series of timestamps (e.g. taken from {@link System#nanoTime()}) to an
+ * {@link OutputStream}, storing only the difference between consecutive deltas
+ * ("delta of delta") in variable-length bit buckets, like the Gorilla time series
+ * compression. For timestamps taken at regular intervals, each timestamp costs only
+ * 1 or 2 bits.
+ *
+ * Each timestamp is encoded as a prefix code followed by the delta of delta, stored in
+ * two's complement with the number of bits announced by the prefix (most significant bit first):
+ * <pre>
+ *   0                     delta of delta is 0
+ *   10      + 7 bits
+ *   110     + 9 bits
+ *   1110    + 12 bits
+ *   11110   + 20 bits
+ *   111110  + 32 bits
+ *   1111110 + 64 bits
+ *   1111111               alignment: skip to the next byte boundary
+ * </pre>
+ *
+ * Since the encoding works on bits, other data must not be written to the same underlying
+ * stream; use a separate stream for the timestamps. {@link #finish()} aligns the output to
+ * the next byte boundary. Afterwards, more timestamps can be written, also by a new encoder
+ * which is initialized with the last timestamp and delta of this one; a
+ * {@link TimestampDecoder} reads the concatenated data without noticing the boundary.
+ *
+ * @author Clemens Hammacher
+ */
+public class TimestampEncoder implements Closeable, Flushable {
+
+    static final int ALIGN_PREFIX = 0x7f;
+    static final int ALIGN_PREFIX_BITS = 7;
+
+    private final OutputStream out;
+
+    private long lastTimestamp = 0;
+    private long lastDelta = 0;
+
+    // pending bits, in the lowest numBits bits of bitBuffer
+    private long bitBuffer = 0;
+    private int numBits = 0;
+
+    private final byte[] buf = new byte[512];
+    private int bufPos = 0;
+
+    public TimestampEncoder(final OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Creates an encoder which continues after the given timestamp and delta, e.g. as
+     * returned by {@link #getLastTimestamp()} and {@link #getLastDelta()} of a previous encoder.
+     */
+    public TimestampEncoder(final OutputStream out, final long lastTimestamp, final long lastDelta) {
+        this(out);
+        this.lastTimestamp = lastTimestamp;
+        this.lastDelta = lastDelta;
+    }
+
+    public void writeTimestamp(final long timestamp) throws IOException {
+        final long delta = timestamp - this.lastTimestamp;
+        final long deltaOfDelta = delta - this.lastDelta;
+        this.lastTimestamp = timestamp;
+        this.lastDelta = delta;
+
+        if (deltaOfDelta == 0) {
+            writeBits(0, 1);
+        } else if (deltaOfDelta >= -(1 << 6) && deltaOfDelta < (1 << 6)) {
+            writeBits(0x2, 2);
+            writeBits(deltaOfDelta, 7);
+        } else if (deltaOfDelta >= -(1 << 8) && deltaOfDelta < (1 << 8)) {
+            writeBits(0x6, 3);
+            writeBits(deltaOfDelta, 9);
+        } else if (deltaOfDelta >= -(1 << 11) && deltaOfDelta < (1 << 11)) {
+            writeBits(0xe, 4);
+            writeBits(deltaOfDelta, 12);
+        } else if (deltaOfDelta >= -(1 << 19) && deltaOfDelta < (1 << 19)) {
+            writeBits(0x1e, 5);
+            writeBits(deltaOfDelta, 20);
+        } else if (deltaOfDelta == (int) deltaOfDelta) {
+            writeBits(0x3e, 6);
+            writeBits(deltaOfDelta, 32);
+        } else {
+            writeBits(0x7e, 7);
+            writeBits(deltaOfDelta >>> 32, 32);
+            writeBits(deltaOfDelta, 32);
+        }
+    }
+
+    /**
+     * Appends the lowest <code>bits</code> (at most 32) bits of <code>value</code>.
+     */
+    private void writeBits(final long value, final int bits) throws IOException {
+        this.bitBuffer = (this.bitBuffer << bits) | (value & ((1L << bits) - 1));
+        this.numBits += bits;
+        while (this.numBits >= 8) {
+            this.numBits -= 8;
+            if (this.bufPos == this.buf.length)
+                writeBuffer();
+            this.buf[this.bufPos++] = (byte) (this.bitBuffer >>> this.numBits);
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        if (this.bufPos > 0) {
+            this.out.write(this.buf, 0, this.bufPos);
+            this.bufPos = 0;
+        }
+    }
+
+    public long getLastTimestamp() {
+        return this.lastTimestamp;
+    }
+
+    public long getLastDelta() {
+        return this.lastDelta;
+    }
+
+    /**
+     * Writes all complete bytes to the underlying stream and flushes it.
+     * Up to 7 bits stay pending; call {@link #finish()} to write them as well.
+     */
+    public void flush() throws IOException {
+        writeBuffer();
+        this.out.flush();
+    }
+
+    /**
+     * Writes all pending bits, padded to the next byte boundary, to the underlying
+     * stream (without closing it). More timestamps can be written afterwards.
+     */
+    public void finish() throws IOException {
+        if (this.numBits > 0) {
+            writeBits(ALIGN_PREFIX, ALIGN_PREFIX_BITS);
+            if (this.numBits > 0)
+                writeBits(0, 8 - this.numBits);
+        }
+        writeBuffer();
+    }
+
+    public void close() throws IOException {
+        finish();
+        this.out.close();
+    }
+
+}
@@ -0,0 +1,228 @@
+package de.hammacher.util.streams;
+
+import java.nio.charset.Charset;
+
+/**
+ * Encodes strings to UTF-8 and decodes them again, working directly on byte and
+ * char arrays. Unlike {@link java.io.DataOutput#writeUTF(String)}, there is no
+ * length limit, and the standard UTF-8 encoding is used (characters outside the
+ * basic multilingual plane take 4 bytes, <code>'\0'</code> takes one byte).
+ * Unpaired surrogates are encoded like all other characters of the basic multilingual
+ * plane (3 bytes), so that every string survives the round trip unchanged.
+ *
+ * Strings consisting only of ASCII characters are handled by special fast paths.
+ *
+ * @author Clemens Hammacher
+ */
+public abstract class Utf8Codec {
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private Utf8Codec() {
+        // prevent instantiation
+    }
+
+    /**
+     * @return the number of bytes of the UTF-8 encoding of <code>s</code>
+     */
+    public static int getEncodedLength(final CharSequence s) {
+        return getEncodedLength(s, 0, s.length());
+    }
+
+    /**
+     * @return the number of bytes of the UTF-8 encoding of the chars <code>start .. end-1</code>
+     *         of <code>s</code>
+     */
+    public static int getEncodedLength(final CharSequence s, final int start, final int end) {
+        int bytes = end - start;
+        for (int i = start; i < end; ++i) {
+            final char c = s.charAt(i);
+            if (c < 0x80)
+                continue;
+            if (c < 0x800) {
+                ++bytes;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                // 2 chars, 4 bytes
+                bytes += 2;
+                ++i;
+            } else {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the UTF-8 encoding of <code>s</code> to <code>buf</code>, starting at
+     * <code>off</code>. The array must have room for {@link #getEncodedLength(CharSequence)}
+     * bytes.
+     *
+     * @return the offset after the last written byte
+     */
+    public static int encode(final CharSequence s, final byte[] buf, final int off) {
+        return encode(s, 0, s.length(), buf, off);
+    }
+
+    /**
+     * Writes the UTF-8 encoding of the chars <code>start .. end-1</code> of <code>s</code>
+     * to <code>buf</code>, starting at <code>off</code>.
+     *
+     * @return the offset after the last written byte
+     * @see #encode(CharSequence, byte[], int)
+     */
+    public static int encode(final CharSequence s, final int start, final int end, final byte[] buf,
+            final int off) {
+        int pos = off;
+        int i = start;
+        // ASCII fast path
+        for (char c; i < end && (c = s.charAt(i)) < 0x80; ++i)
+            buf[pos++] = (byte) c;
+        for (; i < end; ++i) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xc0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte) (0xf0 | (codePoint >> 18));
+                buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else {
+                buf[pos++] = (byte) (0xe0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * @return whether all bytes in the given range are ASCII characters
+     */
+    public static boolean isAscii(final byte[] buf, final int off, final int len) {
+        for (int i = off, end = off + len; i < end; ++i)
+            if (buf[i] < 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * Decodes <code>len</code> bytes of UTF-8 starting at <code>buf[off]</code> into
+     * <code>dst</code>, which must have room for <code>len</code> chars.
+     *
+     * @return the number of decoded chars
+     * @throws IllegalArgumentException if the bytes are no valid UTF-8
+     */
+    public static int decode(final byte[] buf, final int off, final int len, final char[] dst) {
+        final int end = off + len;
+        int pos = off;
+        int n = 0;
+        // ASCII fast path
+        for (byte b; pos < end && (b = buf[pos]) >= 0; ++pos)
+            dst[n++] = (char) b;
+        while (pos < end) {
+            final int b = buf[pos++];
+            if (b >= 0) {
+                dst[n++] = (char) b;
+            } else if ((b & 0xe0) == 0xc0) {
+                checkAvailable(pos, 1, end);
+                dst[n++] = (char) (((b & 0x1f) << 6) | continuation(buf[pos++]));
+            } else if ((b & 0xf0) == 0xe0) {
+                checkAvailable(pos, 2, end);
+                dst[n++] = (char) (((b & 0x0f) << 12) | (continuation(buf[pos]) << 6) | continuation(buf[pos + 1]));
+                pos += 2;
+            } else if ((b & 0xf8) == 0xf0) {
+                checkAvailable(pos, 3, end);
+                final int codePoint = ((b & 0x07) << 18) | (continuation(buf[pos]) << 12)
+                    | (continuation(buf[pos + 1]) << 6) | continuation(buf[pos + 2]);
+                pos += 3;
+                if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT || codePoint > Character.MAX_CODE_POINT)
+                    throw new IllegalArgumentException("invalid code point " + codePoint);
+                final int offset = codePoint - Character.MIN_SUPPLEMENTARY_CODE_POINT;
+                dst[n++] = (char) (Character.MIN_HIGH_SURROGATE + (offset >>> 10));
+                dst[n++] = (char) (Character.MIN_LOW_SURROGATE + (offset & 0x3ff));
+            } else {
+                throw new IllegalArgumentException("invalid UTF-8 lead byte " + (b & 0xff));
+            }
+        }
+        return n;
+    }
+
+    private static void checkAvailable(final int pos, final int needed, final int end) {
+        if (end - pos < needed)
+            throw new IllegalArgumentException("truncated UTF-8 sequence");
+    }
+
+    private static int continuation(final byte b) {
+        if ((b & 0xc0) != 0x80)
+            throw new IllegalArgumentException("invalid UTF-8 continuation byte " + (b & 0xff));
+        return b & 0x3f;
+    }
+
+    /**
+     * Decodes <code>len</code> bytes of UTF-8 starting at <code>buf[off]</code> into a new
+     * String. ASCII strings are decoded as Latin-1, which needs no temporary buffer (with
+     * compact strings, the String is the only allocated object); otherwise,
+     * <code>charBuf</code> is used as temporary buffer if it is large enough.
+     *
+     * @param charBuf a temporary buffer, may be <code>null</code>
+     * @throws IllegalArgumentException if the bytes are no valid UTF-8
+     */
+    public static String decodeString(final byte[] buf, final int off, final int len, final char[] charBuf) {
+        // for ASCII bytes, Latin-1 decoding is the same, and it is a plain copy
+        if (isAscii(buf, off, len))
+            return new String(buf, off, len, LATIN1);
+        final char[] chars = charBuf != null && charBuf.length >= len ? charBuf : new char[len];
+        return new String(chars, 0, decode(buf, off, len, chars));
+    }
+
+    /**
+     * Skips <code>numChars</code> chars in the UTF-8 bytes starting at <code>buf[off]</code>
+     * (characters outside the basic multilingual plane count as two chars).
+     *
+     * @return the offset of the byte following the skipped chars
+     * @throws IllegalArgumentException if there are less chars, or the last skipped char
+     *                                  is the first half of a 4-byte sequence
+     */
+    public static int skipChars(final byte[] buf, final int off, final int len, final int numChars) {
+        final int end = off + len;
+        int pos = off;
+        int remaining = numChars;
+        while (remaining > 0) {
+            if (pos >= end)
+                throw new IllegalArgumentException("less than " + numChars + " chars");
+            final int b = buf[pos];
+            if (b >= 0) {
+                pos += 1;
+            } else if ((b & 0xe0) == 0xc0) {
+                pos += 2;
+            } else if ((b & 0xf0) == 0xe0) {
+                pos += 3;
+            } else {
+                if (remaining == 1)
+                    throw new IllegalArgumentException("cannot split a 4-byte sequence");
+                pos += 4;
+                --remaining;
+            }
+            --remaining;
+        }
+        if (pos > end)
+            throw new IllegalArgumentException("truncated UTF-8 sequence");
+        return pos;
+    }
+
+    /**
+     * Computes a hash code over the given bytes. For ASCII strings, this is the same
+     * as {@link String#hashCode()}.
+     */
+    public static int hash(final byte[] buf, final int off, final int len) {
+        int h = 0;
+        for (int i = off, end = off + len; i < end; ++i)
+            h = 31 * h + buf[i];
+        return h;
+    }
+
+}
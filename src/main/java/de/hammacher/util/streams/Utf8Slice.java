@@ -0,0 +1,111 @@
+package de.hammacher.util.streams;
+
+/**
+ * A view of a range of UTF-8 encoded bytes in a byte array, e.g. as filled by
+ * {@link de.hammacher.util.StringCacheInput#readStringSlice}. The bytes are not
+ * copied, so they must not be modified, and a slice object can be reused to avoid
+ * allocating a new one for each string.
+ *
+ * @author Clemens Hammacher
+ */
+public final class Utf8Slice {
+
+    private byte[] bytes;
+    private int offset;
+    private int length;
+
+    public Utf8Slice() {
+        this.bytes = new byte[0];
+    }
+
+    public Utf8Slice(final byte[] bytes, final int offset, final int length) {
+        set(bytes, offset, length);
+    }
+
+    public void set(final byte[] bytes, final int offset, final int length) {
+        if (offset < 0 || length < 0 || offset + length > bytes.length)
+            throw new IndexOutOfBoundsException();
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public byte[] getBytes() {
+        return this.bytes;
+    }
+
+    public int getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * @return the number of bytes of this slice
+     */
+    public int getLength() {
+        return this.length;
+    }
+
+    public byte byteAt(final int index) {
+        if (index < 0 || index >= this.length)
+            throw new IndexOutOfBoundsException();
+        return this.bytes[this.offset + index];
+    }
+
+    /**
+     * @return whether the bytes of this slice are the UTF-8 encoding of <code>s</code>
+     */
+    public boolean contentEquals(final String s) {
+        final int len = s.length();
+        if (len > this.length)
+            return false;
+        int i = 0;
+        // ASCII strings are compared without encoding
+        for (; i < len && i < this.length; ++i) {
+            final char c = s.charAt(i);
+            if (c >= 0x80)
+                break;
+            if (this.bytes[this.offset + i] != c)
+                return false;
+        }
+        if (i == len)
+            return i == this.length;
+        final String rest = s.substring(i);
+        final byte[] restBytes = new byte[Utf8Codec.getEncodedLength(rest)];
+        if (restBytes.length != this.length - i)
+            return false;
+        Utf8Codec.encode(rest, restBytes, 0);
+        for (int j = 0; j < restBytes.length; ++j)
+            if (restBytes[j] != this.bytes[this.offset + i + j])
+                return false;
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return Utf8Codec.hash(this.bytes, this.offset, this.length);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof Utf8Slice))
+            return false;
+        final Utf8Slice other = (Utf8Slice) obj;
+        if (this.length != other.length)
+            return false;
+        for (int i = 0; i < this.length; ++i)
+            if (this.bytes[this.offset + i] != other.bytes[other.offset + i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Decodes the bytes of this slice.
+     */
+    @Override
+    public String toString() {
+        return Utf8Codec.decodeString(this.bytes, this.offset, this.length, null);
+    }
+
+}
@@ -0,0 +1,134 @@
+package de.hammacher.util;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.Test;
+
+import de.hammacher.util.maps.ConcurrentIntegerToIntegerMap;
+import de.hammacher.util.maps.IntegerToIntegerMap;
+
+
+public class ConcurrentIntegerToIntegerMapPerformance {
+
+	private static interface Operations {
+		int get(int key);
+		void add(int key, int value);
+	}
+
+	private static class ConcurrentHashMapOperations implements Operations {
+		private final ConcurrentHashMap<Integer, Integer> map = new ConcurrentHashMap<Integer, Integer>();
+
+		public int get(int key) {
+			Integer value = this.map.get(key);
+			return value == null ? 0 : value.intValue();
+		}
+
+		public void add(int key, int value) {
+			while (true) {
+				Integer old = this.map.get(key);
+				if (old == null) {
+					if (this.map.putIfAbsent(key, value) == null)
+						return;
+				} else if (this.map.replace(key, old, old + value)) {
+					return;
+				}
+			}
+		}
+	}
+
+	private static class LockedMapOperations implements Operations {
+		private final IntegerToIntegerMap map = new IntegerToIntegerMap();
+
+		public synchronized int get(int key) {
+			return this.map.getInt(key);
+		}
+
+		public synchronized void add(int key, int value) {
+			this.map.incrementAndGet(key, value);
+		}
+	}
+
+	private static class ConcurrentMapOperations implements Operations {
+		private final ConcurrentIntegerToIntegerMap map = new ConcurrentIntegerToIntegerMap();
+
+		public int get(int key) {
+			return this.map.get(key);
+		}
+
+		public void add(int key, int value) {
+			this.map.addAndGet(key, value);
+		}
+	}
+
+	// 80% lookups, 20% updates
+	private long run(final Operations ops, final int numThreads, final int numKeys, final int opsPerThread)
+			throws Exception {
+		final CyclicBarrier barrier = new CyclicBarrier(numThreads + 1);
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; ++i) {
+			final long seed = new Random().nextLong();
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					Random rand = new Random(seed);
+					try {
+						barrier.await();
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+					long sum = 0;
+					for (int j = 0; j < opsPerThread; ++j) {
+						int key = rand.nextInt(numKeys) * 31;
+						if (rand.nextInt(5) == 0)
+							ops.add(key, 1);
+						else
+							sum += ops.get(key);
+					}
+					if (sum == 42)
+						System.out.print("");
+				}
+			};
+			threads[i].start();
+		}
+		barrier.await();
+		long startTime = System.nanoTime();
+		for (Thread t: threads)
+			t.join();
+		return System.nanoTime() - startTime;
+	}
+
+	private void compare(int numThreads, int numKeys) throws Exception {
+		int opsPerThread = 4000000 / numThreads;
+		long hashMapTime = run(new ConcurrentHashMapOperations(), numThreads, numKeys, opsPerThread);
+		long lockedTime = run(new LockedMapOperations(), numThreads, numKeys, opsPerThread);
+		long concurrentTime = run(new ConcurrentMapOperations(), numThreads, numKeys, opsPerThread);
+
+		double ops = (double) numThreads * opsPerThread;
+		System.out.format("(%2d threads, %8d keys) ConcurrentHashMap: %6.2f Mops/sec; locked IntegerToIntegerMap: %6.2f Mops/sec; "
+				+ "ConcurrentIntegerToIntegerMap: %6.2f Mops/sec%n", numThreads, numKeys,
+				1e3*ops/hashMapTime, 1e3*ops/lockedTime, 1e3*ops/concurrentTime);
+	}
+
+	@Test
+	public void threads_1() throws Exception {
+		compare(1, 100000);
+	}
+	@Test
+	public void threads_4() throws Exception {
+		compare(4, 100000);
+	}
+	@Test
+	public void threads_8() throws Exception {
+		compare(8, 100000);
+	}
+	@Test
+	public void threads_32() throws Exception {
+		compare(32, 100000);
+	}
+	@Test
+	public void threads_32_fewKeys() throws Exception {
+		compare(32, 1000);
+	}
+}
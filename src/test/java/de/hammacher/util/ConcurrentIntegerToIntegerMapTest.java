@@ -0,0 +1,209 @@
+package de.hammacher.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.hammacher.util.maps.ConcurrentIntegerToIntegerMap;
+
+
+public class ConcurrentIntegerToIntegerMapTest {
+
+	private static final int NUM_THREADS = 8;
+
+	private Random rand;
+
+	@Before
+	public void setUp() {
+		long seed = new Random().nextLong();
+		System.out.println("Seed: "+seed);
+		this.rand = new Random(seed);
+	}
+
+	@Test
+	public void testSequentialOperations() {
+		HashMap<Integer, Integer> hashMap = new HashMap<Integer, Integer>();
+		ConcurrentIntegerToIntegerMap map = new ConcurrentIntegerToIntegerMap(0, -1);
+
+		for (int i = 0; i < 300000; ++i) {
+			int op = this.rand.nextInt(1000);
+			int key = this.rand.nextInt(10) == 0 ? 0 : this.rand.nextInt(5000) * 1000003;
+			if (op < 300) {
+				int value = this.rand.nextInt();
+				Integer old = hashMap.put(key, value);
+				assertEquals(old == null ? -1 : old.intValue(), map.put(key, value));
+			} else if (op < 400) {
+				int value = this.rand.nextInt();
+				Integer old = hashMap.get(key);
+				if (old == null)
+					hashMap.put(key, value);
+				assertEquals(old == null ? -1 : old.intValue(), map.putIfAbsent(key, value));
+			} else if (op < 550) {
+				int add = this.rand.nextInt(5) - 2;
+				Integer old = hashMap.get(key);
+				int newValue = (old == null ? -1 : old.intValue()) + add;
+				hashMap.put(key, newValue);
+				assertEquals(newValue, map.addAndGet(key, add));
+			} else if (op < 800) {
+				Integer old = hashMap.remove(key);
+				assertEquals(old == null ? -1 : old.intValue(), map.remove(key));
+			} else {
+				Integer value = hashMap.get(key);
+				assertEquals(value == null ? -1 : value.intValue(), map.get(key));
+				assertEquals(value != null, map.containsKey(key));
+			}
+			assertEquals(hashMap.size(), map.size());
+		}
+		for (Integer key: hashMap.keySet())
+			assertEquals(hashMap.get(key).intValue(), map.get(key));
+	}
+
+	private static abstract class Worker extends Thread {
+
+		private final CyclicBarrier barrier;
+		final AtomicReference<Throwable> failure;
+
+		Worker(CyclicBarrier barrier, AtomicReference<Throwable> failure) {
+			this.barrier = barrier;
+			this.failure = failure;
+		}
+
+		@Override
+		public void run() {
+			try {
+				this.barrier.await();
+				work();
+			} catch (Throwable t) {
+				this.failure.compareAndSet(null, t);
+			}
+		}
+
+		abstract void work();
+	}
+
+	private static void runWorkers(Worker[] workers, AtomicReference<Throwable> failure) throws Throwable {
+		for (Worker w: workers)
+			w.start();
+		for (Worker w: workers)
+			w.join();
+		if (failure.get() != null)
+			throw failure.get();
+	}
+
+	@Test
+	public void testConcurrentAddAndGet() throws Throwable {
+		final ConcurrentIntegerToIntegerMap map = new ConcurrentIntegerToIntegerMap();
+		final int numKeys = 10000;
+		final int increments = 200000;
+		final CyclicBarrier barrier = new CyclicBarrier(NUM_THREADS);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Worker[] workers = new Worker[NUM_THREADS];
+		for (int i = 0; i < NUM_THREADS; ++i) {
+			final long seed = this.rand.nextLong();
+			workers[i] = new Worker(barrier, failure) {
+				@Override
+				void work() {
+					Random r = new Random(seed);
+					for (int j = 0; j < increments; ++j)
+						map.addAndGet(r.nextInt(numKeys), 1);
+				}
+			};
+		}
+		runWorkers(workers, failure);
+
+		long sum = 0;
+		for (int key = 0; key < numKeys; ++key)
+			sum += map.get(key);
+		assertEquals((long) NUM_THREADS * increments, sum);
+	}
+
+	@Test
+	public void testConcurrentPutIfAbsent() throws Throwable {
+		// all threads try to insert the same keys (while the map grows); exactly one must win
+		final ConcurrentIntegerToIntegerMap map = new ConcurrentIntegerToIntegerMap(0, -1);
+		final int numKeys = 100000;
+		final AtomicInteger wins = new AtomicInteger();
+		final CyclicBarrier barrier = new CyclicBarrier(NUM_THREADS);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final int keyMultiplier = this.rand.nextInt() | 1;
+		Worker[] workers = new Worker[NUM_THREADS];
+		for (int i = 0; i < NUM_THREADS; ++i) {
+			final int thread = i;
+			workers[i] = new Worker(barrier, failure) {
+				@Override
+				void work() {
+					for (int j = 0; j < numKeys; ++j) {
+						int key = j * keyMultiplier;
+						int old = map.putIfAbsent(key, thread);
+						if (old == -1)
+							wins.incrementAndGet();
+						else if (old < 0 || old >= NUM_THREADS)
+							throw new AssertionError("unexpected value " + old);
+						if (map.get(key) == -1)
+							throw new AssertionError("lost key " + key);
+					}
+				}
+			};
+		}
+		runWorkers(workers, failure);
+
+		assertEquals(numKeys, wins.get());
+		assertEquals(numKeys, map.size());
+	}
+
+	@Test
+	public void testConcurrentPutRemove() throws Throwable {
+		// each thread works on its own keys, so it can check all results while the others
+		// trigger resizes
+		final ConcurrentIntegerToIntegerMap map = new ConcurrentIntegerToIntegerMap(0, -1);
+		final CyclicBarrier barrier = new CyclicBarrier(NUM_THREADS);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final int[] finalSizes = new int[NUM_THREADS];
+		Worker[] workers = new Worker[NUM_THREADS];
+		for (int i = 0; i < NUM_THREADS; ++i) {
+			final int thread = i;
+			final long seed = this.rand.nextLong();
+			workers[i] = new Worker(barrier, failure) {
+				@Override
+				void work() {
+					Random r = new Random(seed);
+					HashMap<Integer, Integer> expected = new HashMap<Integer, Integer>();
+					for (int j = 0; j < 200000; ++j) {
+						int key = r.nextInt(20000) * NUM_THREADS + thread;
+						Integer old;
+						int actual;
+						if (r.nextInt(3) == 0) {
+							old = expected.remove(key);
+							actual = map.remove(key);
+						} else {
+							old = expected.put(key, j);
+							actual = map.put(key, j);
+						}
+						if (actual != (old == null ? -1 : old.intValue()))
+							throw new AssertionError("expected " + old + " for key " + key + ", got " + actual);
+					}
+					for (Integer key: expected.keySet())
+						if (map.get(key) != expected.get(key).intValue())
+							throw new AssertionError("wrong value for key " + key);
+					finalSizes[thread] = expected.size();
+				}
+			};
+		}
+		runWorkers(workers, failure);
+
+		int expectedSize = 0;
+		for (int s: finalSizes)
+			expectedSize += s;
+		assertEquals(expectedSize, map.size());
+		assertTrue(map.isEmpty() == (expectedSize == 0));
+	}
+
+}
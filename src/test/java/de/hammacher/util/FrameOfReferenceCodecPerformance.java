@@ -0,0 +1,67 @@
+package de.hammacher.util;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.hammacher.util.streams.FrameOfReferenceCodec;
+
+
+public class FrameOfReferenceCodecPerformance {
+
+	private static final int NUM_VALUES = 1 << 22;
+
+	private static long[] generate(boolean outliers) {
+		Random rand = new Random(42);
+		long[] values = new long[NUM_VALUES];
+		long last = 0;
+		for (int i = 0; i < NUM_VALUES; ++i) {
+			last += rand.nextInt(1000);
+			values[i] = outliers && rand.nextInt(100) == 0 ? last + rand.nextInt() : last;
+		}
+		return values;
+	}
+
+	private void measure(boolean outliers, int runs) {
+		long[] values = generate(outliers);
+		byte[] data = FrameOfReferenceCodec.encode(values, 0, values.length);
+		long[] block = new long[FrameOfReferenceCodec.BLOCK_SIZE];
+		int numBlocks = FrameOfReferenceCodec.getNumBlocks(data);
+
+		long encodeTime = 0;
+		long decodeTime = 0;
+		long randomTime = 0;
+		long sum = 0;
+		Random rand = new Random(42);
+		for (int r = 0; r <= runs; ++r) {
+			long startTime = System.nanoTime();
+			data = FrameOfReferenceCodec.encode(values, 0, values.length);
+			long encoded = System.nanoTime();
+			sum += FrameOfReferenceCodec.decodeLongs(data)[NUM_VALUES - 1];
+			long decoded = System.nanoTime();
+			for (int b = 0; b < numBlocks; ++b)
+				sum += block[FrameOfReferenceCodec.decodeBlock(data, rand.nextInt(numBlocks), block, 0) - 1];
+			long end = System.nanoTime();
+			// first run is warm up
+			if (r > 0) {
+				encodeTime += encoded - startTime;
+				decodeTime += decoded - encoded;
+				randomTime += end - decoded;
+			}
+		}
+		double numValues = (double) runs * NUM_VALUES;
+		System.out.format("(%s) encode: %.1f M values/s; decode: %.1f M values/s; random blocks: %.1f M values/s; "
+				+ "size: %.3f bytes/value (%d)%n", outliers ? "outliers" : "sorted",
+			numValues * 1e3 / encodeTime, numValues * 1e3 / decodeTime, numValues * 1e3 / randomTime,
+			(double) data.length / NUM_VALUES, sum & 1);
+	}
+
+	@Test
+	public void sorted() {
+		measure(false, 5);
+	}
+	@Test
+	public void outliers() {
+		measure(true, 5);
+	}
+}
@@ -0,0 +1,116 @@
+package de.hammacher.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.hammacher.util.streams.FrameOfReferenceCodec;
+
+
+public class FrameOfReferenceCodecTest {
+
+	private Random rand;
+
+	@Before
+	public void setUp() {
+		long seed = new Random().nextLong();
+		System.out.println("Seed: "+seed);
+		this.rand = new Random(seed);
+	}
+
+	private long[] generate(int num, int kind) {
+		long[] values = new long[num];
+		long last = this.rand.nextLong();
+		for (int i = 0; i < num; ++i) {
+			switch (kind) {
+			case 0: // regular
+				values[i] = last += 1000;
+				break;
+			case 1: // sorted with jitter
+				values[i] = last += this.rand.nextInt(300);
+				break;
+			case 2: // nearly sorted, with outliers in both directions
+				last += this.rand.nextInt(100);
+				values[i] = this.rand.nextInt(50) == 0 ? last + (this.rand.nextLong() >> this.rand.nextInt(64)) : last;
+				break;
+			default: // random
+				values[i] = this.rand.nextLong() >> this.rand.nextInt(64);
+				break;
+			}
+		}
+		return values;
+	}
+
+	@Test
+	public void testSequences() {
+		for (int kind = 0; kind < 4; ++kind) {
+			for (int num: new int[] { 0, 1, 2, 127, 128, 129, 1000, 10000 }) {
+				long[] values = generate(num, kind);
+				byte[] data = FrameOfReferenceCodec.encode(values, 0, num);
+				assertEquals(num, FrameOfReferenceCodec.getNumValues(data));
+				assertArrayEquals("kind " + kind + ", " + num + " values", values, FrameOfReferenceCodec.decodeLongs(data));
+
+				// random access to the blocks
+				int numBlocks = FrameOfReferenceCodec.getNumBlocks(data);
+				assertEquals((num + 127) / 128, numBlocks);
+				long[] block = new long[FrameOfReferenceCodec.BLOCK_SIZE + 1];
+				for (int i = 0; i < 10 && numBlocks > 0; ++i) {
+					int b = this.rand.nextInt(numBlocks);
+					int decoded = FrameOfReferenceCodec.decodeBlock(data, b, block, 1);
+					int start = b * FrameOfReferenceCodec.BLOCK_SIZE;
+					assertEquals(Math.min(FrameOfReferenceCodec.BLOCK_SIZE, num - start), decoded);
+					assertArrayEquals(Arrays.copyOfRange(values, start, start + decoded),
+						Arrays.copyOfRange(block, 1, decoded + 1));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testInts() {
+		int[] values = new int[1000];
+		for (int i = 0; i < values.length; ++i)
+			values[i] = i == 0 ? Integer.MIN_VALUE : this.rand.nextInt(20) == 0 ? this.rand.nextInt()
+				: values[i-1] + this.rand.nextInt(10);
+		byte[] data = FrameOfReferenceCodec.encode(values, 0, values.length);
+		assertArrayEquals(values, FrameOfReferenceCodec.decodeInts(data));
+		int[] block = new int[FrameOfReferenceCodec.BLOCK_SIZE];
+		assertEquals(1000 - 7 * 128, FrameOfReferenceCodec.decodeBlock(data, 7, block, 0));
+		assertArrayEquals(Arrays.copyOfRange(values, 7 * 128, 1000), Arrays.copyOf(block, 1000 - 7 * 128));
+	}
+
+	@Test
+	public void testCompression() {
+		// a regular series needs no bits per value
+		byte[] data = FrameOfReferenceCodec.encode(generate(12800, 0), 0, 12800);
+		assertTrue(data.length + " bytes", data.length < 100 * 30);
+
+		// outliers become exceptions and do not widen the whole block
+		long[] values = new long[128];
+		for (int i = 0; i < values.length; ++i)
+			values[i] = 10 * i;
+		values[64] = Long.MAX_VALUE / 2;
+		values[65] = 10 * 65;
+		byte[] buf = new byte[FrameOfReferenceCodec.MAX_BLOCK_LENGTH];
+		int len = FrameOfReferenceCodec.encodeBlock(buf, 0, values, 0, values.length);
+		assertTrue(len + " bytes", len < 64);
+		long[] decoded = new long[128];
+		int[] pos = new int[1];
+		FrameOfReferenceCodec.decodeBlock(buf, pos, decoded, 0, 128);
+		assertEquals(len, pos[0]);
+		assertArrayEquals(values, decoded);
+	}
+
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void testInvalidBlock() {
+		byte[] data = FrameOfReferenceCodec.encode(new long[300], 0, 300);
+		FrameOfReferenceCodec.decodeBlock(data, 3, new long[128], 0);
+	}
+
+}
@@ -0,0 +1,118 @@
+package de.hammacher.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.hammacher.util.streams.OptimizedDataInputStream;
+import de.hammacher.util.streams.OptimizedDataOutputStream;
+
+
+public class IndexedRecordTest {
+
+	private File tmpFile;
+	private Random rand;
+
+	@Before
+	public void setUp() throws IOException {
+		this.tmpFile = File.createTempFile("indexed-record-test-", ".dat");
+		long seed = new Random().nextLong();
+		System.out.println("Seed: "+seed);
+		this.rand = new Random(seed);
+	}
+
+	@After
+	public void tearDown() {
+		this.tmpFile.delete();
+	}
+
+	private void checkRecord(IndexedRecordInput in, long recordNr, long[] keys) throws IOException {
+		assertTrue("record " + recordNr + " expected", in.nextRecord());
+		assertEquals("record number", recordNr, in.getRecordNr());
+		assertEquals("key of record " + recordNr, keys[(int) recordNr], in.getKey());
+		OptimizedDataInputStream recordIn = in.getRecordInput();
+		assertEquals("content of record " + recordNr, recordNr, recordIn.readLong());
+		int numInts = recordIn.readInt();
+		for (int i = 0; i < numInts; ++i)
+			assertEquals("content of record " + recordNr, i*(int)recordNr, recordIn.readInt());
+		assertEquals("record length", -1, recordIn.read());
+	}
+
+	@Test
+	public void testSeek() throws IOException {
+		int numRecords = this.rand.nextInt(5000);
+		int indexInterval = 1 + this.rand.nextInt(100);
+		long[] keys = new long[numRecords];
+
+		MultiplexedFileWriter writer = new MultiplexedFileWriter(this.tmpFile, 64 << this.rand.nextInt(5),
+			false, ByteOrder.nativeOrder(), false);
+		IndexedRecordOutput out = new IndexedRecordOutput(writer, indexInterval);
+		long key = this.rand.nextInt(1000) - 500;
+		for (int r = 0; r < numRecords; ++r) {
+			// some keys repeat
+			key += this.rand.nextInt(3) == 0 ? 0 : this.rand.nextInt(1000);
+			keys[r] = key;
+			OptimizedDataOutputStream recordOut = out.startRecord(key);
+			recordOut.writeLong(r);
+			int numInts = this.rand.nextInt(20);
+			recordOut.writeInt(numInts);
+			for (int i = 0; i < numInts; ++i)
+				recordOut.writeInt(i*r);
+			out.endRecord();
+		}
+		int dataStreamId = out.getDataStreamId();
+		int indexStreamId = out.getIndexStreamId();
+		out.close();
+		writer.close();
+
+		MultiplexedFileReader reader = new MultiplexedFileReader(new RandomAccessFile(this.tmpFile, "r"), false);
+		IndexedRecordInput in = new IndexedRecordInput(reader, dataStreamId, indexStreamId);
+		assertEquals("number of records", numRecords, in.getNumRecords());
+		assertEquals("index interval", indexInterval, in.getIndexInterval());
+
+		// sequential read
+		for (int r = 0; r < numRecords; ++r)
+			checkRecord(in, r, keys);
+		assertFalse("no more records expected", in.nextRecord());
+
+		// seek by record number
+		for (int i = 0; i < 200 && numRecords > 0; ++i) {
+			int recordNr = this.rand.nextInt(numRecords);
+			in.seekToRecord(recordNr);
+			checkRecord(in, recordNr, keys);
+			if (recordNr + 1 < numRecords)
+				checkRecord(in, recordNr + 1, keys);
+		}
+		in.seekToRecord(numRecords);
+		assertFalse("no more records expected", in.nextRecord());
+
+		// seek by key
+		for (int i = 0; i < 200; ++i) {
+			long searchKey = numRecords == 0 || this.rand.nextBoolean()
+				? this.rand.nextInt(1000000) - 1000
+				: keys[this.rand.nextInt(numRecords)];
+			int expectedNr = 0;
+			while (expectedNr < numRecords && keys[expectedNr] < searchKey)
+				++expectedNr;
+			boolean found = in.seekToKey(searchKey);
+			assertEquals("found record with key >= " + searchKey, expectedNr < numRecords, found);
+			if (found)
+				checkRecord(in, expectedNr, keys);
+			else
+				assertFalse("no more records expected", in.nextRecord());
+		}
+
+		reader.close();
+	}
+
+}
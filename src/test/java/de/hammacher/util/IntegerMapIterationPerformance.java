@@ -0,0 +1,114 @@
+package de.hammacher.util;
+
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.hammacher.util.maps.IntegerIntegerVisitor;
+import de.hammacher.util.maps.IntegerMap;
+import de.hammacher.util.maps.IntegerObjectVisitor;
+import de.hammacher.util.maps.IntegerToIntegerMap;
+
+
+public class IntegerMapIterationPerformance {
+
+	private static class SumVisitor implements IntegerObjectVisitor<Object>, IntegerIntegerVisitor {
+		long sum = 0;
+
+		public void visit(int key, Object value) {
+			this.sum += key;
+		}
+
+		public void visit(int key, int value) {
+			this.sum += key + value;
+		}
+	}
+
+	private void compareIntegerMap(int max, int num, int runs) {
+		IntegerMap<Object> map = new IntegerMap<Object>();
+		Object o = new Object();
+		Random rand = new Random();
+		for (int i = 0; i < num; ++i)
+			map.put(rand.nextInt(max), o);
+
+		long entrySetTime = 0;
+		long cursorTime = 0;
+		long forEachEntryTime = 0;
+		long sum1 = 0, sum2 = 0, sum3 = 0;
+		for (int run = 0; run < runs; ++run) {
+			long startTime = System.nanoTime();
+			for (Map.Entry<Integer, Object> e: map.entrySet())
+				sum1 += e.getKey();
+			entrySetTime += System.nanoTime() - startTime;
+
+			startTime = System.nanoTime();
+			for (IntegerMap<Object>.Cursor c = map.cursor(); c.advance(); )
+				sum2 += c.key();
+			cursorTime += System.nanoTime() - startTime;
+
+			startTime = System.nanoTime();
+			SumVisitor visitor = new SumVisitor();
+			map.forEachEntry(visitor);
+			sum3 += visitor.sum;
+			forEachEntryTime += System.nanoTime() - startTime;
+		}
+		if (sum1 != sum2 || sum1 != sum3)
+			throw new AssertionError("different sums");
+
+		System.out.format("IntegerMap (%10d, %8d) entrySet: %.3f sec; cursor: %.3f sec; forEachEntry: %.3f sec%n",
+				max, num, 1e-9*entrySetTime, 1e-9*cursorTime, 1e-9*forEachEntryTime);
+	}
+
+	private void compareIntegerToIntegerMap(int max, int num, int runs) {
+		IntegerToIntegerMap map = new IntegerToIntegerMap();
+		Random rand = new Random();
+		for (int i = 0; i < num; ++i)
+			map.put(rand.nextInt(max), i);
+
+		long entrySetTime = 0;
+		long cursorTime = 0;
+		long forEachEntryTime = 0;
+		long sum1 = 0, sum2 = 0, sum3 = 0;
+		for (int run = 0; run < runs; ++run) {
+			long startTime = System.nanoTime();
+			for (Map.Entry<Integer, Integer> e: map.entrySet())
+				sum1 += e.getKey() + e.getValue();
+			entrySetTime += System.nanoTime() - startTime;
+
+			startTime = System.nanoTime();
+			for (IntegerToIntegerMap.Cursor c = map.cursor(); c.advance(); )
+				sum2 += c.key() + c.value();
+			cursorTime += System.nanoTime() - startTime;
+
+			startTime = System.nanoTime();
+			SumVisitor visitor = new SumVisitor();
+			map.forEachEntry(visitor);
+			sum3 += visitor.sum;
+			forEachEntryTime += System.nanoTime() - startTime;
+		}
+		if (sum1 != sum2 || sum1 != sum3)
+			throw new AssertionError("different sums");
+
+		System.out.format("IntegerToIntegerMap (%10d, %8d) entrySet: %.3f sec; cursor: %.3f sec; forEachEntry: %.3f sec%n",
+				max, num, 1e-9*entrySetTime, 1e-9*cursorTime, 1e-9*forEachEntryTime);
+	}
+
+	@Test
+	public void integerMap_list_1000000() {
+		compareIntegerMap(1000000, 1000000, 20);
+	}
+	@Test
+	public void integerMap_map_1000000() {
+		compareIntegerMap(Integer.MAX_VALUE, 1000000, 20);
+	}
+
+	@Test
+	public void integerToIntegerMap_list_1000000() {
+		compareIntegerToIntegerMap(1000000, 1000000, 20);
+	}
+	@Test
+	public void integerToIntegerMap_map_1000000() {
+		compareIntegerToIntegerMap(Integer.MAX_VALUE, 1000000, 20);
+	}
+}
@@ -36,6 +36,34 @@ public class IntegerMapPerformance {
 				max, num, 1e-9*hashMapTime, 1e-9*intMapTime);
 	}
 
+	private long fillMapClustered(Map<Integer, Object> map, int num, int[] clusters, int clusterSize) {
+		Object o = new Object();
+		Random rand = new Random();
+		long startTime = System.nanoTime();
+
+		for (int i = 0; i < num; ++i)
+			map.put(clusters[rand.nextInt(clusters.length)] + rand.nextInt(clusterSize), o);
+
+		return System.nanoTime() - startTime;
+	}
+
+	private void compareClustered(int numClusters, int clusterSize, int num, int runs) {
+		int[] clusters = new int[numClusters];
+		Random rand = new Random();
+		for (int i = 0; i < numClusters; ++i)
+			clusters[i] = rand.nextInt();
+		long hashMapTime = 0;
+		long intMapTime = 0;
+
+		for (int i = 0; i < runs; ++i) {
+			hashMapTime += fillMapClustered(new HashMap<Integer, Object>(), num, clusters, clusterSize);
+			intMapTime += fillMapClustered(new IntegerMap<Object>(), num, clusters, clusterSize);
+		}
+
+		System.out.format("(%5d clusters of %6d, %10d) HashMap: %.3f sec; IntegerMap: %.3f sec%n",
+				numClusters, clusterSize, num, 1e-9*hashMapTime, 1e-9*intMapTime);
+	}
+
 	@Test
 	public void continuousRange_10000_x05() {
 		compareContinuous(10000, 5000, 20);
@@ -90,6 +118,15 @@ public class IntegerMapPerformance {
 	public void uncontinuousRange_1000000() {
 		compareContinuous(Integer.MAX_VALUE, 1000000, 3);
 	}
+	@Test
+	public void clusteredRange_1000x1000() {
+		compareClustered(1000, 1000, 3000000, 3);
+	}
+	@Test
+	public void clusteredRange_100x10000() {
+		compareClustered(100, 10000, 3000000, 3);
+	}
+
 	@Test @Ignore
 	public void uncontinuousRange_10000000() {
 		compareContinuous(Integer.MAX_VALUE, 10000000, 2);
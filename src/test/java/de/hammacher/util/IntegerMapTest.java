@@ -1,13 +1,20 @@
 package de.hammacher.util;
 
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import de.hammacher.util.maps.FrozenIntegerMap;
 import de.hammacher.util.maps.IntegerMap;
+import de.hammacher.util.maps.IntegerObjectVisitor;
 
 public class IntegerMapTest {
 
@@ -92,6 +99,248 @@ public class IntegerMapTest {
 		}, -1);
 	}
 
+	@Test
+	public void testOperationsClustered() {
+		Random seedRand = new Random();
+		int seed = seedRand.nextInt();
+		System.out.println("Seed: "+seed);
+		final Random rand = new Random(seed);
+
+		// dense clusters of keys, spread over a wide range
+		final int[] clusters = new int[50];
+		for (int i = 0; i < clusters.length; ++i)
+			clusters[i] = rand.nextInt(1 << 24) & ~1023;
+		testOperations(1000000, new IntGenerator() {
+			public int nextInt() {
+				// key:
+				return clusters[rand.nextInt(clusters.length)] + rand.nextInt(1000);
+			}
+		}, new IntGenerator() {
+			public int nextInt() {
+				// value:
+				return rand.nextInt(10);
+			}
+		}, new IntGenerator() {
+			public int nextInt() {
+				// operation:
+				return rand.nextInt(1000);
+			}
+		}, -1);
+	}
+
+	@Test
+	public void testClusteredKeysModeChanges() {
+		Random seedRand = new Random();
+		int seed = seedRand.nextInt();
+		System.out.println("Seed: "+seed);
+		Random rand = new Random(seed);
+
+		HashMap<Integer, Integer> hashMap = new HashMap<Integer, Integer>();
+		IntegerMap<Integer> map = new IntegerMap<Integer>();
+		// fill clusters one after the other, then add sparse keys, then fill the gaps
+		for (int cluster = 0; cluster < 20; ++cluster) {
+			int base = (cluster - 10) * 10000000;
+			for (int i = 0; i < 5000; ++i) {
+				int key = base + rand.nextInt(3000);
+				hashMap.put(key, i);
+				map.put(key, Integer.valueOf(i));
+			}
+		}
+		Assert.assertEquals(hashMap, map);
+		for (int i = 0; i < 10000; ++i) {
+			int key = rand.nextInt();
+			hashMap.put(key, i);
+			map.put(key, Integer.valueOf(i));
+		}
+		Assert.assertEquals(hashMap, map);
+		for (int key = -1000000; key < 1000000; ++key) {
+			hashMap.put(key, key);
+			map.put(key, Integer.valueOf(key));
+		}
+		Assert.assertEquals(hashMap, map);
+		Assert.assertEquals(hashMap, map.clone());
+
+		// clusters which are filled up to a dense range
+		hashMap.clear();
+		map = new IntegerMap<Integer>();
+		for (int i = 0; i < 4000; ++i) {
+			int key = rand.nextInt(4) * 100000 + rand.nextInt(1000);
+			hashMap.put(key, i);
+			map.put(key, Integer.valueOf(i));
+		}
+		for (int key = 0; key < 400000; key += 2) {
+			hashMap.put(key, key);
+			map.put(key, Integer.valueOf(key));
+		}
+		Assert.assertEquals(hashMap, map);
+		Assert.assertEquals(hashMap, map.clone());
+	}
+
+	private static Object[] getPages(IntegerMap<?> map) throws Exception {
+		Field pagesField = IntegerMap.class.getDeclaredField("pages");
+		pagesField.setAccessible(true);
+		Object[] pages = (Object[]) pagesField.get(map);
+		if (pages != null) {
+			// the number of allocated pages must be up to date
+			Field numPagesField = IntegerMap.class.getDeclaredField("numPages");
+			numPagesField.setAccessible(true);
+			int numPages = 0;
+			for (Object page: pages)
+				if (page != null)
+					++numPages;
+			Assert.assertEquals(numPages, numPagesField.getInt(map));
+		}
+		return pages;
+	}
+
+	@Test
+	public void testRemoveFromPagedMode() throws Exception {
+		Random seedRand = new Random();
+		int seed = seedRand.nextInt();
+		System.out.println("Seed: "+seed);
+		Random rand = new Random(seed);
+
+		for (boolean useIterator: new boolean[] { false, true }) {
+			HashMap<Integer, Integer> hashMap = new HashMap<Integer, Integer>();
+			IntegerMap<Integer> map = new IntegerMap<Integer>();
+			for (int i = 0; i < 4000; ++i) {
+				int key = rand.nextInt(8) * 100000 + rand.nextInt(1000);
+				hashMap.put(key, i);
+				map.put(key, Integer.valueOf(i));
+			}
+			Assert.assertNotNull("expected paged mode", getPages(map));
+
+			List<Integer> keys = new ArrayList<Integer>(hashMap.keySet());
+			Collections.shuffle(keys, rand);
+			if (useIterator) {
+				// removing through an iterator frees empty pages, but does not change the mode
+				for (Iterator<Integer> it = map.keySet().iterator(); it.hasNext(); ) {
+					Integer key = it.next();
+					if (rand.nextInt(10) != 0) {
+						it.remove();
+						hashMap.remove(key);
+					}
+				}
+				Assert.assertEquals(hashMap, map);
+				Object[] pages = getPages(map);
+				Assert.assertNotNull(pages);
+				keys = new ArrayList<Integer>(hashMap.keySet());
+			}
+			int sizeWhenLeavingPagedMode = -1;
+			for (Integer key: keys) {
+				Assert.assertEquals(hashMap.remove(key), map.remove(key.intValue()));
+				if (sizeWhenLeavingPagedMode == -1 && getPages(map) == null)
+					sizeWhenLeavingPagedMode = map.size();
+				if (rand.nextInt(100) == 0)
+					Assert.assertEquals(hashMap, map);
+			}
+			Assert.assertTrue(map.isEmpty());
+			Assert.assertTrue("expected to leave paged mode", sizeWhenLeavingPagedMode != -1);
+
+			// the map is still usable
+			for (int i = 0; i < 1000; ++i) {
+				int key = rand.nextInt();
+				hashMap.put(key, i);
+				map.put(key, Integer.valueOf(i));
+			}
+			Assert.assertEquals(hashMap, map);
+		}
+	}
+
+	@Test
+	public void testFreeze() {
+		Random seedRand = new Random();
+		int seed = seedRand.nextInt();
+		System.out.println("Seed: "+seed);
+		Random rand = new Random(seed);
+
+		// dense keys (list mode), sparse keys (map mode), clustered keys (paged mode) and skewed keys
+		for (int range: new int[] { 1000, Integer.MAX_VALUE, -1, -2 }) {
+			HashMap<Integer, Integer> hashMap = new HashMap<Integer, Integer>();
+			IntegerMap<Integer> map = new IntegerMap<Integer>();
+			for (int i = 0; i < 5000; ++i) {
+				int key = range == -1 ? rand.nextInt(4) * 100000 + rand.nextInt(1000)
+					: range == -2 ? (int) Math.pow(rand.nextInt(1300), 3) * (rand.nextBoolean() ? 1 : -1)
+					: rand.nextInt(range);
+				Integer val = rand.nextInt(10) == 0 ? null : rand.nextInt(1000);
+				hashMap.put(key, val);
+				map.put(key, val);
+			}
+
+			FrozenIntegerMap<Integer> frozen = map.freeze();
+			Assert.assertEquals(hashMap, frozen);
+			Assert.assertEquals(frozen, hashMap);
+			Assert.assertEquals(hashMap.hashCode(), frozen.hashCode());
+			for (int i = 0; i < 5000; ++i) {
+				int key = rand.nextInt(10) == 0 ? rand.nextInt() : rand.nextInt(1000);
+				Assert.assertEquals(hashMap.get(key), frozen.get(key));
+				Assert.assertEquals(hashMap.containsKey(key), frozen.containsKey(key));
+			}
+			Assert.assertEquals(hashMap, frozen.thaw());
+
+			// the snapshot must not change with the map
+			map.put(1, Integer.valueOf(-1));
+			map.remove(map.keySet().iterator().next());
+			Assert.assertEquals(hashMap, frozen);
+
+			final int[] lastKey = { Integer.MIN_VALUE };
+			frozen.forEachEntry(new IntegerObjectVisitor<Integer>() {
+				public void visit(int key, Integer value) {
+					Assert.assertTrue(key >= lastKey[0]);
+					lastKey[0] = key;
+				}
+			});
+			try {
+				frozen.put(1, 1);
+				Assert.fail("UnsupportedOperationException expected");
+			} catch (UnsupportedOperationException e) {
+				// expected
+			}
+		}
+		Assert.assertTrue(new IntegerMap<Object>().freeze().isEmpty());
+	}
+
+	@Test
+	public void testCursor() {
+		Random seedRand = new Random();
+		int seed = seedRand.nextInt();
+		System.out.println("Seed: "+seed);
+		Random rand = new Random(seed);
+
+		// dense keys (list mode), sparse keys (map mode) and clustered keys (paged mode)
+		for (int range: new int[] { 1000, Integer.MAX_VALUE, -1 }) {
+			HashMap<Integer, Integer> hashMap = new HashMap<Integer, Integer>();
+			IntegerMap<Integer> map = new IntegerMap<Integer>();
+			for (int i = 0; i < 2000; ++i) {
+				int key = range == -1 ? rand.nextInt(4) * 100000 + rand.nextInt(1000) : rand.nextInt(range);
+				Integer val = rand.nextInt(10) == 0 ? null : rand.nextInt(1000);
+				hashMap.put(key, val);
+				map.put(key, val);
+			}
+
+			final HashMap<Integer, Integer> visited = new HashMap<Integer, Integer>();
+			map.forEachEntry(new IntegerObjectVisitor<Integer>() {
+				public void visit(int key, Integer value) {
+					Assert.assertFalse(visited.containsKey(key));
+					visited.put(key, value);
+				}
+			});
+			Assert.assertEquals(hashMap, visited);
+
+			visited.clear();
+			for (IntegerMap<Integer>.Cursor c = map.cursor(); c.advance(); ) {
+				Assert.assertFalse(visited.containsKey(c.key()));
+				visited.put(c.key(), c.value());
+				Integer newVal = c.value() == null ? Integer.valueOf(0) : null;
+				Assert.assertEquals(c.value(), c.setValue(newVal));
+				Assert.assertEquals(newVal, c.value());
+				hashMap.put(c.key(), newVal);
+			}
+			Assert.assertEquals(hashMap.size(), visited.size());
+			Assert.assertEquals(hashMap, map);
+		}
+	}
+
 	private void testOperations(int numOperations, IntGenerator keyGen,
 			IntGenerator valGen, IntGenerator opGen, int debugKey) {
 		HashMap<Integer, Integer> hashMap = new HashMap<Integer, Integer>();
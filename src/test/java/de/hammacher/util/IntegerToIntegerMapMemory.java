@@ -0,0 +1,31 @@
+package de.hammacher.util;
+
+import java.util.Random;
+
+import de.hammacher.util.maps.IntegerToIntegerMap;
+
+public class IntegerToIntegerMapMemory {
+
+	public static void main(String[] args) {
+		//Map<Integer, Integer> map = new HashMap<Integer, Integer>();
+		IntegerToIntegerMap map = new IntegerToIntegerMap();
+		// random keys, so that the map never switches to list mode
+		Random rand = new Random(0);
+		long startTime = System.currentTimeMillis();
+		long lastTime = startTime;
+		long lastMemory = 0;
+		for (int i = 0; i < 20000000; ++i) {
+			if (i % 1000000 == 0) {
+				System.gc();
+				long usedMemory = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+				long time = System.currentTimeMillis();
+				System.out.format("%10d, %4.1f sec: %7.2f MB (+%4.1f sec, +%5.2f MB)%n",
+						i, 1e-3*(time - startTime), 1e-6*usedMemory, 1e-3*(time - lastTime), 1e-6*(usedMemory-lastMemory));
+				lastMemory = usedMemory;
+				lastTime = time;
+			}
+			map.put(rand.nextInt(), i);
+		}
+	}
+
+}
@@ -0,0 +1,252 @@
+package de.hammacher.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.hammacher.util.maps.IntegerIntegerVisitor;
+import de.hammacher.util.maps.IntegerToIntegerMap;
+import de.hammacher.util.streams.OptimizedDataInputStream;
+import de.hammacher.util.streams.OptimizedDataOutputStream;
+
+
+public class IntegerToIntegerMapTest {
+
+	private Random rand;
+
+	@Before
+	public void setUp() {
+		long seed = new Random().nextLong();
+		System.out.println("Seed: "+seed);
+		this.rand = new Random(seed);
+	}
+
+	private static interface KeyGenerator {
+		int nextKey();
+	}
+
+	private static void checkEqual(Map<Integer, Integer> expected, IntegerToIntegerMap map) {
+		assertEquals(expected.size(), map.size());
+		assertEquals(expected, map);
+		int num = 0;
+		for (Map.Entry<Integer, Integer> e: map.entrySet()) {
+			assertEquals(expected.get(e.getKey()), e.getValue());
+			++num;
+		}
+		assertEquals(expected.size(), num);
+	}
+
+	private void testOperations(int numOperations, KeyGenerator keyGen) {
+		HashMap<Integer, Integer> hashMap = new HashMap<Integer, Integer>();
+		IntegerToIntegerMap map = new IntegerToIntegerMap(IntegerToIntegerMap.DEFAULT_INITIAL_CAPACITY,
+			IntegerToIntegerMap.DEFAULT_LOAD_FACTOR, IntegerToIntegerMap.DEFAULT_SWITCH_TO_MAP_RATIO,
+			IntegerToIntegerMap.DEFAULT_SWITCH_TO_LIST_RATIO, -1);
+
+		for (int i = 0; i < numOperations; ++i) {
+			int op = this.rand.nextInt(1000);
+			int key = keyGen.nextKey();
+			if (op < 350) {
+				int value = this.rand.nextInt(10);
+				Integer old = hashMap.put(key, value);
+				assertEquals(old == null ? -1 : old.intValue(), map.put(key, value));
+			} else if (op < 550) {
+				Integer old = hashMap.remove(key);
+				assertEquals(old == null ? -1 : old.intValue(), map.remove(key));
+			} else if (op < 700) {
+				Integer value = hashMap.get(key);
+				assertEquals(value == null ? -1 : value.intValue(), map.getInt(key));
+				assertEquals(value != null, map.containsKey(key));
+			} else if (op < 800) {
+				int add = this.rand.nextInt(5) - 2;
+				Integer old = hashMap.get(key);
+				int newValue = (old == null ? -1 : old.intValue()) + add;
+				hashMap.put(key, newValue);
+				assertEquals(newValue, map.incrementAndGet(key, add));
+			} else if (op < 850) {
+				Integer old = hashMap.get(key);
+				hashMap.put(key, old == null ? 0 : old.intValue() + 1);
+				map.increment(key);
+			} else if (op < 900) {
+				int value = this.rand.nextInt(10);
+				assertEquals(hashMap.containsValue(value), map.containsValue(value));
+			} else if (op < 990) {
+				// remove some entries by the iterator
+				Iterator<Map.Entry<Integer, Integer>> it = map.entrySet().iterator();
+				int num = 0;
+				while (it.hasNext()) {
+					Map.Entry<Integer, Integer> e = it.next();
+					assertEquals(hashMap.get(e.getKey()), e.getValue());
+					++num;
+					if (this.rand.nextInt(10) == 0) {
+						it.remove();
+						hashMap.remove(e.getKey());
+					}
+				}
+				assertTrue(num >= hashMap.size());
+				checkEqual(hashMap, map);
+			} else if (op < 995) {
+				checkEqual(hashMap, map.clone());
+			} else {
+				hashMap.clear();
+				map.clear();
+			}
+			assertEquals(hashMap.size(), map.size());
+		}
+		checkEqual(hashMap, map);
+	}
+
+	@Test
+	public void testDenseKeys() {
+		testOperations(200000, new KeyGenerator() {
+			public int nextKey() {
+				return IntegerToIntegerMapTest.this.rand.nextInt(1000);
+			}
+		});
+	}
+
+	@Test
+	public void testSparseKeys() {
+		testOperations(200000, new KeyGenerator() {
+			public int nextKey() {
+				// include the key 0, which is stored outside the hash table
+				return IntegerToIntegerMapTest.this.rand.nextInt(10) == 0 ? 0
+					: IntegerToIntegerMapTest.this.rand.nextInt(3000) * 1000003;
+			}
+		});
+	}
+
+	@Test
+	public void testIteratorRemoveAll() {
+		// removing entries while iterating moves entries around; each one must be seen exactly once
+		for (int run = 0; run < 100; ++run) {
+			IntegerToIntegerMap map = new IntegerToIntegerMap();
+			HashMap<Integer, Integer> expected = new HashMap<Integer, Integer>();
+			int num = 1 + this.rand.nextInt(1000);
+			for (int i = 0; i < num; ++i) {
+				int key = this.rand.nextInt() | 1 << 30;
+				map.put(key, i);
+				expected.put(key, i);
+			}
+			Iterator<Map.Entry<Integer, Integer>> it = map.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Integer, Integer> e = it.next();
+				assertEquals(expected.remove(e.getKey()), e.getValue());
+				it.remove();
+			}
+			assertTrue(expected.isEmpty());
+			assertTrue(map.isEmpty());
+			assertFalse(map.entrySet().iterator().hasNext());
+		}
+	}
+
+	@Test
+	public void testCursor() {
+		// dense keys (list mode) and sparse keys (map mode)
+		for (int range: new int[] { 1000, Integer.MAX_VALUE }) {
+			HashMap<Integer, Integer> hashMap = new HashMap<Integer, Integer>();
+			IntegerToIntegerMap map = new IntegerToIntegerMap();
+			for (int i = 0; i < 500; ++i) {
+				int key = i == 0 ? 0 : this.rand.nextInt(range);
+				int value = this.rand.nextInt(3);
+				hashMap.put(key, value);
+				map.put(key, value);
+			}
+
+			final HashMap<Integer, Integer> visited = new HashMap<Integer, Integer>();
+			map.forEachEntry(new IntegerIntegerVisitor() {
+				public void visit(int key, int value) {
+					assertFalse(visited.containsKey(key));
+					visited.put(key, value);
+				}
+			});
+			assertEquals(hashMap, visited);
+
+			visited.clear();
+			for (IntegerToIntegerMap.Cursor c = map.cursor(); c.advance(); ) {
+				assertFalse(visited.containsKey(c.key()));
+				visited.put(c.key(), c.value());
+				int newValue = (c.value() + 1) % 3;
+				assertEquals(c.value(), c.setValue(newValue));
+				assertEquals(newValue, c.value());
+				hashMap.put(c.key(), newValue);
+			}
+			assertEquals(hashMap.size(), visited.size());
+			checkEqual(hashMap, map);
+		}
+	}
+
+	@Test
+	public void testEntrySetValue() {
+		IntegerToIntegerMap map = new IntegerToIntegerMap();
+		for (int i = 0; i < 100; ++i)
+			map.put(i * 7919, i);
+		for (Map.Entry<Integer, Integer> e: map.entrySet())
+			e.setValue(e.getValue() + 1);
+		for (int i = 0; i < 100; ++i)
+			assertEquals(i + 1, map.getInt(i * 7919));
+	}
+
+	@Test
+	public void testSerialization() throws IOException {
+		// dense keys (list mode) and sparse keys (map mode), both with and without key 0 and zero values
+		for (int range: new int[] { 1000, Integer.MAX_VALUE }) {
+			HashMap<Integer, Integer> hashMap = new HashMap<Integer, Integer>();
+			IntegerToIntegerMap map = new IntegerToIntegerMap(0, IntegerToIntegerMap.DEFAULT_LOAD_FACTOR, IntegerToIntegerMap.DEFAULT_SWITCH_TO_MAP_RATIO,
+				IntegerToIntegerMap.DEFAULT_SWITCH_TO_LIST_RATIO, -1);
+			for (int i = 0; i < 3000; ++i) {
+				int key = this.rand.nextInt(range);
+				if (this.rand.nextInt(4) == 0) {
+					hashMap.remove(key);
+					map.remove(key);
+				} else {
+					int value = this.rand.nextInt(3) == 0 ? 0 : this.rand.nextInt();
+					hashMap.put(key, value);
+					map.put(key, value);
+				}
+			}
+			if (this.rand.nextBoolean()) {
+				hashMap.put(0, 0);
+				map.put(0, 0);
+			}
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			OptimizedDataOutputStream out = new OptimizedDataOutputStream(bytes);
+			map.writeTo(out);
+			out.close();
+			byte[] data = bytes.toByteArray();
+
+			IntegerToIntegerMap read = IntegerToIntegerMap.readFrom(new OptimizedDataInputStream(new ByteArrayInputStream(data)));
+			assertEquals(-1, read.getInt(-12345));
+			checkEqual(hashMap, read);
+			// the read map must still be fully functional
+			for (int i = 0; i < 3000; ++i) {
+				int key = this.rand.nextInt(range);
+				int value = this.rand.nextInt();
+				hashMap.put(key, value);
+				read.put(key, value);
+			}
+			checkEqual(hashMap, read);
+
+			try {
+				IntegerToIntegerMap.readFrom(new OptimizedDataInputStream(
+					new ByteArrayInputStream(data, 0, data.length / 2)));
+				fail("IOException expected");
+			} catch (IOException e) {
+				// expected
+			}
+		}
+	}
+
+}
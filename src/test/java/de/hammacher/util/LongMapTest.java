@@ -7,7 +7,9 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Assert;
 import org.junit.Test;
 
+import de.hammacher.util.maps.FrozenLongMap;
 import de.hammacher.util.maps.LongMap;
+import de.hammacher.util.maps.LongObjectVisitor;
 
 public class LongMapTest {
 
@@ -92,6 +94,100 @@ public class LongMapTest {
 		}, -1);
 	}
 
+	@Test
+	public void testFreeze() {
+		Random seedRand = new Random();
+		int seed = seedRand.nextInt();
+		System.out.println("Seed: "+seed);
+		Random rand = new Random(seed);
+
+		// dense keys (list mode), sparse keys (map mode) and skewed keys
+		for (int range: new int[] { 1000, -1, -2 }) {
+			HashMap<Long, Integer> hashMap = new HashMap<Long, Integer>();
+			LongMap<Integer> map = new LongMap<Integer>();
+			for (int i = 0; i < 5000; ++i) {
+				long key = range == -1 ? rand.nextLong()
+					: range == -2 ? (long) Math.pow(rand.nextInt(100000), 3) * (rand.nextBoolean() ? 1 : -1)
+					: rand.nextInt(range);
+				Integer val = rand.nextInt(10) == 0 ? null : rand.nextInt(1000);
+				hashMap.put(key, val);
+				map.put(key, val);
+			}
+
+			FrozenLongMap<Integer> frozen = map.freeze();
+			Assert.assertEquals(hashMap, frozen);
+			Assert.assertEquals(frozen, hashMap);
+			Assert.assertEquals(hashMap.hashCode(), frozen.hashCode());
+			for (int i = 0; i < 5000; ++i) {
+				long key = rand.nextInt(10) == 0 ? rand.nextLong() : rand.nextInt(1000);
+				Assert.assertEquals(hashMap.get(key), frozen.get(key));
+				Assert.assertEquals(hashMap.containsKey(key), frozen.containsKey(key));
+			}
+			Assert.assertEquals(hashMap, frozen.thaw());
+
+			// the snapshot must not change with the map
+			map.put(1L, Integer.valueOf(-1));
+			map.remove(map.keySet().iterator().next());
+			Assert.assertEquals(hashMap, frozen);
+
+			final long[] lastKey = { Long.MIN_VALUE };
+			frozen.forEachEntry(new LongObjectVisitor<Integer>() {
+				public void visit(long key, Integer value) {
+					Assert.assertTrue(key >= lastKey[0]);
+					lastKey[0] = key;
+				}
+			});
+			try {
+				frozen.put(1L, 1);
+				Assert.fail("UnsupportedOperationException expected");
+			} catch (UnsupportedOperationException e) {
+				// expected
+			}
+		}
+		Assert.assertTrue(new LongMap<Object>().freeze().isEmpty());
+	}
+
+	@Test
+	public void testCursor() {
+		Random seedRand = new Random();
+		int seed = seedRand.nextInt();
+		System.out.println("Seed: "+seed);
+		Random rand = new Random(seed);
+
+		// dense keys (list mode) and sparse keys (map mode)
+		for (long range: new long[] { 1000, Long.MAX_VALUE }) {
+			HashMap<Long, Integer> hashMap = new HashMap<Long, Integer>();
+			LongMap<Integer> map = new LongMap<Integer>();
+			for (int i = 0; i < 500; ++i) {
+				long key = (rand.nextLong() & Long.MAX_VALUE) % range;
+				Integer val = rand.nextInt(10) == 0 ? null : rand.nextInt(1000);
+				hashMap.put(key, val);
+				map.put(key, val);
+			}
+
+			final HashMap<Long, Integer> visited = new HashMap<Long, Integer>();
+			map.forEachEntry(new LongObjectVisitor<Integer>() {
+				public void visit(long key, Integer value) {
+					Assert.assertFalse(visited.containsKey(key));
+					visited.put(key, value);
+				}
+			});
+			Assert.assertEquals(hashMap, visited);
+
+			visited.clear();
+			for (LongMap<Integer>.Cursor c = map.cursor(); c.advance(); ) {
+				Assert.assertFalse(visited.containsKey(c.key()));
+				visited.put(c.key(), c.value());
+				Integer newVal = c.value() == null ? Integer.valueOf(0) : null;
+				Assert.assertEquals(c.value(), c.setValue(newVal));
+				Assert.assertEquals(newVal, c.value());
+				hashMap.put(c.key(), newVal);
+			}
+			Assert.assertEquals(hashMap.size(), visited.size());
+			Assert.assertEquals(hashMap, map);
+		}
+	}
+
 	private void testOperations(int numOperations, LongGenerator keyGen,
 			LongGenerator valGen, LongGenerator opGen, int debugKey) {
 		HashMap<Long, Long> hashMap = new HashMap<Long, Long>();
@@ -0,0 +1,152 @@
+package de.hammacher.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.hammacher.util.maps.LongToIntMap;
+
+
+public class LongToIntMapTest {
+
+	private Random rand;
+
+	@Before
+	public void setUp() {
+		long seed = new Random().nextLong();
+		System.out.println("Seed: "+seed);
+		this.rand = new Random(seed);
+	}
+
+	private static void checkEqual(Map<Long, Integer> expected, LongToIntMap map) {
+		assertEquals(expected.size(), map.size());
+		assertEquals(expected, map);
+		assertEquals(expected.hashCode(), map.hashCode());
+		int num = 0;
+		for (Map.Entry<Long, Integer> e: map.entrySet()) {
+			assertEquals(expected.get(e.getKey()), e.getValue());
+			++num;
+		}
+		assertEquals(expected.size(), num);
+	}
+
+	private void testOperations(int numOperations, int numKeys) {
+		long[] keys = new long[numKeys];
+		for (int i = 1; i < numKeys; ++i)
+			keys[i] = this.rand.nextLong();
+		// keys[0] == 0 is stored outside the hash table
+
+		HashMap<Long, Integer> hashMap = new HashMap<Long, Integer>();
+		LongToIntMap map = new LongToIntMap(4, LongToIntMap.DEFAULT_LOAD_FACTOR, -1);
+
+		for (int i = 0; i < numOperations; ++i) {
+			int op = this.rand.nextInt(1000);
+			long key = keys[this.rand.nextInt(numKeys)];
+			if (op < 350) {
+				int value = this.rand.nextInt(10);
+				Integer old = hashMap.put(key, value);
+				assertEquals(old == null ? -1 : old.intValue(), map.put(key, value));
+			} else if (op < 550) {
+				Integer old = hashMap.remove(key);
+				assertEquals(old == null ? -1 : old.intValue(), map.remove(key));
+			} else if (op < 700) {
+				Integer value = hashMap.get(key);
+				assertEquals(value == null ? -1 : value.intValue(), map.getInt(key));
+				assertEquals(value != null, map.containsKey(key));
+			} else if (op < 750) {
+				int add = this.rand.nextInt(5) - 2;
+				Integer old = hashMap.get(key);
+				int oldValue = old == null ? -1 : old.intValue();
+				hashMap.put(key, oldValue + add);
+				assertEquals(oldValue, map.addTo(key, add));
+			} else if (op < 800) {
+				int add = this.rand.nextInt(5) - 2;
+				Integer old = hashMap.get(key);
+				int newValue = (old == null ? -1 : old.intValue()) + add;
+				hashMap.put(key, newValue);
+				assertEquals(newValue, map.incrementAndGet(key, add));
+			} else if (op < 850) {
+				Integer old = hashMap.get(key);
+				hashMap.put(key, old == null ? 0 : old.intValue() + 1);
+				map.increment(key);
+			} else if (op < 900) {
+				int value = this.rand.nextInt(10);
+				assertEquals(hashMap.containsValue(value), map.containsValue(value));
+			} else if (op < 990) {
+				// remove some entries by the iterator
+				Iterator<Map.Entry<Long, Integer>> it = map.entrySet().iterator();
+				while (it.hasNext()) {
+					Map.Entry<Long, Integer> e = it.next();
+					assertEquals(hashMap.get(e.getKey()), e.getValue());
+					if (this.rand.nextInt(10) == 0) {
+						it.remove();
+						hashMap.remove(e.getKey());
+					}
+				}
+				checkEqual(hashMap, map);
+			} else if (op < 995) {
+				checkEqual(hashMap, map.clone());
+			} else {
+				hashMap.clear();
+				map.clear();
+			}
+			assertEquals(hashMap.size(), map.size());
+		}
+		checkEqual(hashMap, map);
+	}
+
+	@Test
+	public void testFewKeys() {
+		testOperations(100000, 20);
+	}
+
+	@Test
+	public void testManyKeys() {
+		testOperations(300000, 5000);
+	}
+
+	@Test
+	public void testIteratorRemoveAll() {
+		for (int run = 0; run < 100; ++run) {
+			LongToIntMap map = new LongToIntMap();
+			HashMap<Long, Integer> expected = new HashMap<Long, Integer>();
+			int num = this.rand.nextInt(1000);
+			for (int i = 0; i < num; ++i) {
+				long key = this.rand.nextLong();
+				map.put(key, i);
+				expected.put(key, i);
+			}
+			Iterator<Long> it = map.keySet().iterator();
+			while (it.hasNext()) {
+				Long key = it.next();
+				assertTrue(expected.remove(key) != null);
+				it.remove();
+			}
+			assertTrue(expected.isEmpty());
+			assertTrue(map.isEmpty());
+			assertFalse(map.entrySet().iterator().hasNext());
+		}
+	}
+
+	@Test
+	public void testDefaultValue() {
+		LongToIntMap map = new LongToIntMap(0, 0.5f, 42);
+		assertEquals(42, map.getDefaultValue());
+		assertEquals(42, map.getInt(17));
+		assertFalse(map.containsKey(17));
+		assertEquals(42, map.addTo(17, 3));
+		assertEquals(45, map.getInt(17));
+		assertEquals(45, map.remove(17));
+		assertEquals(42, map.remove(17));
+		assertEquals(null, map.get(Integer.valueOf(17)));
+	}
+
+}
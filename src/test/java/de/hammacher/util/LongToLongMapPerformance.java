@@ -0,0 +1,84 @@
+package de.hammacher.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import de.hammacher.util.maps.LongMap;
+import de.hammacher.util.maps.LongToLongMap;
+
+
+public class LongToLongMapPerformance {
+
+	private long fillMap(Map<Long, Long> map, int num, long max, long seed) {
+		Random rand = new Random(seed);
+		long startTime = System.nanoTime();
+
+		for (int i = 0; i < num; ++i) {
+			long key = (rand.nextLong() & Long.MAX_VALUE) % max;
+			Long old = map.get(key);
+			map.put(key, old == null ? 1 : old + 1);
+		}
+
+		return System.nanoTime() - startTime;
+	}
+
+	private long fillMap(LongToLongMap map, int num, long max, long seed) {
+		Random rand = new Random(seed);
+		long startTime = System.nanoTime();
+
+		for (int i = 0; i < num; ++i)
+			map.increment((rand.nextLong() & Long.MAX_VALUE) % max);
+
+		return System.nanoTime() - startTime;
+	}
+
+	private void compare(long max, int num, int runs) {
+		long hashMapTime = 0;
+		long longMapTime = 0;
+		long longToLongMapTime = 0;
+
+		for (int i = 0; i < runs; ++i) {
+			long seed = new Random().nextLong();
+			hashMapTime += fillMap(new HashMap<Long, Long>(), num, max, seed);
+			longMapTime += fillMap(new LongMap<Long>(), num, max, seed);
+			longToLongMapTime += fillMap(new LongToLongMap(), num, max, seed);
+		}
+
+		System.out.format("(%19d, %10d) HashMap: %.3f sec; LongMap: %.3f sec; LongToLongMap: %.3f sec%n",
+				max, num, 1e-9*hashMapTime, 1e-9*longMapTime, 1e-9*longToLongMapTime);
+	}
+
+	@Test
+	public void continuousRange_10000_x1() {
+		compare(10000, 10000, 20);
+	}
+	@Test
+	public void continuousRange_10000_x50() {
+		compare(10000, 500000, 20);
+	}
+	@Test
+	public void continuousRange_100000_x5() {
+		compare(100000, 500000, 3);
+	}
+
+	@Test
+	public void uncontinuousRange_10000() {
+		compare(Long.MAX_VALUE, 10000, 20);
+	}
+	@Test
+	public void uncontinuousRange_100000() {
+		compare(Long.MAX_VALUE, 100000, 3);
+	}
+	@Test
+	public void uncontinuousRange_1000000() {
+		compare(Long.MAX_VALUE, 1000000, 3);
+	}
+	@Test @Ignore
+	public void uncontinuousRange_10000000() {
+		compare(Long.MAX_VALUE, 10000000, 2);
+	}
+}
@@ -0,0 +1,152 @@
+package de.hammacher.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.hammacher.util.maps.LongToLongMap;
+
+
+public class LongToLongMapTest {
+
+	private Random rand;
+
+	@Before
+	public void setUp() {
+		long seed = new Random().nextLong();
+		System.out.println("Seed: "+seed);
+		this.rand = new Random(seed);
+	}
+
+	private static void checkEqual(Map<Long, Long> expected, LongToLongMap map) {
+		assertEquals(expected.size(), map.size());
+		assertEquals(expected, map);
+		assertEquals(expected.hashCode(), map.hashCode());
+		int num = 0;
+		for (Map.Entry<Long, Long> e: map.entrySet()) {
+			assertEquals(expected.get(e.getKey()), e.getValue());
+			++num;
+		}
+		assertEquals(expected.size(), num);
+	}
+
+	private void testOperations(int numOperations, int numKeys) {
+		long[] keys = new long[numKeys];
+		for (int i = 1; i < numKeys; ++i)
+			keys[i] = this.rand.nextLong();
+		// keys[0] == 0 is stored outside the hash table
+
+		HashMap<Long, Long> hashMap = new HashMap<Long, Long>();
+		LongToLongMap map = new LongToLongMap(4, LongToLongMap.DEFAULT_LOAD_FACTOR, -1);
+
+		for (int i = 0; i < numOperations; ++i) {
+			int op = this.rand.nextInt(1000);
+			long key = keys[this.rand.nextInt(numKeys)];
+			if (op < 350) {
+				long value = this.rand.nextInt(10) + (1L << 40);
+				Long old = hashMap.put(key, value);
+				assertEquals(old == null ? -1 : old.longValue(), map.put(key, value));
+			} else if (op < 550) {
+				Long old = hashMap.remove(key);
+				assertEquals(old == null ? -1 : old.longValue(), map.remove(key));
+			} else if (op < 700) {
+				Long value = hashMap.get(key);
+				assertEquals(value == null ? -1 : value.longValue(), map.getLong(key));
+				assertEquals(value != null, map.containsKey(key));
+			} else if (op < 750) {
+				long add = this.rand.nextInt(5) - 2;
+				Long old = hashMap.get(key);
+				long oldValue = old == null ? -1 : old.longValue();
+				hashMap.put(key, (long) (oldValue + add));
+				assertEquals(oldValue, map.addTo(key, add));
+			} else if (op < 800) {
+				long add = this.rand.nextInt(5) - 2;
+				Long old = hashMap.get(key);
+				long newValue = (old == null ? -1 : old.longValue()) + add;
+				hashMap.put(key, newValue);
+				assertEquals(newValue, map.incrementAndGet(key, add));
+			} else if (op < 850) {
+				Long old = hashMap.get(key);
+				hashMap.put(key, (long) (old == null ? 0 : old.longValue() + 1));
+				map.increment(key);
+			} else if (op < 900) {
+				long value = this.rand.nextInt(10) + (1L << 40);
+				assertEquals(hashMap.containsValue(value), map.containsValue(value));
+			} else if (op < 990) {
+				// remove some entries by the iterator
+				Iterator<Map.Entry<Long, Long>> it = map.entrySet().iterator();
+				while (it.hasNext()) {
+					Map.Entry<Long, Long> e = it.next();
+					assertEquals(hashMap.get(e.getKey()), e.getValue());
+					if (this.rand.nextInt(10) == 0) {
+						it.remove();
+						hashMap.remove(e.getKey());
+					}
+				}
+				checkEqual(hashMap, map);
+			} else if (op < 995) {
+				checkEqual(hashMap, map.clone());
+			} else {
+				hashMap.clear();
+				map.clear();
+			}
+			assertEquals(hashMap.size(), map.size());
+		}
+		checkEqual(hashMap, map);
+	}
+
+	@Test
+	public void testFewKeys() {
+		testOperations(100000, 20);
+	}
+
+	@Test
+	public void testManyKeys() {
+		testOperations(300000, 5000);
+	}
+
+	@Test
+	public void testIteratorRemoveAll() {
+		for (int run = 0; run < 100; ++run) {
+			LongToLongMap map = new LongToLongMap();
+			HashMap<Long, Long> expected = new HashMap<Long, Long>();
+			int num = this.rand.nextInt(1000);
+			for (int i = 0; i < num; ++i) {
+				long key = this.rand.nextLong();
+				map.put(key, (long) i);
+				expected.put(key, (long) i);
+			}
+			Iterator<Long> it = map.keySet().iterator();
+			while (it.hasNext()) {
+				Long key = it.next();
+				assertTrue(expected.remove(key) != null);
+				it.remove();
+			}
+			assertTrue(expected.isEmpty());
+			assertTrue(map.isEmpty());
+			assertFalse(map.entrySet().iterator().hasNext());
+		}
+	}
+
+	@Test
+	public void testDefaultValue() {
+		LongToLongMap map = new LongToLongMap(0, 0.5f, 42);
+		assertEquals(42, map.getDefaultValue());
+		assertEquals(42, map.getLong(17));
+		assertFalse(map.containsKey(17));
+		assertEquals(42, map.addTo(17, 3));
+		assertEquals(45, map.getLong(17));
+		assertEquals(45, map.remove(17));
+		assertEquals(42, map.remove(17));
+		assertEquals(null, map.get(Integer.valueOf(17)));
+	}
+
+}
@@ -0,0 +1,256 @@
+package de.hammacher.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class MultiplexedFileAsyncWriteTest {
+
+	private static final int BLOCK_SIZE = 64;
+
+	/**
+	 * Records the coalesced writes, and can hold them back or let them fail.
+	 */
+	private static class InterceptingWriter extends MultiplexedFileWriter {
+
+		// pairs of first block address and number of blocks
+		final List<long[]> writes = Collections.synchronizedList(new ArrayList<long[]>());
+		final Semaphore writeStarted = new Semaphore(0);
+		volatile CountDownLatch releaseWrites = null;
+		volatile Throwable failure = null;
+
+		public InterceptingWriter(File file) throws IOException {
+			super(file, BLOCK_SIZE, false, ByteOrder.nativeOrder(), false);
+		}
+
+		@Override
+		void writeCoalescedBlocks(long firstBlockAddr, ByteBuffer buf) throws IOException {
+			this.writeStarted.release();
+			CountDownLatch release = this.releaseWrites;
+			if (release != null) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new AssertionError(e);
+				}
+			}
+			Throwable t = this.failure;
+			if (t instanceof IOException)
+				throw (IOException) t;
+			if (t instanceof Error)
+				throw (Error) t;
+			this.writes.add(new long[] { firstBlockAddr, buf.remaining() / this.blockSize });
+			super.writeCoalescedBlocks(firstBlockAddr, buf);
+		}
+
+		void awaitWriteStarted() throws InterruptedException {
+			assertTrue("write started", this.writeStarted.tryAcquire(10, TimeUnit.SECONDS));
+		}
+	}
+
+	private File tmpFile;
+	private Random rand;
+	private InterceptingWriter writer;
+
+	@Before
+	public void setUp() throws IOException {
+		this.tmpFile = File.createTempFile("multiplexed-async-test-", ".dat");
+		long seed = new Random().nextLong();
+		System.out.println("Seed: "+seed);
+		this.rand = new Random(seed);
+		this.writer = new InterceptingWriter(this.tmpFile);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		this.writer.releaseWrites = null;
+		this.writer.failure = null;
+		this.writer.close();
+		this.tmpFile.delete();
+	}
+
+	private byte[] randomBlock() {
+		byte[] data = new byte[BLOCK_SIZE];
+		this.rand.nextBytes(data);
+		return data;
+	}
+
+	private byte[] readBlock(long blockAddr) throws IOException {
+		byte[] buf = new byte[BLOCK_SIZE];
+		this.writer.readBlock(blockAddr, buf);
+		return buf;
+	}
+
+	@Test(timeout = 30000)
+	public void testCoalescing() throws Exception {
+		this.writer.setAsynchronousWrites(true, 100);
+		long[] addrs = new long[6];
+		for (int i = 0; i < addrs.length; ++i)
+			addrs[i] = this.writer.getNewBlockAddress();
+		byte[][] data = new byte[addrs.length][];
+		for (int i = 0; i < addrs.length; ++i)
+			data[i] = randomBlock();
+
+		// hold back the first write, so that the following blocks are queued together
+		CountDownLatch release = new CountDownLatch(1);
+		this.writer.releaseWrites = release;
+		this.writer.writeBlock(addrs[0], data[0]);
+		this.writer.awaitWriteStarted();
+		// two runs of adjacent blocks, queued out of order
+		for (int i: new int[] { 5, 2, 1, 4 })
+			this.writer.writeBlock(addrs[i], data[i]);
+		release.countDown();
+		this.writer.flush();
+
+		assertEquals("number of writes", 3, this.writer.writes.size());
+		assertArrayEquals(new long[] { addrs[0], 1 }, this.writer.writes.get(0));
+		assertArrayEquals(new long[] { addrs[1], 2 }, this.writer.writes.get(1));
+		assertArrayEquals(new long[] { addrs[4], 2 }, this.writer.writes.get(2));
+		for (int i: new int[] { 0, 1, 2, 4, 5 })
+			assertArrayEquals(data[i], readBlock(addrs[i]));
+	}
+
+	@Test(timeout = 30000)
+	public void testReadPendingBlocks() throws Exception {
+		this.writer.setAsynchronousWrites(true, 100);
+		long inFlightAddr = this.writer.getNewBlockAddress();
+		long queuedAddr = this.writer.getNewBlockAddress();
+		byte[] inFlightData = randomBlock();
+		byte[] queuedData = randomBlock();
+
+		CountDownLatch release = new CountDownLatch(1);
+		this.writer.releaseWrites = release;
+		this.writer.writeBlock(inFlightAddr, inFlightData);
+		this.writer.awaitWriteStarted();
+		this.writer.writeBlock(queuedAddr, randomBlock());
+		// overwrites the queued block
+		this.writer.writeBlock(queuedAddr, queuedData);
+		assertArrayEquals(inFlightData, readBlock(inFlightAddr));
+		assertArrayEquals(queuedData, readBlock(queuedAddr));
+		assertTrue("nothing written yet", this.writer.writes.isEmpty());
+
+		release.countDown();
+		this.writer.flush();
+		assertEquals("number of writes", 2, this.writer.writes.size());
+		assertArrayEquals(inFlightData, readBlock(inFlightAddr));
+		assertArrayEquals(queuedData, readBlock(queuedAddr));
+	}
+
+	@Test(timeout = 30000)
+	public void testBackPressure() throws Exception {
+		this.writer.setAsynchronousWrites(true, 1);
+		final long firstAddr = this.writer.getNewBlockAddress();
+		final long secondAddr = this.writer.getNewBlockAddress();
+		final byte[] secondData = randomBlock();
+
+		CountDownLatch release = new CountDownLatch(1);
+		this.writer.releaseWrites = release;
+		this.writer.writeBlock(firstAddr, randomBlock());
+		this.writer.awaitWriteStarted();
+
+		final Throwable[] error = new Throwable[1];
+		Thread second = new Thread() {
+			@Override
+			public void run() {
+				try {
+					MultiplexedFileAsyncWriteTest.this.writer.writeBlock(secondAddr, secondData);
+				} catch (Throwable t) {
+					error[0] = t;
+				}
+			}
+		};
+		second.start();
+		// the in-flight block uses the only slot, so the second writer has to wait
+		while (second.getState() != Thread.State.WAITING)
+			Thread.sleep(1);
+		Thread.sleep(50);
+		assertTrue("second writer blocked", second.isAlive());
+
+		release.countDown();
+		second.join();
+		assertEquals(null, error[0]);
+		this.writer.flush();
+		assertEquals("number of writes", 2, this.writer.writes.size());
+		assertArrayEquals(secondData, readBlock(secondAddr));
+	}
+
+	@Test(timeout = 30000)
+	public void testIOErrorOnNextWrite() throws Exception {
+		this.writer.setAsynchronousWrites(true, 100);
+		IOException failure = new IOException("test failure");
+		this.writer.failure = failure;
+		this.writer.writeBlock(this.writer.getNewBlockAddress(), randomBlock());
+		this.writer.flush();
+		this.writer.failure = null;
+		try {
+			this.writer.writeBlock(this.writer.getNewBlockAddress(), randomBlock());
+			fail("the failed write should be reported");
+		} catch (IOException e) {
+			assertSame(failure, e);
+		}
+		// reported only once
+		long addr = this.writer.getNewBlockAddress();
+		byte[] data = randomBlock();
+		this.writer.writeBlock(addr, data);
+		this.writer.flush();
+		assertArrayEquals(data, readBlock(addr));
+	}
+
+	@Test(timeout = 30000)
+	public void testIOErrorOnClose() throws Exception {
+		this.writer.setAsynchronousWrites(true, 100);
+		IOException failure = new IOException("test failure");
+		this.writer.failure = failure;
+		this.writer.writeBlock(this.writer.getNewBlockAddress(), randomBlock());
+		this.writer.flush();
+		try {
+			this.writer.close();
+			fail("the failed write should be reported");
+		} catch (IOException e) {
+			assertSame(failure, e);
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void testErrorInWriterThread() throws Exception {
+		this.writer.setAsynchronousWrites(true, 1);
+		OutOfMemoryError failure = new OutOfMemoryError("test failure");
+		this.writer.failure = failure;
+		this.writer.writeBlock(this.writer.getNewBlockAddress(), randomBlock());
+		// must not block on draining
+		this.writer.flush();
+		this.writer.failure = null;
+		try {
+			this.writer.writeBlock(this.writer.getNewBlockAddress(), randomBlock());
+			fail("the failed write should be reported");
+		} catch (IOException e) {
+			assertSame(failure, e.getCause());
+		}
+		// the writer thread is still working, and the budget has been released
+		long addr = this.writer.getNewBlockAddress();
+		byte[] data = randomBlock();
+		this.writer.writeBlock(addr, data);
+		this.writer.flush();
+		assertArrayEquals(data, readBlock(addr));
+	}
+
+}
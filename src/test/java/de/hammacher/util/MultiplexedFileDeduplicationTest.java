@@ -0,0 +1,176 @@
+package de.hammacher.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.hammacher.util.MultiplexedFileReader.MultiplexInputStream;
+import de.hammacher.util.MultiplexedFileWriter.MultiplexOutputStream;
+
+
+public class MultiplexedFileDeduplicationTest {
+
+	private File tmpFile;
+	private Random rand;
+
+	@Before
+	public void setUp() throws IOException {
+		this.tmpFile = File.createTempFile("multiplexed-dedup-test-", ".dat");
+		long seed = new Random().nextLong();
+		System.out.println("Seed: "+seed);
+		this.rand = new Random(seed);
+	}
+
+	@After
+	public void tearDown() {
+		this.tmpFile.delete();
+	}
+
+	private static byte[] newStreamContent(byte[][] chunks, int blockSize, Random rand) {
+		// streams consist of block-aligned copies of a few distinct chunks, plus some random tail
+		int numChunks = rand.nextInt(30);
+		byte[] tail = new byte[rand.nextInt(2*blockSize)];
+		rand.nextBytes(tail);
+		byte[] data = new byte[numChunks*blockSize + tail.length];
+		for (int i = 0; i < numChunks; ++i)
+			System.arraycopy(chunks[rand.nextInt(chunks.length)], 0, data, i*blockSize, blockSize);
+		System.arraycopy(tail, 0, data, numChunks*blockSize, tail.length);
+		return data;
+	}
+
+	@Test
+	public void testDeduplication() throws IOException {
+		int formatVersion = this.rand.nextBoolean() ? MultiplexedFileWriter.FORMAT_VERSION_1
+			: MultiplexedFileWriter.FORMAT_VERSION_2;
+		// with 16 byte blocks, version 2 only stores 2 pointers per block, so the pointer
+		// blocks would outweigh the savings
+		int blockSize = (formatVersion == MultiplexedFileWriter.FORMAT_VERSION_1 ? 16 : 32) << this.rand.nextInt(3);
+		boolean useMemMap = MultiplexedFileWriter.is64bitVM && this.rand.nextBoolean();
+		MultiplexedFileWriter writer = new MultiplexedFileWriter(this.tmpFile, blockSize, useMemMap,
+			ByteOrder.nativeOrder(), false, formatVersion);
+		writer.setDeduplicateBlocks(true);
+
+		byte[][] chunks = new byte[4][blockSize];
+		for (byte[] chunk: chunks)
+			this.rand.nextBytes(chunk);
+
+		Map<Integer, byte[]> contents = new HashMap<Integer, byte[]>();
+		List<MultiplexOutputStream> openStreams = new ArrayList<MultiplexOutputStream>();
+		long totalLength = 0;
+		for (int i = 0; i < 100; ++i) {
+			MultiplexOutputStream out = writer.newOutputStream();
+			byte[] data = newStreamContent(chunks, blockSize, this.rand);
+			out.write(data);
+			totalLength += data.length;
+			if (this.rand.nextInt(4) == 0) {
+				// remove some of the streams; their blocks may still be used by other streams
+				openStreams.add(out);
+			} else {
+				out.close();
+				contents.put(out.getId(), data);
+			}
+		}
+		for (MultiplexOutputStream out: openStreams)
+			out.remove();
+
+		assertTrue("blocks should have been deduplicated", writer.getNumDeduplicatedBlocks() > 0);
+		assertTrue("deduplication ratio", writer.getDeduplicationRatio() > 1);
+		System.out.format("dedup ratio: %.2f, hashing: %.1f ns/block%n",
+			writer.getDeduplicationRatio(), writer.getHashingNanosPerBlock());
+		writer.close();
+
+		assertTrue("file should be smaller than the stream data", this.tmpFile.length() < totalLength);
+		checkContents(contents);
+	}
+
+	@Test
+	public void testConcurrentDeduplication() throws Exception {
+		int blockSize = 16 << this.rand.nextInt(3);
+		boolean useMemMap = MultiplexedFileWriter.is64bitVM && this.rand.nextBoolean();
+		final MultiplexedFileWriter writer = new MultiplexedFileWriter(this.tmpFile, blockSize, useMemMap,
+			ByteOrder.nativeOrder(), false);
+		writer.setDeduplicateBlocks(true);
+
+		final byte[][] chunks = new byte[4][blockSize];
+		for (byte[] chunk: chunks)
+			this.rand.nextBytes(chunk);
+
+		// all threads write and remove streams sharing the same chunks at the same time
+		final Map<Integer, byte[]> contents = new HashMap<Integer, byte[]>();
+		final Throwable[] error = new Throwable[1];
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; ++t) {
+			final Random threadRand = new Random(this.rand.nextLong());
+			final int threadBlockSize = blockSize;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 50; ++i) {
+							MultiplexOutputStream out = writer.newOutputStream();
+							byte[] data = newStreamContent(chunks, threadBlockSize, threadRand);
+							out.write(data);
+							if (threadRand.nextInt(4) == 0) {
+								out.remove();
+							} else {
+								out.close();
+								synchronized (contents) {
+									contents.put(out.getId(), data);
+								}
+							}
+						}
+					} catch (Throwable e) {
+						synchronized (error) {
+							error[0] = e;
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread: threads)
+			thread.join();
+		if (error[0] != null)
+			throw new Exception("Error in writer thread", error[0]);
+
+		assertTrue("blocks should have been deduplicated", writer.getNumDeduplicatedBlocks() > 0);
+		writer.close();
+		checkContents(contents);
+	}
+
+	private void checkContents(Map<Integer, byte[]> contents) throws IOException {
+		MultiplexedFileReader reader = new MultiplexedFileReader(new RandomAccessFile(this.tmpFile, "r"), false);
+		assertEquals("number of streams", contents.size(), reader.getStreamIds().size());
+		for (Map.Entry<Integer, byte[]> e: contents.entrySet()) {
+			MultiplexInputStream in = reader.getInputStream(e.getKey());
+			byte[] expected = e.getValue();
+			assertEquals("stream length", expected.length, in.getDataLength());
+			byte[] read = new byte[expected.length];
+			int pos = 0;
+			while (pos < read.length) {
+				int newRead = in.read(read, pos, read.length - pos);
+				assertTrue("unexpected EOF", newRead > 0);
+				pos += newRead;
+			}
+			assertArrayEquals("stream content", expected, read);
+			in.seek(expected.length);
+			assertEquals("Expected EOF", -1, in.read());
+		}
+		reader.close();
+	}
+
+}
@@ -0,0 +1,179 @@
+package de.hammacher.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.hammacher.util.MultiplexedFileWriter.MultiplexOutputStream;
+import de.hammacher.util.maps.IntegerToIntegerMap;
+
+
+public class MultiplexedFileMetadataTest {
+
+	private static final String[] NAMES = { "main", "worker-1", "worker-2", "gc", "timer" };
+
+	private final List<File> tmpFiles = new ArrayList<File>();
+	private Random rand;
+
+	@Before
+	public void setUp() {
+		long seed = new Random().nextLong();
+		System.out.println("Seed: "+seed);
+		this.rand = new Random(seed);
+	}
+
+	@After
+	public void tearDown() {
+		for (File f: this.tmpFiles)
+			f.delete();
+	}
+
+	private File newTmpFile() throws IOException {
+		File f = File.createTempFile("multiplexed-metadata-test-", ".dat");
+		this.tmpFiles.add(f);
+		return f;
+	}
+
+	private Map<Integer, StreamMetadata> writeFile(File file, int blockSize, int numStreams) throws IOException {
+		MultiplexedFileWriter writer = new MultiplexedFileWriter(file, blockSize,
+			MultiplexedFileWriter.is64bitVM && this.rand.nextBoolean(), ByteOrder.nativeOrder(), false);
+		Map<Integer, StreamMetadata> expected = new HashMap<Integer, StreamMetadata>();
+		for (int i = 0; i < numStreams; ++i) {
+			MultiplexOutputStream out = writer.newOutputStream();
+			byte[] data = new byte[this.rand.nextInt(4*blockSize)];
+			this.rand.nextBytes(data);
+			out.write(data);
+			StreamMetadata metadata = out.getMetadata();
+			if (this.rand.nextInt(4) != 0)
+				metadata.setName(NAMES[this.rand.nextInt(NAMES.length)]);
+			if (this.rand.nextBoolean())
+				metadata.setAttribute("thread", this.rand.nextInt(10));
+			if (this.rand.nextBoolean())
+				metadata.setAttribute("start", this.rand.nextLong());
+			if (this.rand.nextInt(10) == 0) {
+				out.remove();
+				continue;
+			}
+			if (this.rand.nextBoolean())
+				out.close();
+			if (!metadata.isEmpty())
+				expected.put(out.getId(), metadata);
+		}
+		writer.close();
+		return expected;
+	}
+
+	private void checkFile(File file, Map<Integer, StreamMetadata> expected) throws IOException {
+		MultiplexedFileReader reader = new MultiplexedFileReader(file);
+		assertEquals("has metadata", !expected.isEmpty(), reader.hasStreamMetadata());
+		assertTrue("metadata stream is internal",
+			!reader.getStreamIds().contains(MultiplexedFileReader.METADATA_STREAM_ID));
+		for (int id: reader.getStreamIds())
+			assertEquals("metadata of stream " + id, expected.get(id), reader.getStreamMetadata(id));
+		assertNull(reader.getStreamMetadata(Integer.MAX_VALUE));
+
+		for (String name: NAMES) {
+			List<Integer> expectedIds = new ArrayList<Integer>();
+			for (Map.Entry<Integer, StreamMetadata> e: expected.entrySet())
+				if (name.equals(e.getValue().getName()))
+					expectedIds.add(e.getKey());
+			Collections.sort(expectedIds);
+			assertEquals("streams named " + name, expectedIds, reader.getStreamIdsByName(name));
+		}
+		assertEquals(Collections.emptyList(), reader.getStreamIdsByName("unknown"));
+
+		for (int i = 0; i < 20; ++i) {
+			String key = this.rand.nextBoolean() ? "thread" : "start";
+			long a = key.equals("thread") ? this.rand.nextInt(10) : this.rand.nextLong();
+			long b = key.equals("thread") ? this.rand.nextInt(10) : this.rand.nextLong();
+			long min = Math.min(a, b);
+			long max = Math.max(a, b);
+			List<Integer> expectedIds = getExpectedIds(expected, key, min, max);
+			assertEquals("streams with " + key + " in " + min + " .. " + max, expectedIds,
+				reader.getStreamIdsByAttribute(key, min, max));
+		}
+		assertEquals(getExpectedIds(expected, "thread", Long.MIN_VALUE, Long.MAX_VALUE),
+			reader.getStreamIdsByAttribute("thread", Long.MIN_VALUE, Long.MAX_VALUE));
+		reader.close();
+	}
+
+	private List<Integer> getExpectedIds(final Map<Integer, StreamMetadata> expected, final String key,
+			long min, long max) {
+		List<Integer> expectedIds = new ArrayList<Integer>();
+		for (Map.Entry<Integer, StreamMetadata> e: expected.entrySet()) {
+			Long value = e.getValue().getAttribute(key);
+			if (value != null && value >= min && value <= max)
+				expectedIds.add(e.getKey());
+		}
+		Collections.sort(expectedIds, new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				int cmp = expected.get(o1).getAttribute(key).compareTo(expected.get(o2).getAttribute(key));
+				return cmp != 0 ? cmp : o1.compareTo(o2);
+			}
+		});
+		return expectedIds;
+	}
+
+	@Test
+	public void testMetadata() throws IOException {
+		File file = newTmpFile();
+		Map<Integer, StreamMetadata> expected = writeFile(file, 16 << this.rand.nextInt(4), 1 + this.rand.nextInt(300));
+		checkFile(file, expected);
+	}
+
+	@Test
+	public void testNoMetadata() throws IOException {
+		File file = newTmpFile();
+		Map<Integer, StreamMetadata> expected = writeFile(file, 64, 0);
+		checkFile(file, expected);
+	}
+
+	@Test
+	public void testMergeAndSplit() throws IOException {
+		int blockSize = 16 << this.rand.nextInt(4);
+		File file1 = newTmpFile();
+		File file2 = newTmpFile();
+		Map<Integer, StreamMetadata> expected1 = writeFile(file1, blockSize, 1 + this.rand.nextInt(100));
+		Map<Integer, StreamMetadata> expected2 = writeFile(file2, blockSize, 1 + this.rand.nextInt(100));
+
+		File merged = newTmpFile();
+		IntegerToIntegerMap[] idMappings = MultiplexedFileUtils.merge(Arrays.asList(file1, file2), merged);
+		Map<Integer, StreamMetadata> expectedMerged = new HashMap<Integer, StreamMetadata>();
+		for (Map.Entry<Integer, StreamMetadata> e: expected1.entrySet())
+			expectedMerged.put(idMappings[0].getInt(e.getKey()), e.getValue());
+		for (Map.Entry<Integer, StreamMetadata> e: expected2.entrySet())
+			expectedMerged.put(idMappings[1].getInt(e.getKey()), e.getValue());
+		checkFile(merged, expectedMerged);
+
+		MultiplexedFileReader reader = new MultiplexedFileReader(merged);
+		List<Integer> subset = new ArrayList<Integer>();
+		for (int id: reader.getStreamIds())
+			if (this.rand.nextBoolean())
+				subset.add(id);
+		reader.close();
+		File part = newTmpFile();
+		MultiplexedFileUtils.split(merged, Collections.<File, Collection<Integer>>singletonMap(part, subset));
+		Map<Integer, StreamMetadata> expectedPart = new HashMap<Integer, StreamMetadata>(expectedMerged);
+		expectedPart.keySet().retainAll(new HashSet<Integer>(subset));
+		checkFile(part, expectedPart);
+	}
+
+}
@@ -0,0 +1,188 @@
+package de.hammacher.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.hammacher.util.MultiplexedFileWriter.MultiplexOutputStream;
+import de.hammacher.util.MultiplexedFileWriter.Snapshot;
+import de.hammacher.util.MultiplexedFileWriter.SnapshotInputStream;
+
+
+public class MultiplexedFileSnapshotTest {
+
+	private File tmpFile;
+	private Random rand;
+
+	@Before
+	public void setUp() throws IOException {
+		this.tmpFile = File.createTempFile("multiplexed-snapshot-test-", ".dat");
+		long seed = new Random().nextLong();
+		System.out.println("Seed: "+seed);
+		this.rand = new Random(seed);
+	}
+
+	@After
+	public void tearDown() {
+		this.tmpFile.delete();
+	}
+
+	private void write(MultiplexOutputStream out, ByteArrayOutputStream content, int maxLength) throws IOException {
+		byte[] data = new byte[this.rand.nextInt(maxLength)];
+		this.rand.nextBytes(data);
+		out.write(data);
+		content.write(data);
+	}
+
+	private void checkSnapshot(Snapshot snapshot, Map<Integer, byte[]> expectedContents) throws IOException {
+		assertEquals("stream ids", expectedContents.keySet(), new HashSet<Integer>(snapshot.getStreamIds()));
+		for (Map.Entry<Integer, byte[]> e: expectedContents.entrySet()) {
+			byte[] expected = e.getValue();
+			assertEquals("length of stream " + e.getKey(), expected.length, snapshot.getStreamLength(e.getKey()));
+			SnapshotInputStream in = snapshot.getInputStream(e.getKey());
+			byte[] read = new byte[expected.length];
+			int pos = 0;
+			while (pos < read.length) {
+				int newRead = in.read(read, pos, Math.min(read.length - pos, 1 + this.rand.nextInt(300)));
+				assertTrue("unexpected EOF", newRead > 0);
+				pos += newRead;
+			}
+			assertArrayEquals("content of stream " + e.getKey(), expected, read);
+			assertEquals("Expected EOF", -1, in.read());
+			if (expected.length > 0) {
+				int seekPos = this.rand.nextInt(expected.length);
+				in.seek(seekPos);
+				assertEquals("byte after seek", expected[seekPos] & 0xff, in.read());
+			}
+		}
+	}
+
+	@Test
+	public void testSnapshot() throws IOException {
+		int blockSize = 16 << this.rand.nextInt(4);
+		boolean useMemMap = MultiplexedFileWriter.is64bitVM && this.rand.nextBoolean();
+		MultiplexedFileWriter writer = new MultiplexedFileWriter(this.tmpFile, blockSize, useMemMap,
+			ByteOrder.nativeOrder(), false, this.rand.nextBoolean() ? MultiplexedFileWriter.FORMAT_VERSION_1
+				: MultiplexedFileWriter.FORMAT_VERSION_2);
+		writer.setReuseStreamIds(true);
+
+		Map<MultiplexOutputStream, ByteArrayOutputStream> openStreams =
+			new HashMap<MultiplexOutputStream, ByteArrayOutputStream>();
+		Map<Integer, byte[]> expectedContents = new HashMap<Integer, byte[]>();
+		for (int i = 0; i < 50; ++i) {
+			MultiplexOutputStream out = writer.newOutputStream();
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			write(out, content, 100*blockSize);
+			if (this.rand.nextBoolean()) {
+				out.close();
+				expectedContents.put(out.getId(), content.toByteArray());
+			} else {
+				openStreams.put(out, content);
+			}
+		}
+		for (Map.Entry<MultiplexOutputStream, ByteArrayOutputStream> e: openStreams.entrySet())
+			expectedContents.put(e.getKey().getId(), e.getValue().toByteArray());
+
+		Snapshot snapshot = writer.snapshot();
+
+		// now modify all open streams, remove some of them and write new ones
+		List<MultiplexOutputStream> toRemove = new ArrayList<MultiplexOutputStream>();
+		for (Map.Entry<MultiplexOutputStream, ByteArrayOutputStream> e: openStreams.entrySet()) {
+			write(e.getKey(), e.getValue(), 20*blockSize);
+			if (this.rand.nextInt(3) == 0)
+				toRemove.add(e.getKey());
+		}
+		for (MultiplexOutputStream out: toRemove) {
+			out.remove();
+			openStreams.remove(out);
+		}
+		for (int i = 0; i < 20; ++i) {
+			MultiplexOutputStream out = writer.newOutputStream();
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			write(out, content, 50*blockSize);
+			openStreams.put(out, content);
+		}
+
+		checkSnapshot(snapshot, expectedContents);
+
+		// a second snapshot sees the new state
+		Map<Integer, byte[]> newExpectedContents = new HashMap<Integer, byte[]>(expectedContents);
+		for (MultiplexOutputStream out: toRemove)
+			newExpectedContents.remove(out.getId());
+		for (Map.Entry<MultiplexOutputStream, ByteArrayOutputStream> e: openStreams.entrySet())
+			newExpectedContents.put(e.getKey().getId(), e.getValue().toByteArray());
+		Snapshot snapshot2 = writer.snapshot();
+		checkSnapshot(snapshot2, newExpectedContents);
+
+		snapshot.close();
+		snapshot2.close();
+		writer.close();
+
+		try {
+			snapshot2.getInputStream(0);
+			assertTrue("snapshot should be invalid after closing", false);
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testSnapshotWhileSingleWriterStreamIsWritten() throws Throwable {
+		final int blockSize = 16 << this.rand.nextInt(4);
+		final MultiplexedFileWriter writer = new MultiplexedFileWriter(this.tmpFile, blockSize,
+			MultiplexedFileWriter.is64bitVM && this.rand.nextBoolean(), ByteOrder.nativeOrder(), false);
+		final MultiplexOutputStream out = writer.newOutputStream(true);
+		final ByteArrayOutputStream content = new ByteArrayOutputStream();
+		final byte[] data = new byte[200*blockSize];
+		this.rand.nextBytes(data);
+		final Throwable[] failure = new Throwable[1];
+		Thread writerThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < 200; ++i) {
+						out.write(data, 0, (i * 7919) % data.length);
+						content.write(data, 0, (i * 7919) % data.length);
+					}
+				} catch (Throwable t) {
+					failure[0] = t;
+				}
+			}
+		};
+		writerThread.start();
+		int numSnapshots = 0;
+		while (writerThread.isAlive() || numSnapshots == 0) {
+			Snapshot snapshot = writer.snapshot();
+			assertFalse("open single-writer stream in snapshot", snapshot.hasStreamId(out.getId()));
+			snapshot.close();
+			++numSnapshots;
+		}
+		writerThread.join();
+		if (failure[0] != null)
+			throw failure[0];
+
+		out.close();
+		Snapshot snapshot = writer.snapshot();
+		checkSnapshot(snapshot, Collections.singletonMap(out.getId(), content.toByteArray()));
+		snapshot.close();
+		writer.close();
+	}
+
+}
@@ -0,0 +1,135 @@
+package de.hammacher.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.hammacher.util.MultiplexedFileReader.MultiplexInputStream;
+import de.hammacher.util.MultiplexedFileWriter.MultiplexOutputStream;
+import de.hammacher.util.MultiplexedFileWriter.MultiplexOutputStream.Reader;
+
+
+public class MultiplexedFileStatisticsTest {
+
+	private File tmpFile;
+	private Random rand;
+
+	@Before
+	public void setUp() throws IOException {
+		this.tmpFile = File.createTempFile("multiplexed-statistics-test-", ".dat");
+		long seed = new Random().nextLong();
+		System.out.println("Seed: "+seed);
+		this.rand = new Random(seed);
+	}
+
+	@After
+	public void tearDown() {
+		this.tmpFile.delete();
+	}
+
+	@Test
+	public void testStatistics() throws IOException, JMException {
+		int blockSize = 16 << this.rand.nextInt(4);
+		boolean useMemMap = MultiplexedFileWriter.is64bitVM && this.rand.nextBoolean();
+		MultiplexedFileWriter writer = new MultiplexedFileWriter(this.tmpFile, blockSize, useMemMap,
+			ByteOrder.nativeOrder(), false);
+		MultiplexedFileStatistics stats = new MultiplexedFileStatistics();
+		writer.setListener(stats);
+		stats.setStreamClass(0, "first");
+
+		ObjectName name = stats.registerMBean("test-" + this.rand.nextInt());
+		try {
+			long written = 0;
+			long firstWritten = 0;
+			MultiplexOutputStream[] streams = new MultiplexOutputStream[10];
+			for (int i = 0; i < streams.length; ++i) {
+				streams[i] = writer.newOutputStream();
+				byte[] data = new byte[this.rand.nextInt(50*blockSize)];
+				this.rand.nextBytes(data);
+				streams[i].write(data);
+				streams[i].write(42);
+				written += data.length + 1;
+				if (streams[i].getId() == 0)
+					firstWritten = data.length + 1;
+			}
+			assertEquals("open streams", streams.length, stats.getOpenStreams());
+
+			Reader reader = streams[1].getReader(0);
+			assertEquals("open readers", 1, stats.getOpenReaders());
+			reader.close();
+			reader.close();
+			assertEquals("open readers", 0, stats.getOpenReaders());
+
+			streams[streams.length-1].remove();
+			for (int i = 0; i < streams.length-1; ++i)
+				streams[i].close();
+			assertEquals("open streams", 0, stats.getOpenStreams());
+			assertEquals("bytes written", written, stats.getBytesWritten());
+			assertEquals("bytes written in first stream", Long.valueOf(firstWritten),
+				stats.getBytesWrittenPerStreamClass().get("first"));
+			assertTrue("blocks written", stats.getBlockWriteCount() > 0);
+			assertTrue("blocks allocated", stats.getBlocksAllocated() >= stats.getBlockWriteCount());
+
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			assertEquals("bytes written via JMX", Long.valueOf(written),
+				server.getAttribute(name, "BytesWritten"));
+			server.invoke(name, "reset", new Object[0], new String[0]);
+			assertEquals("bytes written after reset", 0, stats.getBytesWritten());
+
+			writer.close();
+			assertTrue("flushes", stats.getFlushCount() > 0);
+		} finally {
+			MultiplexedFileStatistics.unregisterMBean(name);
+		}
+		assertTrue("MBean unregistered", !ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+
+		MultiplexedFileReader fileReader = new MultiplexedFileReader(this.tmpFile);
+		MultiplexedFileStatistics readStats = new MultiplexedFileStatistics();
+		fileReader.setListener(readStats);
+		long read = 0;
+		for (int id: fileReader.getStreamIds()) {
+			MultiplexInputStream in = fileReader.getInputStream(id);
+			assertEquals("open readers", 1, readStats.getOpenReaders());
+			// single bytes are reported per block, possibly crossing block boundaries
+			for (int i = this.rand.nextInt(2*blockSize); i > 0 && in.read() != -1; --i)
+				++read;
+			byte[] buf = new byte[1 + this.rand.nextInt(3*blockSize)];
+			int newRead;
+			while ((newRead = in.read(buf)) > 0)
+				read += newRead;
+			in.close();
+			assertEquals("bytes read", read, readStats.getBytesRead());
+		}
+		fileReader.close();
+		assertEquals("open readers", 0, readStats.getOpenReaders());
+		assertTrue("blocks read", readStats.getBlockReadCount() > 0);
+	}
+
+	@Test
+	public void testHistogram() {
+		MultiplexedFileStatistics.Histogram histogram = new MultiplexedFileStatistics.Histogram();
+		for (int i = 1; i <= 100; ++i)
+			histogram.record(i);
+		assertEquals(100, histogram.getCount());
+		assertEquals(50.5, histogram.getMeanNanos(), 1e-9);
+		assertEquals(127, histogram.getPercentileNanos(99));
+		assertEquals(1, histogram.getPercentileNanos(1));
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentileNanos(50));
+	}
+
+}
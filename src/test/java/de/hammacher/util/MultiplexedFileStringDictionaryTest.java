@@ -0,0 +1,316 @@
+package de.hammacher.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.hammacher.util.MultiplexedFileReader.MultiplexInputStream;
+import de.hammacher.util.MultiplexedFileWriter.MultiplexOutputStream;
+import de.hammacher.util.maps.IntegerToIntegerMap;
+
+
+public class MultiplexedFileStringDictionaryTest {
+
+	private final List<File> tmpFiles = new ArrayList<File>();
+	private Random rand;
+
+	@Before
+	public void setUp() {
+		long seed = new Random().nextLong();
+		System.out.println("Seed: "+seed);
+		this.rand = new Random(seed);
+	}
+
+	@After
+	public void tearDown() {
+		for (File f: this.tmpFiles)
+			f.delete();
+	}
+
+	private File newTmpFile() throws IOException {
+		File f = File.createTempFile("multiplexed-dictionary-test-", ".dat");
+		this.tmpFiles.add(f);
+		return f;
+	}
+
+	private MultiplexedFileWriter newWriter(File file) throws IOException {
+		return newWriter(file, 64 << this.rand.nextInt(5));
+	}
+
+	private MultiplexedFileWriter newWriter(File file, int blockSize) throws IOException {
+		return new MultiplexedFileWriter(file, blockSize,
+			MultiplexedFileWriter.is64bitVM && this.rand.nextBoolean(), ByteOrder.nativeOrder(), false);
+	}
+
+	private String[] randomStrings(int numStrings, int numDistinct) {
+		String[] strings = new String[numStrings];
+		for (int i = 0; i < numStrings; ++i) {
+			int k = this.rand.nextInt(numDistinct);
+			strings[i] = k == 0 ? null : "string-ä€-" + k;
+		}
+		return strings;
+	}
+
+	private static void check(MultiplexedFileReader reader, Map<Integer, String[]> expected) throws IOException {
+		for (Map.Entry<Integer, String[]> e: expected.entrySet()) {
+			MultiplexInputStream in = reader.getInputStream(e.getKey());
+			for (String s: e.getValue())
+				assertEquals(s, in.readDictionaryString());
+			assertEquals(-1, in.read());
+			in.close();
+		}
+	}
+
+	@Test
+	public void testConcurrentWriters() throws Exception {
+		File file = newTmpFile();
+		final MultiplexedFileWriter writer = newWriter(file);
+		int numThreads = 2 + this.rand.nextInt(6);
+		final Map<Integer, String[]> expected = new HashMap<Integer, String[]>();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[numThreads];
+		for (int t = 0; t < numThreads; ++t) {
+			final MultiplexOutputStream out = writer.newOutputStream();
+			final String[] strings = randomStrings(5000, 200);
+			expected.put(out.getId(), strings);
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (String s: strings)
+							out.writeDictionaryString(s);
+						out.close();
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			};
+		}
+		for (Thread t: threads)
+			t.start();
+		for (Thread t: threads)
+			t.join();
+		if (failure.get() != null)
+			throw new AssertionError(failure.get());
+
+		// the same string always gets the same id
+		assertEquals(writer.getStringId("string-ä€-1"), writer.getStringId("string-ä€-1"));
+		writer.close();
+		try {
+			writer.getStringId("new string");
+			fail("expected IllegalStateException");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		MultiplexedFileReader reader = new MultiplexedFileReader(file);
+		assertTrue(reader.hasStringDictionary());
+		assertFalse(reader.getStreamIds().contains(MultiplexedFileReader.STRING_DICTIONARY_STREAM_ID));
+		check(reader, expected);
+		// the dictionary is read once and shared by all streams
+		assertSame(reader.getStringDictionary(), reader.getStringDictionary());
+		try {
+			reader.getDictionaryString(reader.getStringDictionary().length);
+			fail("expected IOException");
+		} catch (IOException e) {
+			// expected
+		}
+		reader.close();
+	}
+
+	@Test
+	public void testSpecialCharacters() throws IOException {
+		File file = newTmpFile();
+		MultiplexedFileWriter writer = newWriter(file);
+		StringBuilder longString = new StringBuilder();
+		for (int i = 0; i < 1000; ++i)
+			longString.append((char) this.rand.nextInt(Character.MAX_VALUE + 1));
+		// unpaired surrogates, a supplementary character, '\0' and random chars
+		String[] strings = { "lone high \uD800", "\uDC00 lone low", "\uDBFF\uD800", "pair 😀",
+			"zero \0", "", longString.toString(), "ascii" };
+		MultiplexOutputStream out = writer.newOutputStream();
+		for (String s: strings)
+			out.writeDictionaryString(s);
+		out.close();
+		writer.close();
+
+		MultiplexedFileReader reader = new MultiplexedFileReader(file);
+		check(reader, Collections.singletonMap(out.getId(), strings));
+		reader.close();
+	}
+
+	@Test
+	public void testNoDictionary() throws IOException {
+		File file = newTmpFile();
+		MultiplexedFileWriter writer = newWriter(file);
+		MultiplexOutputStream out = writer.newOutputStream();
+		out.write(new byte[] { 1, 2, 3 });
+		out.writeDictionaryString(null);
+		out.close();
+		writer.close();
+
+		MultiplexedFileReader reader = new MultiplexedFileReader(file);
+		assertFalse(reader.hasStringDictionary());
+		assertEquals(0, reader.getStringDictionary().length);
+		MultiplexInputStream in = reader.getInputStream(out.getId());
+		in.skip(3);
+		assertEquals(null, in.readDictionaryString());
+		in.close();
+		reader.close();
+	}
+
+	@Test
+	public void testSplitAndMerge() throws IOException {
+		File file = newTmpFile();
+		MultiplexedFileWriter writer = newWriter(file);
+		Map<Integer, String[]> expected = new HashMap<Integer, String[]>();
+		for (int i = 0; i < 20; ++i) {
+			MultiplexOutputStream out = writer.newOutputStream();
+			String[] strings = randomStrings(this.rand.nextInt(500), 50);
+			for (String s: strings)
+				out.writeDictionaryString(s);
+			out.close();
+			expected.put(out.getId(), strings);
+		}
+		writer.close();
+
+		// split into two files
+		Map<File, Collection<Integer>> streamsPerFile = new HashMap<File, Collection<Integer>>();
+		List<Integer> ids = new ArrayList<Integer>(expected.keySet());
+		File part1 = newTmpFile();
+		File part2 = newTmpFile();
+		streamsPerFile.put(part1, ids.subList(0, 10));
+		streamsPerFile.put(part2, ids.subList(10, 20));
+		MultiplexedFileUtils.split(file, streamsPerFile);
+		for (File part: Arrays.asList(part1, part2)) {
+			MultiplexedFileReader reader = new MultiplexedFileReader(part);
+			assertTrue(reader.hasStringDictionary());
+			Map<Integer, String[]> partExpected = new HashMap<Integer, String[]>();
+			for (Integer id: streamsPerFile.get(part))
+				partExpected.put(id, expected.get(id));
+			check(reader, partExpected);
+			reader.close();
+		}
+
+		// merge them again
+		File merged = newTmpFile();
+		IntegerToIntegerMap[] mappings = MultiplexedFileUtils.merge(Arrays.asList(part1, part2), merged);
+		MultiplexedFileReader reader = new MultiplexedFileReader(merged);
+		Map<Integer, String[]> mergedExpected = new HashMap<Integer, String[]>();
+		for (Map.Entry<Integer, String[]> e: expected.entrySet()) {
+			int newId = mappings[0].getInt(e.getKey());
+			if (newId == -1)
+				newId = mappings[1].getInt(e.getKey());
+			mergedExpected.put(newId, e.getValue());
+		}
+		check(reader, mergedExpected);
+		reader.close();
+	}
+
+	@Test
+	public void testMergeConflictingDictionaries() throws IOException {
+		File[] files = new File[2];
+		for (int i = 0; i < 2; ++i) {
+			files[i] = newTmpFile();
+			MultiplexedFileWriter writer = newWriter(files[i], 256);
+			MultiplexOutputStream out = writer.newOutputStream();
+			out.writeDictionaryString("file " + i);
+			out.close();
+			writer.close();
+		}
+		try {
+			MultiplexedFileUtils.merge(Arrays.asList(files), newTmpFile());
+			fail("expected IOException");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("String dictionaries differ"));
+		}
+	}
+
+	@Test
+	public void testMergeCompatibleDictionaries() throws IOException {
+		// the second file adds the strings of the first one in the same order, and some more
+		File[] files = new File[2];
+		Map<Integer, String[]> expected = new HashMap<Integer, String[]>();
+		String[][] written = new String[2][];
+		for (int i = 0; i < 2; ++i) {
+			files[i] = newTmpFile();
+			MultiplexedFileWriter writer = newWriter(files[i], 256);
+			for (int k = 0; k < 10*(i+1); ++k)
+				assertEquals(k, writer.getStringId("common " + k));
+			MultiplexOutputStream out = writer.newOutputStream();
+			written[i] = new String[] { "common 3", "common " + (10*i + 5), null, "common 0" };
+			for (String s: written[i])
+				out.writeDictionaryString(s);
+			out.close();
+			writer.close();
+		}
+		File merged = newTmpFile();
+		IntegerToIntegerMap[] mappings = MultiplexedFileUtils.merge(Arrays.asList(files), merged);
+		for (int i = 0; i < 2; ++i)
+			expected.put(mappings[i].getInt(0), written[i]);
+		MultiplexedFileReader reader = new MultiplexedFileReader(merged);
+		assertEquals(20, reader.getStringDictionary().length);
+		check(reader, expected);
+		reader.close();
+	}
+
+	@Test
+	public void testGetStringIdWhileClosing() throws Exception {
+		for (int run = 0; run < 20; ++run) {
+			File file = newTmpFile();
+			final MultiplexedFileWriter writer = newWriter(file);
+			final List<String> added = new ArrayList<String>();
+			final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+			Thread adder = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; ; ++i) {
+							String s = "string " + i;
+							assertEquals(i, writer.getStringId(s));
+							added.add(s);
+						}
+					} catch (IllegalStateException e) {
+						// writer closed
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			};
+			adder.start();
+			Thread.sleep(this.rand.nextInt(3));
+			writer.close();
+			adder.join();
+			if (failure.get() != null)
+				throw new AssertionError(failure.get());
+
+			// every id that was handed out is contained in the dictionary
+			MultiplexedFileReader reader = new MultiplexedFileReader(file);
+			String[] dictionary = reader.getStringDictionary();
+			assertTrue(dictionary.length >= added.size());
+			for (int i = 0; i < added.size(); ++i)
+				assertEquals(added.get(i), dictionary[i]);
+			reader.close();
+		}
+	}
+
+}
@@ -36,6 +36,7 @@ public class MultiplexedFileTest {
 	private MultiplexedFileWriter mWriter;
 	private File tmpFileName;
 	private int blockSize;
+	private int formatVersion;
 	private boolean useMemMap;
 	private ByteOrder byteOrder;
 	private boolean autoFlush;
@@ -80,15 +81,19 @@ public class MultiplexedFileTest {
     		this.useMemMap = MultiplexedFileReader.is64bitVM && this.rand.nextBoolean();
     		this.byteOrder = this.rand.nextBoolean() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
     		this.autoFlush = this.rand.nextBoolean();
+    		this.formatVersion = this.blockSize >= 16 && this.rand.nextBoolean()
+    			? MultiplexedFileWriter.FORMAT_VERSION_2 : MultiplexedFileWriter.FORMAT_VERSION_1;
 
     		this.mWriter = new MultiplexedFileWriter(this.tmpFileName, this.blockSize, this.useMemMap,
-    			this.byteOrder, this.autoFlush);
+    			this.byteOrder, this.autoFlush, this.formatVersion);
+    		if (!this.useMemMap && this.rand.nextBoolean())
+    			this.mWriter.setAsynchronousWrites(true, 1 + this.rand.nextInt(64));
 
     		this.outStreams = new MultiplexOutputStream[this.num];
     		this.bytes = new byte[this.num][];
     		this.streamIds = new int[this.num];
     		for (int i = 0; i < this.num; ++i) {
-    			this.outStreams[i] = this.mWriter.newOutputStream();
+    			this.outStreams[i] = this.mWriter.newOutputStream(this.rand.nextInt(4) == 0);
     			this.streamIds[i] = this.outStreams[i].getId();
     			this.bytes[i] = new byte[this.rand.nextInt(128*i+1)];
     			this.rand.nextBytes(this.bytes[i]);
@@ -124,6 +129,15 @@ public class MultiplexedFileTest {
 				assertEquals("stream id", this.streamIds[i], mOut.getId());
 				byte[] expected = this.bytes[i];
 				assertEquals("Stream length does not match", expected.length, mOut.length());
+				if (mOut.isSingleWriter()) {
+					try {
+						mOut.getReader(0);
+						assertTrue("single-writer streams should not support readers", false);
+					} catch (IllegalStateException e) {
+						// expected
+					}
+					continue;
+				}
 
 				int startPos = this.rand.nextInt(expected.length+1);
 				byte[] expectedPart = new byte[expected.length - startPos];
@@ -150,6 +164,14 @@ public class MultiplexedFileTest {
 
 			// now close the file and do the same checks on the MultiplexedFileReader
 			this.mWriter.close();
+			for (MultiplexOutputStream mOut: this.outStreams) {
+				try {
+					mOut.write(42);
+					assertTrue("writing to a closed stream should fail", false);
+				} catch (IOException e) {
+					// expected
+				}
+			}
 			// let the gargabe collector throw away unneeded parts now
 			this.mWriter = null;
 			this.outStreams = null;
@@ -159,6 +181,7 @@ public class MultiplexedFileTest {
 			MultiplexedFileReader mReader = new MultiplexedFileReader(randFile,
 				MultiplexedFileReader.is64bitVM && this.rand.nextBoolean());
 			assertEquals("blocksize", this.blockSize, mReader.getBlockSize());
+			assertEquals("format version", this.formatVersion, mReader.getFormatVersion());
 
 			for (int i = 0; i < this.num; ++i) {
 				assertTrue("Stream not present", mReader.hasStreamId(this.streamIds[i]));
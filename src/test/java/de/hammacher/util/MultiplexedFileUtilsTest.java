@@ -0,0 +1,140 @@
+package de.hammacher.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.hammacher.util.MultiplexedFileReader.MultiplexInputStream;
+import de.hammacher.util.MultiplexedFileWriter.MultiplexOutputStream;
+import de.hammacher.util.maps.IntegerToIntegerMap;
+
+
+public class MultiplexedFileUtilsTest {
+
+	private final List<File> tmpFiles = new ArrayList<File>();
+
+	@After
+	public void tearDown() {
+		for (File f: this.tmpFiles)
+			f.delete();
+	}
+
+	private File newTmpFile() throws IOException {
+		File f = File.createTempFile("multiplexed-utils-test-", ".dat");
+		this.tmpFiles.add(f);
+		return f;
+	}
+
+	private Map<Integer, byte[]> writeFile(File file, int blockSize, ByteOrder byteOrder, int formatVersion,
+			int numStreams, Random rand) throws IOException {
+		MultiplexedFileWriter writer = new MultiplexedFileWriter(file, blockSize, false, byteOrder, false,
+			formatVersion);
+		Map<Integer, byte[]> contents = new HashMap<Integer, byte[]>();
+		for (int i = 0; i < numStreams; ++i) {
+			MultiplexOutputStream out = writer.newOutputStream();
+			// also use lengths which are exact multiples of the block size
+			byte[] data = new byte[rand.nextBoolean() ? rand.nextInt(64*blockSize) : blockSize*rand.nextInt(20)];
+			rand.nextBytes(data);
+			out.write(data);
+			out.close();
+			contents.put(out.getId(), data);
+		}
+		writer.close();
+		return contents;
+	}
+
+	private void checkFile(File file, int formatVersion, Map<Integer, byte[]> expectedContents) throws IOException {
+		MultiplexedFileReader reader = new MultiplexedFileReader(new RandomAccessFile(file, "r"), false);
+		assertEquals("format version", formatVersion, reader.getFormatVersion());
+		assertEquals("stream ids", expectedContents.keySet(), new HashSet<Integer>(reader.getStreamIds()));
+		for (Map.Entry<Integer, byte[]> e: expectedContents.entrySet()) {
+			MultiplexInputStream in = reader.getInputStream(e.getKey());
+			byte[] expected = e.getValue();
+			assertEquals("stream length", expected.length, in.getDataLength());
+			byte[] read = new byte[expected.length];
+			int pos = 0;
+			while (pos < read.length) {
+				int newRead = in.read(read, pos, read.length - pos);
+				assertTrue("unexpected EOF", newRead > 0);
+				pos += newRead;
+			}
+			assertArrayEquals("stream content of stream " + e.getKey(), expected, read);
+			assertEquals("Expected EOF", -1, in.read());
+		}
+		reader.close();
+	}
+
+	@Test
+	public void testMergeAndSplit() throws IOException {
+		Random rand = new Random();
+		long seed = rand.nextLong();
+		System.out.println("Seed: "+seed);
+		rand = new Random(seed);
+
+		int blockSize = 16 << rand.nextInt(3);
+		int formatVersion = rand.nextBoolean() ? MultiplexedFileWriter.FORMAT_VERSION_1
+			: MultiplexedFileWriter.FORMAT_VERSION_2;
+		List<File> inputs = new ArrayList<File>();
+		List<Map<Integer, byte[]>> inputContents = new ArrayList<Map<Integer, byte[]>>();
+		for (int i = 0; i < 4; ++i) {
+			File input = newTmpFile();
+			inputs.add(input);
+			inputContents.add(writeFile(input, blockSize,
+				i % 2 == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN, formatVersion, 1 + rand.nextInt(20), rand));
+		}
+
+		File merged = newTmpFile();
+		IntegerToIntegerMap[] idMappings = MultiplexedFileUtils.merge(inputs, merged, 3);
+		assertEquals("number of id mappings", inputs.size(), idMappings.length);
+
+		Map<Integer, byte[]> mergedContents = new HashMap<Integer, byte[]>();
+		for (int i = 0; i < inputs.size(); ++i) {
+			for (Map.Entry<Integer, byte[]> e: inputContents.get(i).entrySet()) {
+				int newId = idMappings[i].get(e.getKey());
+				assertTrue("stream id " + newId + " used twice", mergedContents.put(newId, e.getValue()) == null);
+			}
+		}
+		checkFile(merged, formatVersion, mergedContents);
+
+		// now split it again into streams with even and odd ids
+		Map<File, Set<Integer>> streamsPerFile = new HashMap<File, Set<Integer>>();
+		Map<Integer, byte[]> evenContents = new HashMap<Integer, byte[]>();
+		Map<Integer, byte[]> oddContents = new HashMap<Integer, byte[]>();
+		for (Map.Entry<Integer, byte[]> e: mergedContents.entrySet())
+			(e.getKey() % 2 == 0 ? evenContents : oddContents).put(e.getKey(), e.getValue());
+		File even = newTmpFile();
+		File odd = newTmpFile();
+		streamsPerFile.put(even, evenContents.keySet());
+		streamsPerFile.put(odd, oddContents.keySet());
+		MultiplexedFileUtils.split(merged, streamsPerFile, 2);
+		checkFile(even, formatVersion, evenContents);
+		checkFile(odd, formatVersion, oddContents);
+	}
+
+	@Test(expected=IOException.class)
+	public void testMergeDifferentFormatVersions() throws IOException {
+		Random rand = new Random();
+		File input1 = newTmpFile();
+		File input2 = newTmpFile();
+		writeFile(input1, 64, ByteOrder.BIG_ENDIAN, MultiplexedFileWriter.FORMAT_VERSION_1, 3, rand);
+		writeFile(input2, 64, ByteOrder.BIG_ENDIAN, MultiplexedFileWriter.FORMAT_VERSION_2, 3, rand);
+		MultiplexedFileUtils.merge(Arrays.asList(input1, input2), newTmpFile());
+	}
+
+}
@@ -0,0 +1,79 @@
+package de.hammacher.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+import de.hammacher.util.MultiplexedFileWriter.MultiplexOutputStream;
+
+
+public class MultiplexedFileWriterPerformance {
+
+	private static final int NUM_STREAMS = 16;
+	private static final int BYTES_PER_STREAM = 4 << 20;
+
+	private long writeStreams(boolean singleWriter, boolean singleBytes, boolean useMemMap) throws IOException {
+		File tmpFile = File.createTempFile("multiplexed-performance-", ".dat");
+		try {
+			MultiplexedFileWriter writer = new MultiplexedFileWriter(tmpFile,
+				MultiplexedFileWriter.DEFAULT_BLOCK_SIZE, useMemMap, ByteOrder.nativeOrder(), false);
+			byte[] chunk = new byte[100];
+			long startTime = System.nanoTime();
+			for (int s = 0; s < NUM_STREAMS; ++s) {
+				MultiplexOutputStream out = writer.newOutputStream(singleWriter);
+				if (singleBytes) {
+					for (int i = 0; i < BYTES_PER_STREAM; ++i)
+						out.write(i);
+				} else {
+					for (int i = 0; i < BYTES_PER_STREAM; i += chunk.length)
+						out.write(chunk, 0, Math.min(chunk.length, BYTES_PER_STREAM - i));
+				}
+				out.close();
+			}
+			long time = System.nanoTime() - startTime;
+			writer.close();
+			return time;
+		} finally {
+			tmpFile.delete();
+		}
+	}
+
+	private void compareModes(boolean singleBytes, boolean useMemMap, int runs) throws IOException {
+		// warm up
+		writeStreams(false, singleBytes, useMemMap);
+		writeStreams(true, singleBytes, useMemMap);
+
+		long lockingTime = 0;
+		long singleWriterTime = 0;
+		for (int i = 0; i < runs; ++i) {
+			lockingTime += writeStreams(false, singleBytes, useMemMap);
+			singleWriterTime += writeStreams(true, singleBytes, useMemMap);
+		}
+
+		double numBytes = (double) runs * NUM_STREAMS * BYTES_PER_STREAM;
+		System.out.format("(%s, %s) locking: %.3f ns/byte; single-writer: %.3f ns/byte%n",
+				singleBytes ? "write(int)" : "write(byte[])", useMemMap ? "mmap" : "channel",
+				lockingTime / numBytes, singleWriterTime / numBytes);
+	}
+
+	@Test
+	public void singleBytes_channel() throws IOException {
+		compareModes(true, false, 5);
+	}
+	@Test
+	public void chunks_channel() throws IOException {
+		compareModes(false, false, 5);
+	}
+	@Test
+	public void singleBytes_mmap() throws IOException {
+		if (MultiplexedFileWriter.is64bitVM)
+			compareModes(true, true, 5);
+	}
+	@Test
+	public void chunks_mmap() throws IOException {
+		if (MultiplexedFileWriter.is64bitVM)
+			compareModes(false, true, 5);
+	}
+}
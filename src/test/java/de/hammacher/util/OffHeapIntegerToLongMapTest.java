@@ -0,0 +1,266 @@
+package de.hammacher.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.hammacher.util.maps.IntegerLongVisitor;
+import de.hammacher.util.maps.OffHeapIntegerToLongMap;
+
+
+public class OffHeapIntegerToLongMapTest {
+
+	private File tmpFile;
+	private Random rand;
+
+	@Before
+	public void setUp() throws IOException {
+		this.tmpFile = File.createTempFile("offheap-map-test-", ".dat");
+		long seed = new Random().nextLong();
+		System.out.println("Seed: "+seed);
+		this.rand = new Random(seed);
+	}
+
+	@After
+	public void tearDown() {
+		this.tmpFile.delete();
+		new File(this.tmpFile.getPath() + ".tmp").delete();
+		new File(this.tmpFile.getPath() + ".bak").delete();
+	}
+
+	private static interface KeyGenerator {
+		int nextKey();
+	}
+
+	private static void checkEqual(final Map<Integer, Long> expected, OffHeapIntegerToLongMap map) {
+		assertEquals(expected.size(), map.size());
+		final int[] num = new int[1];
+		map.forEachEntry(new IntegerLongVisitor() {
+			public void visit(int key, long value) {
+				assertEquals(expected.get(key), Long.valueOf(value));
+				++num[0];
+			}
+		});
+		assertEquals(expected.size(), num[0]);
+		for (Map.Entry<Integer, Long> e: expected.entrySet())
+			assertEquals(e.getValue().longValue(), map.getLong(e.getKey()));
+	}
+
+	private void testOperations(OffHeapIntegerToLongMap map, int numOperations, KeyGenerator keyGen)
+			throws IOException {
+		HashMap<Integer, Long> hashMap = new HashMap<Integer, Long>();
+
+		for (int i = 0; i < numOperations; ++i) {
+			int op = this.rand.nextInt(1000);
+			int key = keyGen.nextKey();
+			if (op < 400) {
+				long value = this.rand.nextInt(10) + (1L << 40);
+				Long old = hashMap.put(key, value);
+				assertEquals(old == null ? -1 : old.longValue(), map.put(key, value));
+			} else if (op < 600) {
+				Long old = hashMap.remove(key);
+				assertEquals(old == null ? -1 : old.longValue(), map.remove(key));
+			} else if (op < 800) {
+				Long value = hashMap.get(key);
+				assertEquals(value == null ? -1 : value.longValue(), map.getLong(key));
+				assertEquals(value != null, map.containsKey(key));
+			} else if (op < 995) {
+				int add = this.rand.nextInt(5) - 2;
+				Long old = hashMap.get(key);
+				long newValue = (old == null ? -1 : old.longValue()) + add;
+				hashMap.put(key, newValue);
+				assertEquals(newValue, map.incrementAndGet(key, add));
+			} else {
+				checkEqual(hashMap, map);
+			}
+			assertEquals(hashMap.size(), map.size());
+		}
+		checkEqual(hashMap, map);
+	}
+
+	private KeyGenerator denseKeys() {
+		return new KeyGenerator() {
+			public int nextKey() {
+				return OffHeapIntegerToLongMapTest.this.rand.nextInt(2000);
+			}
+		};
+	}
+
+	private KeyGenerator sparseKeys() {
+		return new KeyGenerator() {
+			public int nextKey() {
+				Random r = OffHeapIntegerToLongMapTest.this.rand;
+				return r.nextInt(20) == 0 ? r.nextInt(3) : r.nextInt(5000) * 1000003;
+			}
+		};
+	}
+
+	private KeyGenerator changingKeys() {
+		return new KeyGenerator() {
+			private int num = 0;
+			public int nextKey() {
+				Random r = OffHeapIntegerToLongMapTest.this.rand;
+				return (++this.num / 20000) % 2 == 0 ? r.nextInt(3000) : r.nextInt();
+			}
+		};
+	}
+
+	@Test
+	public void testDenseKeys() throws IOException {
+		OffHeapIntegerToLongMap map = new OffHeapIntegerToLongMap(0, -1);
+		testOperations(map, 100000, denseKeys());
+		map.close();
+	}
+
+	@Test
+	public void testSparseKeys() throws IOException {
+		OffHeapIntegerToLongMap map = new OffHeapIntegerToLongMap(0, -1);
+		testOperations(map, 100000, sparseKeys());
+		map.close();
+	}
+
+	@Test
+	public void testChangingKeys() throws IOException {
+		OffHeapIntegerToLongMap map = new OffHeapIntegerToLongMap(0, -1);
+		testOperations(map, 100000, changingKeys());
+		map.close();
+	}
+
+	@Test
+	public void testFileBacked() throws IOException {
+		OffHeapIntegerToLongMap map = OffHeapIntegerToLongMap.create(this.tmpFile, 0, -1, Long.MAX_VALUE);
+		testOperations(map, 50000, changingKeys());
+		map.close();
+		assertFalse(new File(this.tmpFile.getPath() + ".tmp").exists());
+		assertFalse(new File(this.tmpFile.getPath() + ".bak").exists());
+	}
+
+	@Test
+	public void testReopen() throws IOException {
+		for (KeyGenerator keyGen: new KeyGenerator[] { denseKeys(), sparseKeys() }) {
+			HashMap<Integer, Long> expected = new HashMap<Integer, Long>();
+			OffHeapIntegerToLongMap map = OffHeapIntegerToLongMap.create(this.tmpFile, 0, -1, Long.MAX_VALUE);
+			for (int i = 0; i < 20000; ++i) {
+				int key = keyGen.nextKey();
+				long value = this.rand.nextLong();
+				expected.put(key, value);
+				map.put(key, value);
+			}
+			map.close();
+
+			map = OffHeapIntegerToLongMap.open(this.tmpFile);
+			assertEquals(-1, map.getDefaultValue());
+			checkEqual(expected, map);
+			// modify and reopen once more
+			for (Integer key: expected.keySet().toArray(new Integer[expected.size()])) {
+				if (this.rand.nextBoolean()) {
+					expected.remove(key);
+					map.remove(key);
+				}
+			}
+			map.put(-5, 42);
+			expected.put(-5, 42L);
+			map.close();
+
+			map = OffHeapIntegerToLongMap.open(this.tmpFile);
+			checkEqual(expected, map);
+			map.close();
+		}
+	}
+
+	@Test
+	public void testReopenUncleanFile() throws IOException {
+		OffHeapIntegerToLongMap map = OffHeapIntegerToLongMap.create(this.tmpFile);
+		map.put(17, 4);
+		map.flush();
+		try {
+			OffHeapIntegerToLongMap.open(this.tmpFile);
+			fail("IOException expected");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("not been closed"));
+		}
+		map.close();
+	}
+
+	@Test
+	public void testReopenCorruptFile() throws IOException {
+		OffHeapIntegerToLongMap map = OffHeapIntegerToLongMap.create(this.tmpFile);
+		map.put(17, 4);
+		map.close();
+
+		RandomAccessFile raf = new RandomAccessFile(this.tmpFile, "rw");
+		raf.setLength(raf.length() - 8);
+		raf.close();
+		try {
+			OffHeapIntegerToLongMap.open(this.tmpFile);
+			fail("IOException expected");
+		} catch (IOException e) {
+			// expected
+		}
+
+		raf = new RandomAccessFile(this.tmpFile, "rw");
+		raf.writeInt(0);
+		raf.close();
+		try {
+			OffHeapIntegerToLongMap.open(this.tmpFile);
+			fail("IOException expected");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testMemoryLimit() throws IOException {
+		OffHeapIntegerToLongMap map = new OffHeapIntegerToLongMap(0, 0, 4096);
+		int num = 0;
+		try {
+			while (true) {
+				map.put(this.rand.nextInt(), 1);
+				++num;
+			}
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		// the old storage counts towards the limit while the map is rebuilt
+		assertTrue(map.getByteSize() <= 4096 / 2);
+		assertTrue(num > 50);
+		map.close();
+	}
+
+	private static long getDirectMemoryUsed() {
+		for (BufferPoolMXBean pool: ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class))
+			if (pool.getName().equals("direct"))
+				return pool.getMemoryUsed();
+		return -1;
+	}
+
+	@Test
+	public void testReleasesMemory() throws IOException {
+		long before = getDirectMemoryUsed();
+		OffHeapIntegerToLongMap map = new OffHeapIntegerToLongMap(0, 0);
+		for (int i = 0; i < 1 << 20; ++i)
+			map.put(this.rand.nextInt(), i);
+		// the table has been rebuilt several times, the old storage must have been released
+		long byteSize = map.getByteSize();
+		assertTrue(byteSize > 12 << 20);
+		assertTrue(getDirectMemoryUsed() - before >= byteSize);
+		assertTrue(getDirectMemoryUsed() - before < 2 * byteSize);
+		map.close();
+		assertTrue(getDirectMemoryUsed() - before < byteSize);
+	}
+
+}
@@ -0,0 +1,104 @@
+package de.hammacher.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.hammacher.util.streams.OptimizedDataCodec;
+import de.hammacher.util.streams.OptimizedDataInputStream;
+import de.hammacher.util.streams.OptimizedDataOutputStream;
+
+
+public class OptimizedDataBulkPerformance {
+
+	private static final int NUM_VALUES = 1 << 22;
+	private static final int ARRAY_SIZE = 4096;
+
+	private static final String[] MODE_NAMES = { "writeLong()", "auto", "group varint", "zig-zag delta",
+		"frame of reference" };
+	private static final int[] MODES = { -1, OptimizedDataCodec.BULK_MODE_AUTO,
+		OptimizedDataCodec.BULK_MODE_GROUP_VARINT, OptimizedDataCodec.BULK_MODE_ZIGZAG_DELTA,
+		OptimizedDataCodec.BULK_MODE_FRAME_OF_REFERENCE };
+
+	private static long[] generate(String kind) {
+		Random rand = new Random(42);
+		long[] values = new long[NUM_VALUES];
+		long last = System.nanoTime();
+		for (int i = 0; i < NUM_VALUES; ++i) {
+			if ("timestamps".equals(kind))
+				values[i] = last += 1000 + rand.nextInt(50);
+			else if ("offsets".equals(kind))
+				values[i] = last += rand.nextInt(200);
+			else
+				values[i] = rand.nextInt(1 << 20);
+		}
+		return values;
+	}
+
+	private static byte[] write(long[] values, int mode) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(values.length * 9);
+		OptimizedDataOutputStream out = new OptimizedDataOutputStream(bytes);
+		for (int off = 0; off < values.length; off += ARRAY_SIZE) {
+			if (mode < 0) {
+				for (int i = off; i < off + ARRAY_SIZE; ++i)
+					out.writeLong(values[i]);
+			} else
+				out.writeLongs(values, off, ARRAY_SIZE, mode);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static long read(byte[] data, int mode) throws IOException {
+		OptimizedDataInputStream in = new OptimizedDataInputStream(data, 0, data.length, false);
+		long[] values = new long[ARRAY_SIZE];
+		long sum = 0;
+		for (int off = 0; off < NUM_VALUES; off += ARRAY_SIZE) {
+			if (mode < 0) {
+				for (int i = 0; i < ARRAY_SIZE; ++i)
+					values[i] = in.readLong();
+			} else
+				in.readLongs(values, 0, ARRAY_SIZE);
+			sum += values[ARRAY_SIZE - 1];
+		}
+		return sum;
+	}
+
+	private void compareModes(String kind, int runs) throws IOException {
+		long[] values = generate(kind);
+		for (int m = 0; m < MODES.length; ++m) {
+			// warm up
+			read(write(values, MODES[m]), MODES[m]);
+
+			long writeTime = 0;
+			long readTime = 0;
+			int size = 0;
+			for (int r = 0; r < runs; ++r) {
+				long startTime = System.nanoTime();
+				byte[] data = write(values, MODES[m]);
+				writeTime += System.nanoTime() - startTime;
+				startTime = System.nanoTime();
+				read(data, MODES[m]);
+				readTime += System.nanoTime() - startTime;
+				size = data.length;
+			}
+			double numValues = (double) runs * NUM_VALUES;
+			System.out.format("(%s, %s) write: %.3f ns/value; read: %.3f ns/value; size: %.3f bytes/value%n",
+				kind, MODE_NAMES[m], writeTime / numValues, readTime / numValues, (double) size / NUM_VALUES);
+		}
+	}
+
+	@Test
+	public void timestamps() throws IOException {
+		compareModes("timestamps", 5);
+	}
+	@Test
+	public void offsets() throws IOException {
+		compareModes("offsets", 5);
+	}
+	@Test
+	public void ids() throws IOException {
+		compareModes("ids", 5);
+	}
+}
@@ -0,0 +1,351 @@
+package de.hammacher.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.hammacher.util.streams.OptimizedDataCodec;
+import de.hammacher.util.streams.OptimizedDataInputStream;
+import de.hammacher.util.streams.OptimizedDataOutputStream;
+
+
+public class OptimizedDataCodecTest {
+
+	private Random rand;
+
+	@Before
+	public void setUp() {
+		long seed = new Random().nextLong();
+		System.out.println("Seed: "+seed);
+		this.rand = new Random(seed);
+	}
+
+	private int randomInt() {
+		// spread the values evenly over all encoded lengths
+		int bits = this.rand.nextInt(33);
+		return bits == 0 ? 0 : this.rand.nextInt() >> (32 - bits);
+	}
+
+	private long randomLong() {
+		int bits = this.rand.nextInt(65);
+		return bits == 0 ? 0 : this.rand.nextLong() >> (64 - bits);
+	}
+
+	private static byte[] encodeInt0(int value) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OptimizedDataOutputStream.writeInt0(value, out);
+		return out.toByteArray();
+	}
+
+	private static byte[] encodeLong0(long value) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OptimizedDataOutputStream.writeLong0(value, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Reference implementation of the original (byte-wise) encoding.
+	 */
+	private static byte[] encodeReference(long value, boolean isLong) {
+		int numBytes = 1;
+		while (numBytes < 8 && (value >> (8*numBytes - 1)) != 0 && (value >> (8*numBytes - 1)) != -1)
+			++numBytes;
+		boolean magic = numBytes > 1 || value < -124 || (isLong && value > 123);
+		byte[] res = new byte[numBytes + (magic ? 1 : 0)];
+		int pos = 0;
+		if (magic)
+			res[pos++] = new byte[] { 0, -128, -127, -126, -125, 127, 126, 125, 124 }[numBytes];
+		for (int i = numBytes - 1; i >= 0; --i)
+			res[pos++] = (byte) (value >>> (8*i));
+		return res;
+	}
+
+	@Test
+	public void testWireFormat() throws IOException {
+		int[] specialInts = { 0, -1, 123, 124, 127, 128, -124, -125, -128, -129,
+			Short.MAX_VALUE, Short.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE };
+		for (int value: specialInts) {
+			assertArrayEquals("int " + value, encodeReference(value, false), encodeInt0(value));
+			assertArrayEquals("long " + value, encodeReference(value, true), encodeLong0(value));
+		}
+		for (int i = 0; i < 10000; ++i) {
+			int intValue = randomInt();
+			long longValue = randomLong();
+			byte[] intEncoded = encodeReference(intValue, false);
+			byte[] longEncoded = encodeReference(longValue, true);
+			assertArrayEquals("int " + intValue, intEncoded, encodeInt0(intValue));
+			assertArrayEquals("long " + longValue, longEncoded, encodeLong0(longValue));
+			assertEquals(intEncoded.length, OptimizedDataCodec.getEncodedLength(intValue));
+			assertEquals(longEncoded.length, OptimizedDataCodec.getEncodedLength(longValue));
+			assertEquals(intEncoded.length, OptimizedDataCodec.getEncodedIntLength(intEncoded[0]));
+			assertEquals(longEncoded.length, OptimizedDataCodec.getEncodedLongLength(longEncoded[0]));
+		}
+	}
+
+	@Test
+	public void testArrayAndBuffer() {
+		int num = 1000;
+		int[] ints = new int[num];
+		long[] longs = new long[num];
+		byte[] arr = new byte[num * (OptimizedDataCodec.MAX_INT_LENGTH + OptimizedDataCodec.MAX_LONG_LENGTH)];
+		int off = 0;
+		for (int i = 0; i < num; ++i) {
+			ints[i] = randomInt();
+			longs[i] = randomLong();
+			off = OptimizedDataCodec.writeInt(arr, off, ints[i]);
+			off = OptimizedDataCodec.writeLong(arr, off, longs[i]);
+		}
+
+		ByteBuffer heap = ByteBuffer.allocate(off);
+		ByteBuffer direct = ByteBuffer.allocateDirect(off);
+		for (int i = 0; i < num; ++i) {
+			OptimizedDataCodec.writeInt(heap, ints[i]);
+			OptimizedDataCodec.writeLong(heap, longs[i]);
+			OptimizedDataCodec.writeInt(direct, ints[i]);
+			OptimizedDataCodec.writeLong(direct, longs[i]);
+		}
+		assertEquals(0, heap.remaining());
+		assertEquals(0, direct.remaining());
+		assertArrayEquals(Arrays.copyOf(arr, off), heap.array());
+
+		int[] pos = new int[1];
+		heap.flip();
+		direct.flip();
+		for (int i = 0; i < num; ++i) {
+			assertEquals(ints[i], OptimizedDataCodec.readInt(arr, pos));
+			assertEquals(longs[i], OptimizedDataCodec.readLong(arr, pos));
+			assertEquals(ints[i], OptimizedDataCodec.readInt(heap));
+			assertEquals(longs[i], OptimizedDataCodec.readLong(heap));
+			assertEquals(ints[i], OptimizedDataCodec.readInt(direct));
+			assertEquals(longs[i], OptimizedDataCodec.readLong(direct));
+		}
+		assertEquals(off, pos[0]);
+	}
+
+	@Test
+	public void testBufferUnderflow() {
+		byte[] encoded = encodeReference(Long.MIN_VALUE, true);
+		ByteBuffer buf = ByteBuffer.wrap(encoded, 0, encoded.length - 1);
+		try {
+			OptimizedDataCodec.readLong(buf);
+			fail("expected BufferUnderflowException");
+		} catch (BufferUnderflowException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testStreams() throws IOException {
+		boolean diff = this.rand.nextBoolean();
+		int num = 10000;
+		int[] ints = new int[num];
+		long[] longs = new long[num];
+		byte[][] raw = new byte[num][];
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OptimizedDataOutputStream out = new OptimizedDataOutputStream(bytes, diff);
+		for (int i = 0; i < num; ++i) {
+			ints[i] = randomInt();
+			longs[i] = randomLong();
+			raw[i] = new byte[this.rand.nextInt(3) == 0 ? this.rand.nextInt(20000 / (1 + i % 100)) : 0];
+			this.rand.nextBytes(raw[i]);
+			out.writeInt(ints[i]);
+			out.writeLong(longs[i]);
+			out.write(raw[i]);
+		}
+		// no flush needed
+		byte[] data = bytes.toByteArray();
+
+		// deliver the data in small chunks to exercise refilling
+		InputStream chunked = new ByteArrayInputStream(data) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, 1 + OptimizedDataCodecTest.this.rand.nextInt(7)));
+			}
+		};
+		OptimizedDataInputStream in = openStream(data, chunked, diff);
+		for (int i = 0; i < num; ++i) {
+			assertEquals(ints[i], in.readInt());
+			assertEquals(longs[i], in.readLong());
+			byte[] read = new byte[raw[i].length];
+			int pos = 0;
+			while (pos < read.length) {
+				int n = in.read(read, pos, read.length - pos);
+				assertEquals(true, n > 0);
+				pos += n;
+			}
+			assertArrayEquals(raw[i], read);
+		}
+		assertEquals(-1, in.read());
+		try {
+			in.readLong();
+			fail("expected EOFException");
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Opens either an unbuffered, a buffered or an array based stream.
+	 */
+	private OptimizedDataInputStream openStream(byte[] data, InputStream chunked, boolean diff) {
+		switch (this.rand.nextInt(3)) {
+		case 0:
+			return new OptimizedDataInputStream(chunked, diff);
+		case 1:
+			return new OptimizedDataInputStream(chunked, diff, this.rand.nextInt(10000));
+		default:
+			byte[] padded = new byte[data.length + 20];
+			System.arraycopy(data, 0, padded, 10, data.length);
+			return new OptimizedDataInputStream(padded, 10, data.length, diff);
+		}
+	}
+
+	@Test
+	public void testUnbufferedConsumesExactly() throws IOException {
+		int[] ints = randomInts(300);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OptimizedDataOutputStream out = new OptimizedDataOutputStream(bytes);
+		out.writeInt(ints[0]);
+		out.write(1);
+		out.writeLong(ints[1]);
+		out.write(2);
+		out.writeInts(ints, 0, ints.length, OptimizedDataCodec.BULK_MODE_AUTO);
+		out.write(3);
+		ByteArrayInputStream underlying = new ByteArrayInputStream(bytes.toByteArray());
+		OptimizedDataInputStream in = new OptimizedDataInputStream(underlying);
+		assertEquals(ints[0], in.readInt());
+		assertEquals(1, underlying.read());
+		assertEquals(ints[1], in.readLong());
+		assertEquals(2, underlying.read());
+		int[] read = new int[ints.length];
+		in.readInts(read, 0, read.length);
+		assertArrayEquals(ints, read);
+		assertEquals(3, underlying.read());
+		assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void testTruncatedStream() throws IOException {
+		byte[] encoded = encodeInt0(Integer.MAX_VALUE);
+		OptimizedDataInputStream in = new OptimizedDataInputStream(
+			new ByteArrayInputStream(encoded, 0, encoded.length - 1));
+		try {
+			in.readInt();
+			fail("expected EOFException");
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+
+	private int[] randomInts(int num) {
+		int[] values = new int[num];
+		int kind = this.rand.nextInt(3);
+		for (int i = 0; i < num; ++i) {
+			if (kind == 0)
+				values[i] = randomInt();
+			else if (kind == 1)
+				values[i] = (i == 0 ? 0 : values[i-1]) + this.rand.nextInt(1000);
+			else
+				values[i] = this.rand.nextInt(100) - 50;
+		}
+		return values;
+	}
+
+	private long[] randomLongs(int num) {
+		long[] values = new long[num];
+		int kind = this.rand.nextInt(3);
+		for (int i = 0; i < num; ++i) {
+			if (kind == 0)
+				values[i] = randomLong();
+			else if (kind == 1)
+				values[i] = (i == 0 ? System.nanoTime() : values[i-1]) + 1000 + this.rand.nextInt(100);
+			else
+				values[i] = this.rand.nextInt(100) - 50;
+		}
+		return values;
+	}
+
+	@Test
+	public void testBulkStreams() throws IOException {
+		int[] modes = { OptimizedDataCodec.BULK_MODE_AUTO, OptimizedDataCodec.BULK_MODE_GROUP_VARINT,
+			OptimizedDataCodec.BULK_MODE_ZIGZAG_DELTA, OptimizedDataCodec.BULK_MODE_FRAME_OF_REFERENCE };
+		int num = 200;
+		int[][] ints = new int[num][];
+		long[][] longs = new long[num][];
+		int[] intModes = new int[num];
+		int[] longModes = new int[num];
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OptimizedDataOutputStream out = new OptimizedDataOutputStream(bytes, true);
+		for (int i = 0; i < num; ++i) {
+			ints[i] = randomInts(this.rand.nextInt(3000));
+			longs[i] = randomLongs(this.rand.nextInt(3000));
+			intModes[i] = modes[this.rand.nextInt(modes.length)];
+			longModes[i] = modes[this.rand.nextInt(modes.length)];
+			out.writeInts(ints[i], 0, ints[i].length, intModes[i]);
+			out.writeLong(i);
+			out.writeLongs(longs[i], 0, longs[i].length, longModes[i]);
+		}
+		byte[] data = bytes.toByteArray();
+
+		InputStream chunked = new ByteArrayInputStream(data) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, 1 + OptimizedDataCodecTest.this.rand.nextInt(2000)));
+			}
+		};
+		OptimizedDataInputStream in = openStream(data, chunked, true);
+		for (int i = 0; i < num; ++i) {
+			int[] readInts = new int[ints[i].length + 2];
+			in.readInts(readInts, 1, ints[i].length);
+			assertArrayEquals("ints, mode " + intModes[i], ints[i], Arrays.copyOfRange(readInts, 1, ints[i].length + 1));
+			assertEquals(i, in.readLong());
+			long[] readLongs = new long[longs[i].length];
+			in.readLongs(readLongs, 0, readLongs.length);
+			assertArrayEquals("longs, mode " + longModes[i], longs[i], readLongs);
+		}
+		assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void testBulkAutoMode() {
+		int[] sorted = new int[OptimizedDataCodec.BULK_BLOCK_SIZE];
+		for (int i = 0; i < sorted.length; ++i)
+			sorted[i] = 1000000 + 3 * i;
+		byte[] buf = new byte[OptimizedDataCodec.MAX_INT_BLOCK_LENGTH];
+		int autoLen = OptimizedDataCodec.writeIntBlock(buf, 0, sorted, 0, sorted.length, OptimizedDataCodec.BULK_MODE_AUTO);
+		assertEquals(OptimizedDataCodec.BULK_MODE_ZIGZAG_DELTA, buf[0]);
+		int plainLen = OptimizedDataCodec.writeIntBlock(buf, 0, sorted, 0, sorted.length,
+			OptimizedDataCodec.BULK_MODE_GROUP_VARINT);
+		assertEquals(true, autoLen < plainLen);
+		assertEquals(plainLen, OptimizedDataCodec.getEncodedBlockLength(buf, 0, buf.length));
+
+		int[] decoded = new int[sorted.length];
+		int[] pos = new int[1];
+		OptimizedDataCodec.readIntBlock(buf, pos, decoded, 0, decoded.length);
+		assertEquals(plainLen, pos[0]);
+		assertArrayEquals(sorted, decoded);
+	}
+
+	@Test(expected=IOException.class)
+	public void testBulkCorruptBlock() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new OptimizedDataOutputStream(bytes).writeLongs(randomLongs(100), 0, 100);
+		byte[] data = bytes.toByteArray();
+		data[0] = 42;
+		new OptimizedDataInputStream(new ByteArrayInputStream(data)).readLongs(new long[100], 0, 100);
+	}
+
+}
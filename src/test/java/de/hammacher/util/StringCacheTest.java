@@ -0,0 +1,296 @@
+package de.hammacher.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.hammacher.util.streams.OptimizedDataInputStream;
+import de.hammacher.util.streams.Utf8Slice;
+
+
+public class StringCacheTest {
+
+	private Random rand;
+
+	@Before
+	public void setUp() {
+		long seed = new Random().nextLong();
+		System.out.println("Seed: "+seed);
+		this.rand = new Random(seed);
+	}
+
+	private String[] generate(int num, int numDistinct) {
+		String[] strings = new String[num];
+		for (int i = 0; i < num; ++i) {
+			// skewed distribution, so that caching pays off
+			int k = (int) (numDistinct * Math.pow(this.rand.nextDouble(), 3));
+			strings[i] = k == 0 ? null : "de.hammacher.util.Class" + k + ".method" + (k % 7);
+		}
+		return strings;
+	}
+
+	private void check(String[] strings, StringCacheOutput cacheOut, StringCacheInput cacheIn) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (String s: strings)
+			cacheOut.writeString(s, out);
+		out.close();
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		for (String s: strings)
+			assertEquals(s, cacheIn.readString(in));
+		assertEquals(-1, in.read());
+
+		assertEquals(cacheOut.getNumHits(), cacheIn.getNumHits());
+		assertEquals(cacheOut.getNumMisses(), cacheIn.getNumMisses());
+		assertEquals(cacheOut.getNumEvictions(), cacheIn.getNumEvictions());
+		assertEquals(cacheOut.getSize(), cacheIn.getSize());
+		assertEquals(strings.length, cacheOut.getNumHits() + cacheOut.getNumMisses());
+		System.out.format("max size %d: hit ratio %.3f, %d evictions, ~%d bytes (output), ~%d bytes (input)%n",
+			cacheOut.getMaxSize(), cacheOut.getHitRatio(), cacheOut.getNumEvictions(),
+			cacheOut.getEstimatedMemoryUsage(), cacheIn.getEstimatedMemoryUsage());
+	}
+
+	@Test
+	public void testUnbounded() throws IOException {
+		StringCacheOutput cacheOut = new StringCacheOutput();
+		check(generate(10000, 1000), cacheOut, new StringCacheInput());
+		assertEquals(0, cacheOut.getNumEvictions());
+	}
+
+	@Test
+	public void testBounded() throws IOException {
+		int maxSize = 1 + this.rand.nextInt(200);
+		StringCacheOutput cacheOut = new StringCacheOutput(maxSize);
+		check(generate(10000, 1000), cacheOut, new StringCacheInput(maxSize));
+		assertTrue(cacheOut.getSize() <= maxSize);
+		assertTrue(cacheOut.getNumEvictions() > 0);
+	}
+
+	@Test
+	public void testBoundedNotFull() throws IOException {
+		// as long as the cache does not fill up, the output is the same as in unbounded mode
+		String[] strings = generate(1000, 50);
+		ByteArrayOutputStream unbounded = new ByteArrayOutputStream();
+		ByteArrayOutputStream bounded = new ByteArrayOutputStream();
+		StringCacheOutput unboundedCache = new StringCacheOutput();
+		StringCacheOutput boundedCache = new StringCacheOutput(100);
+		for (String s: strings) {
+			unboundedCache.writeString(s, new DataOutputStream(unbounded));
+			boundedCache.writeString(s, new DataOutputStream(bounded));
+		}
+		assertEquals(0, boundedCache.getNumEvictions());
+		assertArrayEquals(unbounded.toByteArray(), bounded.toByteArray());
+	}
+
+	private String randomString(int maxLength) {
+		char[] chars = new char[this.rand.nextInt(maxLength + 1)];
+		for (int i = 0; i < chars.length; ++i) {
+			switch (this.rand.nextInt(4)) {
+			case 0:
+				// anything, including unpaired surrogates
+				chars[i] = (char) this.rand.nextInt(1 << 16);
+				break;
+			case 1:
+				if (i + 1 < chars.length) {
+					int codePoint = Character.MIN_SUPPLEMENTARY_CODE_POINT
+						+ this.rand.nextInt(Character.MAX_CODE_POINT - Character.MIN_SUPPLEMENTARY_CODE_POINT + 1);
+					Character.toChars(codePoint, chars, i++);
+					break;
+				}
+				//$FALL-THROUGH$
+			default:
+				chars[i] = (char) this.rand.nextInt(128);
+				break;
+			}
+		}
+		return new String(chars);
+	}
+
+	private byte[] writeUtf8(String[] strings, StringCacheOutput cacheOut) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (String s: strings)
+			cacheOut.writeStringUtf8(s, bytes);
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void testUtf8() throws IOException {
+		String[] distinct = new String[200];
+		for (int i = 1; i < distinct.length; ++i)
+			distinct[i] = randomString(this.rand.nextInt(10) == 0 ? 100000 : 50);
+		String[] strings = new String[5000];
+		for (int i = 0; i < strings.length; ++i)
+			strings[i] = distinct[this.rand.nextInt(distinct.length)];
+
+		int maxSize = this.rand.nextBoolean() ? 0 : 1 + this.rand.nextInt(100);
+		StringCacheOutput cacheOut = maxSize == 0 ? new StringCacheOutput() : new StringCacheOutput(maxSize);
+		byte[] data = writeUtf8(strings, cacheOut);
+
+		StringCacheInput cacheIn = maxSize == 0 ? new StringCacheInput() : new StringCacheInput(maxSize);
+		OptimizedDataInputStream in = new OptimizedDataInputStream(new ByteArrayInputStream(data));
+		for (String s: strings)
+			assertEquals(s, cacheIn.readStringUtf8(in));
+		assertEquals(-1, in.read());
+		assertEquals(cacheOut.getNumEvictions(), cacheIn.getNumEvictions());
+		assertEquals(cacheOut.getSize(), cacheIn.getSize());
+	}
+
+	@Test
+	public void testSlices() throws IOException {
+		String[] strings = generate(10000, 1000);
+		strings[0] = "\u00e4\u20ac\ud83d\ude00";
+		int maxSize = this.rand.nextBoolean() ? 0 : 1 + this.rand.nextInt(200);
+		StringCacheOutput cacheOut = maxSize == 0 ? new StringCacheOutput() : new StringCacheOutput(maxSize);
+		byte[] data = writeUtf8(strings, cacheOut);
+
+		// read some strings as slices, the others as Strings
+		StringCacheInput cacheIn = maxSize == 0 ? new StringCacheInput() : new StringCacheInput(maxSize);
+		ByteArrayInputStream in = new ByteArrayInputStream(data);
+		Utf8Slice slice = new Utf8Slice();
+		for (String s: strings) {
+			if (this.rand.nextBoolean()) {
+				assertEquals(s, cacheIn.readStringUtf8(in));
+			} else if (s == null) {
+				assertFalse(cacheIn.readStringSlice(in, slice));
+			} else {
+				assertTrue(cacheIn.readStringSlice(in, slice));
+				assertTrue(s, slice.contentEquals(s));
+				assertEquals(s, slice.toString());
+				assertArrayEquals(s.getBytes("UTF-8"), Arrays.copyOfRange(slice.getBytes(), slice.getOffset(),
+					slice.getOffset() + slice.getLength()));
+			}
+		}
+		assertEquals(-1, in.read());
+		assertEquals(cacheOut.getNumHits(), cacheIn.getNumHits());
+		assertEquals(cacheOut.getNumEvictions(), cacheIn.getNumEvictions());
+		assertTrue(cacheIn.getEstimatedMemoryUsage() > 0);
+	}
+
+	@Test
+	public void testSharedInterner() throws IOException {
+		String[] strings = generate(1000, 100);
+		Utf8StringInterner interner = new Utf8StringInterner();
+		StringCacheInput[] caches = new StringCacheInput[5];
+		String[][] read = new String[caches.length][strings.length];
+		for (int c = 0; c < caches.length; ++c) {
+			byte[] data = writeUtf8(strings, new StringCacheOutput());
+			caches[c] = new StringCacheInput(interner);
+			ByteArrayInputStream in = new ByteArrayInputStream(data);
+			for (int i = 0; i < strings.length; ++i) {
+				read[c][i] = caches[c].readStringUtf8(in);
+				assertEquals(strings[i], read[c][i]);
+			}
+		}
+		// all caches share the same String objects
+		for (int c = 1; c < caches.length; ++c)
+			for (int i = 0; i < strings.length; ++i)
+				assertSame(read[0][i], read[c][i]);
+		assertEquals(caches[0].getSize(), interner.size());
+	}
+
+	@Test
+	public void testBoundedInterner() throws IOException {
+		for (int maxSize: new int[] { 1, 7, 100, 5000 })
+			checkBoundedInterner(maxSize);
+	}
+
+	private void checkBoundedInterner(int maxSize) throws IOException {
+		String[] strings = generate(5000, 2000);
+		Utf8StringInterner interner = new Utf8StringInterner(maxSize);
+		byte[] data = writeUtf8(strings, new StringCacheOutput());
+		StringCacheInput cacheIn = null;
+		for (int c = 0; c < 5; ++c) {
+			cacheIn = new StringCacheInput(interner);
+			ByteArrayInputStream in = new ByteArrayInputStream(data);
+			for (int i = 0; i < strings.length; ++i) {
+				long hits = cacheIn.getNumHits();
+				String s = cacheIn.readStringUtf8(in);
+				assertEquals(strings[i], s);
+				// a miss has just interned the string; a hit may return a string evicted since
+				if (s != null && cacheIn.getNumHits() == hits) {
+					byte[] bytes = s.getBytes("UTF-8");
+					assertSame(s, interner.intern(bytes, 0, bytes.length));
+				}
+				assertTrue(interner.size() <= maxSize);
+			}
+		}
+		assertEquals(Math.min(maxSize, cacheIn.getSize()), interner.size());
+		assertEquals(cacheIn.getSize() > maxSize, interner.getNumEvictions() > 0);
+		assertTrue(interner.getEstimatedMemoryUsage() > 0);
+		interner.clear();
+		assertEquals(0, interner.size());
+		assertEquals(strings[1], new StringCacheInput(interner).readStringUtf8(new ByteArrayInputStream(
+			writeUtf8(new String[] { strings[1] }, new StringCacheOutput()))));
+	}
+
+	@Test
+	public void testFrontCoding() throws IOException {
+		String[] strings = generate(10000, 1000);
+		strings[0] = "de.hammacher.util.\ud83d\ude00.\u00e4";
+		strings[1] = "de.hammacher.util.\ud83d\ude01.\u00e4";
+		int maxSize = this.rand.nextBoolean() ? 0 : 1 + this.rand.nextInt(200);
+
+		// modified UTF-8
+		StringCacheOutput plainOut = new StringCacheOutput(maxSize, false);
+		StringCacheOutput frontOut = new StringCacheOutput(maxSize, true);
+		ByteArrayOutputStream plainBytes = new ByteArrayOutputStream();
+		ByteArrayOutputStream frontBytes = new ByteArrayOutputStream();
+		DataOutputStream plain = new DataOutputStream(plainBytes);
+		DataOutputStream front = new DataOutputStream(frontBytes);
+		for (String s: strings) {
+			plainOut.writeString(s, plain);
+			frontOut.writeString(s, front);
+		}
+		assertTrue(frontOut.getNumPrefixChars() > 0);
+		assertTrue(frontBytes.size() + " >= " + plainBytes.size(), frontBytes.size() < plainBytes.size());
+		System.out.format("front coding (max size %d): %d bytes instead of %d%n", maxSize, frontBytes.size(),
+			plainBytes.size());
+		StringCacheInput frontIn = new StringCacheInput(maxSize, true, null);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(frontBytes.toByteArray()));
+		for (String s: strings)
+			assertEquals(s, frontIn.readString(in));
+		assertEquals(-1, in.read());
+
+		// raw UTF-8, read as Strings and as slices
+		byte[] data = writeUtf8(strings, new StringCacheOutput(maxSize, true));
+		frontIn = new StringCacheInput(maxSize, true, this.rand.nextBoolean() ? new Utf8StringInterner() : null);
+		ByteArrayInputStream utf8In = new ByteArrayInputStream(data);
+		Utf8Slice slice = new Utf8Slice();
+		for (String s: strings) {
+			if (s == null || this.rand.nextBoolean()) {
+				assertEquals(s, frontIn.readStringUtf8(utf8In));
+			} else {
+				assertTrue(frontIn.readStringSlice(utf8In, slice));
+				assertEquals(s, slice.toString());
+			}
+		}
+		assertEquals(-1, utf8In.read());
+	}
+
+	@Test(expected=IOException.class)
+	public void testCorruptedUtf8() throws IOException {
+		// new string (encoded id -1) of 2 bytes, with an invalid continuation byte
+		byte[] data = { -1, 2, (byte) 0xc3, 0x41 };
+		new StringCacheInput().readStringUtf8(new ByteArrayInputStream(data));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidMaxSize() {
+		new StringCacheInput(0);
+	}
+
+}
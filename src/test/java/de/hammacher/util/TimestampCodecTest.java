@@ -0,0 +1,150 @@
+package de.hammacher.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.hammacher.util.streams.TimestampDecoder;
+import de.hammacher.util.streams.TimestampEncoder;
+
+
+public class TimestampCodecTest {
+
+	private Random rand;
+
+	@Before
+	public void setUp() {
+		long seed = new Random().nextLong();
+		System.out.println("Seed: "+seed);
+		this.rand = new Random(seed);
+	}
+
+	private long[] generate(int num) {
+		long[] timestamps = new long[num];
+		long last = this.rand.nextLong();
+		long interval = this.rand.nextInt(1000000);
+		for (int i = 0; i < num; ++i) {
+			switch (this.rand.nextInt(10)) {
+			case 0: // jitter
+				last += interval + this.rand.nextInt(1 << this.rand.nextInt(31));
+				break;
+			case 1: // anything
+				last = this.rand.nextLong() >> this.rand.nextInt(64);
+				break;
+			default:
+				last += interval;
+				break;
+			}
+			timestamps[i] = last;
+		}
+		return timestamps;
+	}
+
+	private static void checkEOF(TimestampDecoder decoder) throws IOException {
+		try {
+			decoder.readTimestamp();
+			fail("expected EOFException");
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testRandom() throws IOException {
+		long[] timestamps = generate(100000);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		TimestampEncoder encoder = new TimestampEncoder(bytes);
+		for (long t: timestamps)
+			encoder.writeTimestamp(t);
+		encoder.close();
+
+		TimestampDecoder decoder = new TimestampDecoder(new ByteArrayInputStream(bytes.toByteArray()));
+		for (long t: timestamps)
+			assertEquals(t, decoder.readTimestamp());
+		checkEOF(decoder);
+	}
+
+	@Test
+	public void testExtremeValues() throws IOException {
+		long[] timestamps = { 0, Long.MAX_VALUE, Long.MIN_VALUE, 0, Long.MIN_VALUE, Long.MAX_VALUE, -1, 1, 1 };
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		TimestampEncoder encoder = new TimestampEncoder(bytes);
+		for (long t: timestamps)
+			encoder.writeTimestamp(t);
+		encoder.close();
+
+		TimestampDecoder decoder = new TimestampDecoder(new ByteArrayInputStream(bytes.toByteArray()));
+		for (long t: timestamps)
+			assertEquals(t, decoder.readTimestamp());
+		checkEOF(decoder);
+	}
+
+	@Test
+	public void testRegularSeries() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		TimestampEncoder encoder = new TimestampEncoder(bytes);
+		long t = System.nanoTime();
+		int num = 100000;
+		for (int i = 0; i < num; ++i)
+			encoder.writeTimestamp(t += 1000000 + (this.rand.nextInt(100) == 0 ? this.rand.nextInt(100) - 50 : 0));
+		encoder.close();
+		double bitsPerValue = 8.0 * bytes.size() / num;
+		assertTrue(bitsPerValue + " bits per value", bitsPerValue < 1.5);
+	}
+
+	@Test
+	public void testResume() throws IOException {
+		long[] timestamps = generate(1000);
+		int numParts = 1 + this.rand.nextInt(10);
+		int[] partStart = new int[numParts + 1];
+		int[] partOffset = new int[numParts + 1];
+		long[][] partState = new long[numParts][];
+		for (int p = 1; p < numParts; ++p)
+			partStart[p] = this.rand.nextInt(timestamps.length + 1);
+		partStart[numParts] = timestamps.length;
+		Arrays.sort(partStart);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		long lastTimestamp = 0;
+		long lastDelta = 0;
+		for (int p = 0; p < numParts; ++p) {
+			partOffset[p] = bytes.size();
+			partState[p] = new long[] { lastTimestamp, lastDelta };
+			TimestampEncoder encoder = p == 0 ? new TimestampEncoder(bytes)
+				: new TimestampEncoder(bytes, lastTimestamp, lastDelta);
+			for (int i = partStart[p]; i < partStart[p+1]; ++i)
+				encoder.writeTimestamp(timestamps[i]);
+			encoder.finish();
+			lastTimestamp = encoder.getLastTimestamp();
+			lastDelta = encoder.getLastDelta();
+		}
+		partOffset[numParts] = bytes.size();
+		byte[] data = bytes.toByteArray();
+
+		// read everything at once
+		TimestampDecoder decoder = new TimestampDecoder(new ByteArrayInputStream(data));
+		for (long t: timestamps)
+			assertEquals(t, decoder.readTimestamp());
+		checkEOF(decoder);
+
+		// read each part on its own
+		for (int p = 0; p < numParts; ++p) {
+			decoder = new TimestampDecoder(new ByteArrayInputStream(data, partOffset[p],
+				partOffset[p+1] - partOffset[p]), partState[p][0], partState[p][1]);
+			for (int i = partStart[p]; i < partStart[p+1]; ++i)
+				assertEquals(timestamps[i], decoder.readTimestamp());
+			checkEOF(decoder);
+		}
+	}
+
+}